@@ -1872,6 +1872,53 @@ public class AndroidBuilder {
             @NonNull String outApkLocation)
             throws DuplicateFileException, FileNotFoundException,
             KeytoolException, PackagerException, SigningException {
+        packageApk(androidResPkgLocation, dexFolder, dexedLibraries, packagedJars,
+                javaResourcesLocation, jniLibsFolders, abiFilters, jniDebugBuild, signingConfig,
+                packagingOptions, false /*incremental*/, outApkLocation);
+    }
+
+    /**
+     * Packages the apk.
+     *
+     * In incremental mode, the APK of the previous packaging is updated in place: the entries
+     * that did not change are kept with their digests, and only the changed entries and the
+     * signature files are written.
+     *
+     * @param androidResPkgLocation the location of the packaged resource file
+     * @param dexFolder the folder with the dex file.
+     * @param dexedLibraries optional collection of additional dex files to put in the apk.
+     * @param packagedJars the jars that are packaged (libraries + jar dependencies)
+     * @param javaResourcesLocation the processed Java resource folder
+     * @param jniLibsFolders the folders containing jni shared libraries
+     * @param abiFilters optional ABI filter
+     * @param jniDebugBuild whether the app should include jni debug data
+     * @param signingConfig the signing configuration
+     * @param packagingOptions the packaging options
+     * @param incremental whether to update the APK of the previous packaging.
+     * @param outApkLocation location of the APK.
+     * @throws DuplicateFileException
+     * @throws FileNotFoundException if the store location was not found
+     * @throws KeytoolException
+     * @throws PackagerException
+     * @throws SigningException when the key cannot be read from the keystore
+     *
+     * @see VariantConfiguration#getPackagedJars()
+     */
+    public void packageApk(
+            @NonNull String androidResPkgLocation,
+            @NonNull File dexFolder,
+            @Nullable Collection<File> dexedLibraries,
+            @NonNull Collection<File> packagedJars,
+            @Nullable String javaResourcesLocation,
+            @Nullable Collection<File> jniLibsFolders,
+            @Nullable Set<String> abiFilters,
+            boolean jniDebugBuild,
+            @Nullable SigningConfig signingConfig,
+            @Nullable PackagingOptions packagingOptions,
+            boolean incremental,
+            @NonNull String outApkLocation)
+            throws DuplicateFileException, FileNotFoundException,
+            KeytoolException, PackagerException, SigningException {
         checkNotNull(androidResPkgLocation, "androidResPkgLocation cannot be null.");
         checkNotNull(dexFolder, "dexFolder cannot be null.");
         checkArgument(dexFolder.isDirectory(), "dexFolder is not a directory");
@@ -1891,7 +1938,7 @@ public class AndroidBuilder {
         try {
             Packager packager = new Packager(
                     outApkLocation, androidResPkgLocation, dexFolder,
-                    certificateInfo, mCreatedBy, packagingOptions, mLogger);
+                    certificateInfo, mCreatedBy, packagingOptions, incremental, mLogger);
 
             if (dexedLibraries != null) {
                 for (File dexedLibrary : dexedLibraries) {
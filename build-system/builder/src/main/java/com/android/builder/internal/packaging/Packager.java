@@ -38,7 +38,6 @@ import com.google.common.io.Closeables;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.net.MalformedURLException;
@@ -285,6 +284,37 @@ public final class Packager implements IArchiveBuilder {
             @Nullable String createdBy,
             @Nullable PackagingOptions packagingOptions,
             ILogger logger) throws PackagerException {
+        this(apkLocation, resLocation, dexFolder, certificateInfo, createdBy, packagingOptions,
+                false /*incremental*/, logger);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * This creates a new builder that will create the specified output file, using the two
+     * mandatory given input files.
+     *
+     * If <var>incremental</var> is true and the output file is an APK created by a previous
+     * packaging, it is updated instead: the entries that did not change are kept as they are,
+     * and only the changed entries and the signature files are written again.
+     *
+     * @param apkLocation the file to create
+     * @param resLocation the file representing the packaged resource file.
+     * @param dexFolder the folder containing the dex file.
+     * @param certificateInfo the signing information used to sign the package. Optional the OS path to the debug keystore, if needed or null.
+     * @param incremental whether to update the existing APK.
+     * @param logger the logger.
+     * @throws com.android.builder.packaging.PackagerException
+     */
+    public Packager(
+            @NonNull String apkLocation,
+            @NonNull String resLocation,
+            @NonNull File dexFolder,
+            CertificateInfo certificateInfo,
+            @Nullable String createdBy,
+            @Nullable PackagingOptions packagingOptions,
+            boolean incremental,
+            ILogger logger) throws PackagerException {
         mFilter = new JavaAndNativeResourceFilter(packagingOptions);
 
         try {
@@ -297,7 +327,8 @@ public final class Packager implements IArchiveBuilder {
             mLogger = logger;
 
             mBuilder = new SignedJarBuilder(
-                    new FileOutputStream(apkFile, false /* append */),
+                    apkFile,
+                    incremental,
                     certificateInfo != null ? certificateInfo.getKey() : null,
                     certificateInfo != null ? certificateInfo.getCertificate() : null,
                     getLocalVersion(),
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.testing;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.ddmlib.testrunner.TestRunResult;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * {@link ITestRunListener} merging the test runs of all the shards of a test suite into a
+ * single {@link CustomTestRunListener}, and so into a single XML report.
+ *
+ * The shards are run concurrently on several devices, and each device may run several
+ * shards. The run start and end events of the shards are not forwarded: the merged run starts
+ * with the first shard and ends with {@link #finish(long)}.
+ *
+ * The duration of each test is recorded in a {@link TestDurations}.
+ *
+ * This class is thread safe.
+ */
+public class ShardedTestRunListener implements ITestRunListener {
+
+    @NonNull
+    private final CustomTestRunListener mListener;
+    @NonNull
+    private final TestDurations mDurations;
+    private final Map<TestIdentifier, Long> mStartTimes = Maps.newHashMap();
+    private boolean mStarted = false;
+
+    public ShardedTestRunListener(@NonNull CustomTestRunListener listener,
+                                  @NonNull TestDurations durations) {
+        mListener = listener;
+        mDurations = durations;
+    }
+
+    /**
+     * Returns the merged result of all the shards.
+     */
+    @NonNull
+    public synchronized TestRunResult getRunResult() {
+        return mListener.getRunResult();
+    }
+
+    /**
+     * Ends the merged run, generating the XML report.
+     * @param elapsedTime the duration of the whole run.
+     */
+    public synchronized void finish(long elapsedTime) {
+        if (!mStarted) {
+            testRunStarted(mListener.getRunResult().getName(), 0);
+        }
+        Map<String, String> emptyMetrics = Collections.emptyMap();
+        mListener.testRunEnded(elapsedTime, emptyMetrics);
+    }
+
+    @Override
+    public synchronized void testRunStarted(String runName, int testCount) {
+        if (!mStarted) {
+            mStarted = true;
+            mListener.testRunStarted(runName, testCount);
+        }
+    }
+
+    @Override
+    public synchronized void testStarted(TestIdentifier test) {
+        mStartTimes.put(test, System.currentTimeMillis());
+        mListener.testStarted(test);
+    }
+
+    @Override
+    public synchronized void testFailed(TestIdentifier test, String trace) {
+        mListener.testFailed(test, trace);
+    }
+
+    @Override
+    public synchronized void testAssumptionFailure(TestIdentifier test, String trace) {
+        mListener.testAssumptionFailure(test, trace);
+    }
+
+    @Override
+    public synchronized void testIgnored(TestIdentifier test) {
+        mListener.testIgnored(test);
+    }
+
+    @Override
+    public synchronized void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        Long startTime = mStartTimes.remove(test);
+        if (startTime != null) {
+            mDurations.record(test, System.currentTimeMillis() - startTime);
+        }
+        mListener.testEnded(test, testMetrics);
+    }
+
+    @Override
+    public synchronized void testRunFailed(String errorMessage) {
+        mListener.testRunFailed(errorMessage);
+    }
+
+    @Override
+    public void testRunStopped(long elapsedTime) {
+        // the merged run only stops with finish().
+    }
+
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        // the merged run only ends with finish().
+    }
+}
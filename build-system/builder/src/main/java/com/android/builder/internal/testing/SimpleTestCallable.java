@@ -73,6 +73,8 @@ public class SimpleTestCallable implements Callable<Boolean> {
     private final int timeout;
     @NonNull
     private final ILogger logger;
+    @Nullable
+    private final TestShardScheduler shardScheduler;
 
     public SimpleTestCallable(
             @NonNull  DeviceConnector device,
@@ -86,6 +88,28 @@ public class SimpleTestCallable implements Callable<Boolean> {
             @NonNull  File coverageDir,
                       int timeout,
             @NonNull  ILogger logger) {
+        this(device, projectName, flavorName, testApk, testedApks, adbExec, testData, resultsDir,
+                coverageDir, timeout, logger, null);
+    }
+
+    /**
+     * Creates a callable running shards of the test suite given by a {@link TestShardScheduler},
+     * instead of the whole suite. The results of the shards go to the listener of the
+     * scheduler.
+     */
+    public SimpleTestCallable(
+            @NonNull  DeviceConnector device,
+            @NonNull  String projectName,
+            @NonNull  String flavorName,
+            @NonNull  File testApk,
+            @NonNull List<File> testedApks,
+            @NonNull  File adbExec,
+            @NonNull  TestData testData,
+            @NonNull  File resultsDir,
+            @NonNull  File coverageDir,
+                      int timeout,
+            @NonNull  ILogger logger,
+            @Nullable TestShardScheduler shardScheduler) {
         this.projectName = projectName;
         this.device = device;
         this.flavorName = flavorName;
@@ -97,6 +121,7 @@ public class SimpleTestCallable implements Callable<Boolean> {
         this.adbExec = adbExec;
         this.timeout = timeout;
         this.logger = logger;
+        this.shardScheduler = shardScheduler;
     }
 
     @Override
@@ -155,19 +180,13 @@ public class SimpleTestCallable implements Callable<Boolean> {
             device.installPackage(testApk, timeout, logger);
             isInstalled = true;
 
-            RemoteAndroidTestRunner runner = new RemoteAndroidTestRunner(
-                    testData.getApplicationId(),
-                    testData.getInstrumentationRunner(),
-                    device);
-
-            if (testData.isTestCoverageEnabled()) {
-                runner.addInstrumentationArg("coverage", "true");
-                runner.addInstrumentationArg("coverageFile", coverageFile);
+            if (shardScheduler != null) {
+                boolean passed = runShards(deviceName, coverageFile);
+                success = true;
+                return passed;
             }
 
-            runner.setRunName(deviceName);
-            runner.setMaxtimeToOutputResponse(timeout);
-
+            RemoteAndroidTestRunner runner = createRunner(deviceName, coverageFile);
             runner.run(runListener);
 
             TestRunResult testRunResult = runListener.getRunResult();
@@ -262,6 +281,53 @@ public class SimpleTestCallable implements Callable<Boolean> {
         }
     }
 
+    @NonNull
+    private RemoteAndroidTestRunner createRunner(@NonNull String deviceName,
+                                                 @NonNull String coverageFile) {
+        RemoteAndroidTestRunner runner = new RemoteAndroidTestRunner(
+                testData.getApplicationId(),
+                testData.getInstrumentationRunner(),
+                device);
+
+        if (testData.isTestCoverageEnabled()) {
+            runner.addInstrumentationArg("coverage", "true");
+            runner.addInstrumentationArg("coverageFile", coverageFile);
+        }
+
+        runner.setRunName(deviceName);
+        runner.setMaxtimeToOutputResponse(timeout);
+        return runner;
+    }
+
+    /**
+     * Runs shards of the test suite until the scheduler has none left, or after the first one
+     * if the scheduler is not dynamic.
+     *
+     * @return true if all the tests of the shards passed.
+     */
+    private boolean runShards(@NonNull String deviceName, @NonNull String coverageFile)
+            throws Exception {
+        assert shardScheduler != null;
+        shardScheduler.listTests(createRunner(deviceName, coverageFile), flavorName);
+
+        boolean passed = true;
+        TestShardScheduler.Shard shard;
+        while ((shard = shardScheduler.nextShard()) != null) {
+            RemoteAndroidTestRunner runner = createRunner(deviceName, coverageFile);
+            shard.configure(runner);
+
+            TestRunResult shardResult = new TestRunResult();
+            runner.run(shardScheduler.getListener(), shardResult);
+            passed &= !shardResult.hasFailedTests() && !shardResult.isRunFailure();
+
+            if (!shardScheduler.isDynamic()) {
+                break;
+            }
+        }
+
+        return passed;
+    }
+
     private void uninstall(@NonNull File apkFile, @Nullable String packageName,
                            @NonNull String deviceName)
             throws DeviceException {
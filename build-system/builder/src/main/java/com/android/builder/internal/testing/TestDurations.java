@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.testing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Durations of the tests of previous runs, used to balance the test shards.
+ *
+ * The durations are stored in a properties file, keyed by <code>class#method</code>.
+ *
+ * This class is thread safe.
+ */
+public class TestDurations {
+
+    /** Estimated duration of a test when no test has been timed yet. */
+    static final long DEFAULT_TEST_DURATION_MS = 1000;
+
+    @Nullable
+    private final File mFile;
+    private final Map<String, Long> mDurations = Maps.newHashMap();
+    private long mTotalDuration;
+
+    /**
+     * Creates an instance from the durations stored in a file.
+     * @param file the file, or null to not keep durations from one run to the next.
+     *             A missing or malformed file is treated as an empty one.
+     */
+    public TestDurations(@Nullable File file) {
+        mFile = file;
+        if (file != null && file.isFile()) {
+            load(file);
+        }
+    }
+
+    /**
+     * Returns the duration of a test in the previous runs, or the average duration of the other
+     * tests if this one never ran.
+     */
+    public synchronized long getDuration(@NonNull TestIdentifier test) {
+        Long duration = mDurations.get(getKey(test));
+        if (duration != null) {
+            return duration;
+        }
+        if (mDurations.isEmpty()) {
+            return DEFAULT_TEST_DURATION_MS;
+        }
+        return mTotalDuration / mDurations.size();
+    }
+
+    /**
+     * Records the duration of a test in the current run.
+     */
+    public synchronized void record(@NonNull TestIdentifier test, long durationMs) {
+        Long previous = mDurations.put(getKey(test), durationMs);
+        if (previous != null) {
+            mTotalDuration -= previous;
+        }
+        mTotalDuration += durationMs;
+    }
+
+    /**
+     * Saves the durations in the file they were loaded from. Does nothing if there is no such
+     * file.
+     * @throws IOException if the file could not be written.
+     */
+    public synchronized void save() throws IOException {
+        if (mFile == null) {
+            return;
+        }
+
+        Properties props = new Properties();
+        for (Map.Entry<String, Long> entry : mDurations.entrySet()) {
+            props.setProperty(entry.getKey(), entry.getValue().toString());
+        }
+
+        mFile.getParentFile().mkdirs();
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(mFile), Charsets.UTF_8);
+            props.store(writer, null);
+        } finally {
+            Closeables.close(writer, true /* swallowIOException */);
+        }
+    }
+
+    private void load(@NonNull File file) {
+        Reader reader = null;
+        try {
+            reader = new InputStreamReader(new FileInputStream(file), Charsets.UTF_8);
+            Properties props = new Properties();
+            props.load(reader);
+
+            for (String key : props.stringPropertyNames()) {
+                try {
+                    long duration = Long.parseLong(props.getProperty(key));
+                    mDurations.put(key, duration);
+                    mTotalDuration += duration;
+                } catch (NumberFormatException ignore) {
+                    // skip the entry.
+                }
+            }
+        } catch (IOException ignore) {
+            // start from scratch.
+        } finally {
+            try {
+                Closeables.close(reader, true /* swallowIOException */);
+            } catch (IOException e) {
+                // cannot happen
+            }
+        }
+    }
+
+    @NonNull
+    private static String getKey(@NonNull TestIdentifier test) {
+        return test.getClassName() + "#" + test.getTestName();
+    }
+}
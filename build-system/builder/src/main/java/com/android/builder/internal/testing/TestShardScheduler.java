@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.testing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.ddmlib.testrunner.TestRunResult;
+import com.android.utils.ILogger;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits a test suite into shards run by several devices.
+ *
+ * The tests are listed once, by a log-only run on the first device ready to run tests, and are
+ * split by class. The classes are ordered by their duration in the previous runs, longest first.
+ *
+ * In dynamic mode, the devices repeatedly ask for a shard until there is none left. Shards are
+ * sized so that they get smaller as the run progresses, which lets a device finishing early
+ * take over the work of the slower ones.
+ *
+ * In static mode, used when each device must run a single instrumentation (for instance to
+ * collect code coverage), the classes are split up front into one shard per device, of about
+ * the same total duration.
+ *
+ * If the tests cannot be listed, each device runs one shard selected by the
+ * <code>numShards</code> and <code>shardIndex</code> instrumentation arguments.
+ *
+ * This class is thread safe.
+ */
+public class TestShardScheduler {
+
+    /** Number of shards per device at the start of a dynamic run. */
+    private static final int SHARDS_PER_DEVICE = 4;
+    /** Minimum estimated duration of a shard, to amortize the start of the instrumentation. */
+    private static final long MIN_SHARD_DURATION_MS = 10000;
+
+    private static final String NUM_SHARDS_ARG = "numShards";
+    private static final String SHARD_INDEX_ARG = "shardIndex";
+
+    /**
+     * A part of the test suite, run by a single instrumentation.
+     */
+    public static final class Shard {
+        @Nullable
+        private final List<String> mClassNames;
+        private final int mIndex;
+        private final int mCount;
+
+        private Shard(@Nullable List<String> classNames, int index, int count) {
+            mClassNames = classNames;
+            mIndex = index;
+            mCount = count;
+        }
+
+        /**
+         * Returns the classes of the shard, or null if the shard is selected by the
+         * instrumentation arguments.
+         */
+        @Nullable
+        public List<String> getClassNames() {
+            return mClassNames;
+        }
+
+        /**
+         * Configures a runner to only run the tests of this shard.
+         */
+        public void configure(@NonNull RemoteAndroidTestRunner runner) {
+            if (mClassNames != null) {
+                runner.setClassNames(mClassNames.toArray(new String[mClassNames.size()]));
+            } else {
+                runner.addInstrumentationArg(NUM_SHARDS_ARG, Integer.toString(mCount));
+                runner.addInstrumentationArg(SHARD_INDEX_ARG, Integer.toString(mIndex));
+            }
+        }
+    }
+
+    private static final class TestClass {
+        @NonNull
+        final String mName;
+        final long mDuration;
+
+        TestClass(@NonNull String name, long duration) {
+            mName = name;
+            mDuration = duration;
+        }
+    }
+
+    private final int mDeviceCount;
+    private final boolean mDynamic;
+    @NonNull
+    private final TestDurations mDurations;
+    @NonNull
+    private final ShardedTestRunListener mListener;
+    @NonNull
+    private final ILogger mLogger;
+
+    private boolean mListed = false;
+    /** Pending classes of a dynamic run, longest first. */
+    private final LinkedList<TestClass> mPendingClasses = Lists.newLinkedList();
+    private long mPendingDuration;
+    /** Shards computed up front, for a static run or when the tests could not be listed. */
+    private final LinkedList<Shard> mPendingShards = Lists.newLinkedList();
+
+    /**
+     * Creates a scheduler.
+     * @param deviceCount the number of devices running the tests.
+     * @param dynamic whether devices can run several shards.
+     * @param durations the durations of the tests in previous runs.
+     * @param listener the listener receiving the results of all the shards.
+     * @param logger the logger.
+     */
+    public TestShardScheduler(
+                     int deviceCount,
+                     boolean dynamic,
+            @NonNull TestDurations durations,
+            @NonNull ShardedTestRunListener listener,
+            @NonNull ILogger logger) {
+        mDeviceCount = deviceCount;
+        mDynamic = dynamic;
+        mDurations = durations;
+        mListener = listener;
+        mLogger = logger;
+    }
+
+    /**
+     * Returns the listener that must receive the results of the shards.
+     */
+    @NonNull
+    public ShardedTestRunListener getListener() {
+        return mListener;
+    }
+
+    /**
+     * Returns whether a device may run more than one shard.
+     */
+    public boolean isDynamic() {
+        return mDynamic;
+    }
+
+    /**
+     * Lists the tests of the suite, if this was not done yet. The other devices wait for the
+     * listing to be done before getting their shards.
+     * @param runner a runner for the test application, installed on its device.
+     * @param runName the name of the merged run.
+     */
+    public synchronized void listTests(
+            @NonNull RemoteAndroidTestRunner runner,
+            @NonNull String runName) {
+        if (mListed) {
+            return;
+        }
+        mListed = true;
+
+        runner.setLogOnly(true);
+        TestRunResult result = new TestRunResult();
+        try {
+            runner.run(result);
+        } catch (Exception e) {
+            mLogger.warning("Failed to list the tests: %1$s", e.toString());
+        }
+
+        Collection<TestIdentifier> tests = result.getTestResults().keySet();
+        if (tests.isEmpty()) {
+            mLogger.info("Unable to list the tests, sharding them by instrumentation arguments");
+            for (int i = 0 ; i < mDeviceCount ; i++) {
+                mPendingShards.add(new Shard(null, i, mDeviceCount));
+            }
+            return;
+        }
+
+        mListener.testRunStarted(runName, tests.size());
+        setTests(tests);
+    }
+
+    /**
+     * Returns the next shard to run, or null if there is none left.
+     */
+    @Nullable
+    public synchronized Shard nextShard() {
+        if (!mPendingShards.isEmpty()) {
+            return mPendingShards.removeFirst();
+        }
+        if (mPendingClasses.isEmpty()) {
+            return null;
+        }
+
+        // take the longest pending class, then fill up the shard with the next ones while the
+        // shard stays under its share of the remaining work.
+        long target = Math.max(mPendingDuration / (mDeviceCount * SHARDS_PER_DEVICE),
+                MIN_SHARD_DURATION_MS);
+        List<String> classNames = Lists.newArrayList();
+        long duration = 0;
+        do {
+            TestClass testClass = mPendingClasses.removeFirst();
+            classNames.add(testClass.mName);
+            duration += testClass.mDuration;
+        } while (!mPendingClasses.isEmpty()
+                && duration + mPendingClasses.getFirst().mDuration <= target);
+
+        mPendingDuration -= duration;
+        return new Shard(classNames, -1, -1);
+    }
+
+    @VisibleForTesting
+    synchronized void setTests(@NonNull Collection<TestIdentifier> tests) {
+        Map<String, Long> classDurations = Maps.newHashMap();
+        for (TestIdentifier test : tests) {
+            Long duration = classDurations.get(test.getClassName());
+            classDurations.put(test.getClassName(),
+                    (duration != null ? duration : 0) + mDurations.getDuration(test));
+        }
+
+        List<TestClass> classes = Lists.newArrayListWithCapacity(classDurations.size());
+        for (Map.Entry<String, Long> entry : classDurations.entrySet()) {
+            classes.add(new TestClass(entry.getKey(), entry.getValue()));
+        }
+        // longest first, then by name to get the same shards from one run to the next.
+        Collections.sort(classes, new Comparator<TestClass>() {
+            @Override
+            public int compare(TestClass c1, TestClass c2) {
+                if (c1.mDuration != c2.mDuration) {
+                    return c1.mDuration > c2.mDuration ? -1 : 1;
+                }
+                return c1.mName.compareTo(c2.mName);
+            }
+        });
+
+        if (mDynamic) {
+            for (TestClass testClass : classes) {
+                mPendingClasses.add(testClass);
+                mPendingDuration += testClass.mDuration;
+            }
+            return;
+        }
+
+        // each class goes to the shard with the shortest total duration so far.
+        List<List<String>> shardClasses = Lists.newArrayListWithCapacity(mDeviceCount);
+        long[] shardDurations = new long[mDeviceCount];
+        for (int i = 0 ; i < mDeviceCount ; i++) {
+            shardClasses.add(Lists.<String>newArrayList());
+        }
+        for (TestClass testClass : classes) {
+            int shortest = 0;
+            for (int i = 1 ; i < mDeviceCount ; i++) {
+                if (shardDurations[i] < shardDurations[shortest]) {
+                    shortest = i;
+                }
+            }
+            shardClasses.get(shortest).add(testClass.mName);
+            shardDurations[shortest] += testClass.mDuration;
+        }
+        for (int i = 0 ; i < mDeviceCount ; i++) {
+            if (!shardClasses.get(i).isEmpty()) {
+                mPendingShards.add(new Shard(shardClasses.get(i), i, mDeviceCount));
+            }
+        }
+    }
+}
@@ -20,6 +20,9 @@ import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter.ZipAbortException;
+import com.android.sdklib.internal.build.ParallelZipWriter;
+import com.android.sdklib.internal.build.ParallelZipWriter.SourceEntry;
+import com.google.common.io.ByteStreams;
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.DEROutputStream;
 import org.bouncycastle.cert.jcajce.JcaCertStore;
@@ -35,35 +38,40 @@ import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.bouncycastle.util.encoders.Base64;
 
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.channels.FileChannel;
 import java.security.DigestOutputStream;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
-import java.security.Signature;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 /**
  * A Jar file builder with signature support.
+ * <p/>
+ * The archive is written by a {@link ParallelZipWriter}: new files are compressed in parallel,
+ * and the entries of zip files given as {@link FileInputStream}s are copied without being
+ * recompressed. The digests of the manifest are computed per entry on the worker threads.
  */
 public class SignedJarBuilder {
     private static final String DIGEST_ALGORITHM = "SHA1";
@@ -98,13 +106,10 @@ public class SignedJarBuilder {
         }
     }
 
-    private JarOutputStream mOutputJar;
+    private ParallelZipWriter mOutputJar;
     private PrivateKey mKey;
     private X509Certificate mCertificate;
     private Manifest mManifest;
-    private MessageDigest mMessageDigest;
-
-    private byte[] mBuffer = new byte[4096];
 
     /**
      * Classes which implement this interface provides a method to check whether a file should
@@ -164,8 +169,50 @@ public class SignedJarBuilder {
                             @Nullable String builtBy,
                             @Nullable String createdBy)
             throws IOException, NoSuchAlgorithmException {
-        mOutputJar = new JarOutputStream(new BufferedOutputStream(out));
-        mOutputJar.setLevel(9);
+        this(key, certificate, builtBy, createdBy);
+        mOutputJar = new ParallelZipWriter(out, 9, mManifest != null ? DIGEST_ALGORITHM : null);
+    }
+
+    /**
+     * Creates a {@link SignedJarBuilder} with a given output file, and signing information.
+     * <p/>If <code>incremental</code> is <code>true</code> and the file is the archive of a
+     * previous build, it is updated in place: only the entries that changed are written again,
+     * and the digests of the other entries are read from its manifest instead of being computed.
+     * <p/>If either <code>key</code> or <code>certificate</code> is <code>null</code> then
+     * the archive will not be signed.
+     * @param out the {@link File} where to write the Jar archive.
+     * @param incremental whether to update the existing archive.
+     * @param key the {@link PrivateKey} used to sign the archive, or <code>null</code>.
+     * @param certificate the {@link X509Certificate} used to sign the archive, or
+     * <code>null</code>.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public SignedJarBuilder(@NonNull File out,
+                            boolean incremental,
+                            @Nullable PrivateKey key,
+                            @Nullable X509Certificate certificate,
+                            @Nullable String builtBy,
+                            @Nullable String createdBy)
+            throws IOException, NoSuchAlgorithmException {
+        this(key, certificate, builtBy, createdBy);
+        String digestAlgorithm = mManifest != null ? DIGEST_ALGORITHM : null;
+        if (incremental) {
+            // read the digests before the archive is modified.
+            Map<String, byte[]> digests = mManifest != null
+                    ? readDigests(out) : Collections.<String, byte[]>emptyMap();
+            mOutputJar = new ParallelZipWriter(out, 9, digestAlgorithm);
+            mOutputJar.setKnownDigests(digests);
+        } else {
+            mOutputJar = new ParallelZipWriter(new FileOutputStream(out, false /* append */), 9,
+                    digestAlgorithm);
+        }
+    }
+
+    private SignedJarBuilder(@Nullable PrivateKey key,
+                             @Nullable X509Certificate certificate,
+                             @Nullable String builtBy,
+                             @Nullable String createdBy) {
         mKey = key;
         mCertificate = certificate;
 
@@ -179,8 +226,6 @@ public class SignedJarBuilder {
             if (createdBy != null) {
                 main.putValue("Created-By", createdBy);
             }
-
-            mMessageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
         }
     }
 
@@ -191,25 +236,16 @@ public class SignedJarBuilder {
      * @throws IOException
      */
     public void writeFile(File inputFile, String jarPath) throws IOException {
-        // Get an input stream on the file.
-        FileInputStream fis = new FileInputStream(inputFile);
-        try {
-
-            // create the zip entry
-            JarEntry entry = new JarEntry(jarPath);
-            entry.setTime(inputFile.lastModified());
-
-            writeEntry(fis, entry);
-        } finally {
-            // close the file stream used to read the file
-            fis.close();
-        }
+        // the file is read and compressed on a worker thread.
+        mOutputJar.addFile(inputFile, jarPath);
     }
 
     /**
      * Copies the content of a Jar/Zip archive into the receiver archive.
      * <p/>An optional {@link IZipEntryFilter} allows to selectively choose which files
      * to copy over.
+     * <p/>If <code>input</code> is a {@link FileInputStream}, the entries are copied without
+     * being recompressed.
      * @param input the {@link InputStream} for the Jar/Zip to copy.
      * @param filter the filter or <code>null</code>
      * @throws IOException
@@ -218,65 +254,76 @@ public class SignedJarBuilder {
      */
     public void writeZip(InputStream input, IZipEntryFilter filter)
             throws IOException, ZipAbortException {
+        if (input instanceof FileInputStream) {
+            try {
+                FileChannel channel = ((FileInputStream) input).getChannel();
+                for (SourceEntry entry : ParallelZipWriter.readEntries(channel)) {
+                    if (!entry.isDirectory() && checkEntry(entry.getName(), filter)) {
+                        mOutputJar.copyEntry(channel, entry);
+                    }
+                }
+
+                // the copies read the channel until they are written.
+                mOutputJar.flush();
+            } finally {
+                input.close();
+            }
+            return;
+        }
+
         ZipInputStream zis = new ZipInputStream(input);
 
         try {
             // loop on the entries of the intermediary package and put them in the final package.
             ZipEntry entry;
             while ((entry = zis.getNextEntry()) != null) {
-                String name = entry.getName();
-
-                // do not take directories or anything inside a potential META-INF folder.
-                if (entry.isDirectory()) {
+                if (entry.isDirectory() || !checkEntry(entry.getName(), filter)) {
                     continue;
                 }
 
-                // ignore some of the content in META-INF/ but not all
-                if (name.startsWith("META-INF/")) {
-                    // ignore the manifest file.
-                    String subName = name.substring(9);
-                    if ("MANIFEST.MF".equals(subName)) {
-                        continue;
-                    }
-
-                    // special case for Maven meta-data because we really don't care about them in apks.
-                    if (name.startsWith("META-INF/maven/")) {
-                        continue;
-                    }
+                // Preserve the STORED method of the input entry.
+                mOutputJar.addBytes(ByteStreams.toByteArray(zis), entry.getName(),
+                        entry.getTime(), entry.getMethod() == ZipEntry.STORED
+                                ? ZipEntry.STORED : ZipEntry.DEFLATED);
 
+                zis.closeEntry();
+            }
+        } finally {
+            zis.close();
+        }
+    }
 
-                    // check for subfolder
-                    int index = subName.indexOf('/');
-                    if (index == -1) {
-                        // no sub folder, ignores signature files.
-                        if (subName.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA")) {
-                            continue;
-                        }
-                    }
-                }
+    /**
+     * Returns whether an entry of a Jar/Zip archive must be copied into the receiver archive.
+     */
+    private static boolean checkEntry(String name, IZipEntryFilter filter)
+            throws ZipAbortException {
+        // ignore some of the content in META-INF/ but not all
+        if (name.startsWith("META-INF/")) {
+            // ignore the manifest file.
+            String subName = name.substring(9);
+            if ("MANIFEST.MF".equals(subName)) {
+                return false;
+            }
 
-                // if we have a filter, we check the entry against it
-                if (filter != null && !filter.checkEntry(name)) {
-                    continue;
-                }
+            // special case for Maven meta-data because we really don't care about them in apks.
+            if (name.startsWith("META-INF/maven/")) {
+                return false;
+            }
 
-                JarEntry newEntry;
 
-                // Preserve the STORED method of the input entry.
-                if (entry.getMethod() == JarEntry.STORED) {
-                    newEntry = new JarEntry(entry);
-                } else {
-                    // Create a new entry so that the compressed len is recomputed.
-                    newEntry = new JarEntry(name);
+            // check for subfolder
+            int index = subName.indexOf('/');
+            if (index == -1) {
+                // no sub folder, ignores signature files.
+                if (subName.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA")) {
+                    return false;
                 }
-
-                writeEntry(zis, newEntry);
-
-                zis.closeEntry();
             }
-        } finally {
-            zis.close();
         }
+
+        // if we have a filter, we check the entry against it
+        return filter == null || filter.checkEntry(name);
     }
 
     /**
@@ -286,24 +333,33 @@ public class SignedJarBuilder {
      */
     public void close() throws IOException, SigningException {
         if (mManifest != null) {
+            // wait for the digests of all the entries.
+            mOutputJar.flush();
+            for (Map.Entry<String, byte[]> digest : mOutputJar.getDigests().entrySet()) {
+                Attributes attr = new Attributes();
+                attr.putValue(DIGEST_ATTR,
+                        new String(Base64.encode(digest.getValue()), "ASCII"));
+                mManifest.getEntries().put(digest.getKey(), attr);
+            }
+
             // write the manifest to the jar file
-            mOutputJar.putNextEntry(new JarEntry(JarFile.MANIFEST_NAME));
-            mManifest.write(mOutputJar);
+            ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+            mManifest.write(manifest);
+            mOutputJar.addBytes(manifest.toByteArray(), JarFile.MANIFEST_NAME, -1,
+                    ZipEntry.DEFLATED);
 
             try {
                 // CERT.SF
-                Signature signature = Signature.getInstance("SHA1with" + mKey.getAlgorithm());
-                signature.initSign(mKey);
-                mOutputJar.putNextEntry(new JarEntry("META-INF/CERT.SF"));
-
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 writeSignatureFile(baos);
                 byte[] signedData = baos.toByteArray();
-                mOutputJar.write(signedData);
+                mOutputJar.addBytes(signedData, "META-INF/CERT.SF", -1, ZipEntry.DEFLATED);
 
                 // CERT.*
-                mOutputJar.putNextEntry(new JarEntry("META-INF/CERT." + mKey.getAlgorithm()));
-                writeSignatureBlock(new CMSProcessableByteArray(signedData), mCertificate, mKey);
+                mOutputJar.addBytes(
+                        writeSignatureBlock(new CMSProcessableByteArray(signedData),
+                                mCertificate, mKey),
+                        "META-INF/CERT." + mKey.getAlgorithm(), -1, ZipEntry.DEFLATED);
             } catch (Exception e) {
                 throw new SigningException(e);
             }
@@ -319,48 +375,49 @@ public class SignedJarBuilder {
      */
     public void cleanUp() {
         if (mOutputJar != null) {
-            try {
-                mOutputJar.close();
-            } catch (IOException e) {
-                // pass
-            }
+            mOutputJar.abort();
         }
     }
 
     /**
-     * Adds an entry to the output jar, and write its content from the {@link InputStream}
-     * @param input The input stream from where to write the entry content.
-     * @param entry the entry to write in the jar.
-     * @throws IOException
+     * Reads the digests of the entries from the manifest of an existing archive. Returns an
+     * empty map if the file is not a signed archive.
      */
-    private void writeEntry(InputStream input, JarEntry entry) throws IOException {
-        // add the entry to the jar archive
-        mOutputJar.putNextEntry(entry);
-
-        // read the content of the entry from the input stream, and write it into the archive.
-        int count;
-        while ((count = input.read(mBuffer)) != -1) {
-            mOutputJar.write(mBuffer, 0, count);
-
-            // update the digest
-            if (mMessageDigest != null) {
-                mMessageDigest.update(mBuffer, 0, count);
-            }
+    @NonNull
+    private static Map<String, byte[]> readDigests(@NonNull File file) {
+        Map<String, byte[]> digests = new HashMap<String, byte[]>();
+        if (!file.isFile() || file.length() == 0) {
+            return digests;
         }
 
-        // close the entry for this file
-        mOutputJar.closeEntry();
-
-        if (mManifest != null) {
-            // update the manifest for this entry.
-            Attributes attr = mManifest.getAttributes(entry.getName());
-            if (attr == null) {
-                attr = new Attributes();
-                mManifest.getEntries().put(entry.getName(), attr);
+        try {
+            ZipFile zipFile = new ZipFile(file);
+            try {
+                ZipEntry entry = zipFile.getEntry(JarFile.MANIFEST_NAME);
+                if (entry == null) {
+                    return digests;
+                }
+                InputStream in = zipFile.getInputStream(entry);
+                Manifest manifest;
+                try {
+                    manifest = new Manifest(in);
+                } finally {
+                    in.close();
+                }
+                for (Map.Entry<String, Attributes> attr : manifest.getEntries().entrySet()) {
+                    String digest = attr.getValue().getValue(DIGEST_ATTR);
+                    if (digest != null) {
+                        digests.put(attr.getKey(), Base64.decode(digest));
+                    }
+                }
+            } finally {
+                zipFile.close();
             }
-            attr.putValue(DIGEST_ATTR, 
-                          new String(Base64.encode(mMessageDigest.digest()), "ASCII"));
+        } catch (Exception e) {
+            // the digests are computed again.
+            digests.clear();
         }
+        return digests;
     }
 
     /** Writes a .SF file with a digest to the manifest. */
@@ -408,8 +465,8 @@ public class SignedJarBuilder {
         }
     }
 
-    /** Write the certificate file with a digital signature. */
-    private void writeSignatureBlock(CMSTypedData data, X509Certificate publicKey,
+    /** Returns the certificate file with a digital signature. */
+    private static byte[] writeSignatureBlock(CMSTypedData data, X509Certificate publicKey,
             PrivateKey privateKey)
                         throws IOException,
                         CertificateEncodingException,
@@ -433,12 +490,14 @@ public class SignedJarBuilder {
         gen.addCertificates(certs);
         CMSSignedData sigData = gen.generate(data, false);
 
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
         ASN1InputStream asn1 = new ASN1InputStream(sigData.getEncoded());
-        DEROutputStream dos = new DEROutputStream(mOutputJar);
+        DEROutputStream dos = new DEROutputStream(out);
         dos.writeObject(asn1.readObject());
 
         dos.flush();
         dos.close();
         asn1.close();
+        return out.toByteArray();
     }
 }
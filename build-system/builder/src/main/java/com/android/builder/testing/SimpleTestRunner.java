@@ -17,31 +17,60 @@
 package com.android.builder.testing;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.builder.internal.InstallUtils;
 import com.android.builder.internal.testing.CustomTestRunListener;
+import com.android.builder.internal.testing.ShardedTestRunListener;
 import com.android.builder.internal.testing.SimpleTestCallable;
+import com.android.builder.internal.testing.TestDurations;
+import com.android.builder.internal.testing.TestShardScheduler;
 import com.android.builder.testing.api.DeviceConnector;
 import com.android.builder.testing.api.TestException;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.ddmlib.testrunner.TestRunResult;
 import com.android.ide.common.internal.WaitableExecutor;
 import com.android.utils.ILogger;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Basic {@link TestRunner} running tests on all devices.
+ *
+ * By default each device runs the whole test suite. In sharding mode, the suite is split
+ * across the devices instead, see {@link TestShardScheduler}.
  */
 public class SimpleTestRunner implements TestRunner {
 
+    /** Device name used in the merged report of a sharded run. */
+    public static final String SHARDED_DEVICE_NAME = "sharded";
+
     File mAdbExec;
+    private final boolean mShardTests;
+    @Nullable
+    private final File mTestDurationsFile;
 
     public SimpleTestRunner(File adbExec) {
+        this(adbExec, false, null);
+    }
+
+    /**
+     * Creates a test runner.
+     * @param adbExec the adb executable.
+     * @param shardTests whether to split the test suite across the devices.
+     * @param testDurationsFile the file keeping the durations of the tests from one run to the
+     *                          next, used to balance the shards. Can be null.
+     */
+    public SimpleTestRunner(File adbExec, boolean shardTests, @Nullable File testDurationsFile) {
         mAdbExec = adbExec;
+        mShardTests = shardTests;
+        mTestDurationsFile = testDurationsFile;
     }
 
 
@@ -63,6 +92,8 @@ public class SimpleTestRunner implements TestRunner {
         int totalDevices = deviceList.size();
         int unAuthorizedDevices = 0;
         int compatibleDevices = 0;
+        List<DeviceConnector> testDevices = Lists.newArrayList();
+        List<ImmutableList<File>> testDeviceApks = Lists.newArrayList();
 
         for (DeviceConnector device : deviceList) {
             if (device.getState() != IDevice.DeviceState.UNAUTHORIZED) {
@@ -82,15 +113,36 @@ public class SimpleTestRunner implements TestRunner {
                     }
 
                     compatibleDevices++;
-                    executor.execute(new SimpleTestCallable(device, projectName, variantName,
-                            testApk, testedApks, mAdbExec, testData,
-                            resultsDir, coverageDir, timeout, logger));
+                    testDevices.add(device);
+                    testDeviceApks.add(testedApks);
                 }
             } else {
                 unAuthorizedDevices++;
             }
         }
 
+        TestShardScheduler shardScheduler = null;
+        TestDurations durations = null;
+        if (mShardTests && compatibleDevices > 1) {
+            CustomTestRunListener mergedListener = new CustomTestRunListener(
+                    SHARDED_DEVICE_NAME, projectName, variantName, logger);
+            mergedListener.setReportDir(resultsDir);
+            durations = new TestDurations(mTestDurationsFile);
+
+            // each device can only run one instrumentation when collecting coverage, as
+            // each run overwrites the coverage file of the previous one.
+            shardScheduler = new TestShardScheduler(compatibleDevices,
+                    !testData.isTestCoverageEnabled(), durations,
+                    new ShardedTestRunListener(mergedListener, durations), logger);
+        }
+
+        long time = System.currentTimeMillis();
+        for (int i = 0 ; i < testDevices.size() ; i++) {
+            executor.execute(new SimpleTestCallable(testDevices.get(i), projectName, variantName,
+                    testApk, testDeviceApks.get(i), mAdbExec, testData,
+                    resultsDir, coverageDir, timeout, logger, shardScheduler));
+        }
+
         if (totalDevices == 0 || compatibleDevices == 0) {
             CustomTestRunListener fakeRunListener = new CustomTestRunListener(
                     "TestRunner", projectName, variantName, logger);
@@ -139,7 +191,53 @@ public class SimpleTestRunner implements TestRunner {
                     logger.error(result.exception, null);
                 }
             }
+
+            if (shardScheduler != null) {
+                success &= finishShardedRun(shardScheduler, durations,
+                        System.currentTimeMillis() - time, variantName, logger);
+            }
             return success;
         }
     }
+
+    /**
+     * Ends a sharded run, writing the merged report and the durations of the tests.
+     *
+     * @return false if some shards were not run, or if the run did not have any test.
+     */
+    private static boolean finishShardedRun(
+            @NonNull TestShardScheduler shardScheduler,
+            @NonNull TestDurations durations,
+                     long elapsedTime,
+            @NonNull String variantName,
+            @NonNull ILogger logger) {
+        boolean success = true;
+        if (shardScheduler.nextShard() != null) {
+            logger.warning("Some test shards were not run for '%1$s'", variantName);
+            success = false;
+        }
+
+        ShardedTestRunListener listener = shardScheduler.getListener();
+        TestRunResult runResult = listener.getRunResult();
+        if (runResult.getNumTests() == 0) {
+            // create a fake test output
+            Map<String, String> emptyMetrics = Collections.emptyMap();
+            TestIdentifier fakeTest = new TestIdentifier(variantName, "hasTests");
+            listener.testStarted(fakeTest);
+            listener.testFailed(fakeTest , "No tests found.");
+            listener.testEnded(fakeTest, emptyMetrics);
+            success = false;
+        }
+
+        // end the run to generate the XML file.
+        listener.finish(elapsedTime);
+
+        try {
+            durations.save();
+        } catch (IOException e) {
+            logger.warning("Failed to save the test durations: %1$s", e.toString());
+        }
+
+        return success;
+    }
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.testing;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.utils.StdLogger;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+
+public class TestShardSchedulerTest extends TestCase {
+
+    public void testDynamicShardsCoverAllClasses() {
+        TestDurations durations = new TestDurations(null);
+        List<TestIdentifier> tests = Lists.newArrayList();
+        for (int i = 0 ; i < 20 ; i++) {
+            TestIdentifier test = new TestIdentifier("com.example.Test" + i, "test");
+            tests.add(test);
+            durations.record(test, (i + 1) * 100);
+        }
+
+        TestShardScheduler scheduler = createScheduler(2, true, durations);
+        scheduler.setTests(tests);
+
+        Set<String> classes = Sets.newHashSet();
+        int shardCount = 0;
+        TestShardScheduler.Shard shard;
+        while ((shard = scheduler.nextShard()) != null) {
+            List<String> classNames = shard.getClassNames();
+            assertNotNull(classNames);
+            if (shardCount == 0) {
+                // the longest class goes first.
+                assertEquals("com.example.Test19", classNames.get(0));
+            }
+            for (String className : classNames) {
+                assertTrue(className, classes.add(className));
+            }
+            shardCount++;
+        }
+
+        assertEquals(20, classes.size());
+        assertTrue(shardCount > 2);
+        assertTrue(shardCount < 20);
+    }
+
+    public void testStaticShardsAreBalanced() {
+        TestDurations durations = new TestDurations(null);
+        List<TestIdentifier> tests = Lists.newArrayList();
+        long[] classDurations = { 800, 500, 400, 300, 200, 100 };
+        for (int i = 0 ; i < classDurations.length ; i++) {
+            TestIdentifier test = new TestIdentifier("com.example.Test" + i, "test");
+            tests.add(test);
+            durations.record(test, classDurations[i]);
+        }
+
+        TestShardScheduler scheduler = createScheduler(2, false, durations);
+        scheduler.setTests(tests);
+
+        List<String> first = scheduler.nextShard().getClassNames();
+        List<String> second = scheduler.nextShard().getClassNames();
+        assertNull(scheduler.nextShard());
+
+        // 800 + 300 + 100 against 500 + 400 + 200.
+        assertEquals(Lists.newArrayList("com.example.Test0", "com.example.Test3",
+                "com.example.Test5"), first);
+        assertEquals(Lists.newArrayList("com.example.Test1", "com.example.Test2",
+                "com.example.Test4"), second);
+    }
+
+    public void testDurationsAreSaved() throws Exception {
+        File file = File.createTempFile("durations", ".properties");
+        try {
+            TestIdentifier known = new TestIdentifier("com.example.Test", "known");
+            TestIdentifier other = new TestIdentifier("com.example.Test", "other");
+
+            TestDurations durations = new TestDurations(file);
+            assertEquals(TestDurations.DEFAULT_TEST_DURATION_MS, durations.getDuration(known));
+            durations.record(known, 1234);
+            durations.save();
+
+            TestDurations loaded = new TestDurations(file);
+            assertEquals(1234, loaded.getDuration(known));
+            // unknown tests are estimated from the known ones.
+            assertEquals(1234, loaded.getDuration(other));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static TestShardScheduler createScheduler(int deviceCount, boolean dynamic,
+            TestDurations durations) {
+        StdLogger logger = new StdLogger(StdLogger.Level.ERROR);
+        CustomTestRunListener listener = new CustomTestRunListener(
+                "sharded", "project", "flavor", logger);
+        return new TestShardScheduler(deviceCount, dynamic, durations,
+                new ShardedTestRunListener(listener, durations), logger);
+    }
+}
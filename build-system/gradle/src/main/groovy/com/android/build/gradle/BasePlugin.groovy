@@ -2263,6 +2263,8 @@ public abstract class BasePlugin {
                 return config.supportedAbis
             }
             packageApp.conventionMapping.jniDebugBuild = { config.buildType.jniDebugBuild }
+            // debuggable builds are repackaged often, update their APK instead of rebuilding it.
+            packageApp.conventionMapping.incrementalPackaging = { config.buildType.debuggable }
 
             packageApp.conventionMapping.signingConfig = { sc }
             if (sc != null) {
@@ -17,10 +17,17 @@
 package com.android.build.gradle.internal
 
 import com.android.annotations.NonNull
+import com.android.annotations.Nullable
 import com.android.annotations.concurrency.GuardedBy
+import com.android.prefs.AndroidLocation
 import com.google.common.collect.Maps
+import com.google.common.hash.Hashing
+import com.google.common.io.Files
+import groovy.io.FileType
+import org.gradle.api.GradleException
 import org.gradle.api.Project
 
+import java.nio.channels.FileLock
 import java.util.concurrent.CountDownLatch
 
 /**
@@ -31,9 +38,25 @@ import java.util.concurrent.CountDownLatch
  * once even for multi-module projects where 2+ modules depend on the same library.
  *
  * The prepareTask is created in the root project always.
+ *
+ * When the {@link #PROPERTY_AAR_STORE} project property is true, the aars are also extracted
+ * once per machine into a store shared by all the projects and builds, keyed by the hash of their
+ * content. Each project then copies the extracted files from the store rather than unzipping the
+ * aar again.
  */
 public class LibraryCache {
 
+    /**
+     * Project property enabling the store of extracted aars.
+     */
+    public static final String PROPERTY_AAR_STORE = "android.explodedAarStore"
+
+    /**
+     * Project property setting the location of the store of extracted aars. It defaults to
+     * exploded-aar in the Android folder of the user.
+     */
+    public static final String PROPERTY_AAR_STORE_DIR = "android.explodedAarStoreDir"
+
     @NonNull
     private static final LibraryCache sCache = new LibraryCache()
 
@@ -54,34 +77,141 @@ public class LibraryCache {
             @NonNull Project project,
             @NonNull File bundle,
             @NonNull File folderOut) {
+        File storeDir = getStoreDir(project)
+        if (storeDir == null) {
+            unzipAar(bundle, folderOut, project)
+            return
+        }
+
+        String hash = Files.hash(bundle, Hashing.sha1()).toString()
+        File entry = new File(storeDir, hash)
 
         // only synchronize access to the latch so that unzipping 2+ different
         // libraries in parallel will work.
         boolean newItem = false;
         CountDownLatch latch;
         synchronized (this) {
-            String path = bundle.getCanonicalPath()
-            latch = bundleLatches.get(path)
+            latch = bundleLatches.get(hash)
             if (latch == null) {
                 latch = new CountDownLatch(1)
-                bundleLatches.put(path, latch)
+                bundleLatches.put(hash, latch)
                 newItem = true
             }
         }
 
         if (newItem) {
             try {
-                project.logger.debug("$taskName: ERASE ${folderOut.getPath()}")
-
-                unzipAar(bundle, folderOut, project)
-
-                project.logger.debug("$taskName: UNZIP ${bundle.getPath()} -> ${folderOut.getPath()}")
+                publish(bundle, storeDir, hash, project)
+                project.logger.debug("$taskName: STORE ${bundle.getPath()} -> ${entry.getPath()}")
+            } catch (IOException | GradleException e) {
+                project.logger.warn("$taskName: failed to store ${bundle.getPath()} in " +
+                        "${storeDir.getPath()}, extracting it directly: ${e.getMessage()}")
             } finally {
                 latch.countDown()
             }
         } else {
             latch.await()
         }
+
+        if (!entry.isDirectory()) {
+            // the extraction into the store failed: extract the aar directly.
+            unzipAar(bundle, folderOut, project)
+            return
+        }
+
+        project.logger.debug("$taskName: ERASE ${folderOut.getPath()}")
+        folderOut.deleteDir()
+        folderOut.mkdirs()
+
+        project.copy {
+            from entry
+            into folderOut
+            // the store is read-only, but the copies must not be.
+            fileMode = 0644
+        }
+
+        project.logger.debug("$taskName: COPY ${entry.getPath()} -> ${folderOut.getPath()}")
+    }
+
+    /**
+     * Extracts an aar into the store, unless it's already there. Other processes using the
+     * store are locked out while the aar is extracted, and the extracted folder is only renamed
+     * to its final name once complete, so a folder in the store is always complete.
+     *
+     * A failure leaves the aar out of the store, and {@link #unzipLibrary} then extracts it
+     * directly.
+     */
+    private static void publish(
+            @NonNull File bundle,
+            @NonNull File storeDir,
+            @NonNull String hash,
+            @NonNull Project project) {
+        File entry = new File(storeDir, hash)
+        if (entry.isDirectory()) {
+            return
+        }
+
+        storeDir.mkdirs()
+        RandomAccessFile lockFile = new RandomAccessFile(new File(storeDir, "${hash}.lock"), "rw")
+        try {
+            FileLock lock = lockFile.getChannel().lock()
+            try {
+                // another process may have extracted it while waiting for the lock.
+                if (entry.isDirectory()) {
+                    return
+                }
+
+                File tmp = new File(storeDir, "${hash}.tmp")
+                if (tmp.exists()) {
+                    // left by an interrupted extraction, possibly with read-only files already.
+                    deleteTmp(tmp)
+                }
+                unzipAar(bundle, tmp, project)
+                tmp.eachFileRecurse(FileType.FILES) { File file ->
+                    file.setReadOnly()
+                }
+
+                if (!tmp.renameTo(entry)) {
+                    deleteTmp(tmp)
+                    throw new IOException("Failed to rename ${tmp.getPath()} to ${entry.getPath()}")
+                }
+            } finally {
+                lock.release()
+            }
+        } finally {
+            lockFile.close()
+        }
+    }
+
+    /**
+     * Deletes an extraction folder, whose files may have been made read-only already.
+     */
+    private static void deleteTmp(@NonNull File tmp) {
+        tmp.eachFileRecurse(FileType.FILES) { File file ->
+            file.setWritable(true)
+        }
+        tmp.deleteDir()
+    }
+
+    /**
+     * Returns the location of the store of extracted aars, or null if it is not used.
+     */
+    @Nullable
+    private static File getStoreDir(@NonNull Project project) {
+        if (!project.hasProperty(PROPERTY_AAR_STORE)
+                || !Boolean.parseBoolean(project.property(PROPERTY_AAR_STORE).toString())) {
+            return null
+        }
+
+        if (project.hasProperty(PROPERTY_AAR_STORE_DIR)) {
+            return project.file(project.property(PROPERTY_AAR_STORE_DIR))
+        }
+
+        try {
+            return new File(AndroidLocation.getFolder(), "exploded-aar")
+        } catch (AndroidLocation.AndroidLocationException e) {
+            throw new GradleException("Failed to get the location of the exploded-aar store", e)
+        }
     }
 
     public static void unzipAar(File bundle, File folderOut, Project project) {
@@ -21,6 +21,8 @@ import static com.android.builder.core.BuilderConstants.ANDROID_TEST;
 import static com.android.builder.core.BuilderConstants.DEBUG;
 import static com.android.builder.core.BuilderConstants.LINT;
 import static com.android.builder.core.BuilderConstants.UI_TEST;
+import static com.android.builder.model.AndroidProject.PROPERTY_BUILD_MODEL_ONLY;
+import static com.android.builder.model.AndroidProject.PROPERTY_INVOKED_FROM_IDE;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
@@ -51,10 +53,15 @@ import com.android.builder.core.VariantConfiguration;
 import com.android.builder.model.BuildType;
 import com.android.builder.model.SigningConfig;
 import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
+import org.gradle.api.Action;
+import org.gradle.api.GradleException;
 import org.gradle.api.NamedDomainObjectContainer;
 import org.gradle.api.Project;
 import org.gradle.api.Task;
@@ -64,6 +71,12 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import groovy.lang.Closure;
 
@@ -72,6 +85,16 @@ import groovy.lang.Closure;
  */
 public class VariantManager {
 
+    /**
+     * Project property enabling the parallel preparation of the variant configurations.
+     */
+    public static final String PROPERTY_PARALLEL_CONFIGURATION = "android.parallelVariantConfiguration";
+
+    /**
+     * Project property enabling the lazy creation of the variants, driven by the requested tasks.
+     */
+    public static final String PROPERTY_LAZY_VARIANTS = "android.lazyVariants";
+
     @NonNull
     private final Project project;
     @NonNull
@@ -96,6 +119,32 @@ public class VariantManager {
     @NonNull
     private final List<BaseVariantData<? extends BaseVariantOutputData>> variantDataList = Lists.newArrayList();
 
+    /**
+     * The configurations prepared in parallel, by variant key, while the variants are being
+     * populated.
+     */
+    @NonNull
+    private final Map<String, Future<PreparedVariant>> preparedVariants = Maps.newHashMap();
+    /**
+     * The result of the variant filter, by variant key, for the variants already filtered.
+     */
+    @NonNull
+    private final Map<String, Boolean> filteredVariants = Maps.newHashMap();
+    @NonNull
+    private final Map<String, Long> configurationTimes = Maps.newLinkedHashMap();
+
+    /**
+     * The capitalized names of the variants needed by the requested tasks, or null if all the
+     * variants are created.
+     */
+    @Nullable
+    private Set<String> requestedVariantNames;
+    /**
+     * The names of the variants not created because no requested task needs them.
+     */
+    @NonNull
+    private final Set<String> placeholderVariants = Sets.newLinkedHashSet();
+
     public VariantManager(
             @NonNull Project project,
             @NonNull BasePlugin basePlugin,
@@ -184,6 +233,25 @@ public class VariantManager {
         return variantDataList;
     }
 
+    /**
+     * Returns the time spent configuring each variant, in milliseconds, by variant name. For the
+     * configurations prepared in parallel, this includes the time spent preparing them on the
+     * other threads.
+     */
+    @NonNull
+    public Map<String, Long> getVariantConfigurationTimes() {
+        return Collections.unmodifiableMap(configurationTimes);
+    }
+
+    /**
+     * Returns the names of the variants that were not created because no requested task needed
+     * them. Only their assemble task exists, as a placeholder.
+     */
+    @NonNull
+    public Set<String> getPlaceholderVariants() {
+        return Collections.unmodifiableSet(placeholderVariants);
+    }
+
     /**
      * Task creation entry point.
      */
@@ -204,6 +272,10 @@ public class VariantManager {
             createTasksForVariantData(project.getTasks(), variantData);
         }
 
+        for (String variantName : placeholderVariants) {
+            createPlaceholderTask(project.getTasks(), variantName);
+        }
+
         // create the lint tasks.
         basePlugin.createLintTasks();
 
@@ -214,6 +286,33 @@ public class VariantManager {
         createApiObjects();
     }
 
+    /**
+     * Creates the assemble task of a variant that was not created. The task fails if it is
+     * run, which can only happen if another task depends on it, as requesting it would have
+     * created the variant.
+     */
+    private static void createPlaceholderTask(
+            @NonNull TaskContainer tasks,
+            @NonNull final String variantName) {
+        String taskName = "assemble" + StringHelper.capitalize(variantName);
+        if (tasks.findByName(taskName) != null) {
+            return;
+        }
+
+        Task placeholder = tasks.create(taskName);
+        placeholder.setDescription(String.format(
+                "Assembles the %1$s build. The variant is only configured when one of its tasks is requested.",
+                variantName));
+        placeholder.doFirst(new Action<Task>() {
+            @Override
+            public void execute(Task task) {
+                throw new GradleException(String.format(
+                        "Variant '%1$s' was not configured: request one of its tasks, or set %2$s to false.",
+                        variantName, PROPERTY_LAZY_VARIANTS));
+            }
+        });
+    }
+
     /**
      * Create tasks for the specified variantData.
      */
@@ -302,7 +401,15 @@ public class VariantManager {
         densities = densities.isEmpty() ? Collections.singleton(NO_FILTER) : densities;
         abis = abis.isEmpty() ? Collections.singleton(NO_FILTER) : abis;
 
+        boolean parallel = getBooleanProperty(PROPERTY_PARALLEL_CONFIGURATION);
+
         if (productFlavors.isEmpty()) {
+            List<List<GroupableProductFlavor>> flavorLists = Collections.singletonList(
+                    Collections.<GroupableProductFlavor>emptyList());
+            requestedVariantNames = computeRequestedVariantNames(flavorLists);
+            if (parallel) {
+                prepareVariants(flavorLists, signingOverride);
+            }
             createVariantDataForDefaultBuild(densities, abis, signingOverride);
         } else {
             List<String> flavorDimensionList = extension.getFlavorDimensionList();
@@ -324,42 +431,316 @@ public class VariantManager {
                     flavorDimensionList,
                     flavorDsl);
 
+            List<List<GroupableProductFlavor>> flavorLists =
+                    Lists.newArrayListWithCapacity(flavorGroupList.size());
+            for (ProductFlavorCombo flavorGroup : flavorGroupList) {
+                flavorLists.add(flavorGroup.getFlavorList());
+            }
+            requestedVariantNames = computeRequestedVariantNames(flavorLists);
+            if (parallel) {
+                prepareVariants(flavorLists, signingOverride);
+            }
+
             for (ProductFlavorCombo flavorGroup : flavorGroupList) {
                 createVariantDataForFlavoredBuild(densities, abis, signingOverride, flavorGroup.getFlavorList());
             }
         }
+
+        preparedVariants.clear();
+        filteredVariants.clear();
     }
 
     /**
-     * Create a VariantData for a specific combination of BuildType and GroupableProductFlavor list.
+     * Returns the capitalized names of the variants named by the requested tasks, or null if
+     * all the variants must be created. They are all created unless lazy variants are enabled,
+     * and also when the model is built for the IDE, for library projects, whose tasks are used by
+     * the projects depending on them, and when a requested task isn't specific to one of the
+     * variants, like assemble or an abbreviated task name.
+     *
+     * @param flavorLists the flavor combinations.
      */
-    public BaseVariantData<? extends BaseVariantOutputData> createVariantData(
+    @Nullable
+    private Set<String> computeRequestedVariantNames(
+            @NonNull List<List<GroupableProductFlavor>> flavorLists) {
+        if (!getBooleanProperty(PROPERTY_LAZY_VARIANTS)
+                || isBuildModelOnly()
+                || getBooleanProperty(PROPERTY_INVOKED_FROM_IDE)
+                || variantFactory.isLibrary()) {
+            return null;
+        }
+
+        List<String> variantNames = Lists.newArrayList();
+        for (List<GroupableProductFlavor> flavorList : flavorLists) {
+            for (BuildTypeData buildTypeData : buildTypes.values()) {
+                variantNames.add(StringHelper.capitalize(
+                        getVariantName(buildTypeData.getBuildType(), flavorList)));
+            }
+        }
+
+        Set<String> requestedNames = Sets.newHashSet();
+        for (String taskPath : project.getGradle().getStartParameter().getTaskNames()) {
+            // only keep the tasks of this project.
+            int index = taskPath.lastIndexOf(':');
+            if (index > 0 && !taskPath.substring(0, index).equals(project.getPath())) {
+                continue;
+            }
+            String taskName = taskPath.substring(index + 1);
+
+            String variantName = findVariantName(taskName, variantNames);
+            if (variantName == null) {
+                return null;
+            }
+            requestedNames.add(variantName);
+        }
+
+        // the default tasks don't name a variant.
+        return requestedNames.isEmpty() ? null : requestedNames;
+    }
+
+    /**
+     * Returns the variant named by a task, or null if there is none. The task names are made of
+     * a verb, the capitalized variant name and a suffix, like compileFreeDebugJava or
+     * assembleFreeDebugTest, so the variant name must start and end at word boundaries. The
+     * leftmost and then longest name is used, so that assembleNonFreeDebug names nonFreeDebug
+     * and not freeDebug.
+     *
+     * @param taskName the name of the task.
+     * @param variantNames the capitalized names of the variants.
+     */
+    @Nullable
+    static String findVariantName(@NonNull String taskName, @NonNull List<String> variantNames) {
+        // the first word is the verb.
+        for (int start = 1; start < taskName.length(); start++) {
+            if (!Character.isUpperCase(taskName.charAt(start))) {
+                continue;
+            }
+            String match = null;
+            for (String variantName : variantNames) {
+                int end = start + variantName.length();
+                if (taskName.startsWith(variantName, start)
+                        && (end == taskName.length()
+                                || Character.isUpperCase(taskName.charAt(end)))
+                        && (match == null || variantName.length() > match.length())) {
+                    match = variantName;
+                }
+            }
+            if (match != null) {
+                return match;
+            }
+        }
+
+        return null;
+    }
+
+    private boolean getBooleanProperty(@NonNull String name) {
+        if (project.hasProperty(name)) {
+            Object value = project.getProperties().get(name);
+            return value instanceof String ? Boolean.parseBoolean((String) value)
+                    : Boolean.TRUE.equals(value);
+        }
+
+        return false;
+    }
+
+    private boolean isBuildModelOnly() {
+        // To keep backwards-compatibility, the JVM arg is checked first, like BasePlugin does.
+        return "true".equalsIgnoreCase(System.getProperty(PROPERTY_BUILD_MODEL_ONLY))
+                || getBooleanProperty(PROPERTY_BUILD_MODEL_ONLY);
+    }
+
+    /**
+     * Returns whether a variant is needed by the requested tasks. The variants that aren't are
+     * recorded as placeholders.
+     */
+    private boolean isRequested(
+            @NonNull BuildTypeData buildTypeData,
+            @NonNull List<GroupableProductFlavor> productFlavorList) {
+        if (requestedVariantNames == null) {
+            return true;
+        }
+
+        String variantName = getVariantName(buildTypeData.getBuildType(), productFlavorList);
+        if (requestedVariantNames.contains(StringHelper.capitalize(variantName))) {
+            return true;
+        }
+
+        placeholderVariants.add(variantName);
+        return false;
+    }
+
+    /**
+     * Returns the name of a variant, as computed by {@link VariantConfiguration#getFullName()}.
+     */
+    @NonNull
+    private static String getVariantName(
             @NonNull BuildType buildType,
+            @NonNull List<GroupableProductFlavor> productFlavorList) {
+        StringBuilder sb = new StringBuilder();
+        for (GroupableProductFlavor productFlavor : productFlavorList) {
+            sb.append(sb.length() == 0
+                    ? productFlavor.getName()
+                    : StringHelper.capitalize(productFlavor.getName()));
+        }
+        if (sb.length() == 0) {
+            return buildType.getName();
+        }
+
+        sb.append(StringHelper.capitalize(buildType.getName()));
+        return sb.toString();
+    }
+
+    /**
+     * Prepares the configurations of the variants of the given flavor combinations on a pool of
+     * threads. The variant filter is called on the calling thread first, and the configurations
+     * of the variants it keeps are then created, with their flavors merged and their manifest
+     * read, in parallel. Only objects owned by the configurations are created on the other
+     * threads: the source sets, dependencies and tasks are still created by the calling thread
+     * when the variants are populated.
+     *
+     * @param flavorLists the flavor combinations.
+     * @param signingOverride a signing override. Generally driven through the IDE.
+     */
+    private void prepareVariants(
+            @NonNull List<List<GroupableProductFlavor>> flavorLists,
+            @Nullable final SigningConfig signingOverride) {
+        final BuildTypeData testData = buildTypes.get(extension.getTestBuildType());
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        try {
+            for (List<GroupableProductFlavor> flavorList : flavorLists) {
+                final List<GroupableProductFlavor> productFlavorList =
+                        ImmutableList.copyOf(flavorList);
+                for (final BuildTypeData buildTypeData : buildTypes.values()) {
+                    if (isIgnored(buildTypeData, productFlavorList)
+                            || !isRequested(buildTypeData, productFlavorList)) {
+                        continue;
+                    }
+
+                    preparedVariants.put(
+                            getVariantKey(buildTypeData.getBuildType(), productFlavorList),
+                            executor.submit(new Callable<PreparedVariant>() {
+                                @Override
+                                public PreparedVariant call() {
+                                    return prepareVariant(buildTypeData, productFlavorList,
+                                            buildTypeData == testData, signingOverride);
+                                }
+                            }));
+                }
+            }
+        } finally {
+            // the submitted preparations still run, and are waited for when used.
+            executor.shutdown();
+        }
+    }
+
+    @NonNull
+    private PreparedVariant prepareVariant(
+            @NonNull BuildTypeData buildTypeData,
             @NonNull List<GroupableProductFlavor> productFlavorList,
+            boolean isTested,
             @Nullable SigningConfig signingOverride) {
-        Splits splits = basePlugin.getExtension().getSplits();
-        Set<String> densities = splits.getDensityFilters();
-        Set<String> abis = splits.getAbiFilters();
+        long start = System.nanoTime();
+
+        GradleVariantConfiguration variantConfig = createVariantConfiguration(
+                buildTypeData, productFlavorList, signingOverride);
+        // read the manifest now, rather than during task creation.
+        if (variantConfig.getType() != VariantConfiguration.Type.TEST
+                && variantConfig.getMainManifest() != null) {
+            variantConfig.getPackageFromManifest();
+            variantConfig.getApplicationId();
+        }
 
-        ProductFlavorData<ProductFlavorDsl> defaultConfigData = basePlugin.getDefaultConfigData();
-        ProductFlavorDsl defaultConfig = defaultConfigData.getProductFlavor();
-        DefaultAndroidSourceSet defaultConfigSourceSet = defaultConfigData.getSourceSet();
-        BuildTypeData buildTypeData = buildTypes.get(buildType.getName());
+        GradleVariantConfiguration testVariantConfig = null;
+        if (isTested) {
+            testVariantConfig = createTestVariantConfiguration(
+                    variantConfig, productFlavorList, signingOverride);
+        }
 
-        Set<String> compatibleScreens = basePlugin.getExtension().getSplits().getDensity()
-                .getCompatibleScreens();
+        return new PreparedVariant(variantConfig, testVariantConfig,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
 
-        final List<ConfigurationProvider> variantProviders = Lists.newArrayListWithCapacity(productFlavorList.size() + 2);
+    /**
+     * Returns the configuration of a variant prepared by {@link #prepareVariants}, or null if it
+     * wasn't.
+     */
+    @Nullable
+    private PreparedVariant getPreparedVariant(
+            @NonNull BuildType buildType,
+            @NonNull List<GroupableProductFlavor> productFlavorList) {
+        Future<PreparedVariant> future = preparedVariants.get(
+                getVariantKey(buildType, productFlavorList));
+        if (future == null) {
+            return null;
+        }
 
-        /// add the container of dependencies
-        // the order of the libraries is important. In descending order:
-        // build types, flavors, defaultConfig.
-        variantProviders.clear();
-        variantProviders.add(buildTypeData);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    @NonNull
+    private static String getVariantKey(
+            @NonNull BuildType buildType,
+            @NonNull List<GroupableProductFlavor> productFlavorList) {
+        List<String> names = Lists.newArrayListWithCapacity(productFlavorList.size() + 1);
+        for (GroupableProductFlavor productFlavor : productFlavorList) {
+            names.add(productFlavor.getName());
+        }
+        names.add(buildType.getName());
+
+        return Joiner.on('/').join(names);
+    }
+
+    /**
+     * Returns whether the variant filter ignores a variant. The filter is only called once per
+     * variant.
+     */
+    private boolean isIgnored(
+            @NonNull BuildTypeData buildTypeData,
+            @NonNull List<GroupableProductFlavor> productFlavorList) {
+        Closure<Void> variantFilterClosure = basePlugin.getExtension().getVariantFilter();
+        if (variantFilterClosure == null) {
+            return false;
+        }
+
+        String key = getVariantKey(buildTypeData.getBuildType(), productFlavorList);
+        Boolean ignore = filteredVariants.get(key);
+        if (ignore == null) {
+            variantFilter.reset(basePlugin.getDefaultConfigData().getProductFlavor(),
+                    buildTypeData.getBuildType(),
+                    productFlavorList.isEmpty() ? null : productFlavorList);
+            variantFilterClosure.call(variantFilter);
+            ignore = variantFilter.isIgnore();
+            filteredVariants.put(key, ignore);
+        }
+
+        return ignore;
+    }
+
+    /**
+     * Creates the configuration of a variant, merging its flavors.
+     */
+    @NonNull
+    private GradleVariantConfiguration createVariantConfiguration(
+            @NonNull BuildTypeData buildTypeData,
+            @NonNull List<GroupableProductFlavor> productFlavorList,
+            @Nullable SigningConfig signingOverride) {
+        ProductFlavorData<ProductFlavorDsl> defaultConfigData = basePlugin.getDefaultConfigData();
 
         GradleVariantConfiguration variantConfig = new GradleVariantConfiguration(
-                defaultConfig,
-                defaultConfigSourceSet,
+                defaultConfigData.getProductFlavor(),
+                defaultConfigData.getSourceSet(),
                 buildTypeData.getBuildType(),
                 buildTypeData.getSourceSet(),
                 variantFactory.getVariantConfigurationType(),
@@ -377,7 +758,98 @@ public class VariantManager {
                     data.getProductFlavor(),
                     data.getSourceSet(),
                     dimensionName);
-            variantProviders.add(data.getMainProvider());
+        }
+
+        return variantConfig;
+    }
+
+    /**
+     * Creates the configuration of the test variant of a tested variant, merging its flavors.
+     */
+    @NonNull
+    private GradleVariantConfiguration createTestVariantConfiguration(
+            @NonNull GradleVariantConfiguration testedConfig,
+            @NonNull List<GroupableProductFlavor> productFlavorList,
+            @Nullable SigningConfig signingOverride) {
+        ProductFlavorData<ProductFlavorDsl> defaultConfigData = basePlugin.getDefaultConfigData();
+
+        GradleVariantConfiguration testVariantConfig = new GradleVariantConfiguration(
+                defaultConfigData.getProductFlavor(),
+                defaultConfigData.getTestSourceSet(),
+                testedConfig.getBuildType(),
+                null,
+                VariantConfiguration.Type.TEST,
+                testedConfig,
+                signingOverride);
+
+        for (GroupableProductFlavor productFlavor : productFlavorList) {
+            ProductFlavorData<GroupableProductFlavorDsl> data = productFlavors.get(productFlavor.getName());
+
+            String dimensionName = productFlavor.getFlavorDimension();
+            if (dimensionName == null) {
+                dimensionName = "";
+            }
+            testVariantConfig.addProductFlavor(
+                    data.getProductFlavor(),
+                    data.getTestSourceSet(),
+                    dimensionName);
+        }
+
+        return testVariantConfig;
+    }
+
+    private void recordConfigurationTime(@NonNull String variantName, long start,
+            @Nullable PreparedVariant preparedVariant) {
+        long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (preparedVariant != null) {
+            time += preparedVariant.prepareTime;
+        }
+        configurationTimes.put(variantName, time);
+        project.getLogger().info("Configured variant {} in {} ms", variantName, time);
+    }
+
+    /**
+     * Create a VariantData for a specific combination of BuildType and GroupableProductFlavor list.
+     */
+    public BaseVariantData<? extends BaseVariantOutputData> createVariantData(
+            @NonNull BuildType buildType,
+            @NonNull List<GroupableProductFlavor> productFlavorList,
+            @Nullable SigningConfig signingOverride) {
+        PreparedVariant preparedVariant = getPreparedVariant(buildType, productFlavorList);
+        GradleVariantConfiguration variantConfig = preparedVariant != null
+                ? preparedVariant.variantConfig
+                : createVariantConfiguration(
+                        buildTypes.get(buildType.getName()), productFlavorList, signingOverride);
+
+        return createVariantData(variantConfig, productFlavorList);
+    }
+
+    /**
+     * Create a VariantData for a configuration, with its source sets and dependencies.
+     */
+    @NonNull
+    private BaseVariantData<? extends BaseVariantOutputData> createVariantData(
+            @NonNull GradleVariantConfiguration variantConfig,
+            @NonNull List<GroupableProductFlavor> productFlavorList) {
+        Splits splits = basePlugin.getExtension().getSplits();
+        Set<String> densities = splits.getDensityFilters();
+        Set<String> abis = splits.getAbiFilters();
+
+        BuildTypeData buildTypeData = buildTypes.get(variantConfig.getBuildType().getName());
+
+        Set<String> compatibleScreens = basePlugin.getExtension().getSplits().getDensity()
+                .getCompatibleScreens();
+
+        final List<ConfigurationProvider> variantProviders = Lists.newArrayListWithCapacity(productFlavorList.size() + 2);
+
+        /// add the container of dependencies
+        // the order of the libraries is important. In descending order:
+        // build types, flavors, defaultConfig.
+        variantProviders.clear();
+        variantProviders.add(buildTypeData);
+
+        for (GroupableProductFlavor productFlavor : productFlavorList) {
+            variantProviders.add(productFlavors.get(productFlavor.getName()).getMainProvider());
         }
 
         // now add the defaultConfig
@@ -436,33 +908,23 @@ public class VariantManager {
         }
 
         BaseVariantData<?> testedVariantData = null;
+        PreparedVariant testedPreparedVariant = null;
 
         ProductFlavorData<ProductFlavorDsl> defaultConfigData = basePlugin.getDefaultConfigData();
 
-        ProductFlavorDsl defaultConfig = defaultConfigData.getProductFlavor();
-        DefaultAndroidSourceSet defaultConfigSourceSet = defaultConfigData.getSourceSet();
-
-        Closure<Void> variantFilterClosure = basePlugin.getExtension().getVariantFilter();
-
         Set<String> compatibleScreens = basePlugin.getExtension().getSplits().getDensity()
                 .getCompatibleScreens();
 
-        for (BuildTypeData buildTypeData : buildTypes.values()) {
-            boolean ignore = false;
-            if (variantFilterClosure != null) {
-                variantFilter.reset(defaultConfig, buildTypeData.getBuildType(), null);
-                variantFilterClosure.call(variantFilter);
-                ignore = variantFilter.isIgnore();
-            }
+        List<GroupableProductFlavor> noFlavors = Collections.emptyList();
 
-            if (!ignore) {
-                GradleVariantConfiguration variantConfig = new GradleVariantConfiguration(
-                        defaultConfig,
-                        defaultConfigSourceSet,
-                        buildTypeData.getBuildType(),
-                        buildTypeData.getSourceSet(),
-                        variantFactory.getVariantConfigurationType(),
-                        signingOverride);
+        for (BuildTypeData buildTypeData : buildTypes.values()) {
+            if (!isIgnored(buildTypeData, noFlavors) && isRequested(buildTypeData, noFlavors)) {
+                long start = System.nanoTime();
+                PreparedVariant preparedVariant = getPreparedVariant(
+                        buildTypeData.getBuildType(), noFlavors);
+                GradleVariantConfiguration variantConfig = preparedVariant != null
+                        ? preparedVariant.variantConfig
+                        : createVariantConfiguration(buildTypeData, noFlavors, signingOverride);
 
                 // create the variant, and outputs and get its internal storage object.
                 BaseVariantData<?> variantData = variantFactory.createVariantData(
@@ -478,25 +940,25 @@ public class VariantManager {
 
                 if (buildTypeData == testData) {
                     testedVariantData = variantData;
+                    testedPreparedVariant = preparedVariant;
                 }
 
                 basePlugin.resolveDependencies(variantDep);
                 variantConfig.setDependencies(variantDep);
 
                 variantDataList.add(variantData);
+                recordConfigurationTime(variantConfig.getFullName(), start, preparedVariant);
             }
         }
 
         if (testedVariantData != null) {
             GradleVariantConfiguration testedConfig = testedVariantData.getVariantConfiguration();
             // handle the test variant
-            GradleVariantConfiguration testVariantConfig = new GradleVariantConfiguration(
-                    defaultConfig,
-                    defaultConfigData.getTestSourceSet(),
-                    testData.getBuildType(),
-                    null,
-                    VariantConfiguration.Type.TEST, testedConfig,
-                    signingOverride);
+            GradleVariantConfiguration testVariantConfig =
+                    testedPreparedVariant != null && testedPreparedVariant.testVariantConfig != null
+                            ? testedPreparedVariant.testVariantConfig
+                            : createTestVariantConfiguration(testedConfig, noFlavors,
+                                    signingOverride);
 
             // create the internal storage for this test variant.
             TestVariantData testVariantData = new TestVariantData(
@@ -531,29 +993,27 @@ public class VariantManager {
         }
 
         BaseVariantData testedVariantData = null;
-
-        ProductFlavorData<ProductFlavorDsl> defaultConfigData = basePlugin.getDefaultConfigData();
-        ProductFlavorDsl defaultConfig = defaultConfigData.getProductFlavor();
-
-        Closure<Void> variantFilterClosure = basePlugin.getExtension().getVariantFilter();
+        PreparedVariant testedPreparedVariant = null;
 
         for (BuildTypeData buildTypeData : buildTypes.values()) {
-            boolean ignore = false;
-            if (variantFilterClosure != null) {
-                variantFilter.reset(defaultConfig, buildTypeData.getBuildType(), productFlavorList);
-                variantFilterClosure.call(variantFilter);
-                ignore = variantFilter.isIgnore();
-            }
+            if (!isIgnored(buildTypeData, productFlavorList)
+                    && isRequested(buildTypeData, productFlavorList)) {
+                long start = System.nanoTime();
+                PreparedVariant preparedVariant = getPreparedVariant(
+                        buildTypeData.getBuildType(), productFlavorList);
+                GradleVariantConfiguration variantConfig = preparedVariant != null
+                        ? preparedVariant.variantConfig
+                        : createVariantConfiguration(
+                                buildTypeData, productFlavorList, signingOverride);
 
-            if (!ignore) {
                 BaseVariantData<?> variantData = createVariantData(
-                        buildTypeData.getBuildType(),
-                        productFlavorList,
-                        signingOverride);
+                        variantConfig, productFlavorList);
                 variantDataList.add(variantData);
+                recordConfigurationTime(variantConfig.getFullName(), start, preparedVariant);
 
                 if (buildTypeData == testData) {
                     testedVariantData = variantData;
+                    testedPreparedVariant = preparedVariant;
                 }
             }
         }
@@ -562,14 +1022,11 @@ public class VariantManager {
             GradleVariantConfiguration testedConfig = testedVariantData.getVariantConfiguration();
 
             // handle test variant
-            GradleVariantConfiguration testVariantConfig = new GradleVariantConfiguration(
-                    defaultConfig,
-                    defaultConfigData.getTestSourceSet(),
-                    testData.getBuildType(),
-                    null,
-                    VariantConfiguration.Type.TEST,
-                    testedVariantData.getVariantConfiguration(),
-                    signingOverride);
+            GradleVariantConfiguration testVariantConfig =
+                    testedPreparedVariant != null && testedPreparedVariant.testVariantConfig != null
+                            ? testedPreparedVariant.testVariantConfig
+                            : createTestVariantConfiguration(testedConfig, productFlavorList,
+                                    signingOverride);
 
             /// add the container of dependencies
             // the order of the libraries is important. In descending order:
@@ -577,17 +1034,7 @@ public class VariantManager {
             List<ConfigurationProvider> testVariantProviders = Lists.newArrayListWithExpectedSize(1 + productFlavorList.size());
 
             for (GroupableProductFlavor productFlavor : productFlavorList) {
-                ProductFlavorData<GroupableProductFlavorDsl> data = productFlavors.get(productFlavor.getName());
-
-                String dimensionName = productFlavor.getFlavorDimension();
-                if (dimensionName == null) {
-                    dimensionName = "";
-                }
-                testVariantConfig.addProductFlavor(
-                        data.getProductFlavor(),
-                        data.getTestSourceSet(),
-                        dimensionName);
-                testVariantProviders.add(data.getTestProvider());
+                testVariantProviders.add(productFlavors.get(productFlavor.getName()).getTestProvider());
             }
 
             // now add the default config
@@ -667,6 +1114,26 @@ public class VariantManager {
         }
     }
 
+    /**
+     * The configurations of a variant, and of its test variant, prepared in parallel.
+     */
+    private static final class PreparedVariant {
+        @NonNull
+        private final GradleVariantConfiguration variantConfig;
+        @Nullable
+        private final GradleVariantConfiguration testVariantConfig;
+        private final long prepareTime;
+
+        PreparedVariant(
+                @NonNull GradleVariantConfiguration variantConfig,
+                @Nullable GradleVariantConfiguration testVariantConfig,
+                long prepareTime) {
+            this.variantConfig = variantConfig;
+            this.testVariantConfig = testVariantConfig;
+            this.prepareTime = prepareTime;
+        }
+    }
+
     private static void checkName(@NonNull String name, @NonNull String displayName) {
         if (name.startsWith(ANDROID_TEST)) {
             throw new RuntimeException(String.format(
@@ -44,6 +44,9 @@ public class DeviceProviderInstrumentTestTask extends BaseTask implements Androi
     boolean ignoreFailures
     boolean testFailed
 
+    /** Whether to split the tests across the devices instead of running them all on each. */
+    boolean shardTests
+
     @TaskAction
     protected void runTests() {
 
@@ -60,7 +63,9 @@ public class DeviceProviderInstrumentTestTask extends BaseTask implements Androi
 
         String flavor = getFlavorName()
 
-        TestRunner testRunner = new SimpleTestRunner(getAdbExec());
+        // the durations of the tests are kept from one run to the next to balance the shards.
+        TestRunner testRunner = new SimpleTestRunner(getAdbExec(), getShardTests(),
+                new File(getTemporaryDir(), "test-durations.properties"));
         deviceProvider.init();
 
         boolean success = false;
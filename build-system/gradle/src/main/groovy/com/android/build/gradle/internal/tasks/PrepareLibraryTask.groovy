@@ -30,7 +30,6 @@ public class PrepareLibraryTask extends DefaultTask {
 
     @TaskAction
     def prepare() {
-        //LibraryCache.getCache().unzipLibrary(this.name, project, getBundle(), getExplodedDir())
-        LibraryCache.unzipAar(getBundle(), getExplodedDir(), project)
+        LibraryCache.getCache().unzipLibrary(this.name, project, getBundle(), getExplodedDir())
     }
 }
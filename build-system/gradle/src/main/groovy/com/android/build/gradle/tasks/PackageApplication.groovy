@@ -62,6 +62,12 @@ public class PackageApplication extends IncrementalTask implements OutputFileTas
     @Input
     boolean jniDebugBuild
 
+    /**
+     * Whether the APK of the previous run is updated in place, instead of being written again.
+     */
+    @Input
+    boolean incrementalPackaging
+
     @Nested @Optional
     SigningConfigDsl signingConfig
 
@@ -92,6 +98,7 @@ public class PackageApplication extends IncrementalTask implements OutputFileTas
                     getJniDebugBuild(),
                     getSigningConfig(),
                     getPackagingOptions(),
+                    getIncrementalPackaging(),
                     getOutputFile().absolutePath)
         } catch (DuplicateFileException e) {
             def logger = getLogger()
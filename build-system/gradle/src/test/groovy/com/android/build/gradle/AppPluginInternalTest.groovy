@@ -17,6 +17,7 @@
 package com.android.build.gradle
 
 import com.android.build.gradle.internal.BadPluginException
+import com.android.build.gradle.internal.VariantManager
 import com.android.build.gradle.internal.test.BaseTest
 import com.android.build.gradle.internal.variant.BaseVariantData
 import com.android.builder.core.BuilderConstants
@@ -249,6 +250,161 @@ public class AppPluginInternalTest extends BaseTest {
         }
     }
 
+    public void testParallelVariantConfiguration() {
+        Project project = ProjectBuilder.builder().withProjectDir(
+                new File(testDir, "${FOLDER_TEST_REGULAR}/basic")).build()
+
+        project.ext.set(VariantManager.PROPERTY_PARALLEL_CONFIGURATION, "true")
+        project.apply plugin: 'com.android.application'
+
+        project.android {
+            compileSdkVersion 15
+            buildToolsVersion "19"
+
+            flavorDimensions   "dimension1", "dimension2"
+
+            productFlavors {
+                f1 {
+                    flavorDimension "dimension1"
+                    versionCode 1
+                }
+                f2 {
+                    flavorDimension "dimension1"
+                    versionCode 2
+                }
+
+                fa {
+                    flavorDimension "dimension2"
+                }
+                fb {
+                    flavorDimension "dimension2"
+                }
+            }
+
+            variantFilter { variant ->
+                if (variant.buildType.name == "release" && variant.flavors[1].name == "fb") {
+                    variant.ignore = true
+                }
+            }
+        }
+
+        AppPlugin plugin = project.plugins.getPlugin(AppPlugin)
+        plugin.createAndroidTasks(true /*force*/)
+
+        List<BaseVariantData> variants = plugin.variantDataList
+        assertEquals(10, variants.size())   // includes the test variant(s)
+
+        BaseVariantData f2FaRelease = findNamedItem(variants, "f2FaRelease", "variantData")
+        assertEquals(2, f2FaRelease.variantConfiguration.mergedFlavor.versionCode)
+        BaseVariantData f1FbDebugTest = findNamedItem(variants, "f1FbDebugTest", "variantData")
+        assertEquals(["f1", "fb"], f1FbDebugTest.variantConfiguration.productFlavors*.name)
+
+        Map<String, Long> times = plugin.variantManager.variantConfigurationTimes
+        assertEquals(6, times.size())
+        assertTrue(times.containsKey("f2FaRelease"))
+        assertFalse(times.containsKey("f1FbRelease"))
+    }
+
+    public void testLazyVariants() {
+        Project project = ProjectBuilder.builder().withProjectDir(
+                new File(testDir, "${FOLDER_TEST_REGULAR}/basic")).build()
+
+        project.ext.set(VariantManager.PROPERTY_LAZY_VARIANTS, "true")
+        project.gradle.startParameter.taskNames = ["assembleFlavor1DebugTest"]
+        project.apply plugin: 'com.android.application'
+
+        project.android {
+            compileSdkVersion 15
+            buildToolsVersion "19"
+
+            productFlavors {
+                flavor1 {
+
+                }
+                flavor2 {
+
+                }
+            }
+        }
+
+        AppPlugin plugin = project.plugins.getPlugin(AppPlugin)
+        plugin.createAndroidTasks(true /*force*/)
+
+        List<BaseVariantData> variants = plugin.variantDataList
+        assertEquals(2, variants.size()) // includes the test variant(s)
+        findNamedItem(variants, "flavor1Debug", "variantData")
+        findNamedItem(variants, "flavor1DebugTest", "variantData")
+
+        assertEquals(["flavor1Release", "flavor2Debug", "flavor2Release"] as Set,
+                plugin.variantManager.placeholderVariants)
+        assertNotNull(project.tasks.findByName("assembleFlavor2Release"))
+    }
+
+    public void testLazyVariantsWithOverlappingFlavorNames() {
+        Project project = ProjectBuilder.builder().withProjectDir(
+                new File(testDir, "${FOLDER_TEST_REGULAR}/basic")).build()
+
+        project.ext.set(VariantManager.PROPERTY_LAZY_VARIANTS, "true")
+        project.gradle.startParameter.taskNames = ["assembleNonFreeDebug"]
+        project.apply plugin: 'com.android.application'
+
+        project.android {
+            compileSdkVersion 15
+            buildToolsVersion "19"
+
+            productFlavors {
+                free {
+
+                }
+                nonFree {
+
+                }
+            }
+        }
+
+        AppPlugin plugin = project.plugins.getPlugin(AppPlugin)
+        plugin.createAndroidTasks(true /*force*/)
+
+        // freeDebug is a suffix of nonFreeDebug, but isn't requested.
+        List<BaseVariantData> variants = plugin.variantDataList
+        assertEquals(2, variants.size()) // includes the test variant(s)
+        findNamedItem(variants, "nonFreeDebug", "variantData")
+        findNamedItem(variants, "nonFreeDebugTest", "variantData")
+
+        assertEquals(["freeDebug", "freeRelease", "nonFreeRelease"] as Set,
+                plugin.variantManager.placeholderVariants)
+    }
+
+    public void testLazyVariantsWithAggregateTask() {
+        Project project = ProjectBuilder.builder().withProjectDir(
+                new File(testDir, "${FOLDER_TEST_REGULAR}/basic")).build()
+
+        project.ext.set(VariantManager.PROPERTY_LAZY_VARIANTS, "true")
+        project.gradle.startParameter.taskNames = ["assembleFlavor1Debug", "assembleRelease"]
+        project.apply plugin: 'com.android.application'
+
+        project.android {
+            compileSdkVersion 15
+            buildToolsVersion "19"
+
+            productFlavors {
+                flavor1 {
+
+                }
+                flavor2 {
+
+                }
+            }
+        }
+
+        AppPlugin plugin = project.plugins.getPlugin(AppPlugin)
+        plugin.createAndroidTasks(true /*force*/)
+
+        // assembleRelease isn't specific to a variant, so they are all created.
+        assertEquals(6, plugin.variantDataList.size())
+        assertTrue(plugin.variantManager.placeholderVariants.isEmpty())
+    }
+
     public void testSigningConfigs() {
         Project project = ProjectBuilder.builder().withProjectDir(
                 new File(testDir, "${FOLDER_TEST_REGULAR}/basic")).build()
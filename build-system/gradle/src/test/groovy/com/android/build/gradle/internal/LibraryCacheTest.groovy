@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal
+
+import com.google.common.hash.Hashing
+import com.google.common.io.Files
+import junit.framework.TestCase
+import org.gradle.api.Project
+import org.gradle.testfixtures.ProjectBuilder
+
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+/**
+ * Tests for the store of extracted aars of {@link LibraryCache}.
+ */
+public class LibraryCacheTest extends TestCase {
+
+    private File tmpDir
+
+    @Override
+    protected void setUp() throws Exception {
+        tmpDir = Files.createTempDir()
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        LibraryCache.getCache().unload()
+        tmpDir.eachFileRecurse { File file -> file.setWritable(true) }
+        tmpDir.deleteDir()
+    }
+
+    public void testStore() {
+        File store = new File(tmpDir, "store")
+        File bundle = createAar(new File(tmpDir, "lib.aar"))
+
+        Project project1 = createProject("project1", store)
+        File out1 = new File(project1.buildDir, "exploded-aar/lib")
+        LibraryCache.getCache().unzipLibrary("prepareLib", project1, bundle, out1)
+
+        String hash = Files.hash(bundle, Hashing.sha1()).toString()
+        File entry = new File(store, hash)
+        assertTrue(new File(entry, "AndroidManifest.xml").isFile())
+        assertFalse(new File(entry, "AndroidManifest.xml").canWrite())
+        assertFalse(new File(store, "${hash}.tmp").exists())
+
+        assertEquals("<manifest/>", new File(out1, "AndroidManifest.xml").text)
+        assertTrue(new File(out1, "res/values/values.xml").isFile())
+        assertTrue(new File(out1, "AndroidManifest.xml").canWrite())
+
+        // another project reuses the store, even if it was extracted by an earlier build.
+        LibraryCache.getCache().unload()
+        long stamp = entry.lastModified()
+        Project project2 = createProject("project2", store)
+        File out2 = new File(project2.buildDir, "exploded-aar/lib")
+        LibraryCache.getCache().unzipLibrary("prepareLib", project2, bundle, out2)
+
+        assertEquals(stamp, entry.lastModified())
+        assertEquals("<manifest/>", new File(out2, "AndroidManifest.xml").text)
+    }
+
+    public void testUnwritableStore() {
+        File store = new File(tmpDir, "store")
+        store.mkdirs()
+        store.setWritable(false)
+        File bundle = createAar(new File(tmpDir, "lib.aar"))
+
+        Project project = createProject("project", store)
+        File out = new File(project.buildDir, "exploded-aar/lib")
+        LibraryCache.getCache().unzipLibrary("prepareLib", project, bundle, out)
+
+        assertEquals("<manifest/>", new File(out, "AndroidManifest.xml").text)
+        assertTrue(new File(out, "res/values/values.xml").isFile())
+    }
+
+    public void testStaleTmp() {
+        File store = new File(tmpDir, "store")
+        File bundle = createAar(new File(tmpDir, "lib.aar"))
+        String hash = Files.hash(bundle, Hashing.sha1()).toString()
+
+        // a read-only leftover of an interrupted extraction.
+        File stale = new File(store, "${hash}.tmp/AndroidManifest.xml")
+        stale.parentFile.mkdirs()
+        stale.text = "<stale/>"
+        stale.setReadOnly()
+
+        Project project = createProject("project", store)
+        File out = new File(project.buildDir, "exploded-aar/lib")
+        LibraryCache.getCache().unzipLibrary("prepareLib", project, bundle, out)
+
+        assertEquals("<manifest/>", new File(store, "${hash}/AndroidManifest.xml").text)
+        assertFalse(new File(store, "${hash}.tmp").exists())
+        assertEquals("<manifest/>", new File(out, "AndroidManifest.xml").text)
+    }
+
+    public void testNoStore() {
+        File bundle = createAar(new File(tmpDir, "lib.aar"))
+
+        Project project = ProjectBuilder.builder().withProjectDir(
+                new File(tmpDir, "project")).build()
+        File out = new File(project.buildDir, "exploded-aar/lib")
+        LibraryCache.getCache().unzipLibrary("prepareLib", project, bundle, out)
+
+        assertEquals("<manifest/>", new File(out, "AndroidManifest.xml").text)
+        assertTrue(new File(out, "AndroidManifest.xml").canWrite())
+    }
+
+    private Project createProject(String name, File store) {
+        Project project = ProjectBuilder.builder().withProjectDir(new File(tmpDir, name)).build()
+        project.ext.set(LibraryCache.PROPERTY_AAR_STORE, "true")
+        project.ext.set(LibraryCache.PROPERTY_AAR_STORE_DIR, store.getPath())
+        return project
+    }
+
+    private static File createAar(File file) {
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))
+        try {
+            zip.putNextEntry(new ZipEntry("AndroidManifest.xml"))
+            zip.write("<manifest/>".getBytes("UTF-8"))
+            zip.closeEntry()
+            zip.putNextEntry(new ZipEntry("res/values/values.xml"))
+            zip.write("<resources/>".getBytes("UTF-8"))
+            zip.closeEntry()
+        } finally {
+            zip.close()
+        }
+        return file
+    }
+}
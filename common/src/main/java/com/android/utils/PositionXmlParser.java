@@ -42,6 +42,7 @@ import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -55,12 +56,19 @@ import javax.xml.parsers.SAXParserFactory;
 /**
  * A simple DOM XML parser which can retrieve exact beginning and end offsets
  * (and line and column numbers) for element nodes as well as attribute nodes.
+ * <p/>
+ * The offsets of the attributes are recorded while parsing, by scanning the open tag of each
+ * element once, and the offsets of the line starts of the document are kept in a table, so
+ * looking up the position of an attribute does not search the source text again. The SAX
+ * parsers and DOM document builders are reused across parses on the same thread.
  */
 public class PositionXmlParser {
     private static final String UTF_16 = "UTF_16";               //$NON-NLS-1$
     private static final String UTF_16LE = "UTF_16LE";           //$NON-NLS-1$
     private static final String CONTENT_KEY = "contents";        //$NON-NLS-1$
     private static final String POS_KEY = "offsets";             //$NON-NLS-1$
+    private static final String ATTRIBUTES_KEY = "attributes";   //$NON-NLS-1$
+    private static final String LINES_KEY = "lines";             //$NON-NLS-1$
     private static final String NAMESPACE_PREFIX_FEATURE =
             "http://xml.org/sax/features/namespace-prefixes";    //$NON-NLS-1$
     private static final String NAMESPACE_FEATURE =
@@ -71,6 +79,18 @@ public class PositionXmlParser {
     private static final Pattern ENCODING_PATTERN =
             Pattern.compile("encoding=['\"](\\S*)['\"]");//$NON-NLS-1$
 
+    /**
+     * Number of ints per attribute in the arrays stored with the {@link #ATTRIBUTES_KEY} key:
+     * the offsets of the start and end of the name, and of the end of the value.
+     */
+    private static final int ATTRIBUTE_FIELDS = 3;
+
+    /** The SAX parsers not in use, per thread. */
+    private static final ThreadLocal<SAXParser> sParsers = new ThreadLocal<SAXParser>();
+    /** The DOM document builders, per thread. */
+    private static final ThreadLocal<DocumentBuilder> sDocumentBuilders =
+            new ThreadLocal<DocumentBuilder>();
+
     /**
      * Parses the XML content from the given input stream.
      *
@@ -86,8 +106,8 @@ public class PositionXmlParser {
     public Document parse(@NonNull InputStream input)
             throws ParserConfigurationException, SAXException, IOException {
         // Read in all the data
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        byte[] buf = new byte[1024];
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(input.available(), 1024));
+        byte[] buf = new byte[8192];
         while (true) {
           int r = input.read(buf);
           if (r == -1) {
@@ -140,12 +160,17 @@ public class PositionXmlParser {
     @NonNull
     private Document parse(@NonNull String xml, @NonNull InputSource input, boolean checkBom)
             throws ParserConfigurationException, SAXException, IOException {
-        try {
+        // the parser is taken out of the pool while in use, in case of a nested parse.
+        SAXParser parser = sParsers.get();
+        sParsers.set(null);
+        if (parser == null) {
             SAXParserFactory factory = SAXParserFactory.newInstance();
             factory.setFeature(NAMESPACE_FEATURE, true);
             factory.setFeature(NAMESPACE_PREFIX_FEATURE, true);
             factory.setFeature(PROVIDE_XMLNS_URIS, true);
-            SAXParser parser = factory.newSAXParser();
+            parser = factory.newSAXParser();
+        }
+        try {
             DomBuilder handler = new DomBuilder(xml);
             XMLReader xmlReader = parser.getXMLReader();
             xmlReader.setProperty(
@@ -163,9 +188,29 @@ public class PositionXmlParser {
                 return parse(xml, new InputSource(new StringReader(xml)), false);
             }
             throw e;
+        } finally {
+            try {
+                parser.reset();
+                sParsers.set(parser);
+            } catch (UnsupportedOperationException e) {
+                // the parser cannot be reused.
+            }
         }
     }
 
+    @NonNull
+    private static Document newDocument() throws ParserConfigurationException {
+        DocumentBuilder docBuilder = sDocumentBuilders.get();
+        if (docBuilder == null) {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setValidating(false);
+            docBuilder = factory.newDocumentBuilder();
+            sDocumentBuilders.set(docBuilder);
+        }
+        return docBuilder.newDocument();
+    }
+
     /**
      * Returns the String corresponding to the given byte array of XML data
      * (with unknown encoding). This method attempts to guess the encoding based
@@ -356,8 +401,29 @@ public class PositionXmlParser {
                     }
                 }
 
-                // Find attribute in the text
+                // Use the offsets recorded while parsing.
+                int[] attributes = (int[]) attr.getOwnerElement().getUserData(ATTRIBUTES_KEY);
+                int[] lines = (int[]) node.getOwnerDocument().getUserData(LINES_KEY);
                 String contents = (String) node.getOwnerDocument().getUserData(CONTENT_KEY);
+                if (attributes != null && lines != null && contents != null) {
+                    String name = attr.getName();
+                    for (int i = 0; i < attributes.length; i += ATTRIBUTE_FIELDS) {
+                        int nameStart = attributes[i];
+                        int nameEnd = attributes[i + 1];
+                        if (nameEnd - nameStart == name.length()
+                                && contents.startsWith(name, nameStart)) {
+                            if (nameStart < startOffset || nameStart > endOffset) {
+                                return pos;
+                            }
+                            Position attributePosition = createPosition(lines, nameStart);
+                            attributePosition.setEnd(createPosition(lines, attributes[i + 2]));
+                            return attributePosition;
+                        }
+                    }
+                    return pos;
+                }
+
+                // Find attribute in the text
                 if (contents == null) {
                     return null;
                 }
@@ -500,6 +566,7 @@ public class PositionXmlParser {
      */
     private final class DomBuilder extends DefaultHandler2 {
         private final String mXml;
+        private final int[] mLines;
         private final Document mDocument;
         private Locator mLocator;
         private int mCurrentLine = 0;
@@ -510,13 +577,11 @@ public class PositionXmlParser {
 
         private DomBuilder(String xml) throws ParserConfigurationException {
             mXml = xml;
+            mLines = computeLineOffsets(xml);
 
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            factory.setValidating(false);
-            DocumentBuilder docBuilder = factory.newDocumentBuilder();
-            mDocument = docBuilder.newDocument();
+            mDocument = newDocument();
             mDocument.setUserData(CONTENT_KEY, xml, null);
+            mDocument.setUserData(LINES_KEY, mLines, null);
         }
 
         /** Returns the document parsed by the handler */
@@ -560,7 +625,14 @@ public class PositionXmlParser {
                 // the beginning since pos.offset will typically point to the first character
                 // AFTER the element open tag, which could be a closing tag or a child open
                 // tag
-                element.setUserData(POS_KEY, findOpeningTag(pos), null);
+                Position start = findOpeningTag(pos);
+                element.setUserData(POS_KEY, start, null);
+                if (attributes.getLength() > 0) {
+                    int[] offsets = findAttributes(start.getOffset(), pos.getOffset());
+                    if (offsets != null) {
+                        element.setUserData(ATTRIBUTES_KEY, offsets, null);
+                    }
+                }
                 mStack.add(element);
             } catch (Exception t) {
                 throw new SAXException(t);
@@ -624,29 +696,83 @@ public class PositionXmlParser {
                 char c = mXml.charAt(offset);
 
                 if (c == '<') {
-                    // Adjust line position
-                    int line = startingPosition.getLine();
-                    for (int i = offset, n = startingPosition.getOffset(); i < n; i++) {
-                        if (mXml.charAt(i) == '\n') {
-                            line--;
-                        }
-                    }
-
-                    // Compute new column position
-                    int column = 0;
-                    for (int i = offset - 1; i >= 0; i--, column++) {
-                        if (mXml.charAt(i) == '\n') {
-                            break;
-                        }
-                    }
-
-                    return createPosition(line, column, offset);
+                    return createPosition(mLines, offset);
                 }
             }
             // we did not find it, approximate.
             return startingPosition;
         }
 
+        /**
+         * Finds the attributes in the open tag of an element, and returns the offsets of their
+         * names and of the end of their values, {@link #ATTRIBUTE_FIELDS} ints per attribute.
+         * @param start the offset of the open tag.
+         * @param end the offset of the end of the open tag.
+         * @return the offsets, or null if the open tag could not be read.
+         */
+        @Nullable
+        private int[] findAttributes(int start, int end) {
+            String xml = mXml;
+            end = Math.min(end, xml.length());
+            int[] offsets = new int[4 * ATTRIBUTE_FIELDS];
+            int count = 0;
+
+            // skip the element name.
+            int i = start + 1;
+            while (i < end && !isTagDelimiter(xml.charAt(i))) {
+                i++;
+            }
+
+            while (true) {
+                while (i < end && Character.isWhitespace(xml.charAt(i))) {
+                    i++;
+                }
+                if (i >= end || xml.charAt(i) == '>' || xml.charAt(i) == '/') {
+                    break;
+                }
+
+                int nameStart = i;
+                while (i < end && !isTagDelimiter(xml.charAt(i)) && xml.charAt(i) != '=') {
+                    i++;
+                }
+                int nameEnd = i;
+                while (i < end && Character.isWhitespace(xml.charAt(i))) {
+                    i++;
+                }
+                if (i >= end || xml.charAt(i) != '=') {
+                    return null;
+                }
+                i++;
+                while (i < end && Character.isWhitespace(xml.charAt(i))) {
+                    i++;
+                }
+                if (i >= end || (xml.charAt(i) != '"' && xml.charAt(i) != '\'')) {
+                    return null;
+                }
+                int valueEnd = xml.indexOf(xml.charAt(i), i + 1);
+                if (valueEnd == -1 || valueEnd >= end) {
+                    return null;
+                }
+                i = valueEnd + 1;
+
+                if (count == offsets.length) {
+                    int[] newOffsets = new int[offsets.length * 2];
+                    System.arraycopy(offsets, 0, newOffsets, 0, count);
+                    offsets = newOffsets;
+                }
+                offsets[count++] = nameStart;
+                offsets[count++] = nameEnd;
+                offsets[count++] = i;
+            }
+
+            if (count < offsets.length) {
+                int[] newOffsets = new int[count];
+                System.arraycopy(offsets, 0, newOffsets, 0, count);
+                offsets = newOffsets;
+            }
+            return offsets;
+        }
+
             /**
          * Returns a position holder for the current position. The most
          * important part of this function is to incrementally compute the
@@ -703,6 +829,47 @@ public class PositionXmlParser {
         }
     }
 
+    private static boolean isTagDelimiter(char c) {
+        return c == '>' || c == '/' || Character.isWhitespace(c);
+    }
+
+    /**
+     * Returns the offsets of the starts of the lines of the given text. Lines end with
+     * {@code \n}, {@code \r\n} or {@code \r}.
+     */
+    @NonNull
+    private static int[] computeLineOffsets(@NonNull String xml) {
+        int[] lines = new int[64];
+        int count = 1;
+        for (int i = 0, n = xml.length(); i < n; i++) {
+            char c = xml.charAt(i);
+            if (c == '\n' || c == '\r' && i < n - 1 && xml.charAt(i + 1) != '\n') {
+                if (count == lines.length) {
+                    int[] newLines = new int[lines.length * 2];
+                    System.arraycopy(lines, 0, newLines, 0, count);
+                    lines = newLines;
+                }
+                lines[count++] = i + 1;
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(lines, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Creates the position of an offset, looking up its line in the table of line offsets.
+     */
+    @NonNull
+    private Position createPosition(@NonNull int[] lines, int offset) {
+        int line = Arrays.binarySearch(lines, offset);
+        if (line < 0) {
+            // the offset is within the line before the insertion point.
+            line = -line - 2;
+        }
+        return createPosition(line, offset - lines[line], offset);
+    }
+
     /**
      * Creates a position while constructing the DOM document. This method
      * allows a subclass to create a custom implementation of the position
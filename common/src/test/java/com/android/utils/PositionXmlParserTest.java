@@ -492,4 +492,45 @@ public class PositionXmlParserTest extends TestCase {
                     xml.substring(start.getOffset(), end.getOffset()));
         }
     }
+
+    public void testAttributeRanges() throws Exception {
+        String xml = ""
+                + "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                + "<LinearLayout xmlns:android=\"http://schemas.android.com/apk/res/android\">\n"
+                + "    <Button android:id = '@+id/button1' android:text=\"a\n"
+                + "b\" orientation=\"x\"/><Button orientation='y'/>\n"
+                + "</LinearLayout>\n";
+        PositionXmlParser parser = new PositionXmlParser();
+        // parse twice to use a pooled parser.
+        parser.parse(xml);
+        Document document = parser.parse(xml);
+        assertNotNull(document);
+
+        final String ANDROID_URI = "http://schemas.android.com/apk/res/android";
+        NodeList buttons = document.getElementsByTagName("Button");
+        Element button = (Element) buttons.item(0);
+
+        Position start = parser.getPosition(button.getAttributeNodeNS(ANDROID_URI, "id"));
+        assertEquals("android:id = '@+id/button1'",
+                xml.substring(start.getOffset(), start.getEnd().getOffset()));
+        assertEquals(2, start.getLine());
+        assertEquals(12, start.getColumn());
+
+        start = parser.getPosition(button.getAttributeNodeNS(ANDROID_URI, "text"));
+        assertEquals("android:text=\"a\nb\"",
+                xml.substring(start.getOffset(), start.getEnd().getOffset()));
+        assertEquals(2, start.getLine());
+        assertEquals(3, start.getEnd().getLine());
+        assertEquals(2, start.getEnd().getColumn());
+
+        start = parser.getPosition(button.getAttributeNode("orientation"));
+        assertEquals("orientation=\"x\"",
+                xml.substring(start.getOffset(), start.getEnd().getOffset()));
+        assertEquals(3, start.getLine());
+        assertEquals(3, start.getColumn());
+
+        start = parser.getPosition(((Element) buttons.item(1)).getAttributeNode("orientation"));
+        assertEquals("orientation='y'",
+                xml.substring(start.getOffset(), start.getEnd().getOffset()));
+    }
 }
@@ -16,6 +16,7 @@
 
 package com.android.ddmlib;
 
+import com.android.annotations.Nullable;
 import com.android.ddmlib.log.LogReceiver;
 
 import java.io.IOException;
@@ -30,8 +31,8 @@ import java.util.concurrent.TimeUnit;
  * Helper class to handle requests and connections to adb.
  * <p/>{@link DebugBridgeServer} is the public API to connection to adb, while {@link AdbHelper}
  * does the low level stuff.
- * <p/>This currently uses spin-wait non-blocking I/O. A Selector would be more efficient,
- * but seems like overkill for what we're doing here.
+ * <p/>This currently uses spin-wait non-blocking I/O. Callers that need to drive many requests
+ * at once should use the Selector based {@link AdbSelectorEngine} instead.
  */
 final class AdbHelper {
 
@@ -268,8 +269,23 @@ final class AdbHelper {
      */
     static RawImage getFrameBuffer(InetSocketAddress adbSockAddr, Device device)
             throws TimeoutException, AdbCommandRejectedException, IOException {
+        return getFrameBuffer(adbSockAddr, device, null);
+    }
+
+    /**
+     * Retrieve the frame buffer from the device, into an existing image if possible.
+     * @param reuse an image to fill with the frame buffer, or null to create a new one. Its data
+     *              array is reused if it has the size of the frame buffer.
+     * @return the image, or null if the protocol of the frame buffer is not supported.
+     * @throws TimeoutException in case of timeout on the connection.
+     * @throws AdbCommandRejectedException if adb rejects the command
+     * @throws IOException in case of I/O error on the connection.
+     */
+    static RawImage getFrameBuffer(InetSocketAddress adbSockAddr, Device device,
+            @Nullable RawImage reuse)
+            throws TimeoutException, AdbCommandRejectedException, IOException {
 
-        RawImage imageParams = new RawImage();
+        RawImage imageParams = reuse != null ? reuse : new RawImage();
         byte[] request = formAdbRequest("framebuffer:"); //$NON-NLS-1$
         byte[] nudge = {
             0
@@ -323,7 +339,11 @@ final class AdbHelper {
 
             write(adbChan, nudge);
 
-            reply = new byte[imageParams.size];
+            if (imageParams.data != null && imageParams.data.length == imageParams.size) {
+                reply = imageParams.data;
+            } else {
+                reply = new byte[imageParams.size];
+            }
             read(adbChan, reply);
 
             imageParams.data = reply;
@@ -0,0 +1,712 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector based transport for the adb wire protocol.
+ * <p/>Unlike {@link AdbHelper}, which spin-waits on a non-blocking channel from the calling
+ * thread, requests submitted here are multiplexed on a small, fixed number of I/O threads
+ * (see {@link DdmPreferences#getIoThreadCount()}), each one driving its own {@link Selector}.
+ * Every request returns a {@link ListenableFuture} that is completed once the request is done,
+ * with the same exceptions the blocking {@link AdbHelper} methods would throw.
+ * <p/>Shell output is handed to the {@link IShellOutputReceiver} from the I/O thread, so
+ * receivers must not block.
+ */
+final class AdbSelectorEngine {
+
+    /** Longest time an I/O thread sleeps before re-checking cancellation and timeouts, in ms. */
+    private static final long POLL_INTERVAL = 100;
+
+    private static final int READ_BUFFER_SIZE = 16384;
+
+    private static AdbSelectorEngine sInstance;
+
+    private final IoThread[] mThreads;
+    private final AtomicInteger mNextThread = new AtomicInteger();
+
+    private AdbSelectorEngine(int threadCount) throws IOException {
+        mThreads = new IoThread[threadCount];
+        try {
+            for (int i = 0 ; i < threadCount ; i++) {
+                mThreads[i] = new IoThread(i);
+                mThreads[i].start();
+            }
+        } catch (IOException e) {
+            quit();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the engine, starting its I/O threads if needed.
+     * @throws IOException if a {@link Selector} could not be opened.
+     */
+    static synchronized AdbSelectorEngine getInstance() throws IOException {
+        if (sInstance == null) {
+            sInstance = new AdbSelectorEngine(Math.max(1, DdmPreferences.getIoThreadCount()));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Stops the I/O threads, if they were started. Pending requests are failed.
+     */
+    static synchronized void terminate() {
+        if (sInstance != null) {
+            sInstance.quit();
+            sInstance = null;
+        }
+    }
+
+    /**
+     * Executes a shell command on the device. The output is handed to <var>rcvr</var> as it
+     * arrives.
+     *
+     * @param adbSockAddr the {@link InetSocketAddress} to adb.
+     * @param command the shell command to execute
+     * @param device the {@link IDevice} on which to execute the command.
+     * @param rcvr the {@link IShellOutputReceiver} that will receives the output of the shell
+     *            command. Can be null.
+     * @param maxTimeToOutputResponse max time between command output. A value of 0 means the
+     *            request never fails with {@link ShellCommandUnresponsiveException}.
+     * @param maxTimeUnits Units for non-zero {@code maxTimeToOutputResponse} values.
+     * @return a future completed when the command exits or the receiver is cancelled.
+     */
+    @NonNull
+    ListenableFuture<Void> executeRemoteCommand(@NonNull InetSocketAddress adbSockAddr,
+            @NonNull String command, @NonNull IDevice device, @Nullable IShellOutputReceiver rcvr,
+            long maxTimeToOutputResponse, @Nullable TimeUnit maxTimeUnits) {
+        long maxTimeToOutputMs = 0;
+        if (maxTimeToOutputResponse > 0) {
+            if (maxTimeUnits == null) {
+                throw new NullPointerException("Time unit must not be null for non-zero max.");
+            }
+            maxTimeToOutputMs = maxTimeUnits.toMillis(maxTimeToOutputResponse);
+        }
+
+        Log.v("ddms", "execute (async): running " + command);
+        ShellRequest request = new ShellRequest(adbSockAddr, device, command, rcvr,
+                maxTimeToOutputMs);
+        submit(request);
+        return request.mFuture;
+    }
+
+    /**
+     * Opens a sync connection to the device.
+     * <p/>The returned future holds an opened {@link SyncService} once adb has accepted the
+     * <code>sync:</code> request. The caller is responsible for closing it.
+     *
+     * @param adbSockAddr the {@link InetSocketAddress} to adb.
+     * @param device the {@link Device} that the service connects to.
+     */
+    @NonNull
+    ListenableFuture<SyncService> openSync(@NonNull InetSocketAddress adbSockAddr,
+            @NonNull Device device) {
+        SyncRequest request = new SyncRequest(adbSockAddr, device);
+        submit(request);
+        return request.mFuture;
+    }
+
+    /**
+     * Sends a request to the adb host, for instance a <code>host-serial:</code> forward request.
+     * The future is completed once adb has acknowledged the request.
+     *
+     * @param adbSockAddr the {@link InetSocketAddress} to adb.
+     * @param hostRequest the request, without its length prefix.
+     */
+    @NonNull
+    ListenableFuture<Void> executeHostRequest(@NonNull InetSocketAddress adbSockAddr,
+            @NonNull String hostRequest) {
+        HostRequest request = new HostRequest(adbSockAddr, hostRequest);
+        submit(request);
+        return request.mFuture;
+    }
+
+    /**
+     * Opens a tracking connection, such as <code>host:track-devices</code> or
+     * <code>track-jdwp</code>, on which adb sends a length prefixed message each time the tracked
+     * list changes. The messages are handed to <var>listener</var> from the I/O thread.
+     * <p/>The returned future is only completed when the connection ends: it fails with an
+     * {@link IOException} when adb closes the connection, and cancelling it closes the
+     * connection.
+     *
+     * @param adbSockAddr the {@link InetSocketAddress} to adb.
+     * @param device the device to which the request is sent, or null for a host request.
+     * @param trackRequest the request, without its length prefix.
+     * @param listener the listener receiving the messages.
+     */
+    @NonNull
+    ListenableFuture<Void> track(@NonNull InetSocketAddress adbSockAddr,
+            @Nullable IDevice device, @NonNull String trackRequest,
+            @NonNull ITrackingListener listener) {
+        TrackRequest request = new TrackRequest(adbSockAddr, device, trackRequest, listener);
+        submit(request);
+        return request.mFuture;
+    }
+
+    /**
+     * Receives the messages of a tracking connection.
+     * @see #track(InetSocketAddress, IDevice, String, ITrackingListener)
+     */
+    interface ITrackingListener {
+        /**
+         * Called from the I/O thread with each message, without its length prefix.
+         */
+        void messageReceived(@NonNull String message);
+    }
+
+    private void submit(Request<?> request) {
+        int index = (mNextThread.getAndIncrement() & Integer.MAX_VALUE) % mThreads.length;
+        mThreads[index].add(request);
+    }
+
+    private void quit() {
+        for (IoThread thread : mThreads) {
+            if (thread != null) {
+                thread.quit();
+            }
+        }
+    }
+
+    private enum State {
+        CONNECTING, WRITING_REQUEST, READING_STATUS, READING_LENGTH, READING_MESSAGE, STREAMING
+    }
+
+    /**
+     * A single adb connection, going through one or more request/OKAY exchanges before
+     * reaching its service specific phase.
+     */
+    private abstract static class Request<T> {
+        final SettableFuture<T> mFuture = SettableFuture.create();
+
+        final InetSocketAddress mAddress;
+        private final byte[][] mRequests;
+        /** whether the first request of {@link #mRequests} is the device selection */
+        private final boolean mSelectsDevice;
+        private final long mTimeOutNanos;
+
+        SocketChannel mChannel;
+        SelectionKey mKey;
+        State mState = State.CONNECTING;
+
+        private int mRequestIndex = 0;
+        private ByteBuffer mOut;
+        private final ByteBuffer mStatus = ByteBuffer.allocate(4);
+        private ByteBuffer mMessage;
+
+        /** {@link System#nanoTime()} after which the request fails, or 0 for no deadline. */
+        long mDeadline;
+
+        Request(InetSocketAddress address, @Nullable IDevice device, String request) {
+            mAddress = address;
+            mSelectsDevice = device != null;
+            if (mSelectsDevice) {
+                mRequests = new byte[][] {
+                        AdbHelper.formAdbRequest(
+                                "host:transport:" + device.getSerialNumber()), //$NON-NLS-1$
+                        AdbHelper.formAdbRequest(request)
+                };
+            } else {
+                mRequests = new byte[][] { AdbHelper.formAdbRequest(request) };
+            }
+            mTimeOutNanos = TimeUnit.MILLISECONDS.toNanos(DdmPreferences.getTimeOut());
+        }
+
+        void start(Selector selector) throws IOException {
+            mChannel = SocketChannel.open();
+            mChannel.configureBlocking(false);
+            mChannel.socket().setTcpNoDelay(true);
+            resetDeadline();
+            if (mChannel.connect(mAddress)) {
+                mKey = mChannel.register(selector, SelectionKey.OP_WRITE, this);
+                startRequest();
+            } else {
+                mKey = mChannel.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+        }
+
+        void handle(ByteBuffer readBuffer) throws Exception {
+            if (mKey.isConnectable()) {
+                mChannel.finishConnect();
+                mKey.interestOps(SelectionKey.OP_WRITE);
+                startRequest();
+            } else if (mKey.isWritable() && mState == State.WRITING_REQUEST) {
+                mChannel.write(mOut);
+                if (!mOut.hasRemaining()) {
+                    mOut = null;
+                    mStatus.clear();
+                    mState = State.READING_STATUS;
+                    mKey.interestOps(SelectionKey.OP_READ);
+                }
+                resetDeadline();
+            } else if (mKey.isReadable()) {
+                switch (mState) {
+                    case READING_STATUS:
+                        if (fill(mStatus)) {
+                            processStatus();
+                        }
+                        break;
+                    case READING_LENGTH:
+                        if (fill(mStatus)) {
+                            processLength();
+                        }
+                        break;
+                    case READING_MESSAGE:
+                        if (fill(mMessage)) {
+                            fail(new AdbCommandRejectedException(
+                                    AdbHelper.replyToString(mMessage.array()),
+                                    isDeviceSelection()));
+                        }
+                        break;
+                    case STREAMING:
+                        readBuffer.clear();
+                        int count = mChannel.read(readBuffer);
+                        if (count < 0) {
+                            onEndOfStream();
+                        } else if (count > 0) {
+                            onData(readBuffer.array(), readBuffer.arrayOffset(), count);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Checks for cancellation and expired deadlines. Returns true if the request is done.
+         */
+        boolean poll(long now) {
+            if (mFuture.isDone()) {
+                close();
+                return true;
+            }
+            if (isCancelled()) {
+                succeed();
+                return true;
+            }
+            if (mDeadline != 0 && now - mDeadline > 0) {
+                fail(mState == State.STREAMING ?
+                        new ShellCommandUnresponsiveException() : new TimeoutException());
+                return true;
+            }
+            return false;
+        }
+
+        final void fail(Throwable t) {
+            close();
+            mFuture.setException(t);
+        }
+
+        final void close() {
+            if (mKey != null) {
+                mKey.cancel();
+            }
+            if (mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                    // ignore, the request is over.
+                }
+            }
+        }
+
+        /** Called once adb answered OKAY to the last request. */
+        abstract void onAccepted() throws IOException;
+
+        abstract void succeed();
+
+        void onData(byte[] data, int offset, int length) {
+        }
+
+        void onEndOfStream() {
+            succeed();
+        }
+
+        boolean isCancelled() {
+            return false;
+        }
+
+        void resetDeadline() {
+            mDeadline = System.nanoTime() + mTimeOutNanos;
+        }
+
+        private void startRequest() {
+            mOut = ByteBuffer.wrap(mRequests[mRequestIndex]);
+            mState = State.WRITING_REQUEST;
+        }
+
+        private boolean isDeviceSelection() {
+            return mSelectsDevice && mRequestIndex == 0;
+        }
+
+        private boolean fill(ByteBuffer buffer) throws IOException {
+            if (mChannel.read(buffer) < 0) {
+                throw new IOException("EOF");
+            }
+            resetDeadline();
+            return !buffer.hasRemaining();
+        }
+
+        private void processStatus() throws IOException {
+            if (AdbHelper.isOkay(mStatus.array())) {
+                mRequestIndex++;
+                if (mRequestIndex < mRequests.length) {
+                    mKey.interestOps(SelectionKey.OP_WRITE);
+                    startRequest();
+                } else {
+                    onAccepted();
+                }
+            } else {
+                // look for a reason after the FAIL
+                mStatus.clear();
+                mState = State.READING_LENGTH;
+            }
+        }
+
+        private void processLength() {
+            String lenStr = AdbHelper.replyToString(mStatus.array());
+            int len;
+            try {
+                len = Integer.parseInt(lenStr, 16);
+            } catch (NumberFormatException nfe) {
+                Log.w("ddms", "Expected digits, got '" + lenStr + "'");
+                fail(new AdbCommandRejectedException("", isDeviceSelection()));
+                return;
+            }
+            mMessage = ByteBuffer.allocate(len);
+            mState = State.READING_MESSAGE;
+            if (len == 0) {
+                fail(new AdbCommandRejectedException("", isDeviceSelection()));
+            }
+        }
+    }
+
+    private static final class ShellRequest extends Request<Void> {
+        private final String mCommand;
+        private final IShellOutputReceiver mReceiver;
+        private final long mMaxTimeToOutputNanos;
+
+        ShellRequest(InetSocketAddress address, IDevice device, String command,
+                IShellOutputReceiver receiver, long maxTimeToOutputMs) {
+            super(address, device, "shell:" + command); //$NON-NLS-1$
+            mCommand = command;
+            mReceiver = receiver;
+            mMaxTimeToOutputNanos = TimeUnit.MILLISECONDS.toNanos(maxTimeToOutputMs);
+        }
+
+        @Override
+        void onAccepted() {
+            mState = State.STREAMING;
+            resetDeadline();
+        }
+
+        @Override
+        void onData(byte[] data, int offset, int length) {
+            resetDeadline();
+            if (mReceiver != null) {
+                mReceiver.addOutput(data, offset, length);
+            }
+        }
+
+        @Override
+        void onEndOfStream() {
+            if (mReceiver != null) {
+                mReceiver.flush();
+            }
+            Log.v("ddms", "execute (async) '" + mCommand + "': EOF hit.");
+            succeed();
+        }
+
+        @Override
+        boolean isCancelled() {
+            return mReceiver != null && mReceiver.isCancelled();
+        }
+
+        @Override
+        void resetDeadline() {
+            if (mState != State.STREAMING) {
+                super.resetDeadline();
+            } else if (mMaxTimeToOutputNanos > 0) {
+                mDeadline = System.nanoTime() + mMaxTimeToOutputNanos;
+            } else {
+                mDeadline = 0;
+            }
+        }
+
+        @Override
+        void succeed() {
+            close();
+            mFuture.set(null);
+        }
+    }
+
+    private static final class TrackRequest extends Request<Void> {
+        private final ITrackingListener mListener;
+        /** length prefix of the message being received, then its content. */
+        private final ByteBuffer mLength = ByteBuffer.allocate(4);
+        private ByteBuffer mContent;
+
+        TrackRequest(InetSocketAddress address, IDevice device, String request,
+                ITrackingListener listener) {
+            super(address, device, request);
+            mListener = listener;
+        }
+
+        @Override
+        void onAccepted() {
+            mState = State.STREAMING;
+            resetDeadline();
+        }
+
+        @Override
+        void onData(byte[] data, int offset, int length) {
+            int end = offset + length;
+            while (offset < end) {
+                ByteBuffer target = mContent != null ? mContent : mLength;
+                int count = Math.min(target.remaining(), end - offset);
+                target.put(data, offset, count);
+                offset += count;
+                if (target.hasRemaining()) {
+                    break;
+                }
+
+                if (mContent == null) {
+                    String lenStr = AdbHelper.replyToString(mLength.array());
+                    int len;
+                    try {
+                        len = Integer.parseInt(lenStr, 16);
+                    } catch (NumberFormatException nfe) {
+                        fail(new IOException("Unable to read length"));
+                        return;
+                    }
+                    mContent = ByteBuffer.allocate(len);
+                }
+                if (!mContent.hasRemaining()) {
+                    mListener.messageReceived(AdbHelper.replyToString(mContent.array()));
+                    mContent = null;
+                    mLength.clear();
+                }
+            }
+        }
+
+        @Override
+        void onEndOfStream() {
+            fail(new IOException("EOF"));
+        }
+
+        @Override
+        void resetDeadline() {
+            if (mState != State.STREAMING) {
+                super.resetDeadline();
+            } else {
+                // the tracked list may not change for a long time.
+                mDeadline = 0;
+            }
+        }
+
+        @Override
+        void succeed() {
+            close();
+            mFuture.set(null);
+        }
+    }
+
+    private static final class SyncRequest extends Request<SyncService> {
+        private final Device mDevice;
+
+        SyncRequest(InetSocketAddress address, Device device) {
+            super(address, device, "sync:"); //$NON-NLS-1$
+            mDevice = device;
+        }
+
+        @Override
+        void onAccepted() {
+            // hand the channel over to the SyncService. It stays registered with the selector
+            // until the next select, which is harmless since it is in non-blocking mode.
+            mKey.cancel();
+            mFuture.set(new SyncService(mAddress, mDevice, mChannel));
+        }
+
+        @Override
+        boolean poll(long now) {
+            // once accepted, the channel belongs to the SyncService.
+            if (mFuture.isDone() && !mFuture.isCancelled()) {
+                return true;
+            }
+            return super.poll(now);
+        }
+
+        @Override
+        void succeed() {
+            fail(new IOException("EOF"));
+        }
+    }
+
+    private static final class HostRequest extends Request<Void> {
+        HostRequest(InetSocketAddress address, String request) {
+            super(address, null, request);
+        }
+
+        @Override
+        void onAccepted() {
+            succeed();
+        }
+
+        @Override
+        void succeed() {
+            close();
+            mFuture.set(null);
+        }
+    }
+
+    /**
+     * I/O thread, driving all the requests assigned to it through its own {@link Selector}.
+     */
+    private static final class IoThread extends Thread {
+        private final Selector mSelector;
+        private final Queue<Request<?>> mPending = new ConcurrentLinkedQueue<Request<?>>();
+        private final List<Request<?>> mActive = new ArrayList<Request<?>>();
+        private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private volatile boolean mQuit = false;
+
+        IoThread(int index) throws IOException {
+            super("adb I/O " + index); //$NON-NLS-1$
+            setDaemon(true);
+            mSelector = Selector.open();
+        }
+
+        void add(Request<?> request) {
+            mPending.add(request);
+            if (mQuit) {
+                failPending();
+            } else {
+                mSelector.wakeup();
+            }
+        }
+
+        void quit() {
+            mQuit = true;
+            mSelector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (!mQuit) {
+                try {
+                    registerPending();
+
+                    mSelector.select(computeSelectTimeout());
+
+                    Iterator<SelectionKey> iter = mSelector.selectedKeys().iterator();
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        Request<?> request = (Request<?>) key.attachment();
+                        try {
+                            request.handle(mReadBuffer);
+                        } catch (CancelledKeyException e) {
+                            // the request was completed while it was selected.
+                        } catch (Exception e) {
+                            request.fail(e);
+                        }
+                    }
+
+                    long now = System.nanoTime();
+                    Iterator<Request<?>> active = mActive.iterator();
+                    while (active.hasNext()) {
+                        if (active.next().poll(now)) {
+                            active.remove();
+                        }
+                    }
+                } catch (Exception e) {
+                    // we don't want to have our thread be killed because of any uncaught
+                    // exception, so we intercept all here.
+                    Log.e("ddms", "Exception in adb I/O thread");
+                    Log.e("ddms", e);
+                }
+            }
+
+            IOException closed = new IOException("adb I/O thread terminated");
+            for (Request<?> request : mActive) {
+                request.fail(closed);
+            }
+            mActive.clear();
+            failPending();
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        private void registerPending() {
+            Request<?> request;
+            while ((request = mPending.poll()) != null) {
+                try {
+                    request.start(mSelector);
+                    mActive.add(request);
+                } catch (IOException e) {
+                    request.fail(e);
+                }
+            }
+        }
+
+        private long computeSelectTimeout() {
+            if (mActive.isEmpty()) {
+                return 0; // wait for a wakeup()
+            }
+            long now = System.nanoTime();
+            long timeout = POLL_INTERVAL;
+            for (Request<?> request : mActive) {
+                if (request.mDeadline != 0) {
+                    long ms = TimeUnit.NANOSECONDS.toMillis(request.mDeadline - now) + 1;
+                    timeout = Math.min(timeout, Math.max(ms, 1));
+                }
+            }
+            return timeout;
+        }
+
+        private void failPending() {
+            Request<?> request;
+            IOException closed = new IOException("adb I/O thread terminated");
+            while ((request = mPending.poll()) != null) {
+                request.fail(closed);
+            }
+        }
+    }
+}
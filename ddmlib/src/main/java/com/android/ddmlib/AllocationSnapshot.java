@@ -0,0 +1,548 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A compact snapshot of the allocations recorded by the allocation tracker of a VM.
+ * <p/>
+ * The allocations are stored column by column, in int arrays holding the size, thread and class
+ * of each allocation. The stack traces are stored once in a trie: identical stack frames are
+ * stored once, and stack traces sharing their callers share the nodes of the trie, so that the
+ * memory used by a snapshot grows with the number of distinct frames rather than with the number
+ * of allocations.
+ * <p/>
+ * The allocations are indexed from 0, most recent first, as in the array returned by
+ * {@link AllocationsParser#parse(java.nio.ByteBuffer)}.
+ * <p/>
+ * This class is thread safe.
+ */
+public class AllocationSnapshot {
+
+    /** Stack id of the allocations without a stack trace. */
+    public static final int NO_STACK = -1;
+
+    /**
+     * Aggregated allocations sharing a key.
+     */
+    public static final class Group {
+        @NonNull
+        private final String mName;
+        private final int mCount;
+        private final long mTotalSize;
+
+        private Group(@NonNull String name, int count, long totalSize) {
+            mName = name;
+            mCount = count;
+            mTotalSize = totalSize;
+        }
+
+        /**
+         * Returns the key of the group: a class name, an allocation site or a thread id.
+         */
+        @NonNull
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Returns the number of allocations in the group.
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Returns the total size of the allocations in the group.
+         */
+        public long getTotalSize() {
+            return mTotalSize;
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": " + mCount + " allocations, " + mTotalSize + " bytes";
+        }
+    }
+
+    private static final Comparator<Group> GROUP_COMPARATOR = new Comparator<Group>() {
+        @Override
+        public int compare(Group g1, Group g2) {
+            if (g1.mTotalSize != g2.mTotalSize) {
+                return g1.mTotalSize > g2.mTotalSize ? -1 : 1;
+            }
+            return g1.mName.compareTo(g2.mName);
+        }
+    };
+
+    // string tables.
+    private final String[] mClassNames;
+    private final String[] mMethodNames;
+    private final String[] mFileNames;
+
+    // allocation columns.
+    private final int mCount;
+    private final int[] mSizes;
+    private final int[] mThreadIds;
+    private final int[] mClassIds;
+    private final int[] mStackIds;
+
+    // distinct frames, as indices in the string tables.
+    private final int mFrameCount;
+    private final int[] mFrameClassIds;
+    private final int[] mFrameMethodIds;
+    private final int[] mFrameFileIds;
+    private final int[] mFrameLines;
+
+    // stack trie. A stack id is the id of the node of the top frame of the stack, and the parent
+    // of a node is the node of the calling frame.
+    private final int mNodeCount;
+    private final int[] mNodeFrames;
+    private final int[] mNodeParents;
+    private final int[] mNodeDepths;
+
+    // lazily built objects, shared by all the allocations using them.
+    private StackTraceElement[] mFrameElements;
+    private StackTraceElement[][] mStackTraces;
+
+    private AllocationSnapshot(Builder builder) {
+        mClassNames = builder.mClassNames;
+        mMethodNames = builder.mMethodNames;
+        mFileNames = builder.mFileNames;
+
+        mCount = builder.mCount;
+        mSizes = builder.mSizes;
+        mThreadIds = builder.mThreadIds;
+        mClassIds = builder.mClassIds;
+        mStackIds = builder.mStackIds;
+
+        mFrameCount = builder.mFrameCount;
+        mFrameClassIds = Arrays.copyOf(builder.mFrameClassIds, mFrameCount);
+        mFrameMethodIds = Arrays.copyOf(builder.mFrameMethodIds, mFrameCount);
+        mFrameFileIds = Arrays.copyOf(builder.mFrameFileIds, mFrameCount);
+        mFrameLines = Arrays.copyOf(builder.mFrameLines, mFrameCount);
+
+        mNodeCount = builder.mNodeCount;
+        mNodeFrames = Arrays.copyOf(builder.mNodeFrames, mNodeCount);
+        mNodeParents = Arrays.copyOf(builder.mNodeParents, mNodeCount);
+        mNodeDepths = Arrays.copyOf(builder.mNodeDepths, mNodeCount);
+    }
+
+    /**
+     * Returns the number of allocations.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the number of distinct stack frames.
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Returns the number of nodes in the stack trie, which is an upper bound of the number of
+     * distinct stack traces.
+     */
+    public int getStackNodeCount() {
+        return mNodeCount;
+    }
+
+    /**
+     * Returns the allocation number of an allocation. Allocations are numbered as they happen
+     * with the most recent one having the highest number.
+     */
+    public int getAllocNumber(int index) {
+        checkIndex(index);
+        return mCount - index;
+    }
+
+    /**
+     * Returns the size of an allocation.
+     */
+    public int getSize(int index) {
+        return mSizes[checkIndex(index)];
+    }
+
+    /**
+     * Returns the id of the thread that performed an allocation.
+     */
+    public int getThreadId(int index) {
+        return mThreadIds[checkIndex(index)];
+    }
+
+    /**
+     * Returns the name of the class allocated by an allocation.
+     */
+    @NonNull
+    public String getAllocatedClass(int index) {
+        return mClassNames[mClassIds[checkIndex(index)]];
+    }
+
+    /**
+     * Returns the id of the stack trace of an allocation, or {@link #NO_STACK}. Allocations with
+     * the same stack trace have the same stack id.
+     */
+    public int getStackId(int index) {
+        return mStackIds[checkIndex(index)];
+    }
+
+    /**
+     * Returns the stack trace of an allocation. The returned array is shared by all the
+     * allocations with the same stack trace, and must not be modified.
+     */
+    @NonNull
+    public synchronized StackTraceElement[] getStackTrace(int index) {
+        int stackId = mStackIds[checkIndex(index)];
+        if (stackId == NO_STACK) {
+            return new StackTraceElement[0];
+        }
+
+        if (mStackTraces == null) {
+            mStackTraces = new StackTraceElement[mNodeCount][];
+        }
+        StackTraceElement[] stackTrace = mStackTraces[stackId];
+        if (stackTrace == null) {
+            stackTrace = new StackTraceElement[mNodeDepths[stackId]];
+            int node = stackId;
+            for (int i = 0; i < stackTrace.length; i++) {
+                stackTrace[i] = getFrameElement(mNodeFrames[node]);
+                node = mNodeParents[node];
+            }
+            mStackTraces[stackId] = stackTrace;
+        }
+        return stackTrace;
+    }
+
+    /**
+     * Returns the allocation site of an allocation, which is the top frame of its stack trace,
+     * or null if it has no stack trace.
+     */
+    @Nullable
+    public synchronized String getAllocationSite(int index) {
+        int stackId = mStackIds[checkIndex(index)];
+        if (stackId == NO_STACK) {
+            return null;
+        }
+        return getFrameElement(mNodeFrames[stackId]).toString();
+    }
+
+    /**
+     * Converts the snapshot into {@link AllocationInfo} objects, most recent first. The
+     * allocations with the same stack trace share their stack trace array.
+     */
+    @NonNull
+    public AllocationInfo[] toAllocationInfos() {
+        AllocationInfo[] allocations = new AllocationInfo[mCount];
+        for (int i = 0; i < mCount; i++) {
+            allocations[i] = new AllocationInfo(mCount - i, mClassNames[mClassIds[i]],
+                    mSizes[i], (short) mThreadIds[i], getStackTrace(i));
+        }
+        return allocations;
+    }
+
+    /**
+     * Groups the allocations by allocated class.
+     * @return the groups, largest total size first.
+     */
+    @NonNull
+    public List<Group> groupByClass() {
+        int[] counts = new int[mClassNames.length];
+        long[] sizes = new long[mClassNames.length];
+        for (int i = 0; i < mCount; i++) {
+            counts[mClassIds[i]]++;
+            sizes[mClassIds[i]] += mSizes[i];
+        }
+
+        List<Group> groups = new ArrayList<Group>();
+        for (int id = 0; id < counts.length; id++) {
+            if (counts[id] > 0) {
+                groups.add(new Group(mClassNames[id], counts[id], sizes[id]));
+            }
+        }
+        return sortGroups(groups);
+    }
+
+    /**
+     * Groups the allocations by allocation site, which is the top frame of their stack trace.
+     * Allocations without a stack trace are not part of any group.
+     * @return the groups, largest total size first.
+     */
+    @NonNull
+    public synchronized List<Group> groupByAllocationSite() {
+        int[] counts = new int[mFrameCount];
+        long[] sizes = new long[mFrameCount];
+        for (int i = 0; i < mCount; i++) {
+            if (mStackIds[i] != NO_STACK) {
+                int frame = mNodeFrames[mStackIds[i]];
+                counts[frame]++;
+                sizes[frame] += mSizes[i];
+            }
+        }
+
+        List<Group> groups = new ArrayList<Group>();
+        for (int frame = 0; frame < mFrameCount; frame++) {
+            if (counts[frame] > 0) {
+                groups.add(new Group(getFrameElement(frame).toString(), counts[frame],
+                        sizes[frame]));
+            }
+        }
+        return sortGroups(groups);
+    }
+
+    /**
+     * Groups the allocations by thread. The name of each group is the decimal thread id.
+     * @return the groups, largest total size first.
+     */
+    @NonNull
+    public List<Group> groupByThread() {
+        int maxThreadId = 0;
+        for (int i = 0; i < mCount; i++) {
+            maxThreadId = Math.max(maxThreadId, mThreadIds[i]);
+        }
+
+        int[] counts = new int[maxThreadId + 1];
+        long[] sizes = new long[maxThreadId + 1];
+        for (int i = 0; i < mCount; i++) {
+            counts[mThreadIds[i]]++;
+            sizes[mThreadIds[i]] += mSizes[i];
+        }
+
+        List<Group> groups = new ArrayList<Group>();
+        for (int threadId = 0; threadId < counts.length; threadId++) {
+            if (counts[threadId] > 0) {
+                groups.add(new Group(Integer.toString(threadId), counts[threadId],
+                        sizes[threadId]));
+            }
+        }
+        return sortGroups(groups);
+    }
+
+    private static List<Group> sortGroups(List<Group> groups) {
+        Collections.sort(groups, GROUP_COMPARATOR);
+        return groups;
+    }
+
+    private StackTraceElement getFrameElement(int frame) {
+        if (mFrameElements == null) {
+            mFrameElements = new StackTraceElement[mFrameCount];
+        }
+        StackTraceElement element = mFrameElements[frame];
+        if (element == null) {
+            element = new StackTraceElement(mClassNames[mFrameClassIds[frame]],
+                    mMethodNames[mFrameMethodIds[frame]], mFileNames[mFrameFileIds[frame]],
+                    mFrameLines[frame]);
+            mFrameElements[frame] = element;
+        }
+        return element;
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("Allocation " + index + ", count " + mCount);
+        }
+        return index;
+    }
+
+    /**
+     * Builds a snapshot, one allocation at a time.
+     */
+    static final class Builder {
+        private final String[] mClassNames;
+        private final String[] mMethodNames;
+        private final String[] mFileNames;
+
+        private final int mCount;
+        private final int[] mSizes;
+        private final int[] mThreadIds;
+        private final int[] mClassIds;
+        private final int[] mStackIds;
+        private int mAdded = 0;
+
+        private int mFrameCount = 0;
+        private int[] mFrameClassIds = new int[64];
+        private int[] mFrameMethodIds = new int[64];
+        private int[] mFrameFileIds = new int[64];
+        private int[] mFrameLines = new int[64];
+        private final LongIntMap mFrameIds = new LongIntMap();
+
+        private int mNodeCount = 0;
+        private int[] mNodeFrames = new int[64];
+        private int[] mNodeParents = new int[64];
+        private int[] mNodeDepths = new int[64];
+        private final LongIntMap mNodeIds = new LongIntMap();
+
+        Builder(@NonNull String[] classNames, @NonNull String[] methodNames,
+                @NonNull String[] fileNames, int count) {
+            mClassNames = classNames;
+            mMethodNames = methodNames;
+            mFileNames = fileNames;
+            mCount = count;
+            mSizes = new int[count];
+            mThreadIds = new int[count];
+            mClassIds = new int[count];
+            mStackIds = new int[count];
+        }
+
+        /**
+         * Returns the id of a frame, adding it if it was not known.
+         * @param classId the index of the class of the method in the class name table.
+         * @param methodId the index of the method in the method name table.
+         * @param fileId the index of the source file in the file name table.
+         * @param line the line number, negative for native methods or unknown sources.
+         */
+        int getFrameId(int classId, int methodId, int fileId, short line) {
+            long key = ((long) (classId & 0xffff) << 48) | ((long) (methodId & 0xffff) << 32)
+                    | ((long) (fileId & 0xffff) << 16) | (line & 0xffff);
+            int frame = mFrameIds.get(key);
+            if (frame < 0) {
+                frame = mFrameCount++;
+                if (frame == mFrameLines.length) {
+                    int capacity = frame * 2;
+                    mFrameClassIds = Arrays.copyOf(mFrameClassIds, capacity);
+                    mFrameMethodIds = Arrays.copyOf(mFrameMethodIds, capacity);
+                    mFrameFileIds = Arrays.copyOf(mFrameFileIds, capacity);
+                    mFrameLines = Arrays.copyOf(mFrameLines, capacity);
+                }
+                mFrameClassIds[frame] = classId;
+                mFrameMethodIds[frame] = methodId;
+                mFrameFileIds[frame] = fileId;
+                mFrameLines[frame] = line;
+                mFrameIds.put(key, frame);
+            }
+            return frame;
+        }
+
+        /**
+         * Adds the next allocation, most recent first.
+         * @param frames the frame ids of the stack trace, from the top frame.
+         * @param depth the number of frames in <var>frames</var>.
+         */
+        void addAllocation(int size, int threadId, int classId, int[] frames, int depth) {
+            // insert the stack from its bottom frame, so that the callers are shared.
+            int node = NO_STACK;
+            for (int i = depth - 1; i >= 0; i--) {
+                node = getNodeId(node, frames[i]);
+            }
+
+            int index = mAdded++;
+            mSizes[index] = size;
+            mThreadIds[index] = threadId;
+            mClassIds[index] = classId;
+            mStackIds[index] = node;
+        }
+
+        private int getNodeId(int parent, int frame) {
+            long key = ((long) (parent + 1) << 32) | frame;
+            int node = mNodeIds.get(key);
+            if (node < 0) {
+                node = mNodeCount++;
+                if (node == mNodeFrames.length) {
+                    int capacity = node * 2;
+                    mNodeFrames = Arrays.copyOf(mNodeFrames, capacity);
+                    mNodeParents = Arrays.copyOf(mNodeParents, capacity);
+                    mNodeDepths = Arrays.copyOf(mNodeDepths, capacity);
+                }
+                mNodeFrames[node] = frame;
+                mNodeParents[node] = parent;
+                mNodeDepths[node] = parent == NO_STACK ? 1 : mNodeDepths[parent] + 1;
+                mNodeIds.put(key, node);
+            }
+            return node;
+        }
+
+        @NonNull
+        AllocationSnapshot build() {
+            if (mAdded != mCount) {
+                throw new IllegalStateException(
+                        "Expected " + mCount + " allocations, got " + mAdded);
+            }
+            return new AllocationSnapshot(this);
+        }
+    }
+
+    /**
+     * Map of long keys to positive int values, with open addressing, to index the frames and
+     * stack nodes without boxing.
+     */
+    private static final class LongIntMap {
+        private long[] mKeys = new long[256];
+        private int[] mValues = newValues(256);
+        private int mSize = 0;
+
+        private static int[] newValues(int capacity) {
+            int[] values = new int[capacity];
+            Arrays.fill(values, -1);
+            return values;
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        /** Returns the value of the key, or -1. */
+        int get(long key) {
+            int mask = mKeys.length - 1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                if (mValues[i] < 0) {
+                    return -1;
+                }
+                if (mKeys[i] == key) {
+                    return mValues[i];
+                }
+            }
+        }
+
+        /** Puts a key that is not in the map yet. */
+        void put(long key, int value) {
+            if ((mSize + 1) * 2 > mKeys.length) {
+                long[] keys = mKeys;
+                int[] values = mValues;
+                mKeys = new long[keys.length * 2];
+                mValues = newValues(keys.length * 2);
+                for (int i = 0; i < keys.length; i++) {
+                    if (values[i] >= 0) {
+                        insert(keys[i], values[i]);
+                    }
+                }
+            }
+            insert(key, value);
+            mSize++;
+        }
+
+        private void insert(long key, int value) {
+            int mask = mKeys.length - 1;
+            int i = hash(key) & mask;
+            while (mValues[i] >= 0) {
+                i = (i + 1) & mask;
+            }
+            mKeys[i] = key;
+            mValues[i] = value;
+        }
+    }
+}
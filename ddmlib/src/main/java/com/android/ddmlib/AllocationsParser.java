@@ -114,6 +114,15 @@ public class AllocationsParser {
   */
   @NonNull
   public static AllocationInfo[] parse(@NonNull ByteBuffer data) {
+    return parseSnapshot(data).toAllocationInfos();
+  }
+
+  /**
+   * Parses the allocations into a compact {@link AllocationSnapshot}, where identical stack
+   * frames and stack traces are stored once. See {@link #parse(ByteBuffer)} for the format.
+   */
+  @NonNull
+  public static AllocationSnapshot parseSnapshot(@NonNull ByteBuffer data) {
     int messageHdrLen, entryHdrLen, stackFrameLen;
     int numEntries, offsetToStrings;
     int numClassNames, numMethodNames, numFileNames;
@@ -150,7 +159,10 @@ public class AllocationsParser {
      */
     data.position(messageHdrLen);
 
-    AllocationInfo[] allocations = new AllocationInfo[numEntries];
+    AllocationSnapshot.Builder builder =
+        new AllocationSnapshot.Builder(classNames, methodNames, fileNames, numEntries);
+    // the stack depth is a single byte.
+    int[] frames = new int[0xff];
     for (int i = 0; i < numEntries; i++) {
       int totalSize;
       int threadId, classNameIndex, stackDepth;
@@ -163,8 +175,6 @@ public class AllocationsParser {
       for (int skip = 9; skip < entryHdrLen; skip++)
         data.get();
 
-      StackTraceElement[] steArray = new StackTraceElement[stackDepth];
-
       /*
        * Pull out the stack trace.
        */
@@ -172,27 +182,22 @@ public class AllocationsParser {
         int methodClassNameIndex, methodNameIndex;
         int methodSourceFileIndex;
         short lineNumber;
-        String methodClassName, methodName, methodSourceFile;
 
         methodClassNameIndex = (data.getShort() & 0xffff);
         methodNameIndex = (data.getShort() & 0xffff);
         methodSourceFileIndex = (data.getShort() & 0xffff);
         lineNumber = data.getShort();
 
-        methodClassName = classNames[methodClassNameIndex];
-        methodName = methodNames[methodNameIndex];
-        methodSourceFile = fileNames[methodSourceFileIndex];
-
-        steArray[sti] = new StackTraceElement(methodClassName,
-                                              methodName, methodSourceFile, lineNumber);
+        frames[sti] = builder.getFrameId(methodClassNameIndex, methodNameIndex,
+                                         methodSourceFileIndex, lineNumber);
 
         /* we've consumed 8 bytes; gobble up any extra */
         for (int skip = 8; skip < stackFrameLen; skip++)
           data.get();
       }
 
-      allocations[i] = new AllocationInfo(numEntries - i, classNames[classNameIndex], totalSize, (short) threadId, steArray);
+      builder.addAllocation(totalSize, threadId, classNameIndex, frames, stackDepth);
     }
-    return allocations;
+    return builder.build();
   }
 }
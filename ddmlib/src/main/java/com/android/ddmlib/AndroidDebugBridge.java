@@ -81,6 +81,12 @@ public final class AndroidDebugBridge {
 
     private DeviceMonitor mDeviceMonitor;
 
+    /** Address of the adb server of a remote bridge, null for the main bridge. */
+    private InetSocketAddress mRemoteSocketAddr;
+
+    private static final ArrayList<AndroidDebugBridge> sRemoteBridges =
+        new ArrayList<AndroidDebugBridge>();
+
     private static final ArrayList<IDebugBridgeChangeListener> sBridgeListeners =
         new ArrayList<IDebugBridgeChangeListener>();
     private static final ArrayList<IDeviceChangeListener> sDeviceListeners =
@@ -231,12 +237,20 @@ public final class AndroidDebugBridge {
             sThis.mDeviceMonitor.stop();
             sThis.mDeviceMonitor = null;
         }
+        synchronized (sLock) {
+            for (AndroidDebugBridge bridge : sRemoteBridges) {
+                bridge.stopMonitoring();
+            }
+            sRemoteBridges.clear();
+        }
 
         MonitorThread monitorThread = MonitorThread.getInstance();
         if (monitorThread != null) {
             monitorThread.quit();
         }
 
+        AdbSelectorEngine.terminate();
+
         sInitialized = false;
     }
 
@@ -255,6 +269,15 @@ public final class AndroidDebugBridge {
         return sSocketAddr;
     }
 
+    /**
+     * Returns the socket address of the ADB server this bridge is connected to. This is
+     * {@link #getSocketAddress()}, except for the bridges created with
+     * {@link #createRemoteBridge(InetSocketAddress)}.
+     */
+    public InetSocketAddress getAdbSocketAddress() {
+        return mRemoteSocketAddr != null ? mRemoteSocketAddr : sSocketAddr;
+    }
+
     /**
      * Creates a {@link AndroidDebugBridge} that is not linked to any particular executable.
      * <p/>This bridge will expect adb to be running. It will not be able to start/stop/restart
@@ -350,6 +373,55 @@ public final class AndroidDebugBridge {
         }
     }
 
+    /**
+     * Creates a bridge to another adb server, for instance the server of another host reached
+     * through a port forward.
+     * <p/>Any number of remote bridges can run next to the bridge returned by
+     * {@link #getBridge()}. They share its threads, and their devices and clients are reported
+     * to the same {@link IDeviceChangeListener}s and {@link IClientChangeListener}s. A remote
+     * bridge never starts, stops or restarts its adb server.
+     * <p/>{@link #init(boolean)} must be called first. The bridge is stopped with
+     * {@link #disconnectRemoteBridge(AndroidDebugBridge)}, or by {@link #terminate()}.
+     * @param adbSocketAddr the address of the adb server.
+     * @return a bridge connecting to the server.
+     */
+    @NonNull
+    public static AndroidDebugBridge createRemoteBridge(@NonNull InetSocketAddress adbSocketAddr) {
+        synchronized (sLock) {
+            if (!sInitialized) {
+                throw new IllegalStateException("AndroidDebugBridge.init() has not been called.");
+            }
+            AndroidDebugBridge bridge = new AndroidDebugBridge();
+            bridge.mRemoteSocketAddr = adbSocketAddr;
+            bridge.start();
+            sRemoteBridges.add(bridge);
+            return bridge;
+        }
+    }
+
+    /**
+     * Disconnects a bridge created with {@link #createRemoteBridge(InetSocketAddress)}. Its
+     * adb server is left running.
+     */
+    public static void disconnectRemoteBridge(@NonNull AndroidDebugBridge bridge) {
+        synchronized (sLock) {
+            if (sRemoteBridges.remove(bridge)) {
+                bridge.stopMonitoring();
+            }
+        }
+    }
+
+    /**
+     * Returns the bridges created with {@link #createRemoteBridge(InetSocketAddress)} and not
+     * disconnected yet.
+     */
+    @NonNull
+    public static List<AndroidDebugBridge> getRemoteBridges() {
+        synchronized (sLock) {
+            return new ArrayList<AndroidDebugBridge>(sRemoteBridges);
+        }
+    }
+
     /**
      * Returns the current debug bridge. Can be <code>null</code> if none were created.
      */
@@ -749,6 +821,24 @@ public final class AndroidDebugBridge {
         return true;
     }
 
+    /**
+     * Stops the monitoring services, without stopping the adb host server.
+     */
+    private void stopMonitoring() {
+        if (mDeviceMonitor != null) {
+            mDeviceMonitor.stop();
+            mDeviceMonitor = null;
+        }
+        mStarted = false;
+    }
+
+    /**
+     * Returns whether this bridge can start the adb host server.
+     */
+    boolean canStartAdb() {
+        return mAdbOsLocation != null && mRemoteSocketAddr == null;
+    }
+
     /**
      * Restarts adb, but not the services around it.
      * @return true if success.
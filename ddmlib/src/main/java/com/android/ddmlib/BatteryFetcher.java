@@ -173,7 +173,7 @@ class BatteryFetcher {
 
     private void initiateBatteryQuery() {
         String threadName = String.format("query-battery-%s", mDevice.getSerialNumber());
-        Thread fetchThread = new Thread(threadName) {
+        DeviceQueryExecutor.execute(threadName, new Runnable() {
             @Override
             public void run() {
                 Exception exception = null;
@@ -203,9 +203,7 @@ class BatteryFetcher {
                 }
                 handleBatteryLevelFailure(exception);
             }
-        };
-        fetchThread.setDaemon(true);
-        fetchThread.start();
+        });
     }
 
     private synchronized boolean setBatteryLevel(Integer batteryLevel) {
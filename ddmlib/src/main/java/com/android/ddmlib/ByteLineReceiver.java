@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base implementation of {@link IShellOutputReceiver} that splits the raw data coming from the
+ * socket into lines terminated by <code>\r\n</code>, without decoding it.
+ * <p/>Lines that are entirely contained in a packet are handed to
+ * {@link #processLine(byte[], int, int)} as a range of the packet itself. Only lines spanning
+ * several packets are copied, into a buffer that is reused for the lifetime of the receiver.
+ * <p/>The byte ranges given to {@link #processLine(byte[], int, int)} are only valid for the
+ * duration of the call.
+ */
+public abstract class ByteLineReceiver implements IShellOutputReceiver {
+
+    private static final int INITIAL_LINE_CAPACITY = 1024;
+
+    /** unfinished line, stored for next packet */
+    private ByteBuffer mUnfinishedLine = ByteBuffer.allocate(INITIAL_LINE_CAPACITY);
+
+    /* (non-Javadoc)
+     * @see com.android.ddmlib.adb.IShellOutputReceiver#addOutput(
+     *      byte[], int, int)
+     */
+    @Override
+    public final void addOutput(byte[] data, int offset, int length) {
+        if (isCancelled()) {
+            return;
+        }
+
+        int end = offset + length;
+        int start = offset;
+        for (int i = offset ; i < end ; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+
+            if (i > start) {
+                if (data[i - 1] != '\r') {
+                    // lone \n, part of the line.
+                    continue;
+                }
+                if (mUnfinishedLine.position() == 0) {
+                    processLine(data, start, i - 1 - start);
+                } else {
+                    append(data, start, i - 1 - start);
+                    processUnfinishedLine();
+                }
+            } else {
+                // the \r may have been the last byte of the previous packet.
+                int pending = mUnfinishedLine.position();
+                if (pending == 0 || mUnfinishedLine.get(pending - 1) != '\r') {
+                    continue;
+                }
+                mUnfinishedLine.position(pending - 1);
+                processUnfinishedLine();
+            }
+
+            // move start to after the \r\n we found
+            start = i + 1;
+        }
+
+        if (start < end) {
+            append(data, start, end - start);
+        }
+
+        batchDone();
+    }
+
+    /* (non-Javadoc)
+     * @see com.android.ddmlib.adb.IShellOutputReceiver#flush()
+     */
+    @Override
+    public final void flush() {
+        processLastLine(mUnfinishedLine.array(), 0, mUnfinishedLine.position());
+        mUnfinishedLine.clear();
+
+        done();
+    }
+
+    /**
+     * Terminates the process. This is called after the last line has been processed.
+     */
+    public void done() {
+        // do nothing.
+    }
+
+    /**
+     * Called for each complete line, without its <code>\r\n</code> terminator.
+     * @param data the buffer holding the line. Must not be modified or kept after the call.
+     * @param offset the offset of the line in <var>data</var>
+     * @param length the length of the line
+     */
+    protected abstract void processLine(byte[] data, int offset, int length);
+
+    /**
+     * Called after all the complete lines of a packet have been given to
+     * {@link #processLine(byte[], int, int)}. This is called for every packet received while the
+     * receiver is not cancelled, even when it did not contain a complete line.
+     */
+    protected void batchDone() {
+        // do nothing.
+    }
+
+    /**
+     * Called by {@link #flush()} with the data received after the last line terminator.
+     * <p/>The default implementation hands non empty data to
+     * {@link #processLine(byte[], int, int)}, followed by a call to {@link #batchDone()}.
+     * @param data the buffer holding the line. Must not be modified or kept after the call.
+     * @param offset the offset of the line in <var>data</var>
+     * @param length the length of the line, possibly 0.
+     */
+    protected void processLastLine(byte[] data, int offset, int length) {
+        if (length > 0) {
+            processLine(data, offset, length);
+            batchDone();
+        }
+    }
+
+    private void processUnfinishedLine() {
+        processLine(mUnfinishedLine.array(), 0, mUnfinishedLine.position());
+        mUnfinishedLine.clear();
+    }
+
+    private void append(byte[] data, int offset, int length) {
+        if (mUnfinishedLine.remaining() < length) {
+            int capacity = Math.max(mUnfinishedLine.capacity() * 2,
+                    mUnfinishedLine.position() + length);
+            ByteBuffer buffer = ByteBuffer.allocate(capacity);
+            mUnfinishedLine.flip();
+            buffer.put(mUnfinishedLine);
+            mUnfinishedLine = buffer;
+        }
+        mUnfinishedLine.put(data, offset, length);
+    }
+}
@@ -189,13 +189,10 @@ abstract class ChunkHandler {
             if (newPort != IDebugPortProvider.NO_STATIC_PORT &&
                     newPort != client.getDebuggerListenPort()) {
 
-                AndroidDebugBridge bridge = AndroidDebugBridge.getBridge();
-                if (bridge != null) {
-                    DeviceMonitor deviceMonitor = bridge.getDeviceMonitor();
-                    if (deviceMonitor != null) {
-                        deviceMonitor.addClientToDropAndReopen(client, newPort);
-                        client = null;
-                    }
+                DeviceMonitor deviceMonitor = device.getMonitor();
+                if (deviceMonitor != null) {
+                    deviceMonitor.addClientToDropAndReopen(client, newPort);
+                    client = null;
                 }
             }
         }
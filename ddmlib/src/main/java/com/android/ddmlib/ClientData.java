@@ -198,6 +198,7 @@ public class ClientData {
     private int mNativeTotalMemory;
 
     private AllocationInfo[] mAllocations;
+    private AllocationSnapshot mAllocationSnapshot;
     private AllocationTrackingStatus mAllocationStatus = AllocationTrackingStatus.UNKNOWN;
 
     private String mPendingHprofDump;
@@ -210,10 +211,13 @@ public class ClientData {
      * <p/>The heap is composed of several {@link HeapSegment} objects.
      * <p/>A call to {@link #isHeapDataComplete()} will indicate if the segments (available through
      * {@link #getHeapSegments()}) represent the full heap.
+     * <p/>The segments are also aggregated as they are received, into statistics available
+     * through {@link #getHeapStatistics()}.
      */
     public static class HeapData {
         private TreeSet<HeapSegment> mHeapSegments = new TreeSet<HeapSegment>();
         private boolean mHeapDataComplete = false;
+        private final HeapSegmentAggregator mAggregator = new HeapSegmentAggregator();
         private byte[] mProcessedHeapData;
         private Map<Integer, ArrayList<HeapSegmentElement>> mProcessedHeapMap;
 
@@ -226,10 +230,13 @@ public class ClientData {
              */
             mHeapSegments = new TreeSet<HeapSegment>();
             mHeapDataComplete = false;
+            mAggregator.reset();
         }
 
         /**
          * Add raw HPSG chunk data to the list of heap segments.
+         * <p/>The data is copied if the segments are retained, see
+         * {@link DdmPreferences#setRetainHeapSegments(boolean)}.
          *
          * @param data The raw data from an HPSG chunk.
          */
@@ -241,12 +248,21 @@ public class ClientData {
             }
 
             try {
-                hs = new HeapSegment(data);
+                mAggregator.add(data);
             } catch (BufferUnderflowException e) {
                 System.err.println("Discarding short HPSG data (length " + data.limit() + ")");
                 return;
             }
 
+            if (!DdmPreferences.getRetainHeapSegments()) {
+                return;
+            }
+
+            byte dataCopy[] = new byte[data.limit()];
+            data.rewind();
+            data.get(dataCopy);
+            hs = new HeapSegment(ByteBuffer.wrap(dataCopy));
+
             mHeapSegments.add(hs);
         }
 
@@ -255,6 +271,17 @@ public class ClientData {
          */
         synchronized void sealHeapData() {
             mHeapDataComplete = true;
+            mAggregator.seal();
+        }
+
+        /**
+         * Returns the statistics of the last complete heap, or null if no heap was received yet.
+         * <p/>Unlike the other methods of this class, this method does not lock the heap data
+         * and can be called while new segments are received.
+         */
+        @Nullable
+        public HeapSegmentAggregator.Snapshot getHeapStatistics() {
+            return mAggregator.getSnapshot();
         }
 
         /**
@@ -713,8 +740,9 @@ public class ClientData {
         return mAllocationStatus;
     }
 
-    synchronized void setAllocations(AllocationInfo[] allocs) {
-        mAllocations = allocs;
+    synchronized void setAllocations(AllocationSnapshot snapshot) {
+        mAllocations = null;
+        mAllocationSnapshot = snapshot;
     }
 
     /**
@@ -723,9 +751,23 @@ public class ClientData {
      */
     @Nullable
     public synchronized AllocationInfo[] getAllocations() {
+      if (mAllocations == null && mAllocationSnapshot != null) {
+        mAllocations = mAllocationSnapshot.toAllocationInfos();
+      }
       return mAllocations;
     }
 
+    /**
+     * Returns the tracked allocations as a compact snapshot, or null if the allocations were
+     * not received yet. Unlike {@link #getAllocations()}, this does not create an object per
+     * allocation.
+     * @see Client#requestAllocationDetails()
+     */
+    @Nullable
+    public synchronized AllocationSnapshot getAllocationSnapshot() {
+      return mAllocationSnapshot;
+    }
+
     void addFeature(String feature) {
         mFeatures.add(feature);
     }
@@ -47,6 +47,16 @@ public final class DdmPreferences {
     /** Default values for the use of the ADBHOST environment variable. */
     public static final boolean DEFAULT_USE_ADBHOST = false;
     public static final String DEFAULT_ADBHOST_VALUE = "127.0.0.1";
+    /** Default number of threads multiplexing asynchronous adb requests. */
+    public static final int DEFAULT_IO_THREAD_COUNT = 2;
+    /** Default value for the overlapping of disk and socket I/O during sync transfers. */
+    public static final boolean DEFAULT_PIPELINED_SYNC = true;
+    /** Default maximum number of sync connections used to transfer a directory tree. */
+    public static final int DEFAULT_SYNC_SESSION_COUNT = 4;
+    /** Default value for the retention of the raw heap segments received from the clients. */
+    public static final boolean DEFAULT_RETAIN_HEAP_SEGMENTS = true;
+    /** Default time, in ms, a volatile device property is served from the cache. */
+    public static final int DEFAULT_PROPERTY_CACHE_TTL = 0;
 
     private static boolean sThreadUpdate = DEFAULT_INITIAL_THREAD_UPDATE;
     private static boolean sInitialHeapUpdate = DEFAULT_INITIAL_HEAP_UPDATE;
@@ -60,6 +70,14 @@ public final class DdmPreferences {
     private static boolean sUseAdbHost = DEFAULT_USE_ADBHOST;
     private static String sAdbHostValue = DEFAULT_ADBHOST_VALUE;
 
+    private static int sIoThreadCount = DEFAULT_IO_THREAD_COUNT;
+
+    private static boolean sPipelinedSync = DEFAULT_PIPELINED_SYNC;
+    private static int sSyncSessionCount = DEFAULT_SYNC_SESSION_COUNT;
+
+    private static boolean sRetainHeapSegments = DEFAULT_RETAIN_HEAP_SEGMENTS;
+    private static int sPropertyCacheTtl = DEFAULT_PROPERTY_CACHE_TTL;
+
     /**
      * Returns the initial {@link Client} flag for thread updates.
      * @see #setInitialThreadUpdate(boolean)
@@ -211,6 +229,96 @@ public final class DdmPreferences {
         sAdbHostValue = adbHostValue;
     }
 
+    /**
+     * Returns the number of threads used to multiplex asynchronous adb requests.
+     */
+    public static int getIoThreadCount() {
+        return sIoThreadCount;
+    }
+
+    /**
+     * Sets the number of threads used to multiplex asynchronous adb requests.
+     * <p/>This change takes effect the next time the threads are started, which happens on
+     * the first asynchronous request after {@link AndroidDebugBridge#terminate()}.
+     * @param ioThreadCount the number of threads.
+     */
+    public static void setIoThreadCount(int ioThreadCount) {
+        sIoThreadCount = ioThreadCount;
+    }
+
+    /**
+     * Returns whether sync transfers read the next chunk of a file while the previous one is
+     * sent over the connection.
+     */
+    public static boolean isPipelinedSync() {
+        return sPipelinedSync;
+    }
+
+    /**
+     * Sets whether sync transfers read the next chunk of a file while the previous one is sent
+     * over the connection.
+     * @param pipelinedSync true to overlap disk and socket I/O.
+     */
+    public static void setPipelinedSync(boolean pipelinedSync) {
+        sPipelinedSync = pipelinedSync;
+    }
+
+    /**
+     * Returns the maximum number of sync connections used to push or pull several files.
+     */
+    public static int getSyncSessionCount() {
+        return sSyncSessionCount;
+    }
+
+    /**
+     * Sets the maximum number of sync connections used to push or pull several files.
+     * <p/>A value of 1 transfers all the files over a single connection.
+     * @param syncSessionCount the number of connections.
+     */
+    public static void setSyncSessionCount(int syncSessionCount) {
+        sSyncSessionCount = syncSessionCount;
+    }
+
+    /**
+     * Returns whether the raw heap segments received from the clients are kept.
+     * @see #setRetainHeapSegments(boolean)
+     */
+    public static boolean getRetainHeapSegments() {
+        return sRetainHeapSegments;
+    }
+
+    /**
+     * Sets whether the raw heap segments received from the clients are kept, and made available
+     * through {@link ClientData.HeapData#getHeapSegments()}.
+     * <p/>When they are not kept, only the aggregated statistics of
+     * {@link ClientData.HeapData#getHeapStatistics()} are available, and the memory used for
+     * each client does not depend on the size of its heap.
+     * @param retainHeapSegments true to keep the segments.
+     */
+    public static void setRetainHeapSegments(boolean retainHeapSegments) {
+        sRetainHeapSegments = retainHeapSegments;
+    }
+
+    /**
+     * Returns the time, in ms, a volatile device property is served from the cache.
+     * @see #setPropertyCacheTtl(int)
+     */
+    public static int getPropertyCacheTtl() {
+        return sPropertyCacheTtl;
+    }
+
+    /**
+     * Sets the time, in ms, a volatile device property is served from the cache before a new
+     * 'getprop' is run on the device.
+     * <p/>Read-only properties (<code>ro.*</code>) are always cached until the device goes
+     * offline. With the default value of 0, each request for another property runs a new
+     * 'getprop', shared with the requests made while it runs.
+     * @param propertyCacheTtl the time in ms.
+     */
+    public static void setPropertyCacheTtl(int propertyCacheTtl) {
+        sPropertyCacheTtl = propertyCacheTtl;
+    }
+
     /**
      * Non accessible constructor.
      */
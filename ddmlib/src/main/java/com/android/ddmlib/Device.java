@@ -23,10 +23,12 @@ import com.android.ddmlib.log.LogReceiver;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.channels.SocketChannel;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -79,9 +81,9 @@ final class Device implements IDevice {
     private static final String UNKNOWN_PACKAGE = "";   //$NON-NLS-1$
 
     /**
-     * Socket for the connection monitoring client connection/disconnection.
+     * Connection monitoring client connection/disconnection.
      */
-    private SocketChannel mSocketChannel;
+    private volatile Future<Void> mClientTracking;
 
     private Integer mLastBatteryLevel = null;
     private long mLastBatteryCheckTime = 0;
@@ -99,6 +101,10 @@ final class Device implements IDevice {
     private int mApiLevel;
     private String mName;
 
+    /** Cached values derived from the read-only properties, reset when the device goes offline. */
+    private volatile List<String> mAbis;
+    private volatile int mDensity = -1;
+
     /**
      * Output receiver for "pm install package.apk" command line.
      */
@@ -253,6 +259,14 @@ final class Device implements IDevice {
      * Changes the state of the device.
      */
     void setState(DeviceState state) {
+        if (mState == DeviceState.ONLINE && state != DeviceState.ONLINE) {
+            // the device may come back with another build.
+            mPropFetcher.invalidate();
+            mHardwareCharacteristics = null;
+            mApiLevel = 0;
+            mAbis = null;
+            mDensity = -1;
+        }
         mState = state;
     }
 
@@ -453,7 +467,7 @@ final class Device implements IDevice {
     @Override
     public SyncService getSyncService()
             throws TimeoutException, AdbCommandRejectedException, IOException {
-        SyncService syncService = new SyncService(AndroidDebugBridge.getSocketAddress(), this);
+        SyncService syncService = new SyncService(getAdbSocketAddress(), this);
         if (syncService.openSync()) {
             return syncService;
          }
@@ -461,6 +475,17 @@ final class Device implements IDevice {
         return null;
     }
 
+    @NonNull
+    @Override
+    public ListenableFuture<SyncService> getSyncServiceAsync() {
+        try {
+            return AdbSelectorEngine.getInstance().openSync(getAdbSocketAddress(),
+                    this);
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
     /*
      * (non-Javadoc)
      * @see com.android.ddmlib.IDevice#getFileListingService()
@@ -473,7 +498,16 @@ final class Device implements IDevice {
     @Override
     public RawImage getScreenshot()
             throws TimeoutException, AdbCommandRejectedException, IOException {
-        return AdbHelper.getFrameBuffer(AndroidDebugBridge.getSocketAddress(), this);
+        return AdbHelper.getFrameBuffer(getAdbSocketAddress(), this);
+    }
+
+    @NonNull
+    @Override
+    public ScreenshotStream startScreenshotStream(
+            @NonNull ScreenshotStream.IFrameListener listener, int framesPerSecond) {
+        ScreenshotStream stream = new ScreenshotStream(this, listener, framesPerSecond);
+        stream.start();
+        return stream;
     }
 
     @Override
@@ -524,7 +558,7 @@ final class Device implements IDevice {
     public void executeShellCommand(String command, IShellOutputReceiver receiver)
             throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException,
             IOException {
-        AdbHelper.executeRemoteCommand(AndroidDebugBridge.getSocketAddress(), command, this,
+        AdbHelper.executeRemoteCommand(getAdbSocketAddress(), command, this,
                 receiver, DdmPreferences.getTimeOut());
     }
 
@@ -533,7 +567,7 @@ final class Device implements IDevice {
             int maxTimeToOutputResponse)
             throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException,
             IOException {
-        AdbHelper.executeRemoteCommand(AndroidDebugBridge.getSocketAddress(), command, this,
+        AdbHelper.executeRemoteCommand(getAdbSocketAddress(), command, this,
                 receiver, maxTimeToOutputResponse);
     }
 
@@ -542,26 +576,39 @@ final class Device implements IDevice {
             long maxTimeToOutputResponse, TimeUnit maxTimeUnits)
             throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException,
             IOException {
-        AdbHelper.executeRemoteCommand(AndroidDebugBridge.getSocketAddress(), command, this,
+        AdbHelper.executeRemoteCommand(getAdbSocketAddress(), command, this,
                 receiver, maxTimeToOutputResponse, maxTimeUnits);
     }
 
+    @NonNull
+    @Override
+    public ListenableFuture<Void> executeShellCommandAsync(@NonNull String command,
+            IShellOutputReceiver receiver, long maxTimeToOutputResponse, TimeUnit maxTimeUnits) {
+        try {
+            return AdbSelectorEngine.getInstance().executeRemoteCommand(
+                    getAdbSocketAddress(), command, this, receiver,
+                    maxTimeToOutputResponse, maxTimeUnits);
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
     @Override
     public void runEventLogService(LogReceiver receiver)
             throws TimeoutException, AdbCommandRejectedException, IOException {
-        AdbHelper.runEventLogService(AndroidDebugBridge.getSocketAddress(), this, receiver);
+        AdbHelper.runEventLogService(getAdbSocketAddress(), this, receiver);
     }
 
     @Override
     public void runLogService(String logname, LogReceiver receiver)
             throws TimeoutException, AdbCommandRejectedException, IOException {
-        AdbHelper.runLogService(AndroidDebugBridge.getSocketAddress(), this, logname, receiver);
+        AdbHelper.runLogService(getAdbSocketAddress(), this, logname, receiver);
     }
 
     @Override
     public void createForward(int localPort, int remotePort)
             throws TimeoutException, AdbCommandRejectedException, IOException {
-        AdbHelper.createForward(AndroidDebugBridge.getSocketAddress(), this,
+        AdbHelper.createForward(getAdbSocketAddress(), this,
                 String.format("tcp:%d", localPort),     //$NON-NLS-1$
                 String.format("tcp:%d", remotePort));   //$NON-NLS-1$
     }
@@ -570,15 +617,41 @@ final class Device implements IDevice {
     public void createForward(int localPort, String remoteSocketName,
             DeviceUnixSocketNamespace namespace) throws TimeoutException,
             AdbCommandRejectedException, IOException {
-        AdbHelper.createForward(AndroidDebugBridge.getSocketAddress(), this,
+        AdbHelper.createForward(getAdbSocketAddress(), this,
                 String.format("tcp:%d", localPort),     //$NON-NLS-1$
                 String.format("%s:%s", namespace.getType(), remoteSocketName));   //$NON-NLS-1$
     }
 
+    @NonNull
+    @Override
+    public ListenableFuture<Void> createForwardAsync(int localPort, int remotePort) {
+        return executeHostRequestAsync(String.format(
+                "host-serial:%1$s:forward:tcp:%2$d;tcp:%3$d", //$NON-NLS-1$
+                mSerialNumber, localPort, remotePort));
+    }
+
+    @NonNull
+    @Override
+    public ListenableFuture<Void> removeForwardAsync(int localPort, int remotePort) {
+        return executeHostRequestAsync(String.format(
+                "host-serial:%1$s:killforward:tcp:%2$d", //$NON-NLS-1$
+                mSerialNumber, localPort));
+    }
+
+    @NonNull
+    private ListenableFuture<Void> executeHostRequestAsync(@NonNull String request) {
+        try {
+            return AdbSelectorEngine.getInstance().executeHostRequest(
+                    getAdbSocketAddress(), request);
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
     @Override
     public void removeForward(int localPort, int remotePort)
             throws TimeoutException, AdbCommandRejectedException, IOException {
-        AdbHelper.removeForward(AndroidDebugBridge.getSocketAddress(), this,
+        AdbHelper.removeForward(getAdbSocketAddress(), this,
                 String.format("tcp:%d", localPort),     //$NON-NLS-1$
                 String.format("tcp:%d", remotePort));   //$NON-NLS-1$
     }
@@ -587,7 +660,7 @@ final class Device implements IDevice {
     public void removeForward(int localPort, String remoteSocketName,
             DeviceUnixSocketNamespace namespace) throws TimeoutException,
             AdbCommandRejectedException, IOException {
-        AdbHelper.removeForward(AndroidDebugBridge.getSocketAddress(), this,
+        AdbHelper.removeForward(getAdbSocketAddress(), this,
                 String.format("tcp:%d", localPort),     //$NON-NLS-1$
                 String.format("%s:%s", namespace.getType(), remoteSocketName));   //$NON-NLS-1$
     }
@@ -602,6 +675,16 @@ final class Device implements IDevice {
         return mMonitor;
     }
 
+    /**
+     * Returns the address of the adb server of the bridge this device was found by.
+     */
+    InetSocketAddress getAdbSocketAddress() {
+        if (mMonitor != null) {
+            return mMonitor.getServer().getAdbSocketAddress();
+        }
+        return AndroidDebugBridge.getSocketAddress();
+    }
+
     @Override
     public boolean hasClients() {
         synchronized (mClients) {
@@ -667,18 +750,17 @@ final class Device implements IDevice {
     }
 
     /**
-     * Sets the client monitoring socket.
-     * @param socketChannel the sockets
+     * Sets the connection tracking the jdwp processes of the device.
      */
-    void setClientMonitoringSocket(SocketChannel socketChannel) {
-        mSocketChannel = socketChannel;
+    void setClientTracking(Future<Void> clientTracking) {
+        mClientTracking = clientTracking;
     }
 
     /**
-     * Returns the client monitoring socket.
+     * Returns the connection tracking the jdwp processes of the device.
      */
-    SocketChannel getClientMonitoringSocket() {
-        return mSocketChannel;
+    Future<Void> getClientTracking() {
+        return mClientTracking;
     }
 
     void update(int changeMask) {
@@ -940,7 +1022,7 @@ final class Device implements IDevice {
     @Override
     public void reboot(String into)
             throws TimeoutException, AdbCommandRejectedException, IOException {
-        AdbHelper.reboot(into, AndroidDebugBridge.getSocketAddress(), this);
+        AdbHelper.reboot(into, getAdbSocketAddress(), this);
     }
 
     @Override
@@ -978,6 +1060,11 @@ final class Device implements IDevice {
     @NonNull
     @Override
     public List<String> getAbis() {
+        if (mAbis != null) {
+            return mAbis;
+        }
+
+        boolean cacheable = mPropFetcher.isPopulated();
         List<String> abis = Lists.newArrayListWithExpectedSize(2);
         String abi = getProperty(IDevice.PROP_DEVICE_CPU_ABI);
         if (abi != null) {
@@ -989,16 +1076,25 @@ final class Device implements IDevice {
             abis.add(abi);
         }
 
+        if (cacheable) {
+            mAbis = Collections.unmodifiableList(abis);
+            return mAbis;
+        }
         return abis;
     }
 
     @Override
     public int getDensity() {
-        String densityValue = getProperty(IDevice.PROP_DEVICE_DENSITY);
-        if (densityValue != null) {
-            return Integer.parseInt(densityValue);
+        if (mDensity >= 0) {
+            return mDensity;
         }
 
-        return 0;
+        boolean cacheable = mPropFetcher.isPopulated();
+        String densityValue = getProperty(IDevice.PROP_DEVICE_DENSITY);
+        int density = densityValue != null ? Integer.parseInt(densityValue) : 0;
+        if (cacheable) {
+            mDensity = density;
+        }
+        return density;
     }
 }
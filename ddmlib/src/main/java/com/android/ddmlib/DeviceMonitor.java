@@ -16,55 +16,131 @@
 
 package com.android.ddmlib;
 
-import com.android.ddmlib.AdbHelper.AdbResponse;
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.AdbSelectorEngine.ITrackingListener;
 import com.android.ddmlib.ClientData.DebuggerStatus;
 import com.android.ddmlib.DebugPortManager.IDebugPortProvider;
 import com.android.ddmlib.IDevice.DeviceState;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousCloseException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A Device monitor. This connects to the Android Debug Bridge and get device and
  * debuggable process information from it.
+ * <p/>
+ * The device list and the jdwp process lists are tracked through the {@link AdbSelectorEngine},
+ * so the monitors of all the bridges share its I/O threads. The changes are processed in order
+ * for each monitor, on a small pool of threads shared by all the monitors. Lost connections to
+ * adb are reopened with an exponential backoff.
+ * <p/>
+ * The blocking requests made to each device, the queries of new devices and the connections to
+ * their clients, run on a separate pool so that an unresponsive device does not hold up the
+ * events of the other devices and bridges.
  */
 final class DeviceMonitor {
-    private byte[] mLengthBuffer = new byte[4];
-    private byte[] mLengthBuffer2 = new byte[4];
+    private static final String TRACK_DEVICES = "host:track-devices"; //$NON-NLS-1$
+    private static final String TRACK_JDWP = "track-jdwp"; //$NON-NLS-1$
+
+    /** Delay before reconnecting to adb, doubled after each failed attempt. */
+    private static final long INITIAL_BACKOFF_MS = 250;
+    private static final long MAX_BACKOFF_MS = 8000;
+    /** Number of failed connection attempts after which adb is restarted. */
+    private static final int RESTART_ATTEMPTS = 5;
+    /** Delay before reopening a dropped client, which does not answer a new handshake at once. */
+    private static final long REOPEN_DELAY_MS = 1000;
+    private static final int EVENT_THREAD_COUNT = 2;
+
+    /** Threads processing the events of all the monitors. */
+    private static final ScheduledThreadPoolExecutor sEventExecutor =
+            new ScheduledThreadPoolExecutor(EVENT_THREAD_COUNT, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Device List Monitor"); //$NON-NLS-1$
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /** Threads making the blocking requests to the devices of all the monitors. */
+    private static final ExecutorService sDeviceExecutor =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Device Client Monitor"); //$NON-NLS-1$
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /** Runs the listeners of the tracking connections on the I/O thread completing them. */
+    private static final Executor CALLING_THREAD = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    /** Debugger ports, shared by the monitors of all the bridges. */
+    private static final ArrayList<Integer> sDebuggerPorts = new ArrayList<Integer>();
 
-    private boolean mQuit = false;
+    private volatile boolean mQuit = false;
 
     private AndroidDebugBridge mServer;
 
-    private SocketChannel mMainAdbConnection = null;
-    private boolean mMonitoring = false;
-    private int mConnectionAttempt = 0;
-    private int mRestartAttemptCount = 0;
-    private boolean mInitialDeviceListDone = false;
+    private volatile Future<Void> mDeviceListTracking;
+    private volatile boolean mMonitoring = false;
+    private volatile int mConnectionAttempt = 0;
+    private volatile int mRestartAttemptCount = 0;
+    private volatile boolean mInitialDeviceListDone = false;
 
-    private Selector mSelector;
+    /**
+     * Failed attempts to track the jdwp processes of each device, updated by the events and
+     * cleared when a device is removed, possibly from the thread stopping the monitor.
+     */
+    private final Map<Device, Integer> mJdwpAttempts =
+            new ConcurrentHashMap<Device, Integer>();
+
+    private final Queue<Runnable> mEvents = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean mDraining = new AtomicBoolean();
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            drainEvents();
+        }
+    };
 
     private final ArrayList<Device> mDevices = new ArrayList<Device>();
 
-    private final ArrayList<Integer> mDebuggerPorts = new ArrayList<Integer>();
-
     private final HashMap<Client, Integer> mClientsToReopen = new HashMap<Client, Integer>();
 
+    /** Pids of each device whose clients are being opened on {@link #sDeviceExecutor}. */
+    private final Map<Device, Set<Integer>> mOpeningPids = new HashMap<Device, Set<Integer>>();
+
     /**
      * Creates a new {@link DeviceMonitor} object and links it to the running
      * {@link AndroidDebugBridge} object.
@@ -73,43 +149,60 @@ final class DeviceMonitor {
     DeviceMonitor(AndroidDebugBridge server) {
         mServer = server;
 
-        mDebuggerPorts.add(DdmPreferences.getDebugPortBase());
+        synchronized (sDebuggerPorts) {
+            if (sDebuggerPorts.isEmpty()) {
+                sDebuggerPorts.add(DdmPreferences.getDebugPortBase());
+            }
+        }
     }
 
     /**
      * Starts the monitoring.
      */
     void start() {
-        new Thread("Device List Monitor") { //$NON-NLS-1$
+        post(new Runnable() {
             @Override
             public void run() {
-                deviceMonitorLoop();
+                startDeviceListTracking();
             }
-        }.start();
+        });
     }
 
     /**
-     * Stops the monitoring.
+     * Stops the monitoring. The clients of the devices are closed, which returns their debugger
+     * ports, and the devices are reported as disconnected.
      */
     void stop() {
         mQuit = true;
 
-        // wakeup the main loop thread by closing the main connection to adb.
-        try {
-            if (mMainAdbConnection != null) {
-                mMainAdbConnection.close();
+        Future<Void> tracking = mDeviceListTracking;
+        if (tracking != null) {
+            tracking.cancel(false);
+        }
+
+        // the clients are dropped once the locks are released, as the monitor thread may hold
+        // its own lock while it waits for the AndroidDebugBridge lock.
+        List<Client> clients = new ArrayList<Client>();
+        synchronized (AndroidDebugBridge.getLock()) {
+            synchronized (mDevices) {
+                for (int n = mDevices.size() - 1; n >= 0; n--) {
+                    Device device = mDevices.get(n);
+                    List<Client> deviceClients = device.getClientList();
+                    synchronized (deviceClients) {
+                        clients.addAll(deviceClients);
+                    }
+                    removeDevice(device);
+                    mServer.deviceDisconnected(device);
+                }
             }
-        } catch (IOException e1) {
         }
 
-        // wake up the secondary loop by closing the selector.
-        if (mSelector != null) {
-            mSelector.wakeup();
+        MonitorThread monitorThread = MonitorThread.getInstance();
+        if (monitorThread != null) {
+            monitorThread.dropClients(clients, false /* notify */);
         }
     }
 
-
-
     /**
      * Returns if the monitor is currently connected to the debug bridge server.
      * @return
@@ -143,167 +236,226 @@ final class DeviceMonitor {
         return mServer;
     }
 
-    void addClientToDropAndReopen(Client client, int port) {
+    void addClientToDropAndReopen(final Client client, int port) {
         synchronized (mClientsToReopen) {
             Log.d("DeviceMonitor",
                     "Adding " + client + " to list of client to reopen (" + port +").");
-            if (mClientsToReopen.get(client) == null) {
-                mClientsToReopen.put(client, port);
+            if (mClientsToReopen.get(client) != null) {
+                return;
             }
+            mClientsToReopen.put(client, port);
         }
-        mSelector.wakeup();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                dropAndReopenClient(client);
+            }
+        });
     }
 
-    /**
-     * Monitors the devices. This connects to the Debug Bridge
-     */
-    private void deviceMonitorLoop() {
-        do {
-            try {
-                if (mMainAdbConnection == null) {
-                    Log.d("DeviceMonitor", "Opening adb connection");
-                    mMainAdbConnection = openAdbConnection();
-                    if (mMainAdbConnection == null) {
-                        mConnectionAttempt++;
-                        Log.e("DeviceMonitor", "Connection attempts: " + mConnectionAttempt);
-                        if (mConnectionAttempt > 10) {
-                            if (!mServer.startAdb()) {
-                                mRestartAttemptCount++;
-                                Log.e("DeviceMonitor",
-                                        "adb restart attempts: " + mRestartAttemptCount);
-                            } else {
-                                Log.i("DeviceMonitor", "adb restarted");
-                                mRestartAttemptCount = 0;
-                            }
-                        }
-                        waitABit();
-                    } else {
-                        Log.d("DeviceMonitor", "Connected to adb for device monitoring");
-                        mConnectionAttempt = 0;
-                    }
-                }
+    private void dropAndReopenClient(Client client) {
+        final int port;
+        synchronized (mClientsToReopen) {
+            Integer p = mClientsToReopen.get(client);
+            if (p == null) {
+                return;
+            }
+            port = p;
+        }
 
-                if (mMainAdbConnection != null && !mMonitoring) {
-                    mMonitoring = sendDeviceListMonitoringRequest();
-                }
+        final Device device = client.getDeviceImpl();
+        final int pid = client.getClientData().getPid();
+        final MonitorThread monitorThread = MonitorThread.getInstance();
+        monitorThread.dropClient(client, false /* notify */);
 
-                if (mMonitoring) {
-                    // read the length of the incoming message
-                    int length = readLength(mMainAdbConnection, mLengthBuffer);
+        // if we don't wait a bit, the client will never answer the second handshake!
+        final Client droppedClient = client;
+        postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mClientsToReopen) {
+                    mClientsToReopen.remove(droppedClient);
+                }
+                int debuggerPort = port;
+                if (debuggerPort == IDebugPortProvider.NO_STATIC_PORT) {
+                    debuggerPort = getNextDebuggerPort();
+                }
+                Log.d("DeviceMonitor", "Reopening " + droppedClient);
+                openClients(device, Collections.singletonMap(pid, debuggerPort),
+                        monitorThread);
+            }
+        }, REOPEN_DELAY_MS);
+    }
 
-                    if (length >= 0) {
-                        // read the incoming message
-                        processIncomingDeviceData(length);
+    /**
+     * Queues an event of this monitor. The events of a monitor are processed in order.
+     */
+    private void post(@NonNull Runnable event) {
+        mEvents.add(event);
+        if (mDraining.compareAndSet(false, true)) {
+            sEventExecutor.execute(mDrainTask);
+        }
+    }
 
-                        // flag the fact that we have build the list at least once.
-                        mInitialDeviceListDone = true;
-                    }
-                }
-            } catch (AsynchronousCloseException ace) {
-                // this happens because of a call to Quit. We do nothing, and the loop will break.
-            } catch (TimeoutException ioe) {
-                handleExpectionInMonitorLoop(ioe);
-            } catch (IOException ioe) {
-                handleExpectionInMonitorLoop(ioe);
+    /**
+     * Queues an event of this monitor after a delay.
+     */
+    private void postDelayed(@NonNull final Runnable event, long delayMs) {
+        sEventExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                post(event);
             }
-        } while (!mQuit);
+        }, delayMs, TimeUnit.MILLISECONDS);
     }
 
-    private void handleExpectionInMonitorLoop(Exception e) {
-        if (!mQuit) {
-            if (e instanceof TimeoutException) {
-                Log.e("DeviceMonitor", "Adb connection Error: timeout");
-            } else {
-                Log.e("DeviceMonitor", "Adb connection Error:" + e.getMessage());
+    private void drainEvents() {
+        Runnable event;
+        while ((event = mEvents.poll()) != null) {
+            if (mQuit) {
+                mEvents.clear();
+                break;
             }
-            mMonitoring = false;
-            if (mMainAdbConnection != null) {
-                try {
-                    mMainAdbConnection.close();
-                } catch (IOException ioe) {
-                    // we can safely ignore that one.
-                }
-                mMainAdbConnection = null;
-
-                // remove all devices from list
-                // because we are going to call mServer.deviceDisconnected which will acquire this
-                // lock we lock it first, so that the AndroidDebugBridge lock is always locked
-                // first.
-                synchronized (AndroidDebugBridge.getLock()) {
-                    synchronized (mDevices) {
-                        for (int n = mDevices.size() - 1; n >= 0; n--) {
-                            Device device = mDevices.get(0);
-                            removeDevice(device);
-                            mServer.deviceDisconnected(device);
-                        }
-                    }
-                }
+            try {
+                event.run();
+            } catch (Exception e) {
+                // a failed event must not stop the processing of the next ones.
+                Log.e("DeviceMonitor", e);
             }
         }
+        mDraining.set(false);
+
+        // an event may have been queued after the last poll, but before the flag was reset.
+        if (!mEvents.isEmpty() && mDraining.compareAndSet(false, true)) {
+            sEventExecutor.execute(mDrainTask);
+        }
+    }
+
+    private static long getBackoff(int attempt) {
+        return Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(attempt - 1, 16));
     }
 
     /**
-     * Sleeps for a little bit.
+     * Returns the exception a tracking connection ended with, or null if it was cancelled.
      */
-    private void waitABit() {
+    @Nullable
+    private static Throwable getFailure(@NonNull Future<Void> tracking) {
         try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e1) {
+            tracking.get();
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (CancellationException e) {
+            return null;
+        } catch (InterruptedException e) {
+            return null;
         }
     }
 
     /**
-     * Attempts to connect to the debug bridge server.
-     * @return a connect socket if success, null otherwise
+     * Opens the connection tracking the device list.
      */
-    private SocketChannel openAdbConnection() {
-        Log.d("DeviceMonitor", "Connecting to adb for Device List Monitoring...");
+    private void startDeviceListTracking() {
+        if (mQuit) {
+            return;
+        }
 
-        SocketChannel adbChannel = null;
+        Log.d("DeviceMonitor", "Connecting to adb for Device List Monitoring...");
+        final ListenableFuture<Void> tracking;
         try {
-            adbChannel = SocketChannel.open(AndroidDebugBridge.getSocketAddress());
-            adbChannel.socket().setTcpNoDelay(true);
+            tracking = AdbSelectorEngine.getInstance().track(mServer.getAdbSocketAddress(), null,
+                    TRACK_DEVICES, new ITrackingListener() {
+                        @Override
+                        public void messageReceived(@NonNull final String message) {
+                            post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    processIncomingDeviceData(message);
+                                }
+                            });
+                        }
+                    });
         } catch (IOException e) {
+            deviceListTrackingLost(e);
+            return;
         }
 
-        return adbChannel;
+        mDeviceListTracking = tracking;
+        tracking.addListener(new Runnable() {
+            @Override
+            public void run() {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deviceListTrackingLost(getFailure(tracking));
+                    }
+                });
+            }
+        }, CALLING_THREAD);
     }
 
-    /**
-     *
-     * @return
-     * @throws IOException
-     */
-    private boolean sendDeviceListMonitoringRequest() throws TimeoutException, IOException {
-        byte[] request = AdbHelper.formAdbRequest("host:track-devices"); //$NON-NLS-1$
+    private void deviceListTrackingLost(@Nullable Throwable e) {
+        if (mQuit) {
+            return;
+        }
 
-        try {
-            AdbHelper.write(mMainAdbConnection, request);
+        if (e instanceof TimeoutException) {
+            Log.e("DeviceMonitor", "Adb connection Error: timeout");
+        } else {
+            Log.e("DeviceMonitor", "Adb connection Error:" + (e != null ? e.getMessage() : null));
+        }
 
-            AdbResponse resp = AdbHelper.readAdbResponse(mMainAdbConnection,
-                    false /* readDiagString */);
+        if (mMonitoring) {
+            mMonitoring = false;
+            mConnectionAttempt = 0;
 
-            if (!resp.okay) {
-                // request was refused by adb!
-                Log.e("DeviceMonitor", "adb refused request: " + resp.message);
+            // remove all devices from list
+            // because we are going to call mServer.deviceDisconnected which will acquire this
+            // lock we lock it first, so that the AndroidDebugBridge lock is always locked
+            // first.
+            synchronized (AndroidDebugBridge.getLock()) {
+                synchronized (mDevices) {
+                    for (int n = mDevices.size() - 1; n >= 0; n--) {
+                        Device device = mDevices.get(0);
+                        removeDevice(device);
+                        mServer.deviceDisconnected(device);
+                    }
+                }
             }
+        }
 
-            return resp.okay;
-        } catch (IOException e) {
-            Log.e("DeviceMonitor", "Sending Tracking request failed!");
-            mMainAdbConnection.close();
-            throw e;
+        mConnectionAttempt++;
+        Log.e("DeviceMonitor", "Connection attempts: " + mConnectionAttempt);
+        if (mConnectionAttempt > RESTART_ATTEMPTS && mServer.canStartAdb()) {
+            if (!mServer.startAdb()) {
+                mRestartAttemptCount++;
+                Log.e("DeviceMonitor",
+                        "adb restart attempts: " + mRestartAttemptCount);
+            } else {
+                Log.i("DeviceMonitor", "adb restarted");
+                mRestartAttemptCount = 0;
+            }
         }
+
+        postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                startDeviceListTracking();
+            }
+        }, getBackoff(mConnectionAttempt));
     }
 
-    /** Processes an incoming device message from the socket */
-    private void processIncomingDeviceData(int length) throws IOException {
-        ArrayList<Device> list = new ArrayList<Device>();
+    /** Processes an incoming device message from the tracking connection */
+    private void processIncomingDeviceData(String result) {
+        if (!mMonitoring) {
+            Log.d("DeviceMonitor", "Connected to adb for device monitoring");
+            mMonitoring = true;
+            mConnectionAttempt = 0;
+        }
 
-        if (length > 0) {
-            byte[] buffer = new byte[length];
-            String result = read(mMainAdbConnection, buffer);
+        ArrayList<Device> list = new ArrayList<Device>();
 
+        if (!result.isEmpty()) {
             String[] devices = result.split("\n"); //$NON-NLS-1$
 
             for (String d : devices) {
@@ -321,6 +473,9 @@ final class DeviceMonitor {
 
         // now merge the new devices with the old ones.
         updateDevices(list);
+
+        // flag the fact that we have build the list at least once.
+        mInitialDeviceListDone = true;
     }
 
     /**
@@ -417,8 +572,13 @@ final class DeviceMonitor {
             }
 
             // query the new devices for info.
-            for (Device d : devicesToQuery) {
-                queryNewDeviceForInfo(d);
+            for (final Device d : devicesToQuery) {
+                sDeviceExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        queryNewDeviceForInfo(d);
+                    }
+                });
             }
         }
         newList.clear();
@@ -428,13 +588,14 @@ final class DeviceMonitor {
         device.clearClientList();
         mDevices.remove(device);
 
-        SocketChannel channel = device.getClientMonitoringSocket();
-        if (channel != null) {
-            try {
-                channel.close();
-            } catch (IOException e) {
-                // doesn't really matter if the close fails.
-            }
+        mJdwpAttempts.remove(device);
+        synchronized (mOpeningPids) {
+            mOpeningPids.remove(device);
+        }
+
+        Future<Void> tracking = device.getClientTracking();
+        if (tracking != null) {
+            tracking.cancel(false);
         }
     }
 
@@ -443,7 +604,6 @@ final class DeviceMonitor {
      * @param device the device to query.
      */
     private void queryNewDeviceForInfo(Device device) {
-        // TODO: do this in a separate thread.
         try {
             queryProperties(device);
 
@@ -522,263 +682,188 @@ final class DeviceMonitor {
      * @param device the device to monitor.
      * @return true if success.
      */
-    private boolean startMonitoringDevice(Device device) {
-        SocketChannel socketChannel = openAdbConnection();
-
-        if (socketChannel != null) {
-            try {
-                boolean result = sendDeviceMonitoringRequest(socketChannel, device);
-                if (result) {
+    private boolean startMonitoringDevice(final Device device) {
+        final ListenableFuture<Void> tracking;
+        try {
+            tracking = AdbSelectorEngine.getInstance().track(mServer.getAdbSocketAddress(),
+                    device, TRACK_JDWP, new ITrackingListener() {
+                        @Override
+                        public void messageReceived(@NonNull final String message) {
+                            post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    processIncomingJdwpData(device, message);
+                                }
+                            });
+                        }
+                    });
+        } catch (IOException e) {
+            Log.d("DeviceMonitor",
+                    "Connection Failure when starting to monitor device '"
+                    + device + "' : " + e.getMessage());
+            return false;
+        }
 
-                    if (mSelector == null) {
-                        startDeviceMonitorThread();
+        device.setClientTracking(tracking);
+        tracking.addListener(new Runnable() {
+            @Override
+            public void run() {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        jdwpTrackingLost(device, tracking);
                     }
+                });
+            }
+        }, CALLING_THREAD);
+        return true;
+    }
 
-                    device.setClientMonitoringSocket(socketChannel);
-
-                    synchronized (mDevices) {
-                        // always wakeup before doing the register. The synchronized block
-                        // ensure that the selector won't select() before the end of this block.
-                        // @see deviceClientMonitorLoop
-                        mSelector.wakeup();
-
-                        socketChannel.configureBlocking(false);
-                        socketChannel.register(mSelector, SelectionKey.OP_READ, device);
-                    }
+    private void jdwpTrackingLost(final Device device, final Future<Void> tracking) {
+        Throwable e = getFailure(tracking);
+        if (e == null || device.getClientTracking() != tracking) {
+            // cancelled, or replaced by a new tracking connection.
+            return;
+        }
 
-                    return true;
-                }
-            } catch (TimeoutException e) {
-                try {
-                    // attempt to close the socket if needed.
-                    socketChannel.close();
-                } catch (IOException e1) {
-                    // we can ignore that one. It may already have been closed.
-                }
-                Log.d("DeviceMonitor",
-                        "Connection Failure when starting to monitor device '"
-                        + device + "' : timeout");
-            } catch (AdbCommandRejectedException e) {
-                try {
-                    // attempt to close the socket if needed.
-                    socketChannel.close();
-                } catch (IOException e1) {
-                    // we can ignore that one. It may already have been closed.
-                }
-                Log.d("DeviceMonitor",
-                        "Adb refused to start monitoring device '"
-                        + device + "' : " + e.getMessage());
-            } catch (IOException e) {
-                try {
-                    // attempt to close the socket if needed.
-                    socketChannel.close();
-                } catch (IOException e1) {
-                    // we can ignore that one. It may already have been closed.
-                }
-                Log.d("DeviceMonitor",
-                        "Connection Failure when starting to monitor device '"
-                        + device + "' : " + e.getMessage());
+        Log.d("DeviceMonitor", "Error reading jdwp list: " + e.getMessage());
+        synchronized (mDevices) {
+            if (!mDevices.contains(device) || !device.isOnline()) {
+                return;
             }
         }
 
-        return false;
-    }
+        Integer attempts = mJdwpAttempts.get(device);
+        attempts = attempts == null ? 1 : attempts + 1;
+        mJdwpAttempts.put(device, attempts);
 
-    private void startDeviceMonitorThread() throws IOException {
-        mSelector = Selector.open();
-        new Thread("Device Client Monitor") { //$NON-NLS-1$
+        // restart the monitoring of that device
+        postDelayed(new Runnable() {
             @Override
             public void run() {
-                deviceClientMonitorLoop();
-            }
-        }.start();
-    }
-
-    private void deviceClientMonitorLoop() {
-        do {
-            try {
-                // This synchronized block stops us from doing the select() if a new
-                // Device is being added.
-                // @see startMonitoringDevice()
                 synchronized (mDevices) {
-                }
-
-                int count = mSelector.select();
-
-                if (mQuit) {
-                    return;
-                }
-
-                synchronized (mClientsToReopen) {
-                    if (!mClientsToReopen.isEmpty()) {
-                        Set<Client> clients = mClientsToReopen.keySet();
-                        MonitorThread monitorThread = MonitorThread.getInstance();
-
-                        for (Client client : clients) {
-                            Device device = client.getDeviceImpl();
-                            int pid = client.getClientData().getPid();
-
-                            monitorThread.dropClient(client, false /* notify */);
-
-                            // This is kinda bad, but if we don't wait a bit, the client
-                            // will never answer the second handshake!
-                            waitABit();
-
-                            int port = mClientsToReopen.get(client);
-
-                            if (port == IDebugPortProvider.NO_STATIC_PORT) {
-                                port = getNextDebuggerPort();
-                            }
-                            Log.d("DeviceMonitor", "Reopening " + client);
-                            openClient(device, pid, port, monitorThread);
-                            device.update(Device.CHANGE_CLIENT_LIST);
-                        }
-
-                        mClientsToReopen.clear();
-                    }
-                }
-
-                if (count == 0) {
-                    continue;
-                }
-
-                Set<SelectionKey> keys = mSelector.selectedKeys();
-                Iterator<SelectionKey> iter = keys.iterator();
-
-                while (iter.hasNext()) {
-                    SelectionKey key = iter.next();
-                    iter.remove();
-
-                    if (key.isValid() && key.isReadable()) {
-                        Object attachment = key.attachment();
-
-                        if (attachment instanceof Device) {
-                            Device device = (Device)attachment;
-
-                            SocketChannel socket = device.getClientMonitoringSocket();
-
-                            if (socket != null) {
-                                try {
-                                    int length = readLength(socket, mLengthBuffer2);
-
-                                    processIncomingJdwpData(device, socket, length);
-                                } catch (IOException ioe) {
-                                    Log.d("DeviceMonitor",
-                                            "Error reading jdwp list: " + ioe.getMessage());
-                                    socket.close();
-
-                                    // restart the monitoring of that device
-                                    synchronized (mDevices) {
-                                        if (mDevices.contains(device)) {
-                                            Log.d("DeviceMonitor",
-                                                    "Restarting monitoring service for " + device);
-                                            startMonitoringDevice(device);
-                                        }
-                                    }
-                                }
-                            }
-                        }
+                    if (mDevices.contains(device) && device.getClientTracking() == tracking) {
+                        Log.d("DeviceMonitor",
+                                "Restarting monitoring service for " + device);
+                        startMonitoringDevice(device);
                     }
                 }
-            } catch (IOException e) {
-                Log.e("DeviceMonitor", "Connection error while monitoring clients.");
             }
-
-        } while (!mQuit);
+        }, getBackoff(attempts));
     }
 
-    private boolean sendDeviceMonitoringRequest(SocketChannel socket, Device device)
-            throws TimeoutException, AdbCommandRejectedException, IOException {
-
-        try {
-            AdbHelper.setDevice(socket, device);
-
-            byte[] request = AdbHelper.formAdbRequest("track-jdwp"); //$NON-NLS-1$
-
-            AdbHelper.write(socket, request);
-
-            AdbResponse resp = AdbHelper.readAdbResponse(socket, false /* readDiagString */);
-
-            if (!resp.okay) {
-                // request was refused by adb!
-                Log.e("DeviceMonitor", "adb refused request: " + resp.message);
+    private void processIncomingJdwpData(Device device, String result) {
+        synchronized (mDevices) {
+            if (!mDevices.contains(device)) {
+                return;
             }
-
-            return resp.okay;
-        } catch (TimeoutException e) {
-            Log.e("DeviceMonitor", "Sending jdwp tracking request timed out!");
-            throw e;
-        } catch (IOException e) {
-            Log.e("DeviceMonitor", "Sending jdwp tracking request failed!");
-            throw e;
         }
-    }
+        mJdwpAttempts.remove(device);
 
-    private void processIncomingJdwpData(Device device, SocketChannel monitorSocket, int length)
-            throws IOException {
-
-        // This methods reads @length bytes from the @monitorSocket channel.
-        // These bytes correspond to the pids of the current set of processes on the device.
+        // The message corresponds to the pids of the current set of processes on the device.
         // It takes this set of pids and compares them with the existing set of clients
         // for the device. Clients that correspond to pids that are not alive anymore are
         // dropped, and new clients are created for pids that don't have a corresponding Client.
 
-        if (length >= 0) {
-            // array for the current pids.
-            Set<Integer> newPids = new HashSet<Integer>();
-
-            // get the string data if there are any
-            if (length > 0) {
-                byte[] buffer = new byte[length];
-                String result = read(monitorSocket, buffer);
+        // array for the current pids.
+        Set<Integer> newPids = new HashSet<Integer>();
 
-                // split each line in its own list and create an array of integer pid
-                String[] pids = result.split("\n"); //$NON-NLS-1$
+        // get the string data if there are any
+        if (!result.isEmpty()) {
+            // split each line in its own list and create an array of integer pid
+            String[] pids = result.split("\n"); //$NON-NLS-1$
 
-                for (String pid : pids) {
-                    try {
-                        newPids.add(Integer.valueOf(pid));
-                    } catch (NumberFormatException nfe) {
-                        // looks like this pid is not really a number. Lets ignore it.
-                        continue;
-                    }
+            for (String pid : pids) {
+                try {
+                    newPids.add(Integer.valueOf(pid));
+                } catch (NumberFormatException nfe) {
+                    // looks like this pid is not really a number. Lets ignore it.
+                    continue;
                 }
             }
+        }
 
-            MonitorThread monitorThread = MonitorThread.getInstance();
+        MonitorThread monitorThread = MonitorThread.getInstance();
 
-            List<Client> clients = device.getClientList();
-            Map<Integer, Client> existingClients = new HashMap<Integer, Client>();
+        List<Client> clients = device.getClientList();
+        Map<Integer, Client> existingClients = new HashMap<Integer, Client>();
 
-            synchronized (clients) {
-                for (Client c : clients) {
-                    existingClients.put(
-                            c.getClientData().getPid(),
-                            c);
-                }
+        synchronized (clients) {
+            for (Client c : clients) {
+                existingClients.put(
+                        c.getClientData().getPid(),
+                        c);
             }
+        }
 
-            Set<Client> clientsToRemove = new HashSet<Client>();
-            for (Integer pid : existingClients.keySet()) {
-                if (!newPids.contains(pid)) {
-                    clientsToRemove.add(existingClients.get(pid));
-                }
+        Set<Client> clientsToRemove = new HashSet<Client>();
+        for (Integer pid : existingClients.keySet()) {
+            if (!newPids.contains(pid)) {
+                clientsToRemove.add(existingClients.get(pid));
             }
+        }
 
-            Set<Integer> pidsToAdd = new HashSet<Integer>(newPids);
-            pidsToAdd.removeAll(existingClients.keySet());
+        Set<Integer> pidsToAdd = new HashSet<Integer>(newPids);
+        pidsToAdd.removeAll(existingClients.keySet());
 
-            monitorThread.dropClients(clientsToRemove, false);
+        monitorThread.dropClients(clientsToRemove, false);
 
-            // at this point whatever pid is left in the list needs to be converted into Clients.
-            for (int newPid : pidsToAdd) {
-                openClient(device, newPid, getNextDebuggerPort(), monitorThread);
+        // at this point whatever pid is left in the list needs to be converted into Clients.
+        Map<Integer, Integer> ports = new HashMap<Integer, Integer>();
+        synchronized (mOpeningPids) {
+            Set<Integer> opening = mOpeningPids.get(device);
+            if (opening != null) {
+                pidsToAdd.removeAll(opening);
             }
+        }
+        for (int newPid : pidsToAdd) {
+            ports.put(newPid, getNextDebuggerPort());
+        }
+        if (!ports.isEmpty()) {
+            openClients(device, ports, monitorThread);
+        }
+
+        if (!clientsToRemove.isEmpty()) {
+            mServer.deviceChanged(device, Device.CHANGE_CLIENT_LIST);
+        }
+    }
 
-            if (!pidsToAdd.isEmpty() || !clientsToRemove.isEmpty()) {
-                mServer.deviceChanged(device, Device.CHANGE_CLIENT_LIST);
+    /**
+     * Opens the clients of a device on {@link #sDeviceExecutor}, and reports the change of its
+     * client list once they are open.
+     * @param ports the debugger port of each pid.
+     */
+    private void openClients(final Device device, final Map<Integer, Integer> ports,
+            final MonitorThread monitorThread) {
+        synchronized (mOpeningPids) {
+            Set<Integer> opening = mOpeningPids.get(device);
+            if (opening == null) {
+                opening = new HashSet<Integer>();
+                mOpeningPids.put(device, opening);
             }
+            opening.addAll(ports.keySet());
         }
+
+        sDeviceExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (Map.Entry<Integer, Integer> entry : ports.entrySet()) {
+                        openClient(device, entry.getKey(), entry.getValue(), monitorThread);
+                    }
+                } finally {
+                    synchronized (mOpeningPids) {
+                        Set<Integer> opening = mOpeningPids.get(device);
+                        if (opening != null) {
+                            opening.removeAll(ports.keySet());
+                        }
+                    }
+                }
+                if (!mQuit) {
+                    mServer.deviceChanged(device, Device.CHANGE_CLIENT_LIST);
+                }
+            }
+        });
     }
 
     /**
@@ -786,11 +871,15 @@ final class DeviceMonitor {
      * @return
      */
     private void openClient(Device device, int pid, int port, MonitorThread monitorThread) {
+        if (mQuit) {
+            addPortToAvailableList(port);
+            return;
+        }
 
         SocketChannel clientSocket;
         try {
             clientSocket = AdbHelper.createPassThroughConnection(
-                    AndroidDebugBridge.getSocketAddress(), device, pid);
+                    mServer.getAdbSocketAddress(), device, pid);
 
             // required for Selector
             clientSocket.configureBlocking(false);
@@ -856,7 +945,14 @@ final class DeviceMonitor {
         }
 
         if (client.isValid()) {
-            device.addClient(client);
+            synchronized (mDevices) {
+                if (mQuit || !mDevices.contains(device)) {
+                    // the device went away while the client was opened.
+                    client.close(false /* notify */);
+                    return;
+                }
+                device.addClient(client);
+            }
             monitorThread.addClient(client);
         } else {
             client = null;
@@ -865,16 +961,16 @@ final class DeviceMonitor {
 
     private int getNextDebuggerPort() {
         // get the first port and remove it
-        synchronized (mDebuggerPorts) {
-            if (!mDebuggerPorts.isEmpty()) {
-                int port = mDebuggerPorts.get(0);
+        synchronized (sDebuggerPorts) {
+            if (!sDebuggerPorts.isEmpty()) {
+                int port = sDebuggerPorts.get(0);
 
                 // remove it.
-                mDebuggerPorts.remove(0);
+                sDebuggerPorts.remove(0);
 
                 // if there's nothing left, add the next port to the list
-                if (mDebuggerPorts.isEmpty()) {
-                    mDebuggerPorts.add(port+1);
+                if (sDebuggerPorts.isEmpty()) {
+                    sDebuggerPorts.add(port+1);
                 }
 
                 return port;
@@ -886,16 +982,16 @@ final class DeviceMonitor {
 
     void addPortToAvailableList(int port) {
         if (port > 0) {
-            synchronized (mDebuggerPorts) {
+            synchronized (sDebuggerPorts) {
                 // because there could be case where clients are closed twice, we have to make
                 // sure the port number is not already in the list.
-                if (mDebuggerPorts.indexOf(port) == -1) {
+                if (sDebuggerPorts.indexOf(port) == -1) {
                     // add the port to the list while keeping it sorted. It's not like there's
                     // going to be tons of objects so we do it linearly.
-                    int count = mDebuggerPorts.size();
+                    int count = sDebuggerPorts.size();
                     for (int i = 0 ; i < count ; i++) {
-                        if (port < mDebuggerPorts.get(i)) {
-                            mDebuggerPorts.add(i, port);
+                        if (port < sDebuggerPorts.get(i)) {
+                            sDebuggerPorts.add(i, port);
                             break;
                         }
                     }
@@ -904,54 +1000,4 @@ final class DeviceMonitor {
             }
         }
     }
-
-    /**
-     * Reads the length of the next message from a socket.
-     * @param socket The {@link SocketChannel} to read from.
-     * @return the length, or 0 (zero) if no data is available from the socket.
-     * @throws IOException if the connection failed.
-     */
-    private int readLength(SocketChannel socket, byte[] buffer) throws IOException {
-        String msg = read(socket, buffer);
-
-        if (msg != null) {
-            try {
-                return Integer.parseInt(msg, 16);
-            } catch (NumberFormatException nfe) {
-                // we'll throw an exception below.
-            }
-       }
-
-        // we receive something we can't read. It's better to reset the connection at this point.
-        throw new IOException("Unable to read length");
-    }
-
-    /**
-     * Fills a buffer from a socket.
-     * @param socket
-     * @param buffer
-     * @return the content of the buffer as a string, or null if it failed to convert the buffer.
-     * @throws IOException
-     */
-    private String read(SocketChannel socket, byte[] buffer) throws IOException {
-        ByteBuffer buf = ByteBuffer.wrap(buffer, 0, buffer.length);
-
-        while (buf.position() != buf.limit()) {
-            int count;
-
-            count = socket.read(buf);
-            if (count < 0) {
-                throw new IOException("EOF");
-            }
-        }
-
-        try {
-            return new String(buffer, 0, buf.position(), AdbHelper.DEFAULT_ENCODING);
-        } catch (UnsupportedEncodingException e) {
-            // we'll return null below.
-        }
-
-        return null;
-    }
-
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the background queries of the property and battery fetchers of all the devices.
+ * <p/>
+ * The queries share a small pool of daemon threads instead of starting a thread each, so
+ * attaching many devices does not start as many concurrent shell commands. Queries beyond the
+ * size of the pool wait for a free thread.
+ */
+final class DeviceQueryExecutor {
+    private static final int THREAD_COUNT = 4;
+    private static final long KEEP_ALIVE_SEC = 30;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            THREAD_COUNT, THREAD_COUNT, KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Device Query"); //$NON-NLS-1$
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs a query on a thread of the pool. The thread is renamed to <var>name</var> while the
+     * query runs.
+     */
+    static void execute(@NonNull final String name, @NonNull final Runnable query) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Thread thread = Thread.currentThread();
+                String oldName = thread.getName();
+                thread.setName(name);
+                try {
+                    query.run();
+                } finally {
+                    thread.setName(oldName);
+                }
+            }
+        });
+    }
+
+    private DeviceQueryExecutor() {
+    }
+}
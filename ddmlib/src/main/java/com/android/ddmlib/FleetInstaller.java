@@ -0,0 +1,546 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Installs a list of packages on several devices at once.
+ * <p/>
+ * All the devices are handled in parallel. On each device, the files of the packages are pushed
+ * over a single sync connection, and the push of a package overlaps with the installation of the
+ * previous one, so that the time of an installation is bound by the transfer of the files rather
+ * than by the round trips to the devices.
+ * <p/>
+ * A package made of several APKs, such as a base APK and its splits, is installed in a single
+ * install session, which requires a device running API 21 or later.
+ * <p/>
+ * Typical use:
+ * <pre>
+ * Map&lt;IDevice, FleetInstaller.DeviceResult&gt; results = new FleetInstaller()
+ *         .addPackage(apk1)
+ *         .addSplitPackage(Arrays.asList(base, split1, split2))
+ *         .install(devices);
+ * </pre>
+ */
+public class FleetInstaller {
+
+    private static final long INSTALL_TIMEOUT_MS = 2 * 60 * 1000;
+    private static final String REMOTE_DIR = "/data/local/tmp/"; //$NON-NLS-1$
+
+    /**
+     * The phases of the installation of the packages on a device.
+     */
+    public enum Phase {
+        /** Transfer of the files to the device. */
+        PUSH,
+        /** Installation of the pushed files by the package manager. */
+        INSTALL,
+        /** Removal of the pushed files. */
+        CLEANUP
+    }
+
+    /**
+     * The outcome of the installation of the packages on a device.
+     */
+    public static final class DeviceResult {
+        @NonNull
+        private final IDevice mDevice;
+        private final long[] mPhaseTimes = new long[Phase.values().length];
+        private final List<String> mErrors = new ArrayList<String>();
+        private int mInstalledCount = 0;
+
+        private DeviceResult(@NonNull IDevice device) {
+            mDevice = device;
+        }
+
+        @NonNull
+        public IDevice getDevice() {
+            return mDevice;
+        }
+
+        /**
+         * Returns true if all the packages were installed.
+         */
+        public synchronized boolean isSuccess() {
+            return mErrors.isEmpty();
+        }
+
+        /**
+         * Returns the number of packages installed.
+         */
+        public synchronized int getInstalledCount() {
+            return mInstalledCount;
+        }
+
+        /**
+         * Returns the errors, one per package that could not be installed.
+         */
+        @NonNull
+        public synchronized List<String> getErrors() {
+            return new ArrayList<String>(mErrors);
+        }
+
+        /**
+         * Returns the time spent in a phase for all the packages, in milliseconds.
+         */
+        public synchronized long getTime(@NonNull Phase phase) {
+            return mPhaseTimes[phase.ordinal()];
+        }
+
+        private synchronized void addTime(@NonNull Phase phase, long startTime) {
+            mPhaseTimes[phase.ordinal()] += System.currentTimeMillis() - startTime;
+        }
+
+        private synchronized void addError(@NonNull List<File> apks, @NonNull String error) {
+            mErrors.add(getNames(apks) + ": " + error);
+        }
+
+        private synchronized void addInstalled() {
+            mInstalledCount++;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%1$s: %2$d installed, push %3$dms, install %4$dms, "
+                    + "cleanup %5$dms%6$s", mDevice.getSerialNumber(), getInstalledCount(),
+                    getTime(Phase.PUSH), getTime(Phase.INSTALL), getTime(Phase.CLEANUP),
+                    isSuccess() ? "" : ", errors: " + getErrors());
+        }
+    }
+
+    /** A package pushed to a device, handed from the push thread to the install thread. */
+    private static final class PushedPackage {
+        static final PushedPackage END = new PushedPackage(null, null, null);
+
+        final List<File> mApks;
+        final List<String> mRemotePaths;
+        final String mError;
+
+        PushedPackage(List<File> apks, List<String> remotePaths, String error) {
+            mApks = apks;
+            mRemotePaths = remotePaths;
+            mError = error;
+        }
+    }
+
+    private final List<List<File>> mPackages = new ArrayList<List<File>>();
+    private boolean mReinstall = true;
+    private String[] mExtraArgs = new String[0];
+
+    /**
+     * Adds a package made of a single APK.
+     */
+    @NonNull
+    public FleetInstaller addPackage(@NonNull File apk) {
+        mPackages.add(Collections.singletonList(apk));
+        return this;
+    }
+
+    /**
+     * Adds a package made of several APKs, such as a base APK and its splits, installed
+     * together in a single install session.
+     */
+    @NonNull
+    public FleetInstaller addSplitPackage(@NonNull List<File> apks) {
+        if (apks.isEmpty()) {
+            throw new IllegalArgumentException("A package needs at least one APK");
+        }
+        mPackages.add(new ArrayList<File>(apks));
+        return this;
+    }
+
+    /**
+     * Sets whether existing applications are re-installed. This is true by default.
+     */
+    @NonNull
+    public FleetInstaller setReinstall(boolean reinstall) {
+        mReinstall = reinstall;
+        return this;
+    }
+
+    /**
+     * Sets extra arguments for the package manager. See 'adb shell pm install --help' for
+     * available options.
+     */
+    @NonNull
+    public FleetInstaller setExtraArgs(@NonNull String... extraArgs) {
+        mExtraArgs = extraArgs;
+        return this;
+    }
+
+    /**
+     * Installs the packages on all the devices, in the order they were added, and waits for
+     * the installations to be done.
+     * @param devices the devices.
+     * @return the result of each device, in the order of <var>devices</var>.
+     * @throws InterruptedException if the calling thread is interrupted. The installations are
+     *         then cancelled.
+     */
+    @NonNull
+    public Map<IDevice, DeviceResult> install(@NonNull Collection<? extends IDevice> devices)
+            throws InterruptedException {
+        Map<IDevice, DeviceResult> results = new LinkedHashMap<IDevice, DeviceResult>();
+        if (devices.isEmpty()) {
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(devices.size() * 2,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Fleet Install"); //$NON-NLS-1$
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final IDevice device : devices) {
+                final DeviceResult result = new DeviceResult(device);
+                results.put(device, result);
+
+                // at most one package is pushed ahead of the one being installed.
+                final BlockingQueue<PushedPackage> queue =
+                        new LinkedBlockingQueue<PushedPackage>(1);
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        pushPackages(device, result, queue);
+                    }
+                }));
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        installPackages(device, result, queue);
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // the tasks record their own errors.
+                    Log.e("FleetInstaller", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return results;
+    }
+
+    private void pushPackages(@NonNull IDevice device, @NonNull DeviceResult result,
+            @NonNull BlockingQueue<PushedPackage> queue) {
+        SyncService sync = null;
+        String syncError = null;
+        PushedPackage pushed = null;
+        boolean ended = false;
+        try {
+            for (int i = 0; i < mPackages.size(); i++) {
+                List<File> apks = mPackages.get(i);
+                List<String> remotePaths = new ArrayList<String>(apks.size());
+                String error = syncError;
+
+                long start = System.currentTimeMillis();
+                try {
+                    if (sync == null && syncError == null) {
+                        sync = device.getSyncService();
+                        if (sync == null) {
+                            throw new IOException("Unable to open sync connection!");
+                        }
+                    }
+                    for (File apk : apks) {
+                        if (error != null) {
+                            break;
+                        }
+                        // prefix the package index so that a package being pushed does not
+                        // overwrite the files of the package being installed.
+                        String remotePath = REMOTE_DIR + i + "_" + apk.getName();
+                        // a failed push may leave a partial file to remove.
+                        remotePaths.add(remotePath);
+                        sync.pushFile(apk.getAbsolutePath(), remotePath,
+                                SyncService.getNullProgressMonitor());
+                    }
+                } catch (Exception e) {
+                    error = getMessage(e);
+                    if (sync == null) {
+                        // do not try again for the other packages.
+                        syncError = error;
+                    } else {
+                        // the connection is in an unknown state, the next package opens a new
+                        // one.
+                        sync.close();
+                        sync = null;
+                    }
+                } finally {
+                    result.addTime(Phase.PUSH, start);
+                }
+
+                pushed = new PushedPackage(apks, remotePaths, error);
+                queue.put(pushed);
+                pushed = null;
+            }
+
+            // the queue may still hold the last package, so wait for room rather than
+            // dropping the marker that ends installPackages.
+            queue.put(PushedPackage.END);
+            ended = true;
+        } catch (InterruptedException e) {
+            // cancelled.
+        } finally {
+            if (sync != null) {
+                sync.close();
+            }
+            if (!ended) {
+                // cancelled or failed: the packages left in the queue are not installed, but
+                // the install task must not wait forever, and their files must be removed.
+                List<PushedPackage> dropped = new ArrayList<PushedPackage>();
+                queue.drainTo(dropped);
+                queue.offer(PushedPackage.END);
+                if (pushed != null) {
+                    dropped.add(pushed);
+                }
+                List<String> remotePaths = new ArrayList<String>();
+                for (PushedPackage droppedPackage : dropped) {
+                    remotePaths.addAll(droppedPackage.mRemotePaths);
+                }
+
+                // the shell command fails right away if the thread is still interrupted.
+                boolean interrupted = Thread.interrupted();
+                removeRemoteFiles(device, result, remotePaths);
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private void installPackages(@NonNull IDevice device, @NonNull DeviceResult result,
+            @NonNull BlockingQueue<PushedPackage> queue) {
+        try {
+            while (true) {
+                PushedPackage pushed = queue.take();
+                if (pushed == PushedPackage.END) {
+                    return;
+                }
+
+                String error = pushed.mError;
+                boolean cancelled = false;
+                if (error == null) {
+                    long start = System.currentTimeMillis();
+                    try {
+                        if (pushed.mApks.size() == 1) {
+                            error = device.installRemotePackage(pushed.mRemotePaths.get(0),
+                                    mReinstall, mExtraArgs);
+                        } else {
+                            error = installSession(device, pushed);
+                        }
+                    } catch (Exception e) {
+                        error = getMessage(e);
+                        // the connections fail when the thread is interrupted, which must be
+                        // cleared for the shell command removing the files.
+                        cancelled = Thread.interrupted();
+                    } finally {
+                        result.addTime(Phase.INSTALL, start);
+                    }
+                }
+
+                removeRemoteFiles(device, result, pushed.mRemotePaths);
+
+                if (error != null) {
+                    result.addError(pushed.mApks, error);
+                } else {
+                    result.addInstalled();
+                }
+
+                if (cancelled) {
+                    // the push task removes the files of the packages left in the queue.
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // cancelled.
+        }
+    }
+
+    private static void removeRemoteFiles(@NonNull IDevice device, @NonNull DeviceResult result,
+            @NonNull List<String> remotePaths) {
+        if (remotePaths.isEmpty()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            StringBuilder command = new StringBuilder("rm -f"); //$NON-NLS-1$
+            for (String remotePath : remotePaths) {
+                command.append(" \"").append(remotePath).append('"');
+            }
+            device.executeShellCommand(command.toString(), new NullOutputReceiver(),
+                    INSTALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            Log.w("FleetInstaller", String.format(
+                    "Failed to remove %1$s from device '%2$s': %3$s",
+                    remotePaths, device.getSerialNumber(), getMessage(e)));
+        } finally {
+            result.addTime(Phase.CLEANUP, start);
+        }
+    }
+
+    /**
+     * Installs the APKs of a package in a single install session.
+     * @return an error message, or null if the package was installed.
+     */
+    @Nullable
+    private String installSession(@NonNull IDevice device, @NonNull PushedPackage pushed)
+            throws Exception {
+        StringBuilder options = new StringBuilder();
+        if (mReinstall) {
+            options.append("-r ");
+        }
+        for (String arg : mExtraArgs) {
+            options.append(arg).append(' ');
+        }
+
+        PmReceiver receiver = new PmReceiver();
+        device.executeShellCommand("pm install-create " + options.toString().trim(), receiver,
+                INSTALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        String sessionId = receiver.getSessionId();
+        if (sessionId == null) {
+            return receiver.getErrorMessage() != null
+                    ? receiver.getErrorMessage()
+                    : "Unable to create install session";
+        }
+
+        for (int i = 0; i < pushed.mApks.size(); i++) {
+            File apk = pushed.mApks.get(i);
+            receiver = new PmReceiver();
+            device.executeShellCommand(String.format(
+                    "pm install-write -S %1$d %2$s %3$d_%4$s \"%5$s\"", //$NON-NLS-1$
+                    apk.length(), sessionId, i, apk.getName(), pushed.mRemotePaths.get(i)),
+                    receiver, INSTALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (receiver.getErrorMessage() != null) {
+                device.executeShellCommand("pm install-abandon " + sessionId,
+                        new NullOutputReceiver(), INSTALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                return receiver.getErrorMessage();
+            }
+        }
+
+        receiver = new PmReceiver();
+        device.executeShellCommand("pm install-commit " + sessionId, receiver,
+                INSTALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        return receiver.getErrorMessage();
+    }
+
+    @NonNull
+    private static String getMessage(@NonNull Exception e) {
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+
+    @NonNull
+    private static String getNames(@NonNull List<File> apks) {
+        StringBuilder sb = new StringBuilder();
+        for (File apk : apks) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(apk.getName());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Output receiver for the package manager session commands.
+     */
+    @VisibleForTesting
+    static final class PmReceiver extends MultiLineReceiver {
+        private static final String SUCCESS_OUTPUT = "Success"; //$NON-NLS-1$
+        private static final Pattern FAILURE_PATTERN = Pattern.compile("Failure\\s+\\[(.*)\\]"); //$NON-NLS-1$
+        private static final Pattern SESSION_PATTERN = Pattern.compile(".*\\[(\\d+)\\].*"); //$NON-NLS-1$
+
+        private boolean mSuccess = false;
+        private String mErrorMessage = null;
+        private String mSessionId = null;
+
+        @Override
+        public void processNewLines(String[] lines) {
+            for (String line : lines) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (line.startsWith(SUCCESS_OUTPUT)) {
+                    mSuccess = true;
+                    mErrorMessage = null;
+                    Matcher m = SESSION_PATTERN.matcher(line);
+                    if (m.matches()) {
+                        mSessionId = m.group(1);
+                    }
+                } else {
+                    Matcher m = FAILURE_PATTERN.matcher(line);
+                    mErrorMessage = m.matches() ? m.group(1) : line;
+                }
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        /**
+         * Returns the error reported by the package manager, or null if it reported a success.
+         */
+        @Nullable
+        String getErrorMessage() {
+            if (mErrorMessage == null && !mSuccess) {
+                return "Unknown failure";
+            }
+            return mErrorMessage;
+        }
+
+        /**
+         * Returns the id of the session created by <code>pm install-create</code>.
+         */
+        @Nullable
+        String getSessionId() {
+            return mErrorMessage == null ? mSessionId : null;
+        }
+    }
+}
@@ -178,10 +178,6 @@ final class HandleHeap extends ChunkHandler {
      * Handle a heap segment message.
      */
     private void handleHPSG(Client client, ByteBuffer data) {
-        byte dataCopy[] = new byte[data.limit()];
-        data.rewind();
-        data.get(dataCopy);
-        data = ByteBuffer.wrap(dataCopy);
         client.getClientData().getVmHeapData().addHeapData(data);
 //xxx todo: add to the heap mentioned in <data>
     }
@@ -386,7 +382,7 @@ final class HandleHeap extends ChunkHandler {
           handler.onSuccess(stuff, client);
         } else {
           // Allocation tracking did not start from Android Studio's device panel
-          client.getClientData().setAllocations(AllocationsParser.parse(data));
+          client.getClientData().setAllocations(AllocationsParser.parseSnapshot(data));
           client.update(Client.CHANGE_HEAP_ALLOCATIONS);
         }
     }
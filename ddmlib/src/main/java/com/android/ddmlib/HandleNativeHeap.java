@@ -267,10 +267,6 @@ final class HandleNativeHeap extends ChunkHandler {
     }
 
     private void handleNHSG(Client client, ByteBuffer data) {
-        byte dataCopy[] = new byte[data.limit()];
-        data.rewind();
-        data.get(dataCopy);
-        data = ByteBuffer.wrap(dataCopy);
         client.getClientData().getNativeHeapData().addHeapData(data);
 
         if (true) {
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.Nullable;
+import com.android.ddmlib.HeapSegment.HeapSegmentElement;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Aggregates the heap segments of a heap as they are received, into histograms of the element
+ * sizes per element kind and statistics about the free blocks.
+ * <p/>
+ * Unlike the {@link HeapSegment} list of {@link ClientData.HeapData}, the memory used by the
+ * aggregator does not depend on the size of the heap or on the number of times the heap is
+ * reported, which makes it suitable to monitor the heap after every GC.
+ * <p/>
+ * The segments of a heap are added from a single thread, and the statistics of the last
+ * complete heap are published as an immutable {@link Snapshot} that can be read from any thread
+ * without locking.
+ */
+public final class HeapSegmentAggregator {
+
+    /** Number of element kinds, from {@link HeapSegmentElement#KIND_OBJECT} to
+     * {@link HeapSegmentElement#KIND_NATIVE}. */
+    public static final int KIND_COUNT = 8;
+
+    /**
+     * Number of size buckets of the histograms. Bucket <var>n</var> holds the elements whose size
+     * is between 2<sup>n</sup> and 2<sup>n+1</sup>-1 bytes.
+     */
+    public static final int BUCKET_COUNT = 32;
+
+    private static final int PARTIAL_MASK = 1 << 7;
+
+    /**
+     * Statistics of a complete heap.
+     */
+    public static final class Snapshot {
+        private final long[] mCounts;
+        private final long[] mBytes;
+        private final long mFreeBlockCount;
+        private final long mFreeBytes;
+        private final long mLargestFreeBlock;
+        private final int mSequence;
+
+        private Snapshot(long[] counts, long[] bytes, long freeBlockCount, long freeBytes,
+                long largestFreeBlock, int sequence) {
+            mCounts = counts;
+            mBytes = bytes;
+            mFreeBlockCount = freeBlockCount;
+            mFreeBytes = freeBytes;
+            mLargestFreeBlock = largestFreeBlock;
+            mSequence = sequence;
+        }
+
+        /**
+         * Returns the number of the heap report this snapshot was built from, starting at 1.
+         */
+        public int getSequence() {
+            return mSequence;
+        }
+
+        /**
+         * Returns the number of allocated elements of a kind.
+         * @param kind one of the <code>KIND_*</code> values of {@link HeapSegmentElement}.
+         */
+        public long getCount(int kind) {
+            long count = 0;
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                count += mCounts[kind * BUCKET_COUNT + bucket];
+            }
+            return count;
+        }
+
+        /**
+         * Returns the number of allocated elements of a kind in a size bucket.
+         * @param kind one of the <code>KIND_*</code> values of {@link HeapSegmentElement}.
+         * @param bucket the size bucket, see {@link HeapSegmentAggregator#BUCKET_COUNT}.
+         */
+        public long getCount(int kind, int bucket) {
+            return mCounts[kind * BUCKET_COUNT + bucket];
+        }
+
+        /**
+         * Returns the number of bytes used by the allocated elements of a kind.
+         * @param kind one of the <code>KIND_*</code> values of {@link HeapSegmentElement}.
+         */
+        public long getBytes(int kind) {
+            long bytes = 0;
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                bytes += mBytes[kind * BUCKET_COUNT + bucket];
+            }
+            return bytes;
+        }
+
+        /**
+         * Returns the number of bytes used by the allocated elements of a kind in a size bucket.
+         * @param kind one of the <code>KIND_*</code> values of {@link HeapSegmentElement}.
+         * @param bucket the size bucket, see {@link HeapSegmentAggregator#BUCKET_COUNT}.
+         */
+        public long getBytes(int kind, int bucket) {
+            return mBytes[kind * BUCKET_COUNT + bucket];
+        }
+
+        /**
+         * Returns the number of bytes used by all the allocated elements.
+         */
+        public long getAllocatedBytes() {
+            long bytes = 0;
+            for (long b : mBytes) {
+                bytes += b;
+            }
+            return bytes;
+        }
+
+        /**
+         * Returns the number of free blocks.
+         */
+        public long getFreeBlockCount() {
+            return mFreeBlockCount;
+        }
+
+        /**
+         * Returns the number of free bytes.
+         */
+        public long getFreeBytes() {
+            return mFreeBytes;
+        }
+
+        /**
+         * Returns the size of the largest free block.
+         */
+        public long getLargestFreeBlock() {
+            return mLargestFreeBlock;
+        }
+
+        /**
+         * Returns the fragmentation of the free space, from 0 when all the free space is in a
+         * single block, to almost 1 when it is split in many small blocks.
+         */
+        public double getFragmentation() {
+            if (mFreeBytes == 0) {
+                return 0;
+            }
+            return 1 - (double) mLargestFreeBlock / mFreeBytes;
+        }
+    }
+
+    // statistics of the heap being received.
+    private final long[] mCounts = new long[KIND_COUNT * BUCKET_COUNT];
+    private final long[] mBytes = new long[KIND_COUNT * BUCKET_COUNT];
+    private long mFreeBlockCount;
+    private long mFreeBytes;
+    private long mLargestFreeBlock;
+
+    // element continued in the next segment.
+    private int mPendingState = -1;
+    private long mPendingLength;
+
+    private int mSequence = 0;
+    private volatile Snapshot mSnapshot;
+
+    /**
+     * Returns the statistics of the last complete heap, or null if no heap was completed yet.
+     * <p/>This can be called from any thread.
+     */
+    @Nullable
+    public Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Starts a new heap, discarding the segments added since the last complete heap.
+     */
+    void reset() {
+        Arrays.fill(mCounts, 0);
+        Arrays.fill(mBytes, 0);
+        mFreeBlockCount = 0;
+        mFreeBytes = 0;
+        mLargestFreeBlock = 0;
+        mPendingState = -1;
+        mPendingLength = 0;
+    }
+
+    /**
+     * Adds the content of an HPSG chunk to the current heap.
+     * <p/>The position of <var>hpsgData</var> is not modified.
+     * @param hpsgData the raw data from an HPSG chunk.
+     * @throws BufferUnderflowException if the data is too small to hold the chunk header.
+     */
+    void add(ByteBuffer hpsgData) throws BufferUnderflowException {
+        ByteBuffer data = hpsgData.duplicate();
+        data.rewind();
+        data.order(ByteOrder.BIG_ENDIAN);
+
+        // see HeapSegment for the chunk header.
+        data.getInt(); // heap id
+        int allocationUnitSize = data.get();
+        data.getInt(); // start address
+        data.getInt(); // offset
+        data.getInt(); // allocation unit count
+
+        while (data.remaining() >= 2) {
+            int state = data.get() & 0xff;
+            long length = ((data.get() & 0xff) + 1) * (long) allocationUnitSize;
+
+            if (mPendingState != -1) {
+                if ((state & ~PARTIAL_MASK) == (mPendingState & ~PARTIAL_MASK)) {
+                    length += mPendingLength;
+                } else {
+                    // malformed continuation: count the pending element on its own.
+                    addElement(mPendingState, mPendingLength);
+                }
+                mPendingState = -1;
+                mPendingLength = 0;
+            }
+
+            if ((state & PARTIAL_MASK) != 0) {
+                // the next entry describes the same element.
+                mPendingState = state;
+                mPendingLength = length;
+            } else {
+                addElement(state, length);
+            }
+        }
+    }
+
+    /**
+     * Completes the current heap, and publishes its statistics.
+     */
+    void seal() {
+        if (mPendingState != -1) {
+            addElement(mPendingState, mPendingLength);
+            mPendingState = -1;
+            mPendingLength = 0;
+        }
+        mSnapshot = new Snapshot(mCounts.clone(), mBytes.clone(), mFreeBlockCount, mFreeBytes,
+                mLargestFreeBlock, ++mSequence);
+    }
+
+    private void addElement(int state, long length) {
+        int solidity = state & 0x7;
+        if (solidity == HeapSegmentElement.SOLIDITY_FREE) {
+            mFreeBlockCount++;
+            mFreeBytes += length;
+            mLargestFreeBlock = Math.max(mLargestFreeBlock, length);
+        } else {
+            int kind = (state >> 3) & 0x7;
+            int bucket = length <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(length);
+            int index = kind * BUCKET_COUNT + Math.min(bucket, BUCKET_COUNT - 1);
+            mCounts[index]++;
+            mBytes[index] += length;
+        }
+    }
+}
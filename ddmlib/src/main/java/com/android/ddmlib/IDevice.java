@@ -19,6 +19,7 @@ package com.android.ddmlib;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.ddmlib.log.LogReceiver;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.IOException;
 import java.util.List;
@@ -304,6 +305,15 @@ public interface IDevice extends IShellEnabledDevice {
     public SyncService getSyncService()
             throws TimeoutException, AdbCommandRejectedException, IOException;
 
+    /**
+     * Asynchronously opens a {@link SyncService} to push / pull files to and from the device.
+     * <p/>The connection is set up by the shared adb I/O threads, without blocking the caller.
+     * The returned future fails with the exceptions {@link #getSyncService()} would throw, or
+     * with an {@link AdbCommandRejectedException} if adb refuses the connection.
+     */
+    @NonNull
+    public ListenableFuture<SyncService> getSyncServiceAsync();
+
     /**
      * Returns a {@link FileListingService} for this device.
      */
@@ -321,6 +331,19 @@ public interface IDevice extends IShellEnabledDevice {
     public RawImage getScreenshot() throws TimeoutException, AdbCommandRejectedException,
             IOException;
 
+    /**
+     * Starts taking screen shots of the device continuously, at a target frame rate.
+     * <p/>Each screen shot is compared with the previous one, and the listener only receives
+     * the frames that changed, with the regions that changed.
+     *
+     * @param listener the listener receiving the frames, from the thread of the stream.
+     * @param framesPerSecond the target frame rate.
+     * @return the stream, to be stopped with {@link ScreenshotStream#stop()}.
+     */
+    @NonNull
+    public ScreenshotStream startScreenshotStream(
+            @NonNull ScreenshotStream.IFrameListener listener, int framesPerSecond);
+
     /**
      * Initiates screen recording on the device if the device supports {@link Feature#SCREEN_RECORD}.
      */
@@ -359,6 +382,30 @@ public interface IDevice extends IShellEnabledDevice {
             throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException,
             IOException;
 
+    /**
+     * Asynchronously executes a shell command on the device, and sends the result to a
+     * <var>receiver</var>.
+     * <p/>Unlike {@link #executeShellCommand(String, IShellOutputReceiver, long, TimeUnit)}, this
+     * returns immediately: the command runs on the shared adb I/O threads, which multiplex all
+     * the pending commands, and <var>receiver</var> is called from one of those threads. It must
+     * therefore not block.
+     * <p/>The returned future completes when the command exits or the receiver is cancelled. It
+     * fails with the exceptions the synchronous version would throw.
+     *
+     * @param command the shell command to execute
+     * @param receiver the {@link IShellOutputReceiver} that will receives the output of the shell
+     *            command
+     * @param maxTimeToOutputResponse the maximum amount of time during which the command is allowed
+     *            to not output any response. A value of 0 means the command never times out.
+     * @param maxTimeUnits Units for non-zero {@code maxTimeToOutputResponse} values.
+     *
+     * @see DdmPreferences#getIoThreadCount()
+     */
+    @NonNull
+    public ListenableFuture<Void> executeShellCommandAsync(@NonNull String command,
+            @Nullable IShellOutputReceiver receiver, long maxTimeToOutputResponse,
+            @Nullable TimeUnit maxTimeUnits);
+
     /**
      * Runs the event log service and outputs the event log to the {@link LogReceiver}.
      * <p/>This call is blocking until {@link LogReceiver#isCancelled()} returns true.
@@ -413,6 +460,17 @@ public interface IDevice extends IShellEnabledDevice {
             DeviceUnixSocketNamespace namespace)
             throws TimeoutException, AdbCommandRejectedException, IOException;
 
+    /**
+     * Asynchronously creates a port forwarding between a local and a remote port.
+     * <p/>The returned future fails with the exceptions
+     * {@link #createForward(int, int)} would throw.
+     *
+     * @param localPort the local port to forward
+     * @param remotePort the remote port.
+     */
+    @NonNull
+    public ListenableFuture<Void> createForwardAsync(int localPort, int remotePort);
+
     /**
      * Removes a port forwarding between a local and a remote port.
      *
@@ -439,6 +497,17 @@ public interface IDevice extends IShellEnabledDevice {
             DeviceUnixSocketNamespace namespace)
             throws TimeoutException, AdbCommandRejectedException, IOException;
 
+    /**
+     * Asynchronously removes a port forwarding between a local and a remote port.
+     * <p/>The returned future fails with the exceptions
+     * {@link #removeForward(int, int)} would throw.
+     *
+     * @param localPort the local port to forward
+     * @param remotePort the remote port.
+     */
+    @NonNull
+    public ListenableFuture<Void> removeForwardAsync(int localPort, int remotePort);
+
     /**
      * Returns the name of the client by pid or <code>null</code> if pid is unknown
      * @param pid the pid of the client.
@@ -26,13 +26,15 @@ import java.util.ArrayList;
  * <p/>Additionally, it splits the string by lines.
  * <p/>Classes extending it must implement {@link #processNewLines(String[])} which receives
  * new parsed lines as they become available.
+ * <p/>Receivers handling large amounts of output should consider extending
+ * {@link ByteLineReceiver} directly, to avoid decoding every line into a {@link String}.
  */
-public abstract class MultiLineReceiver implements IShellOutputReceiver {
+public abstract class MultiLineReceiver extends ByteLineReceiver {
 
     private boolean mTrimLines = true;
 
-    /** unfinished message line, stored for next packet */
-    private String mUnfinishedLine = null;
+    /** whether output was received, in which case flushing always produces a last line */
+    private boolean mReceivedOutput = false;
 
     private final ArrayList<String> mArray = new ArrayList<String>();
 
@@ -44,76 +46,35 @@ public abstract class MultiLineReceiver implements IShellOutputReceiver {
         mTrimLines = trim;
     }
 
-    /* (non-Javadoc)
-     * @see com.android.ddmlib.adb.IShellOutputReceiver#addOutput(
-     *      byte[], int, int)
-     */
     @Override
-    public final void addOutput(byte[] data, int offset, int length) {
-        if (!isCancelled()) {
-            String s = new String(data, offset, length, Charsets.UTF_8);
+    protected final void processLine(byte[] data, int offset, int length) {
+        String line = new String(data, offset, length, Charsets.UTF_8);
+        if (mTrimLines) {
+            line = line.trim();
+        }
+        mArray.add(line);
+    }
 
-            // ok we've got a string
-            // if we had an unfinished line we add it.
-            if (mUnfinishedLine != null) {
-                s = mUnfinishedLine + s;
-                mUnfinishedLine = null;
-            }
+    @Override
+    protected final void batchDone() {
+        mReceivedOutput = true;
 
-            // now we split the lines
+        if (!mArray.isEmpty()) {
+            // at this point we've split all the lines.
+            // make the array
+            String[] lines = mArray.toArray(new String[mArray.size()]);
             mArray.clear();
-            int start = 0;
-            do {
-                int index = s.indexOf("\r\n", start); //$NON-NLS-1$
-
-                // if \r\n was not found, this is an unfinished line
-                // and we store it to be processed for the next packet
-                if (index == -1) {
-                    mUnfinishedLine = s.substring(start);
-                    break;
-                }
-
-                // so we found a \r\n;
-                // extract the line
-                String line = s.substring(start, index);
-                if (mTrimLines) {
-                    line = line.trim();
-                }
-                mArray.add(line);
-
-                // move start to after the \r\n we found
-                start = index + 2;
-            } while (true);
 
-            if (!mArray.isEmpty()) {
-                // at this point we've split all the lines.
-                // make the array
-                String[] lines = mArray.toArray(new String[mArray.size()]);
-
-                // send it for final processing
-                processNewLines(lines);
-            }
+            // send it for final processing
+            processNewLines(lines);
         }
     }
 
-    /* (non-Javadoc)
-     * @see com.android.ddmlib.adb.IShellOutputReceiver#flush()
-     */
     @Override
-    public final void flush() {
-        if (mUnfinishedLine != null) {
-            processNewLines(new String[] { mUnfinishedLine });
+    protected final void processLastLine(byte[] data, int offset, int length) {
+        if (mReceivedOutput) {
+            processNewLines(new String[] { new String(data, offset, length, Charsets.UTF_8) });
         }
-
-        done();
-    }
-
-    /**
-     * Terminates the process. This is called after the last lines have been through
-     * {@link #processNewLines(String[])}.
-     */
-    public void done() {
-        // do nothing.
     }
 
     /**
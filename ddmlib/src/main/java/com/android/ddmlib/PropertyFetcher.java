@@ -28,6 +28,11 @@ import java.util.regex.Pattern;
 
 /**
  * Fetches and caches 'getprop' values from device.
+ * <p/>
+ * All the properties are fetched with a single 'getprop', on the threads of
+ * {@link DeviceQueryExecutor}, and the requests made while it runs are answered by it. Read-only
+ * properties are cached until {@link #invalidate()} is called, and the other properties for
+ * {@link DdmPreferences#getPropertyCacheTtl()} ms.
  */
 class PropertyFetcher {
     /** the amount of time to wait between unsuccessful prop fetch attempts */
@@ -87,6 +92,10 @@ class PropertyFetcher {
             EXPECTED_PROP_COUNT);
     private final IDevice mDevice;
     private CacheState mCacheState = CacheState.UNPOPULATED;
+    /** time of the last successful fetch. */
+    private long mLastFetchTime;
+    /** incremented when the cache is invalidated, to drop the result of a fetch underway. */
+    private int mGeneration;
     private final Map<String, SettableFuture<String>> mPendingRequests =
             Maps.newHashMapWithExpectedSize(4);
 
@@ -111,7 +120,7 @@ class PropertyFetcher {
         SettableFuture<String> result;
         if (mCacheState.equals(CacheState.FETCHING)) {
             result = addPendingRequest(name);
-        } else if (mCacheState.equals(CacheState.UNPOPULATED) || !isRoProp(name)) {
+        } else if (mCacheState.equals(CacheState.UNPOPULATED) || isExpired(name)) {
             // cache is empty, or this is a volatile prop that requires a query
             result = addPendingRequest(name);
             mCacheState = CacheState.FETCHING;
@@ -133,32 +142,50 @@ class PropertyFetcher {
         return future;
     }
 
+    /**
+     * Drops the cached properties, including the read-only ones. This is called when the device
+     * goes offline, as it may come back with another build.
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+        mProperties.clear();
+        if (!mCacheState.equals(CacheState.FETCHING)) {
+            mCacheState = CacheState.UNPOPULATED;
+        }
+    }
+
     private void initiatePropertiesQuery() {
+        final int generation = mGeneration;
         String threadName = String.format("query-prop-%s", mDevice.getSerialNumber());
-        Thread propThread = new Thread(threadName) {
+        DeviceQueryExecutor.execute(threadName, new Runnable() {
             @Override
             public void run() {
                 try {
                     GetPropReceiver propReceiver = new GetPropReceiver();
                     mDevice.executeShellCommand(GETPROP_COMMAND, propReceiver, GETPROP_TIMEOUT_SEC,
                             TimeUnit.SECONDS);
-                    populateCache(propReceiver.getCollectedProperties());
+                    populateCache(propReceiver.getCollectedProperties(), generation);
                 } catch (Exception e) {
                     handleException(e);
                 }
             }
-        };
-        propThread.setDaemon(true);
-        propThread.start();
+        });
     }
 
-    private synchronized void populateCache(@NonNull Map<String, String> props) {
-        mCacheState = props.isEmpty() ? CacheState.UNPOPULATED : CacheState.POPULATED;
-        if (!props.isEmpty()) {
+    private synchronized void populateCache(@NonNull Map<String, String> props,
+            int generation) {
+        boolean current = generation == mGeneration;
+        if (props.isEmpty() || !current) {
+            mCacheState = CacheState.UNPOPULATED;
+        } else {
+            mCacheState = CacheState.POPULATED;
+            mLastFetchTime = System.currentTimeMillis();
             mProperties.putAll(props);
         }
         for (Map.Entry<String, SettableFuture<String>> entry : mPendingRequests.entrySet()) {
-            entry.getValue().set(mProperties.get(entry.getKey()));
+            // the requests made before the cache was invalidated still get the fetched values.
+            entry.getValue().set(current ? mProperties.get(entry.getKey())
+                    : props.get(entry.getKey()));
         }
         mPendingRequests.clear();
     }
@@ -182,9 +209,23 @@ class PropertyFetcher {
      */
     @Deprecated
     public synchronized boolean arePropertiesSet() {
+        return isPopulated();
+    }
+
+    /**
+     * Returns true if the cache holds the last fetched properties of the device.
+     */
+    synchronized boolean isPopulated() {
         return CacheState.POPULATED.equals(mCacheState);
     }
 
+    private boolean isExpired(@NonNull String propName) {
+        if (isRoProp(propName)) {
+            return false;
+        }
+        return System.currentTimeMillis() - mLastFetchTime >= DdmPreferences.getPropertyCacheTtl();
+    }
+
     private static boolean isRoProp(@NonNull String propName) {
         return propName.startsWith("ro.");
     }
@@ -197,6 +197,76 @@ public final class RawImage {
         return a << 24 | r << 16 | g << 8 | b;
     }
 
+    /**
+     * Converts the image into ARGB values, one int per pixel, row by row.
+     * @param argb an array to fill, or null. It is only used if it can hold all the pixels.
+     * @return the array holding the pixels.
+     */
+    public int[] toARGB(int[] argb) {
+        if (argb == null || argb.length < width * height) {
+            argb = new int[width * height];
+        }
+        copyARGB(0, 0, width, height, argb, 0, width);
+        return argb;
+    }
+
+    /**
+     * Converts a rectangle of the image into ARGB values, one int per pixel.
+     * <p/>This is a faster equivalent of calling {@link #getARGB(int)} for each pixel of the
+     * rectangle, which lets a full frame ARGB buffer be updated with the changed parts of an
+     * image only.
+     * @param x the left side of the rectangle.
+     * @param y the top of the rectangle.
+     * @param w the width of the rectangle.
+     * @param h the height of the rectangle.
+     * @param dest the array receiving the pixels.
+     * @param destOffset the index in <var>dest</var> of the top left pixel of the rectangle.
+     * @param destStride the number of pixels between two rows in <var>dest</var>.
+     */
+    public void copyARGB(int x, int y, int w, int h, int[] dest, int destOffset,
+            int destStride) {
+        if (bpp == 16) {
+            for (int row = 0; row < h; row++) {
+                int index = ((y + row) * width + x) * 2;
+                int d = destOffset + row * destStride;
+                for (int col = 0; col < w; col++, index += 2) {
+                    int value = (data[index] & 0x00FF) | ((data[index+1] << 8) & 0x0FF00);
+                    int r = ((value >>> 11) & 0x1f) * 255/31;
+                    int g = ((value >>> 5)  & 0x3f) * 255/63;
+                    int b = ((value)        & 0x1f) * 255/31;
+                    dest[d++] = 0xFF000000 | r << 16 | g << 8 | b;
+                }
+            }
+        } else if (bpp == 32) {
+            int redMask = getMask(red_length);
+            int greenMask = getMask(green_length);
+            int blueMask = getMask(blue_length);
+            int alphaMask = getMask(alpha_length);
+            int redShift = 8 - red_length;
+            int greenShift = 8 - green_length;
+            int blueShift = 8 - blue_length;
+            int alphaShift = 8 - alpha_length;
+            for (int row = 0; row < h; row++) {
+                int index = ((y + row) * width + x) * 4;
+                int d = destOffset + row * destStride;
+                for (int col = 0; col < w; col++, index += 4) {
+                    int value = (data[index] & 0x00FF)
+                            | (data[index+1] & 0x00FF) << 8
+                            | (data[index+2] & 0x00FF) << 16
+                            | (data[index+3] & 0x00FF) << 24;
+                    int r = ((value >>> red_offset) & redMask) << redShift;
+                    int g = ((value >>> green_offset) & greenMask) << greenShift;
+                    int b = ((value >>> blue_offset) & blueMask) << blueShift;
+                    int a = ((value >>> alpha_offset) & alphaMask) << alphaShift;
+                    dest[d++] = a << 24 | r << 16 | g << 8 | b;
+                }
+            }
+        } else {
+            throw new UnsupportedOperationException(
+                    "RawImage.copyARGB() only works in 16 and 32 bit mode.");
+        }
+    }
+
     /**
      * creates a mask value based on a length and offset.
      * <p/>This value is compatible with org.eclipse.swt.graphics.PaletteData
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A stream of screenshots of a device, taken at a target frame rate.
+ * <p/>
+ * Each screenshot is compared with the previous one on the host, and the listener is only given
+ * the regions of the screen that changed. Frames without any change are not reported. The
+ * screenshots are read into a pool of two {@link RawImage}s, so a running stream does not
+ * allocate a new image buffer for each frame.
+ * <p/>
+ * The frame buffer service of adb has no incremental mode: every screenshot is still transferred
+ * in full from the device, and the frame rate is bounded by the time this takes.
+ *
+ * @see IDevice#startScreenshotStream(IFrameListener, int)
+ */
+public final class ScreenshotStream {
+
+    /** Width and height, in pixels, of the tiles in which the screen is compared. */
+    private static final int TILE_SIZE = 32;
+
+    /**
+     * A rectangular region of the screen.
+     */
+    public static final class Rect {
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+
+        public Rect(int x, int y, int width, int height) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Rect)) {
+                return false;
+            }
+            Rect other = (Rect) o;
+            return x == other.x && y == other.y && width == other.width
+                    && height == other.height;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((x * 31 + y) * 31 + width) * 31 + height;
+        }
+
+        @Override
+        public String toString() {
+            return "Rect[" + x + "," + y + " " + width + "x" + height + "]";
+        }
+    }
+
+    /**
+     * A screenshot, and the regions that changed since the previous one.
+     */
+    public static final class Frame {
+        private final RawImage mImage;
+        private final List<Rect> mDirtyRegions;
+        private final int mSequence;
+        private final boolean mFullFrame;
+
+        private Frame(RawImage image, List<Rect> dirtyRegions, int sequence, boolean fullFrame) {
+            mImage = image;
+            mDirtyRegions = dirtyRegions;
+            mSequence = sequence;
+            mFullFrame = fullFrame;
+        }
+
+        /**
+         * Returns the screenshot. The image is reused for later frames: it is only valid during
+         * the call to {@link IFrameListener#frameChanged(Frame)}, and must be copied, for
+         * instance with {@link RawImage#copyARGB(int, int, int, int, int[], int, int)}, to be
+         * kept.
+         */
+        @NonNull
+        public RawImage getImage() {
+            return mImage;
+        }
+
+        /**
+         * Returns the regions of the screen that changed since the previous frame.
+         */
+        @NonNull
+        public List<Rect> getDirtyRegions() {
+            return mDirtyRegions;
+        }
+
+        /**
+         * Returns the number of the frame, starting at 1. Frames without changes are not
+         * reported, but are counted.
+         */
+        public int getSequence() {
+            return mSequence;
+        }
+
+        /**
+         * Returns true if the whole screen is dirty because there was no previous frame, or
+         * because the size or format of the screen changed.
+         */
+        public boolean isFullFrame() {
+            return mFullFrame;
+        }
+    }
+
+    /**
+     * Receives the frames of a {@link ScreenshotStream}. The methods are called from the thread
+     * of the stream.
+     */
+    public interface IFrameListener {
+        /**
+         * Called when a screenshot differs from the previous one.
+         */
+        void frameChanged(@NonNull Frame frame);
+
+        /**
+         * Called when a screenshot could not be taken. The stream is stopped.
+         */
+        void streamFailed(@NonNull Exception e);
+    }
+
+    private final Device mDevice;
+    private final IFrameListener mListener;
+    private final long mFrameIntervalMs;
+    private volatile boolean mRunning = false;
+    private Thread mThread;
+
+    ScreenshotStream(@NonNull Device device, @NonNull IFrameListener listener,
+            int framesPerSecond) {
+        if (framesPerSecond <= 0) {
+            throw new IllegalArgumentException("framesPerSecond must be positive");
+        }
+        mDevice = device;
+        mListener = listener;
+        mFrameIntervalMs = 1000 / framesPerSecond;
+    }
+
+    synchronized void start() {
+        mRunning = true;
+        mThread = new Thread("Screenshot Stream [" + mDevice.getSerialNumber() + "]") {
+            @Override
+            public void run() {
+                try {
+                    stream();
+                } catch (Exception e) {
+                    if (mRunning) {
+                        mRunning = false;
+                        mListener.streamFailed(e);
+                    }
+                }
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stops the stream. The listener may still receive the frame being taken.
+     */
+    public synchronized void stop() {
+        mRunning = false;
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+    }
+
+    /**
+     * Returns whether the stream is running.
+     */
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    private void stream() throws TimeoutException, AdbCommandRejectedException, IOException {
+        RawImage previous = null;
+        RawImage spare = null;
+        int sequence = 0;
+
+        while (mRunning) {
+            long start = System.currentTimeMillis();
+
+            RawImage current = AdbHelper.getFrameBuffer(mDevice.getAdbSocketAddress(), mDevice,
+                    spare);
+            if (current == null) {
+                throw new IOException("Unsupported frame buffer protocol");
+            }
+            sequence++;
+
+            boolean fullFrame = !isSameFormat(previous, current);
+            List<Rect> dirtyRegions = diff(fullFrame ? null : previous, current, TILE_SIZE);
+            if (!dirtyRegions.isEmpty() && mRunning) {
+                mListener.frameChanged(new Frame(current, dirtyRegions, sequence, fullFrame));
+            }
+
+            // the previous image receives the next screenshot.
+            spare = previous;
+            previous = current;
+
+            long wait = mFrameIntervalMs - (System.currentTimeMillis() - start);
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static boolean isSameFormat(@Nullable RawImage image1, @NonNull RawImage image2) {
+        return image1 != null && image1.width == image2.width && image1.height == image2.height
+                && image1.bpp == image2.bpp && image1.red_offset == image2.red_offset
+                && image1.green_offset == image2.green_offset
+                && image1.blue_offset == image2.blue_offset
+                && image1.alpha_offset == image2.alpha_offset;
+    }
+
+    /**
+     * Returns the regions that differ between two images of the same format, compared in tiles
+     * of <var>tileSize</var> pixels. Dirty tiles are merged with their dirty neighbors on the
+     * same row, and with the regions of the row above that have the same horizontal extent.
+     * @param previous the previous image, or null to return the whole image.
+     * @param current the current image.
+     */
+    @VisibleForTesting
+    @NonNull
+    static List<Rect> diff(@Nullable RawImage previous, @NonNull RawImage current,
+            int tileSize) {
+        if (previous == null) {
+            return Collections.singletonList(new Rect(0, 0, current.width, current.height));
+        }
+
+        int bytesPerPixel = current.bpp >> 3;
+        int width = current.width;
+        int height = current.height;
+        int tilesX = (width + tileSize - 1) / tileSize;
+        byte[] data1 = previous.data;
+        byte[] data2 = current.data;
+
+        List<Rect> regions = new ArrayList<Rect>();
+        // regions ending on the previous row of tiles, which may be extended downward.
+        List<Rect> open = new ArrayList<Rect>();
+        List<Rect> nextOpen = new ArrayList<Rect>();
+        boolean[] dirty = new boolean[tilesX];
+
+        for (int tileY = 0; tileY < height; tileY += tileSize) {
+            int tileHeight = Math.min(tileSize, height - tileY);
+
+            // find the dirty tiles of this row.
+            int dirtyCount = 0;
+            for (int tx = 0; tx < tilesX; tx++) {
+                dirty[tx] = false;
+            }
+            for (int y = tileY; y < tileY + tileHeight && dirtyCount < tilesX; y++) {
+                int rowOffset = y * width * bytesPerPixel;
+                for (int tx = 0; tx < tilesX; tx++) {
+                    if (dirty[tx]) {
+                        continue;
+                    }
+                    int from = rowOffset + tx * tileSize * bytesPerPixel;
+                    int to = rowOffset + Math.min((tx + 1) * tileSize, width) * bytesPerPixel;
+                    for (int i = from; i < to; i++) {
+                        if (data1[i] != data2[i]) {
+                            dirty[tx] = true;
+                            dirtyCount++;
+                            break;
+                        }
+                    }
+                }
+            }
+
+            // merge the runs of dirty tiles into regions.
+            nextOpen.clear();
+            for (int tx = 0; tx < tilesX; ) {
+                if (!dirty[tx]) {
+                    tx++;
+                    continue;
+                }
+                int runStart = tx;
+                while (tx < tilesX && dirty[tx]) {
+                    tx++;
+                }
+                int x = runStart * tileSize;
+                int w = Math.min(tx * tileSize, width) - x;
+
+                Rect region = null;
+                for (int i = 0; i < open.size(); i++) {
+                    Rect above = open.get(i);
+                    if (above.x == x && above.width == w) {
+                        // extend the region of the row above.
+                        regions.remove(above);
+                        region = new Rect(x, above.y, w, above.height + tileHeight);
+                        break;
+                    }
+                }
+                if (region == null) {
+                    region = new Rect(x, tileY, w, tileHeight);
+                }
+                regions.add(region);
+                nextOpen.add(region);
+            }
+
+            List<Rect> swap = open;
+            open = nextOpen;
+            nextOpen = swap;
+        }
+
+        return regions;
+    }
+}
@@ -20,6 +20,7 @@ import com.android.ddmlib.AdbHelper.AdbResponse;
 import com.android.ddmlib.FileListingService.FileEntry;
 import com.android.ddmlib.SyncException.SyncError;
 import com.android.ddmlib.utils.ArrayHelper;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -28,12 +29,31 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Sync service class to push/pull to/from devices/emulators, through the debug bridge.
  * <p/>
  * To get a {@link SyncService} object, use {@link Device#getSyncService()}.
+ * <p/>
+ * Unless disabled with {@link DdmPreferences#setPipelinedSync(boolean)}, the transfer of a
+ * file reads the local file (push) or writes it (pull) on a separate thread, so that disk and
+ * socket I/O overlap. Pushing or pulling several files spreads them over up to
+ * {@link DdmPreferences#getSyncSessionCount()} sync connections.
  */
 public class SyncService {
 
@@ -78,6 +98,20 @@ public class SyncService {
     private static final int SYNC_DATA_MAX = 64*1024;
     private static final int REMOTE_PATH_MAX_LENGTH = 1024;
 
+    /** Number of buffers used to overlap disk and socket I/O of a single file transfer. */
+    private static final int PIPELINE_DEPTH = 2;
+
+    /** Threads doing the disk side of pipelined transfers, and the additional sync sessions. */
+    private static final ExecutorService sTransferExecutor = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Sync Transfer"); //$NON-NLS-1$
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
     /**
      * Classes which implement this interface provide methods that deal
      * with displaying transfer progress.
@@ -132,6 +166,96 @@ public class SyncService {
         }
     }
 
+    /**
+     * A progress monitor shared by the sync sessions of a multi-file transfer. It serializes
+     * the calls to the original monitor, and reports the transfer as canceled to all the
+     * sessions as soon as one of them failed.
+     */
+    private static class ConcurrentSyncProgressMonitor implements ISyncProgressMonitor {
+        private final ISyncProgressMonitor mMonitor;
+        private final AtomicReference<Exception> mFailure = new AtomicReference<Exception>();
+
+        ConcurrentSyncProgressMonitor(ISyncProgressMonitor monitor) {
+            mMonitor = monitor;
+        }
+
+        /** Records the first failure of a session. */
+        void fail(Exception e) {
+            mFailure.compareAndSet(null, e);
+        }
+
+        Exception getFailure() {
+            return mFailure.get();
+        }
+
+        @Override
+        public void start(int totalWork) {
+            // started and stopped by the caller of the transfer.
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public boolean isCanceled() {
+            if (mFailure.get() != null) {
+                return true;
+            }
+            synchronized (mMonitor) {
+                return mMonitor.isCanceled();
+            }
+        }
+
+        @Override
+        public void startSubTask(String name) {
+            synchronized (mMonitor) {
+                mMonitor.startSubTask(name);
+            }
+        }
+
+        @Override
+        public void advance(int work) {
+            synchronized (mMonitor) {
+                mMonitor.advance(work);
+            }
+        }
+    }
+
+    /** A single file to push or pull as part of a multi-file transfer. */
+    private static final class Transfer implements Comparable<Transfer> {
+        final boolean mPush;
+        final String mLocalPath;
+        final String mRemotePath;
+        final long mSize;
+
+        Transfer(boolean push, String localPath, String remotePath, long size) {
+            mPush = push;
+            mLocalPath = localPath;
+            mRemotePath = remotePath;
+            mSize = size;
+        }
+
+        /** Orders the largest files first, so that the sessions end at about the same time. */
+        @Override
+        public int compareTo(Transfer other) {
+            return mSize > other.mSize ? -1 : (mSize < other.mSize ? 1 : 0);
+        }
+    }
+
+    /** A buffer holding a chunk of a file, with room for the 8 byte header of a DATA packet. */
+    private static final class Chunk {
+        final byte[] data;
+        int length;
+
+        Chunk(int capacity) {
+            data = new byte[capacity];
+        }
+    }
+
+    /** Marks the end of a stream of {@link Chunk}s in a pipelined transfer. */
+    private static final Chunk END_OF_STREAM = new Chunk(0);
+
     private InetSocketAddress mAddress;
     private Device mDevice;
     private SocketChannel mChannel;
@@ -151,6 +275,18 @@ public class SyncService {
         mDevice = device;
     }
 
+    /**
+     * Creates a Sync service object over a connection on which adb already accepted the
+     * <code>sync:</code> request.
+     * @param address The address the connection was made to
+     * @param device the {@link Device} that the service connects to.
+     * @param channel the opened sync connection, in non-blocking mode.
+     */
+    SyncService(InetSocketAddress address, Device device, SocketChannel channel) {
+        this(address, device);
+        mChannel = channel;
+    }
+
     /**
      * Opens the sync connection. This must be called before any calls to push[File] / pull[File].
      * @return true if the connection opened, false if adb refuse the connection. This can happen
@@ -262,7 +398,13 @@ public class SyncService {
         // start the monitor
         monitor.start(total);
 
-        doPull(entries, localPath, fls, monitor);
+        if (DdmPreferences.getSyncSessionCount() > 1) {
+            List<Transfer> transfers = new ArrayList<Transfer>();
+            collectPullTransfers(entries, localPath, fls, transfers, monitor);
+            runTransfers(transfers, monitor);
+        } else {
+            doPull(entries, localPath, fls, monitor);
+        }
 
         monitor.stop();
     }
@@ -349,7 +491,13 @@ public class SyncService {
 
         monitor.start(total);
 
-        doPush(fileArray, remote.getFullPath(), monitor);
+        if (DdmPreferences.getSyncSessionCount() > 1) {
+            List<Transfer> transfers = new ArrayList<Transfer>();
+            collectPushTransfers(fileArray, remote.getFullPath(), transfers, monitor);
+            runTransfers(transfers, monitor);
+        } else {
+            doPush(fileArray, remote.getFullPath(), monitor);
+        }
 
         monitor.stop();
     }
@@ -472,6 +620,172 @@ public class SyncService {
         }
     }
 
+    /**
+     * Creates the local directories of a pull, and lists the files to pull.
+     * @param entries The list of entry to pull
+     * @param localPath the localpath to a directory
+     * @param fileListingService a FileListingService object to browse through remote directories.
+     * @param transfers the list receiving the files to pull.
+     * @param monitor the progress monitor. Must be started already.
+     *
+     * @throws SyncException if the transfer was canceled.
+     */
+    private void collectPullTransfers(FileEntry[] entries, String localPath,
+            FileListingService fileListingService, List<Transfer> transfers,
+            ISyncProgressMonitor monitor) throws SyncException {
+        for (FileEntry e : entries) {
+            if (monitor.isCanceled()) {
+                throw new SyncException(SyncError.CANCELED);
+            }
+
+            int type = e.getType();
+            String dest = localPath + File.separator + e.getName();
+            if (type == FileListingService.TYPE_DIRECTORY) {
+                new File(dest).mkdir();
+
+                FileEntry[] children = fileListingService.getChildren(e, true, null);
+                collectPullTransfers(children, dest, fileListingService, transfers, monitor);
+                monitor.advance(1);
+            } else if (type == FileListingService.TYPE_FILE) {
+                transfers.add(new Transfer(false, dest, e.getFullPath(), e.getSizeValue()));
+            }
+        }
+    }
+
+    /**
+     * Lists the files to push.
+     * @param fileArray the local files and directories to push.
+     * @param remotePath the remote directory receiving them.
+     * @param transfers the list receiving the files to push.
+     * @param monitor the progress monitor. Must be started already.
+     *
+     * @throws SyncException if the transfer was canceled.
+     */
+    private static void collectPushTransfers(File[] fileArray, String remotePath,
+            List<Transfer> transfers, ISyncProgressMonitor monitor) throws SyncException {
+        for (File f : fileArray) {
+            if (monitor.isCanceled()) {
+                throw new SyncException(SyncError.CANCELED);
+            }
+            if (f.isDirectory()) {
+                String dest = remotePath + "/" + f.getName(); // $NON-NLS-1S
+                collectPushTransfers(f.listFiles(), dest, transfers, monitor);
+                monitor.advance(1);
+            } else if (f.isFile()) {
+                String remoteFile = remotePath + "/" + f.getName(); // $NON-NLS-1S
+                transfers.add(new Transfer(true, f.getAbsolutePath(), remoteFile, f.length()));
+            }
+        }
+    }
+
+    /**
+     * Runs a list of transfers over this connection and up to
+     * {@link DdmPreferences#getSyncSessionCount()} - 1 additional sync connections.
+     * <p/>Additional connections that cannot be opened are ignored, the remaining ones
+     * taking their share of the files. The first failure cancels the other connections and is
+     * rethrown once they all stopped.
+     * @param transfers the files to push or pull.
+     * @param monitor the progress monitor. Must be started already.
+     *
+     * @throws SyncException if a file could not be transferred
+     * @throws IOException in case of I/O error on a connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    private void runTransfers(List<Transfer> transfers, ISyncProgressMonitor monitor)
+            throws SyncException, IOException, TimeoutException {
+        int sessionCount = Math.min(DdmPreferences.getSyncSessionCount(), transfers.size());
+        if (sessionCount <= 1) {
+            drainTransfers(new ArrayDeque<Transfer>(transfers), monitor);
+            return;
+        }
+
+        Collections.sort(transfers);
+        final Queue<Transfer> queue = new ConcurrentLinkedQueue<Transfer>(transfers);
+        final ConcurrentSyncProgressMonitor sharedMonitor =
+                new ConcurrentSyncProgressMonitor(monitor);
+
+        List<Future<?>> sessions = new ArrayList<Future<?>>(sessionCount - 1);
+        for (int i = 1; i < sessionCount; i++) {
+            sessions.add(sTransferExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    SyncService session = new SyncService(mAddress, mDevice);
+                    try {
+                        if (!session.openSync()) {
+                            return;
+                        }
+                    } catch (Exception e) {
+                        Log.w("ddms", "Failed to open additional sync session: " + e);
+                        return;
+                    }
+                    try {
+                        session.drainTransfers(queue, sharedMonitor);
+                    } catch (Exception e) {
+                        sharedMonitor.fail(e);
+                    } finally {
+                        session.close();
+                    }
+                }
+            }));
+        }
+
+        try {
+            drainTransfers(queue, sharedMonitor);
+        } catch (SyncException e) {
+            sharedMonitor.fail(e);
+        } catch (IOException e) {
+            sharedMonitor.fail(e);
+        } catch (TimeoutException e) {
+            sharedMonitor.fail(e);
+        } catch (RuntimeException e) {
+            sharedMonitor.fail(e);
+        }
+
+        for (Future<?> session : sessions) {
+            try {
+                Uninterruptibles.getUninterruptibly(session);
+            } catch (ExecutionException e) {
+                sharedMonitor.fail(new RuntimeException(e.getCause()));
+            }
+        }
+
+        Exception failure = sharedMonitor.getFailure();
+        if (failure instanceof SyncException) {
+            throw (SyncException) failure;
+        } else if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof TimeoutException) {
+            throw (TimeoutException) failure;
+        } else if (failure != null) {
+            throw (RuntimeException) failure;
+        }
+    }
+
+    /**
+     * Transfers files from a queue over this connection, until the queue is empty.
+     * @param queue the files to push or pull, shared with other sessions.
+     * @param monitor the progress monitor. Must be started already.
+     *
+     * @throws SyncException if a file could not be transferred
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    private void drainTransfers(Queue<Transfer> queue, ISyncProgressMonitor monitor)
+            throws SyncException, IOException, TimeoutException {
+        Transfer transfer;
+        while ((transfer = queue.poll()) != null) {
+            if (monitor.isCanceled()) {
+                throw new SyncException(SyncError.CANCELED);
+            }
+            monitor.startSubTask(transfer.mRemotePath);
+            if (transfer.mPush) {
+                doPushFile(transfer.mLocalPath, transfer.mRemotePath, monitor);
+            } else {
+                doPullFile(transfer.mRemotePath, transfer.mLocalPath, monitor);
+            }
+        }
+    }
+
     /**
      * Pulls a remote file
      * @param remotePath the remote file (length max is 1024)
@@ -524,16 +838,141 @@ public class SyncService {
         try {
             fos = new FileOutputStream(f);
 
-            // the buffer to read the data
-            byte[] data = new byte[SYNC_DATA_MAX];
+            if (DdmPreferences.isPipelinedSync() && !checkResult(pullResult, ID_DONE)) {
+                receivePipelined(fos, pullResult, monitor, timeOut);
+            } else {
+                receiveSequential(fos, pullResult, monitor, timeOut);
+            }
+
+            fos.flush();
+        } catch (IOException e) {
+            Log.e("ddms", String.format("Failed to open local file %s for writing, Reason: %s",
+                    f.getAbsolutePath(), e.toString()));
+            throw new SyncException(SyncError.FILE_WRITE_ERROR);
+        } finally {
+            if (fos != null) {
+                fos.close();
+            }
+        }
+    }
+
+    /**
+     * Receives the DATA packets of a file and writes them to the local file as they come.
+     * @param fos the stream of the local file.
+     * @param pullResult the header of the first packet. Used to read the following ones.
+     * @param monitor the monitor. The monitor must be started already.
+     * @param timeOut the timeout of the socket reads.
+     *
+     * @throws SyncException if the transfer was canceled or failed on the device.
+     * @throws IOException in case of I/O error on the connection or the file.
+     * @throws TimeoutException in case of a timeout reading from the device.
+     */
+    private void receiveSequential(FileOutputStream fos, byte[] pullResult,
+            ISyncProgressMonitor monitor, int timeOut)
+            throws SyncException, IOException, TimeoutException {
+        // the buffer to read the data
+        byte[] data = new byte[SYNC_DATA_MAX];
+
+        // loop to get data until we're done.
+        while (true) {
+            // check if we're cancelled
+            if (monitor.isCanceled()) {
+                throw new SyncException(SyncError.CANCELED);
+            }
+
+            // if we're done, we stop the loop
+            if (checkResult(pullResult, ID_DONE)) {
+                break;
+            }
+            if (!checkResult(pullResult, ID_DATA)) {
+                // hmm there's an error
+                throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR,
+                        readErrorMessage(pullResult, timeOut));
+            }
+            int length = ArrayHelper.swap32bitFromArray(pullResult, 4);
+            if (length > SYNC_DATA_MAX) {
+                // buffer overrun!
+                // error and exit
+                throw new SyncException(SyncError.BUFFER_OVERRUN);
+            }
+
+            // now read the length we received
+            AdbHelper.read(mChannel, data, length, timeOut);
 
-            // loop to get data until we're done.
+            // get the header for the next packet.
+            AdbHelper.read(mChannel, pullResult, -1, timeOut);
+
+            // write the content in the file
+            fos.write(data, 0, length);
+
+            monitor.advance(length);
+        }
+    }
+
+    /**
+     * Receives the DATA packets of a file, while a transfer thread writes the previous packets
+     * to the local file.
+     * @param fos the stream of the local file. It is not used anymore once this returns.
+     * @param pullResult the header of the first packet. Used to read the following ones.
+     * @param monitor the monitor. The monitor must be started already.
+     * @param timeOut the timeout of the socket reads.
+     *
+     * @throws SyncException if the transfer was canceled or failed on the device.
+     * @throws IOException in case of I/O error on the connection or the file.
+     * @throws TimeoutException in case of a timeout reading from the device.
+     */
+    private void receivePipelined(final FileOutputStream fos, byte[] pullResult,
+            ISyncProgressMonitor monitor, int timeOut)
+            throws SyncException, IOException, TimeoutException {
+        final BlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(PIPELINE_DEPTH);
+        // END_OF_STREAM may be queued in addition to all the buffers.
+        final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<Chunk>(PIPELINE_DEPTH + 1);
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            free.add(new Chunk(SYNC_DATA_MAX));
+        }
+        final AtomicReference<IOException> writeError = new AtomicReference<IOException>();
+        final CountDownLatch writerDone = new CountDownLatch(1);
+
+        sTransferExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Chunk chunk = filled.take();
+                        if (chunk == END_OF_STREAM) {
+                            break;
+                        }
+                        // after a failure, keep recycling the buffers until the receiving
+                        // side notices it.
+                        if (writeError.get() == null) {
+                            try {
+                                fos.write(chunk.data, 0, chunk.length);
+                            } catch (IOException e) {
+                                writeError.set(e);
+                            }
+                        }
+                        free.add(chunk);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    writerDone.countDown();
+                }
+            }
+        });
+
+        try {
             while (true) {
                 // check if we're cancelled
                 if (monitor.isCanceled()) {
                     throw new SyncException(SyncError.CANCELED);
                 }
 
+                IOException e = writeError.get();
+                if (e != null) {
+                    throw e;
+                }
+
                 // if we're done, we stop the loop
                 if (checkResult(pullResult, ID_DONE)) {
                     break;
@@ -550,27 +989,28 @@ public class SyncService {
                     throw new SyncException(SyncError.BUFFER_OVERRUN);
                 }
 
-                // now read the length we received
-                AdbHelper.read(mChannel, data, length, timeOut);
+                Chunk chunk = free.take();
+                AdbHelper.read(mChannel, chunk.data, length, timeOut);
+                chunk.length = length;
 
-                // get the header for the next packet.
+                // get the header for the next packet, then let the writer save this one.
                 AdbHelper.read(mChannel, pullResult, -1, timeOut);
-
-                // write the content in the file
-                fos.write(data, 0, length);
+                filled.add(chunk);
 
                 monitor.advance(length);
             }
-
-            fos.flush();
-        } catch (IOException e) {
-            Log.e("ddms", String.format("Failed to open local file %s for writing, Reason: %s",
-                    f.getAbsolutePath(), e.toString()));
-            throw new SyncException(SyncError.FILE_WRITE_ERROR);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SyncException(SyncError.CANCELED);
         } finally {
-            if (fos != null) {
-                fos.close();
-            }
+            filled.add(END_OF_STREAM);
+            // the caller closes the file once we return.
+            Uninterruptibles.awaitUninterruptibly(writerDone);
+        }
+
+        IOException e = writeError.get();
+        if (e != null) {
+            throw e;
         }
     }
 
@@ -646,32 +1086,11 @@ public class SyncService {
             // file and network IO exceptions.
             AdbHelper.write(mChannel, msg, -1, timeOut);
 
-            System.arraycopy(ID_DATA, 0, getBuffer(), 0, ID_DATA.length);
-
-            // look while there is something to read
-            while (true) {
-                // check if we're canceled
-                if (monitor.isCanceled()) {
-                    throw new SyncException(SyncError.CANCELED);
-                }
-
-                // read up to SYNC_DATA_MAX
-                int readCount = fis.read(getBuffer(), 8, SYNC_DATA_MAX);
-
-                if (readCount == -1) {
-                    // we reached the end of the file
-                    break;
-                }
-
-                // now send the data to the device
-                // first write the amount read
-                ArrayHelper.swap32bitsToArray(readCount, getBuffer(), 4);
-
-                // now write it
-                AdbHelper.write(mChannel, getBuffer(), readCount+8, timeOut);
-
-                // and advance the monitor
-                monitor.advance(readCount);
+            // a file that fits in a single packet has nothing to overlap.
+            if (DdmPreferences.isPipelinedSync() && f.length() > SYNC_DATA_MAX) {
+                sendPipelined(fis, monitor, timeOut);
+            } else {
+                sendSequential(fis, monitor, timeOut);
             }
         } catch (UnsupportedEncodingException e) {
             throw new SyncException(SyncError.REMOTE_PATH_ENCODING, e);
@@ -700,6 +1119,134 @@ public class SyncService {
         }
     }
 
+    /**
+     * Sends the content of a local file as DATA packets, reading the file between packets.
+     * @param fis the stream of the file to push.
+     * @param monitor the monitor. The monitor must be started already.
+     * @param timeOut the timeout of the socket writes.
+     *
+     * @throws SyncException if the transfer was canceled.
+     * @throws IOException in case of I/O error on the connection or the file.
+     * @throws TimeoutException in case of a timeout writing to the device.
+     */
+    private void sendSequential(FileInputStream fis, ISyncProgressMonitor monitor, int timeOut)
+            throws SyncException, IOException, TimeoutException {
+        System.arraycopy(ID_DATA, 0, getBuffer(), 0, ID_DATA.length);
+
+        // look while there is something to read
+        while (true) {
+            // check if we're canceled
+            if (monitor.isCanceled()) {
+                throw new SyncException(SyncError.CANCELED);
+            }
+
+            // read up to SYNC_DATA_MAX
+            int readCount = fis.read(getBuffer(), 8, SYNC_DATA_MAX);
+
+            if (readCount == -1) {
+                // we reached the end of the file
+                break;
+            }
+
+            // now send the data to the device
+            // first write the amount read
+            ArrayHelper.swap32bitsToArray(readCount, getBuffer(), 4);
+
+            // now write it
+            AdbHelper.write(mChannel, getBuffer(), readCount+8, timeOut);
+
+            // and advance the monitor
+            monitor.advance(readCount);
+        }
+    }
+
+    /**
+     * Sends the content of a local file as DATA packets, while a transfer thread reads the
+     * following chunks of the file into a second buffer.
+     * @param fis the stream of the file to push. It is not used anymore once this returns.
+     * @param monitor the monitor. The monitor must be started already.
+     * @param timeOut the timeout of the socket writes.
+     *
+     * @throws SyncException if the transfer was canceled.
+     * @throws IOException in case of I/O error on the connection or the file.
+     * @throws TimeoutException in case of a timeout writing to the device.
+     */
+    private void sendPipelined(final FileInputStream fis, ISyncProgressMonitor monitor,
+            int timeOut) throws SyncException, IOException, TimeoutException {
+        // END_OF_STREAM may be queued in addition to all the buffers.
+        final BlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(PIPELINE_DEPTH + 1);
+        final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<Chunk>(PIPELINE_DEPTH + 1);
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            free.add(new Chunk(SYNC_DATA_MAX + 8));
+        }
+        final AtomicReference<IOException> readError = new AtomicReference<IOException>();
+        final CountDownLatch readerDone = new CountDownLatch(1);
+
+        sTransferExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Chunk chunk = free.take();
+                        if (chunk == END_OF_STREAM) {
+                            // the transfer was aborted.
+                            break;
+                        }
+                        int readCount = fis.read(chunk.data, 8, SYNC_DATA_MAX);
+                        if (readCount == -1) {
+                            break;
+                        }
+                        System.arraycopy(ID_DATA, 0, chunk.data, 0, ID_DATA.length);
+                        ArrayHelper.swap32bitsToArray(readCount, chunk.data, 4);
+                        chunk.length = readCount;
+                        filled.add(chunk);
+                    }
+                } catch (IOException e) {
+                    readError.set(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    filled.add(END_OF_STREAM);
+                    readerDone.countDown();
+                }
+            }
+        });
+
+        boolean complete = false;
+        try {
+            while (true) {
+                // check if we're canceled
+                if (monitor.isCanceled()) {
+                    throw new SyncException(SyncError.CANCELED);
+                }
+
+                Chunk chunk = filled.take();
+                if (chunk == END_OF_STREAM) {
+                    break;
+                }
+
+                AdbHelper.write(mChannel, chunk.data, chunk.length + 8, timeOut);
+                monitor.advance(chunk.length);
+                free.add(chunk);
+            }
+            complete = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SyncException(SyncError.CANCELED);
+        } finally {
+            if (!complete) {
+                free.add(END_OF_STREAM);
+            }
+            // the caller closes the file once we return.
+            Uninterruptibles.awaitUninterruptibly(readerDone);
+        }
+
+        IOException e = readError.get();
+        if (e != null) {
+            throw e;
+        }
+    }
+
     /**
      * Reads an error message from the opened {@link #mChannel}.
      * @param result the current adb result. Must contain both FAIL and the length of the message.
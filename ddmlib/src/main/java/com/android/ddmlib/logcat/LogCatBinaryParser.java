@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.log.LogReceiver;
+import com.android.ddmlib.log.LogReceiver.LogEntry;
+import com.google.common.base.Charsets;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Class to convert the binary {@link LogEntry} objects read from a device log buffer through
+ * {@link IDevice#runLogService(String, LogReceiver)} to {@link LogCatMessage} objects.
+ * <p/>Unlike {@link LogCatMessageParser}, there is no text to parse back: pid, tid, priority,
+ * tag and message are separate fields of the entry, and the timestamp keeps its nanosecond
+ * precision (see {@link LogCatMessage#getTimestampNanos()}).
+ * <p/>The payload of an entry is the priority byte, followed by the zero terminated tag and
+ * the zero terminated message. Messages spanning several lines are split into one
+ * {@link LogCatMessage} per line, like {@code logcat -v long} does.
+ * <p/>The times are formatted in the time zone of the device, read from its
+ * {@code persist.sys.timezone} property, like logcat does on the device. Until that property is
+ * known, or when the device is not given, the time zone of the host is used.
+ */
+public final class LogCatBinaryParser {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final int NANOS_PER_MILLI = 1000000;
+    private static final String PROP_TIMEZONE = "persist.sys.timezone"; //$NON-NLS-1$
+
+    private final SimpleDateFormat mDateFormat =
+            new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US); //$NON-NLS-1$
+
+    /** Whether the time zone was given to the constructor, rather than read from the device. */
+    private final boolean mFixedTimeZone;
+    /** Id of the device time zone used by the format, or null if it uses the host one. */
+    private String mDeviceTimeZone;
+
+    /** Last formatted second, as consecutive entries are very likely to share it. */
+    private long mCachedSecond = -1;
+    private String mCachedSecondString;
+
+    /**
+     * Creates a parser formatting the times in the time zone of the device of each entry.
+     */
+    public LogCatBinaryParser() {
+        mFixedTimeZone = false;
+    }
+
+    /**
+     * Creates a parser formatting the times in the given time zone.
+     */
+    public LogCatBinaryParser(@NonNull TimeZone timeZone) {
+        mFixedTimeZone = true;
+        mDateFormat.setTimeZone(timeZone);
+    }
+
+    /**
+     * Converts a log entry into {@link LogCatMessage} objects.
+     * @param entry the entry read from the log buffer
+     * @param device device from which this entry has been received
+     * @return the messages, one per line of the entry's message.
+     */
+    @NonNull
+    public List<LogCatMessage> processLogEntry(@NonNull LogEntry entry,
+            @Nullable IDevice device) {
+        byte[] data = entry.data;
+        int length = Math.min(entry.len, data.length);
+        if (length < 1) {
+            return Collections.emptyList();
+        }
+
+        LogLevel logLevel = getLogLevel(data[0]);
+
+        int tagEnd = indexOfZero(data, 1, length);
+        String tag = new String(data, 1, tagEnd - 1, Charsets.UTF_8);
+
+        int msgStart = Math.min(tagEnd + 1, length);
+        int msgEnd = indexOfZero(data, msgStart, length);
+        // drop trailing new lines
+        while (msgEnd > msgStart && data[msgEnd - 1] == '\n') {
+            msgEnd--;
+        }
+
+        String pid = Integer.toString(entry.pid);
+        String tid = Integer.toString(entry.tid);
+        String appName = ""; //$NON-NLS-1$
+        if (device != null) {
+            appName = device.getClientName(entry.pid);
+            if (appName == null) {
+                appName = ""; //$NON-NLS-1$
+            }
+        }
+
+        long second = entry.sec & 0xFFFFFFFFL;
+        long timestampNanos = second * NANOS_PER_SECOND + entry.nsec;
+        String time = formatTime(second, entry.nsec, device);
+
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>(1);
+        int lineStart = msgStart;
+        for (int i = msgStart ; i <= msgEnd ; i++) {
+            if (i == msgEnd || data[i] == '\n') {
+                String line = new String(data, lineStart, i - lineStart, Charsets.UTF_8);
+                messages.add(new LogCatMessage(logLevel, pid, tid, appName, tag, time,
+                        timestampNanos, line));
+                lineStart = i + 1;
+            }
+        }
+
+        return messages;
+    }
+
+    /**
+     * Formats the time the same way {@code logcat -v long} does, for instance
+     * {@code 08-11 19:11:07.132}.
+     */
+    @NonNull
+    private String formatTime(long second, int nanos, @Nullable IDevice device) {
+        if (second != mCachedSecond) {
+            if (!mFixedTimeZone && device != null) {
+                updateTimeZone(device);
+            }
+            mCachedSecondString = mDateFormat.format(new Date(second * 1000));
+            mCachedSecond = second;
+        }
+
+        int millis = nanos / NANOS_PER_MILLI;
+        StringBuilder sb = new StringBuilder(mCachedSecondString.length() + 4);
+        sb.append(mCachedSecondString).append('.');
+        if (millis < 100) {
+            sb.append('0');
+        }
+        if (millis < 10) {
+            sb.append('0');
+        }
+        sb.append(millis);
+        return sb.toString();
+    }
+
+    /**
+     * Switches the format to the time zone of the device, once its property is known.
+     */
+    private void updateTimeZone(@NonNull IDevice device) {
+        String id = device.getProperty(PROP_TIMEZONE);
+        if (id != null && !id.isEmpty() && !id.equals(mDeviceTimeZone)) {
+            mDateFormat.setTimeZone(TimeZone.getTimeZone(id));
+            mDeviceTimeZone = id;
+        }
+    }
+
+    /**
+     * Returns the {@link LogLevel} for an android_LogPriority value. The undocumented FATAL
+     * priority, generated by Log.wtf(), is reported as {@link LogLevel#ASSERT}.
+     */
+    @NonNull
+    private static LogLevel getLogLevel(byte priority) {
+        for (LogLevel level : LogLevel.values()) {
+            if (level.getPriority() == priority) {
+                return level;
+            }
+        }
+        return priority < LogLevel.VERBOSE.getPriority() ? LogLevel.VERBOSE : LogLevel.ASSERT;
+    }
+
+    private static int indexOfZero(byte[] data, int start, int end) {
+        for (int i = start ; i < end ; i++) {
+            if (data[i] == 0) {
+                return i;
+            }
+        }
+        return end;
+    }
+}
@@ -20,7 +20,6 @@ import com.android.ddmlib.Log.LogLevel;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -192,40 +191,50 @@ public final class LogCatFilter {
      * @return true if the message matches the filter's conditions.
      */
     public boolean matches(LogCatMessage m) {
+        return matchesLogLevel(m.getLogLevel())
+                && matchesPid(m.getPid())
+                && matchesAppName(m.getAppName())
+                && matchesTag(m.getTag())
+                && matchesText(m.getMessage());
+    }
+
+    /** Returns whether messages of the given level make it through this filter. */
+    boolean matchesLogLevel(@NonNull LogLevel logLevel) {
         /* filter out messages of a lower priority */
-        if (m.getLogLevel().getPriority() < mLogLevel.getPriority()) {
-            return false;
-        }
+        return logLevel.getPriority() >= mLogLevel.getPriority();
+    }
+
+    /** Returns whether this filter only accepts messages from a given pid. */
+    boolean checksPid() {
+        return mCheckPid;
+    }
+
+    /** Returns whether this filter only accepts some tags. */
+    boolean checksTag() {
+        return mCheckTag;
+    }
 
+    /** Returns whether messages from the given pid make it through this filter. */
+    boolean matchesPid(@NonNull String pid) {
         /* if pid filter is enabled, filter out messages whose pid does not match
          * the filter's pid */
-        if (mCheckPid && !m.getPid().equals(mPid)) {
-            return false;
-        }
+        return !mCheckPid || pid.equals(mPid);
+    }
 
+    /** Returns whether messages from the given application make it through this filter. */
+    boolean matchesAppName(@NonNull String appName) {
         /* if app name filter is enabled, filter out messages not matching the app name */
-        if (mCheckAppName) {
-            Matcher matcher = mAppNamePattern.matcher(m.getAppName());
-            if (!matcher.find()) {
-                return false;
-            }
-        }
+        return !mCheckAppName || mAppNamePattern.matcher(appName).find();
+    }
 
+    /** Returns whether messages with the given tag make it through this filter. */
+    boolean matchesTag(@NonNull String tag) {
         /* if tag filter is enabled, filter out messages not matching the tag */
-        if (mCheckTag) {
-            Matcher matcher = mTagPattern.matcher(m.getTag());
-            if (!matcher.find()) {
-                return false;
-            }
-        }
-
-        if (mCheckText) {
-            Matcher matcher = mTextPattern.matcher(m.getMessage());
-            if (!matcher.find()) {
-                return false;
-            }
-        }
+        return !mCheckTag || mTagPattern.matcher(tag).find();
+    }
 
-        return true;
+    /** Returns whether messages with the given text make it through this filter. */
+    boolean matchesText(@NonNull String text) {
+        return !mCheckText || mTextPattern.matcher(text).find();
     }
 }
@@ -33,6 +33,7 @@ public final class LogCatMessage {
     private final String mTag;
     private final String mTime;
     private final String mMessage;
+    private final long mTimestampNanos;
 
     /**
      * Construct an immutable log message object.
@@ -40,7 +41,19 @@ public final class LogCatMessage {
     public LogCatMessage(@NonNull LogLevel logLevel, @NonNull String pid, @NonNull String tid,
             @NonNull String appName, @NonNull String tag,
             @NonNull String time, @NonNull String msg) {
+        this(logLevel, pid, tid, appName, tag, time, -1, msg);
+    }
+
+    /**
+     * Construct an immutable log message object, with a full precision timestamp.
+     * @param timestampNanos the time at which the message was generated, in nanoseconds since
+     *            the epoch, or -1 if unknown.
+     */
+    public LogCatMessage(@NonNull LogLevel logLevel, @NonNull String pid, @NonNull String tid,
+            @NonNull String appName, @NonNull String tag,
+            @NonNull String time, long timestampNanos, @NonNull String msg) {
         mLogLevel = logLevel;
+        mTimestampNanos = timestampNanos;
         mPid = pid;
         mAppName = appName;
         mTag = tag;
@@ -89,6 +102,15 @@ public final class LogCatMessage {
         return mTime;
     }
 
+    /**
+     * Returns the time at which the message was generated, in nanoseconds since the epoch, or
+     * -1 if only the formatted {@link #getTime()} is known, which is the case for messages parsed
+     * from the {@code logcat -v long} text output.
+     */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
     @NonNull
     public String getMessage() {
         return mMessage;
@@ -17,43 +17,28 @@
 package com.android.ddmlib.logcat;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log.LogLevel;
-import com.google.common.primitives.Ints;
+import com.google.common.base.Charsets;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Class to parse raw output of {@code adb logcat -v long} to {@link LogCatMessage} objects.
+ * <p/>Lines can be given either as {@link String}s through {@link #processLogLines}, or as raw
+ * UTF-8 bytes through {@link #processLogLine(byte[], int, int, IDevice)}, which only decodes the
+ * parts of the line that end up in the {@link LogCatMessage}.
  */
 public final class LogCatMessageParser {
     private LogLevel mCurLogLevel = LogLevel.WARN;
     private String mCurPid = "?";
+    private int mCurPidValue = -1;
     private String mCurTid = "?";
     private String mCurTag = "?";
     private String mCurTime = "?:??";
 
-    /**
-     * This pattern is meant to parse the first line of a log message with the option
-     * 'logcat -v long'. The first line represents the date, tag, severity, etc.. while the
-     * following lines are the message (can be several lines).<br>
-     * This first line looks something like:<br>
-     * {@code "[ 00-00 00:00:00.000 <pid>:0x<???> <severity>/<tag>]"}
-     * <br>
-     * Note: severity is one of V, D, I, W, E, A? or F. However, there doesn't seem to be
-     *       a way to actually generate an A (assert) message. Log.wtf is supposed to generate
-     *       a message with severity A, however it generates the undocumented F level. In
-     *       such a case, the parser will change the level from F to A.<br>
-     * Note: the fraction of second value can have any number of digit.<br>
-     * Note: the tag should be trimmed as it may have spaces at the end.
-     */
-    private static final Pattern sLogHeaderPattern = Pattern.compile(
-            "^\\[\\s(\\d\\d-\\d\\d\\s\\d\\d:\\d\\d:\\d\\d\\.\\d+)"
-          + "\\s+(\\d*):\\s*(\\S+)\\s([VDIWEAF])/(.*)\\]$");
-
     /**
      * Parse a list of strings into {@link LogCatMessage} objects. This method
      * maintains state from previous calls regarding the last seen header of
@@ -71,31 +56,179 @@ public final class LogCatMessageParser {
                 continue;
             }
 
-            Matcher matcher = sLogHeaderPattern.matcher(line);
-            if (matcher.matches()) {
-                mCurTime = matcher.group(1);
-                mCurPid = matcher.group(2);
-                mCurTid = matcher.group(3);
-                mCurLogLevel = LogLevel.getByLetterString(matcher.group(4));
-                mCurTag = matcher.group(5).trim();
-
-                /* LogLevel doesn't support messages with severity "F". Log.wtf() is supposed
-                 * to generate "A", but generates "F". */
-                if (mCurLogLevel == null && matcher.group(4).equals("F")) {
-                    mCurLogLevel = LogLevel.ASSERT;
+            if (line.charAt(0) == '[') {
+                byte[] data = line.getBytes(Charsets.UTF_8);
+                if (parseHeader(data, 0, data.length)) {
+                    continue;
                 }
-            } else {
-                String pkgName = ""; //$NON-NLS-1$
-                Integer pid = Ints.tryParse(mCurPid);
-                if (pid != null && device != null) {
-                    pkgName = device.getClientName(pid);
-                }
-                LogCatMessage m = new LogCatMessage(mCurLogLevel, mCurPid, mCurTid,
-                        pkgName, mCurTag, mCurTime, line);
-                messages.add(m);
             }
+
+            messages.add(createMessage(line, device));
         }
 
         return messages;
     }
+
+    /**
+     * Parses a single line of {@code logcat -v long} output. This method maintains state from
+     * previous calls regarding the last seen header of logcat messages.
+     * @param data the buffer containing the UTF-8 encoded line, without line terminator
+     * @param offset the offset of the line in <var>data</var>
+     * @param length the length of the line
+     * @param device device from which this line has been received
+     * @return the parsed message, or <code>null</code> if the line was empty or a message header.
+     */
+    @Nullable
+    public LogCatMessage processLogLine(byte[] data, int offset, int length, IDevice device) {
+        if (length == 0 || parseHeader(data, offset, length)) {
+            return null;
+        }
+
+        return createMessage(new String(data, offset, length, Charsets.UTF_8), device);
+    }
+
+    private LogCatMessage createMessage(String line, IDevice device) {
+        String pkgName = ""; //$NON-NLS-1$
+        if (mCurPidValue != -1 && device != null) {
+            pkgName = device.getClientName(mCurPidValue);
+        }
+        return new LogCatMessage(mCurLogLevel, mCurPid, mCurTid, pkgName, mCurTag, mCurTime,
+                line);
+    }
+
+    /**
+     * Parses the first line of a log message with the option 'logcat -v long'. The first line
+     * represents the date, tag, severity, etc.. while the following lines are the message
+     * (can be several lines).<br>
+     * This first line looks something like:<br>
+     * {@code "[ 00-00 00:00:00.000 <pid>:0x<???> <severity>/<tag>]"}
+     * <br>
+     * Note: severity is one of V, D, I, W, E, A? or F. However, there doesn't seem to be
+     *       a way to actually generate an A (assert) message. Log.wtf is supposed to generate
+     *       a message with severity A, however it generates the undocumented F level. In
+     *       such a case, the parser will change the level from F to A.<br>
+     * Note: the fraction of second value can have any number of digit.<br>
+     * Note: the tag should be trimmed as it may have spaces at the end.
+     * <p/>This is equivalent to matching the line against
+     * {@code ^\[\s(\d\d-\d\d\s\d\d:\d\d:\d\d\.\d+)\s+(\d*):\s*(\S+)\s([VDIWEAF])/(.*)\]$}
+     * but does not allocate anything unless the line is a header.
+     *
+     * @return true if the line was a header, in which case the current header state is updated.
+     */
+    private boolean parseHeader(byte[] data, int offset, int length) {
+        int end = offset + length - 1; // index of the closing bracket
+        if (length < 2 || data[offset] != '[' || data[end] != ']') {
+            return false;
+        }
+
+        int i = offset + 1;
+        if (!isSpace(data[i++])) {
+            return false;
+        }
+
+        // date and time: "00-00 00:00:00.000"
+        int timeStart = i;
+        if (!isDigits(data, i, 2, end) || data[i + 2] != '-'
+                || !isDigits(data, i + 3, 2, end) || !isSpace(data[i + 5])
+                || !isDigits(data, i + 6, 2, end) || data[i + 8] != ':'
+                || !isDigits(data, i + 9, 2, end) || data[i + 11] != ':'
+                || !isDigits(data, i + 12, 2, end) || data[i + 14] != '.') {
+            return false;
+        }
+        i += 15;
+        int fractionStart = i;
+        while (i < end && isDigit(data[i])) {
+            i++;
+        }
+        if (i == fractionStart) {
+            return false;
+        }
+        int timeEnd = i;
+
+        // pid
+        int spaceStart = i;
+        while (i < end && isSpace(data[i])) {
+            i++;
+        }
+        if (i == spaceStart) {
+            return false;
+        }
+        int pidStart = i;
+        int pidValue = 0;
+        while (i < end && isDigit(data[i])) {
+            if (pidValue >= 0) {
+                long value = pidValue * 10L + (data[i] - '0');
+                pidValue = value > Integer.MAX_VALUE ? -1 : (int) value;
+            }
+            i++;
+        }
+        int pidEnd = i;
+        if (i == end || data[i++] != ':') {
+            return false;
+        }
+
+        // tid
+        while (i < end && isSpace(data[i])) {
+            i++;
+        }
+        int tidStart = i;
+        while (i < end && !isSpace(data[i])) {
+            i++;
+        }
+        int tidEnd = i;
+        if (tidEnd == tidStart || tidEnd + 2 >= end) {
+            return false;
+        }
+
+        // severity
+        i = tidEnd + 1;
+        char severity = (char) data[i];
+        if ("VDIWEAF".indexOf(severity) == -1 || data[i + 1] != '/') { //$NON-NLS-1$
+            return false;
+        }
+
+        // tag, up to the closing bracket, and without line terminators.
+        int tagStart = i + 2;
+        for (int j = tagStart ; j < end ; j++) {
+            if (data[j] == '\n' || data[j] == '\r') {
+                return false;
+            }
+        }
+
+        mCurTime = new String(data, timeStart, timeEnd - timeStart, Charsets.US_ASCII);
+        mCurPid = new String(data, pidStart, pidEnd - pidStart, Charsets.US_ASCII);
+        mCurPidValue = pidEnd > pidStart ? pidValue : -1;
+        mCurTid = new String(data, tidStart, tidEnd - tidStart, Charsets.UTF_8);
+        mCurTag = new String(data, tagStart, end - tagStart, Charsets.UTF_8).trim();
+        mCurLogLevel = LogLevel.getByLetter(severity);
+
+        /* LogLevel doesn't support messages with severity "F". Log.wtf() is supposed
+         * to generate "A", but generates "F". */
+        if (mCurLogLevel == null && severity == 'F') {
+            mCurLogLevel = LogLevel.ASSERT;
+        }
+
+        return true;
+    }
+
+    private static boolean isDigits(byte[] data, int offset, int count, int end) {
+        if (offset + count > end) {
+            return false;
+        }
+        for (int i = offset ; i < offset + count ; i++) {
+            if (!isDigit(data[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /** Same characters as the regular expression {@code \s}. */
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
 }
@@ -0,0 +1,487 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.VisibleForTesting;
+import com.android.ddmlib.Log.LogLevel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded store of {@link LogCatMessage}s, meant to be shared by all the consumers of a
+ * {@link LogCatReceiverTask}. Register it with
+ * {@link LogCatReceiverTask#addLogCatListener(LogCatListener)}.
+ * <p/>Messages are kept in a ring buffer of fixed capacity: once full, each new message replaces
+ * the oldest one. The fields of the messages are stored in parallel primitive arrays, and tags,
+ * pids and application names are interned in tables. The interned values and their indexes are
+ * released with the last message using them, so the memory used does not depend on how long the
+ * store has been receiving messages.
+ * <p/>Messages are also indexed by tag and by pid, so that filters on those fields only look at
+ * the matching messages instead of scanning the whole buffer. Tag and application name regexes
+ * are evaluated once per distinct value rather than once per message.
+ * <p/>This class is thread safe.
+ */
+public final class LogCatMessageStore implements LogCatListener {
+    private static final LogLevel[] LOG_LEVELS = LogLevel.values();
+
+    private final int mCapacity;
+
+    /** Slot of the oldest message. */
+    private int mHead = 0;
+    private int mSize = 0;
+
+    // message fields, indexed by slot.
+    private final byte[] mLogLevels;
+    private final int[] mPidIds;
+    private final long[] mTids;
+    private final int[] mAppNameIds;
+    private final int[] mTagIds;
+    private final String[] mTimes;
+    private final long[] mTimestamps;
+    private final String[] mMessages;
+
+    private final StringTable mPids = new StringTable();
+    private final StringTable mAppNames = new StringTable();
+    private final StringTable mTags = new StringTable();
+
+    /** Slots of the messages for each pid id, oldest first. */
+    private final List<IntQueue> mPidIndex = new ArrayList<IntQueue>();
+    /** Slots of the messages for each tag id, oldest first. */
+    private final List<IntQueue> mTagIndex = new ArrayList<IntQueue>();
+
+    /**
+     * Creates a store.
+     * @param capacity the maximum number of messages retained.
+     */
+    public LogCatMessageStore(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mCapacity = capacity;
+        mLogLevels = new byte[capacity];
+        mPidIds = new int[capacity];
+        mTids = new long[capacity];
+        mAppNameIds = new int[capacity];
+        mTagIds = new int[capacity];
+        mTimes = new String[capacity];
+        mTimestamps = new long[capacity];
+        mMessages = new String[capacity];
+    }
+
+    /** Adds messages to the store, evicting the oldest ones if needed. */
+    @Override
+    public synchronized void log(List<LogCatMessage> msgList) {
+        for (LogCatMessage message : msgList) {
+            add(message);
+        }
+    }
+
+    private void add(LogCatMessage message) {
+        // intern before evicting, so that a value shared with the evicted message is kept.
+        int pidId = mPids.intern(message.getPid());
+        int tagId = mTags.intern(message.getTag());
+        int appNameId = mAppNames.intern(message.getAppName());
+
+        int slot;
+        if (mSize == mCapacity) {
+            slot = mHead;
+            evict(slot);
+            mHead = next(mHead);
+        } else {
+            slot = (mHead + mSize) % mCapacity;
+            mSize++;
+        }
+
+        mLogLevels[slot] = (byte) message.getLogLevel().ordinal();
+        mPidIds[slot] = pidId;
+        mTids[slot] = parseTid(message.getTid());
+        mAppNameIds[slot] = appNameId;
+        mTagIds[slot] = tagId;
+        mTimes[slot] = message.getTime();
+        mTimestamps[slot] = message.getTimestampNanos();
+        mMessages[slot] = message.getMessage();
+
+        getQueue(mPidIndex, pidId).add(slot);
+        getQueue(mTagIndex, tagId).add(slot);
+    }
+
+    /**
+     * Removes the oldest message, stored in the given slot, from the indexes, and releases the
+     * values it no longer uses.
+     */
+    private void evict(int slot) {
+        int pidId = mPidIds[slot];
+        mPidIndex.get(pidId).removeFirst();
+        if (mPids.release(pidId)) {
+            mPidIndex.set(pidId, null);
+        }
+        int tagId = mTagIds[slot];
+        mTagIndex.get(tagId).removeFirst();
+        if (mTags.release(tagId)) {
+            mTagIndex.set(tagId, null);
+        }
+        mAppNames.release(mAppNameIds[slot]);
+        mTimes[slot] = null;
+        mMessages[slot] = null;
+    }
+
+    /** Returns the number of messages in the store. */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /** Returns the maximum number of messages retained by the store. */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /** Removes all the messages from the store. */
+    public synchronized void clear() {
+        mHead = 0;
+        mSize = 0;
+        Arrays.fill(mTimes, null);
+        Arrays.fill(mMessages, null);
+        mPids.clear();
+        mAppNames.clear();
+        mTags.clear();
+        mPidIndex.clear();
+        mTagIndex.clear();
+    }
+
+    /**
+     * Returns the number of ids in use by the tables of interned values, including the ids
+     * freed for reuse.
+     */
+    @VisibleForTesting
+    synchronized int getInternedIdCount() {
+        return mPids.size() + mAppNames.size() + mTags.size();
+    }
+
+    /** Returns all the messages in the store, oldest first. */
+    @NonNull
+    public synchronized List<LogCatMessage> getMessages() {
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>(mSize);
+        for (int i = 0, slot = mHead ; i < mSize ; i++, slot = next(slot)) {
+            messages.add(createMessage(slot));
+        }
+        return messages;
+    }
+
+    /**
+     * Returns the messages matching a filter, oldest first.
+     */
+    @NonNull
+    public List<LogCatMessage> getMessages(@NonNull LogCatFilter filter) {
+        return getMessages(Collections.singletonList(filter));
+    }
+
+    /**
+     * Returns the messages matching all the given filters, oldest first. This is typically used
+     * with the filters created by {@link LogCatFilter#fromString(String, LogLevel)}.
+     */
+    @NonNull
+    public synchronized List<LogCatMessage> getMessages(@NonNull List<LogCatFilter> filters) {
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+
+        // per filter, the result of the tag and app name regexes for each interned value:
+        // 0 if not evaluated yet, 1 if it matches and 2 if it doesn't.
+        int filterCount = filters.size();
+        byte[][] tagMatches = new byte[filterCount][mTags.size()];
+        byte[][] appNameMatches = new byte[filterCount][mAppNames.size()];
+
+        int[] candidates = findCandidates(filters, tagMatches);
+        int count = candidates != null ? candidates.length : mSize;
+        for (int i = 0 ; i < count ; i++) {
+            int slot = candidates != null ? candidates[i] : (mHead + i) % mCapacity;
+            if (matches(slot, filters, tagMatches, appNameMatches)) {
+                messages.add(createMessage(slot));
+            }
+        }
+
+        return messages;
+    }
+
+    /**
+     * Uses the indexes to find the slots of the messages that may match the filters.
+     * @return the slots, oldest first, or null if all the messages must be checked.
+     */
+    private int[] findCandidates(List<LogCatFilter> filters, byte[][] tagMatches) {
+        IntQueue best = null;
+        for (LogCatFilter filter : filters) {
+            if (filter.checksPid()) {
+                int pidId = mPids.get(filter.getPid());
+                if (pidId == -1) {
+                    return new int[0];
+                }
+                IntQueue queue = mPidIndex.get(pidId);
+                if (best == null || queue.size() < best.size()) {
+                    best = queue;
+                }
+            }
+        }
+        if (best != null) {
+            return best.toArray();
+        }
+
+        // union of the messages with a matching tag, for the first filter on tags.
+        for (int f = 0 ; f < filters.size() ; f++) {
+            LogCatFilter filter = filters.get(f);
+            if (!filter.checksTag()) {
+                continue;
+            }
+
+            List<IntQueue> queues = new ArrayList<IntQueue>();
+            int total = 0;
+            for (int tagId = 0 ; tagId < mTags.size() ; tagId++) {
+                IntQueue queue = mTagIndex.get(tagId);
+                if (queue != null && queue.size() > 0
+                        && matchesTag(filter, f, tagId, tagMatches)) {
+                    queues.add(queue);
+                    total += queue.size();
+                }
+            }
+
+            if (total > mSize / 2) {
+                // not worth it, scan everything.
+                return null;
+            }
+            return mergeByAge(queues, total);
+        }
+
+        return null;
+    }
+
+    /** Merges slot queues, each ordered oldest first, into a single array ordered the same way. */
+    private int[] mergeByAge(List<IntQueue> queues, int total) {
+        int[] slots = new int[total];
+        int index = 0;
+        for (IntQueue queue : queues) {
+            for (int i = 0 ; i < queue.size() ; i++) {
+                // store the age, relative to the head, so that sorting orders by age
+                slots[index++] = (queue.get(i) - mHead + mCapacity) % mCapacity;
+            }
+        }
+        Arrays.sort(slots);
+        for (int i = 0 ; i < total ; i++) {
+            slots[i] = (slots[i] + mHead) % mCapacity;
+        }
+        return slots;
+    }
+
+    private boolean matches(int slot, List<LogCatFilter> filters, byte[][] tagMatches,
+            byte[][] appNameMatches) {
+        LogLevel logLevel = LOG_LEVELS[mLogLevels[slot]];
+        for (int f = 0 ; f < filters.size() ; f++) {
+            LogCatFilter filter = filters.get(f);
+            if (!filter.matchesLogLevel(logLevel)
+                    || !filter.matchesPid(mPids.getString(mPidIds[slot]))
+                    || !matchesTag(filter, f, mTagIds[slot], tagMatches)
+                    || !matchesAppName(filter, f, mAppNameIds[slot], appNameMatches)
+                    || !filter.matchesText(mMessages[slot])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesTag(LogCatFilter filter, int filterIndex, int tagId,
+            byte[][] tagMatches) {
+        byte[] cache = tagMatches[filterIndex];
+        if (cache[tagId] == 0) {
+            cache[tagId] = filter.matchesTag(mTags.getString(tagId)) ? (byte) 1 : (byte) 2;
+        }
+        return cache[tagId] == 1;
+    }
+
+    private boolean matchesAppName(LogCatFilter filter, int filterIndex, int appNameId,
+            byte[][] appNameMatches) {
+        byte[] cache = appNameMatches[filterIndex];
+        if (cache[appNameId] == 0) {
+            cache[appNameId] = filter.matchesAppName(mAppNames.getString(appNameId)) ?
+                    (byte) 1 : (byte) 2;
+        }
+        return cache[appNameId] == 1;
+    }
+
+    private LogCatMessage createMessage(int slot) {
+        return new LogCatMessage(LOG_LEVELS[mLogLevels[slot]],
+                mPids.getString(mPidIds[slot]),
+                Long.toString(mTids[slot]),
+                mAppNames.getString(mAppNameIds[slot]),
+                mTags.getString(mTagIds[slot]),
+                mTimes[slot],
+                mTimestamps[slot],
+                mMessages[slot]);
+    }
+
+    private int next(int slot) {
+        return slot + 1 == mCapacity ? 0 : slot + 1;
+    }
+
+    private static long parseTid(String tid) {
+        // LogCatMessage stores tids in radix 10.
+        try {
+            return Long.parseLong(tid);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static IntQueue getQueue(List<IntQueue> index, int id) {
+        while (index.size() <= id) {
+            index.add(null);
+        }
+        IntQueue queue = index.get(id);
+        if (queue == null) {
+            queue = new IntQueue();
+            index.set(id, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * Interns strings, giving each distinct value a small int id. The values are reference
+     * counted, and the id of a value that is no longer referenced is reused for the next new
+     * value.
+     */
+    private static final class StringTable {
+        private final Map<String, Integer> mIds = new HashMap<String, Integer>();
+        private final List<String> mStrings = new ArrayList<String>();
+        private int[] mRefCounts = new int[16];
+        private final IntQueue mFreeIds = new IntQueue();
+
+        /** Returns the id of a string, and adds a reference to it. */
+        int intern(String s) {
+            Integer id = mIds.get(s);
+            if (id == null) {
+                if (mFreeIds.size() > 0) {
+                    id = mFreeIds.removeFirst();
+                    mStrings.set(id, s);
+                } else {
+                    id = mStrings.size();
+                    mStrings.add(s);
+                    if (id == mRefCounts.length) {
+                        mRefCounts = Arrays.copyOf(mRefCounts, id * 2);
+                    }
+                }
+                mIds.put(s, id);
+            }
+            mRefCounts[id]++;
+            return id;
+        }
+
+        /**
+         * Removes a reference to the string with the given id.
+         * @return true if the string is no longer referenced, and its id was freed.
+         */
+        boolean release(int id) {
+            if (--mRefCounts[id] > 0) {
+                return false;
+            }
+            mIds.remove(mStrings.get(id));
+            mStrings.set(id, null);
+            mFreeIds.add(id);
+            return true;
+        }
+
+        /** Returns the id of a string, or -1 if it was never interned. */
+        int get(String s) {
+            Integer id = mIds.get(s);
+            return id != null ? id : -1;
+        }
+
+        String getString(int id) {
+            return mStrings.get(id);
+        }
+
+        /** Returns the number of ids, including the freed ones. */
+        int size() {
+            return mStrings.size();
+        }
+
+        void clear() {
+            mIds.clear();
+            mStrings.clear();
+            mRefCounts = new int[16];
+            mFreeIds.clear();
+        }
+    }
+
+    /** Growable FIFO queue of ints, which shrinks back as values are removed. */
+    private static final class IntQueue {
+        private static final int MIN_CAPACITY = 16;
+
+        private int[] mValues = new int[MIN_CAPACITY];
+        private int mFirst = 0;
+        private int mCount = 0;
+
+        void add(int value) {
+            if (mCount == mValues.length) {
+                resize(mValues.length * 2);
+            }
+            mValues[(mFirst + mCount) % mValues.length] = value;
+            mCount++;
+        }
+
+        int removeFirst() {
+            int value = mValues[mFirst];
+            mFirst = (mFirst + 1) % mValues.length;
+            mCount--;
+            if (mValues.length > MIN_CAPACITY && mCount <= mValues.length / 4) {
+                resize(mValues.length / 2);
+            }
+            return value;
+        }
+
+        private void resize(int length) {
+            int[] values = new int[length];
+            for (int i = 0 ; i < mCount ; i++) {
+                values[i] = get(i);
+            }
+            mValues = values;
+            mFirst = 0;
+        }
+
+        int get(int index) {
+            return mValues[(mFirst + index) % mValues.length];
+        }
+
+        int size() {
+            return mCount;
+        }
+
+        void clear() {
+            mValues = new int[MIN_CAPACITY];
+            mFirst = 0;
+            mCount = 0;
+        }
+
+        int[] toArray() {
+            int[] values = new int[mCount];
+            for (int i = 0 ; i < mCount ; i++) {
+                values[i] = get(i);
+            }
+            return values;
+        }
+    }
+}
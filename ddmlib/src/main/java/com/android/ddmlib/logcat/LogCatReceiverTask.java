@@ -19,14 +19,18 @@ package com.android.ddmlib.logcat;
 import com.android.annotations.NonNull;
 import com.android.annotations.concurrency.GuardedBy;
 import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.ByteLineReceiver;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log.LogLevel;
-import com.android.ddmlib.MultiLineReceiver;
 import com.android.ddmlib.ShellCommandUnresponsiveException;
 import com.android.ddmlib.TimeoutException;
+import com.android.ddmlib.log.LogReceiver;
+import com.android.ddmlib.log.LogReceiver.ILogListener;
+import com.android.ddmlib.log.LogReceiver.LogEntry;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -35,6 +39,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 public class LogCatReceiverTask implements Runnable {
     private static final String LOGCAT_COMMAND = "logcat -v long"; //$NON-NLS-1$
+    private static final String BINARY_LOG_NAME = "main"; //$NON-NLS-1$
     private static final int DEVICE_POLL_INTERVAL_MSEC = 1000;
 
     private static final LogCatMessage sDeviceDisconnectedMsg =
@@ -48,16 +53,33 @@ public class LogCatReceiverTask implements Runnable {
     private final LogCatOutputReceiver mReceiver;
     private final LogCatMessageParser mParser;
     private final AtomicBoolean mCancelled;
+    private final boolean mUseBinaryFormat;
+    private final LogReceiver mBinaryReceiver;
 
     @GuardedBy("this")
     private final Set<LogCatListener> mListeners = new HashSet<LogCatListener>();
 
     public LogCatReceiverTask(@NonNull IDevice device) {
+        this(device, false);
+    }
+
+    /**
+     * Creates a task receiving the logcat output of a device.
+     * @param device the device to read the log from
+     * @param useBinaryFormat whether to read the binary entries of the device's main log buffer
+     *            instead of parsing the text output of {@code logcat -v long}. This avoids
+     *            parsing and keeps the full timestamp precision, but only covers the main
+     *            buffer. If the device does not provide the binary log service, the task falls
+     *            back to the text output.
+     */
+    public LogCatReceiverTask(@NonNull IDevice device, boolean useBinaryFormat) {
         mDevice = device;
+        mUseBinaryFormat = useBinaryFormat;
 
         mReceiver = new LogCatOutputReceiver();
         mParser = new LogCatMessageParser();
         mCancelled = new AtomicBoolean();
+        mBinaryReceiver = useBinaryFormat ? new LogReceiver(new LogCatEntryListener()) : null;
     }
 
     @Override
@@ -72,7 +94,9 @@ public class LogCatReceiverTask implements Runnable {
         }
 
         try {
-            mDevice.executeShellCommand(LOGCAT_COMMAND, mReceiver, 0);
+            if (!mUseBinaryFormat || !runBinaryLogService()) {
+                mDevice.executeShellCommand(LOGCAT_COMMAND, mReceiver, 0);
+            }
         } catch (TimeoutException e) {
             notifyListeners(Collections.singletonList(sConnectionTimeoutMsg));
         } catch (AdbCommandRejectedException ignored) {
@@ -86,15 +110,47 @@ public class LogCatReceiverTask implements Runnable {
         notifyListeners(Collections.singletonList(sDeviceDisconnectedMsg));
     }
 
+    /**
+     * Reads the binary log entries of the device.
+     * @return false if the device does not provide the binary log service.
+     */
+    private boolean runBinaryLogService() throws TimeoutException, IOException {
+        try {
+            mDevice.runLogService(BINARY_LOG_NAME, mBinaryReceiver);
+            return true;
+        } catch (AdbCommandRejectedException e) {
+            // not supported by this device, use the text output instead.
+            return false;
+        }
+    }
+
     public void stop() {
         mCancelled.set(true);
+        if (mBinaryReceiver != null) {
+            mBinaryReceiver.cancel();
+        }
     }
 
-    private class LogCatOutputReceiver extends MultiLineReceiver {
-        public LogCatOutputReceiver() {
-            setTrimLine(false);
+    private class LogCatEntryListener implements ILogListener {
+        private final LogCatBinaryParser mBinaryParser = new LogCatBinaryParser();
+
+        @Override
+        public void newEntry(LogEntry entry) {
+            if (!mCancelled.get()) {
+                notifyListeners(mBinaryParser.processLogEntry(entry, mDevice));
+            }
         }
 
+        @Override
+        public void newData(byte[] data, int offset, int length) {
+            // only complete entries are of interest.
+        }
+    }
+
+    private class LogCatOutputReceiver extends ByteLineReceiver {
+        /** messages parsed from the current packet, handed to the listeners once it's done. */
+        private List<LogCatMessage> mNewMessages = new ArrayList<LogCatMessage>();
+
         /** Implements {@link IShellOutputReceiver#isCancelled() }. */
         @Override
         public boolean isCancelled() {
@@ -102,17 +158,27 @@ public class LogCatReceiverTask implements Runnable {
         }
 
         @Override
-        public void processNewLines(String[] lines) {
-            if (!mCancelled.get()) {
-                processLogLines(lines);
+        protected void processLine(byte[] data, int offset, int length) {
+            LogCatMessage message = mParser.processLogLine(data, offset, length, mDevice);
+            if (message != null) {
+                mNewMessages.add(message);
             }
         }
 
-        private void processLogLines(String[] lines) {
-            List<LogCatMessage> newMessages = mParser.processLogLines(lines, mDevice);
-            if (!newMessages.isEmpty()) {
-                notifyListeners(newMessages);
+        @Override
+        protected void batchDone() {
+            if (mNewMessages.isEmpty()) {
+                return;
             }
+            if (mCancelled.get()) {
+                mNewMessages.clear();
+                return;
+            }
+
+            // listeners may hold on to the list, so it can't be reused.
+            List<LogCatMessage> newMessages = mNewMessages;
+            mNewMessages = new ArrayList<LogCatMessage>();
+            notifyListeners(newMessages);
         }
     }
 
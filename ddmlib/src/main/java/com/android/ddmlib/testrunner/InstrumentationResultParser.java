@@ -16,19 +16,21 @@
 
 package com.android.ddmlib.testrunner;
 
+import com.android.ddmlib.ByteLineReceiver;
+import com.android.ddmlib.DdmPreferences;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log;
-import com.android.ddmlib.MultiLineReceiver;
+import com.android.ddmlib.Log.LogLevel;
+import com.google.common.base.Charsets;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Parses the 'raw output mode' results of an instrumentation test run from shell and informs a
@@ -64,8 +66,14 @@ import java.util.regex.Pattern;
  * Time: X
  * </pre>
  * <p>Note that the "value" portion of the key-value pair may wrap over several text lines
+ *
+ * <p>The output is parsed as raw bytes, line by line, as it is received from the device. Only
+ * the values that are reported to the listeners are decoded, and the values of the status keys
+ * that are not used (such as the <code>stream</code> output of each test) are skipped without
+ * being copied. The amount of output retained for a single test, in stack traces and metrics,
+ * can be bounded with {@link #setMaxRetainedOutput(int)}.
  */
-public class InstrumentationResultParser extends MultiLineReceiver {
+public class InstrumentationResultParser extends ByteLineReceiver {
 
     /** Relevant test status keys. */
     private static class StatusKeys {
@@ -92,6 +100,30 @@ public class InstrumentationResultParser extends MultiLineReceiver {
         KNOWN_KEYS.add("current");
     }
 
+    /** The known status keys, as bytes. */
+    private static final byte[][] KNOWN_KEY_BYTES = new byte[KNOWN_KEYS.size()][];
+    private static final String[] KNOWN_KEY_NAMES = KNOWN_KEYS.toArray(new String[0]);
+    static {
+        for (int i = 0; i < KNOWN_KEY_NAMES.length; i++) {
+            KNOWN_KEY_BYTES[i] = KNOWN_KEY_NAMES[i].getBytes(Charsets.UTF_8);
+        }
+    }
+
+    /** Status keys whose value is never used, and is skipped without being retained. */
+    private static final Set<String> SKIPPED_KEYS = new HashSet<String>();
+    static {
+        SKIPPED_KEYS.add("stream");
+        SKIPPED_KEYS.add("id");
+        SKIPPED_KEYS.add("current");
+    }
+
+    /** Metric reporting the duration of a test, when enabled with
+     * {@link #setReportTestDuration(boolean)}. */
+    public static final String TEST_DURATION_METRIC = "testDurationMs";
+
+    /** Appended to the values cut by {@link #setMaxRetainedOutput(int)}. */
+    static final String TRUNCATED_OUTPUT_MARKER = "\r\n[output truncated]";
+
     /** Test result status codes. */
     private static class StatusCodes {
         private static final int START = 1;
@@ -107,12 +139,16 @@ public class InstrumentationResultParser extends MultiLineReceiver {
 
     /** Prefixes used to identify output. */
     private static class Prefixes {
-        private static final String STATUS = "INSTRUMENTATION_STATUS: ";
-        private static final String STATUS_CODE = "INSTRUMENTATION_STATUS_CODE: ";
-        private static final String STATUS_FAILED = "INSTRUMENTATION_FAILED: ";
-        private static final String CODE = "INSTRUMENTATION_CODE: ";
-        private static final String RESULT = "INSTRUMENTATION_RESULT: ";
-        private static final String TIME_REPORT = "Time: ";
+        private static final byte[] STATUS = getBytes("INSTRUMENTATION_STATUS: ");
+        private static final byte[] STATUS_CODE = getBytes("INSTRUMENTATION_STATUS_CODE: ");
+        private static final byte[] STATUS_FAILED = getBytes("INSTRUMENTATION_FAILED: ");
+        private static final byte[] CODE = getBytes("INSTRUMENTATION_CODE: ");
+        private static final byte[] RESULT = getBytes("INSTRUMENTATION_RESULT: ");
+        private static final byte[] TIME_REPORT = getBytes("Time: ");
+
+        private static byte[] getBytes(String prefix) {
+            return prefix.getBytes(Charsets.UTF_8);
+        }
     }
 
     private final Collection<ITestRunListener> mTestListeners;
@@ -162,8 +198,40 @@ public class InstrumentationResultParser extends MultiLineReceiver {
     /** Stores the current "key" portion of the status key-value being parsed. */
     private String mCurrentKey = null;
 
-    /** Stores the current "value" portion of the status key-value being parsed. */
-    private StringBuilder mCurrentValue = null;
+    /**
+     * Stores the current "value" portion of the status key-value being parsed. Only valid if
+     * {@link #mInValue} is true.
+     */
+    private byte[] mCurrentValue = new byte[256];
+    private int mCurrentValueLength = 0;
+
+    /** True if a status value is being parsed, and continuation lines belong to it. */
+    private boolean mInValue = false;
+
+    /** True if the value being parsed is not retained. */
+    private boolean mSkipValue = false;
+
+    /** Maximum length of the value being parsed, after which it is truncated. */
+    private int mCurrentValueLimit = Integer.MAX_VALUE;
+
+    /** True if the value being parsed went over {@link #mCurrentValueLimit}. */
+    private boolean mCurrentValueTruncated = false;
+
+    /** Maximum number of bytes of stack trace and metrics retained for a test. */
+    private int mMaxRetainedOutput = Integer.MAX_VALUE;
+
+    /** Number of bytes of stack trace and metrics retained for the current test. */
+    private int mRetainedOutput = 0;
+
+    /** Whether to add {@link #TEST_DURATION_METRIC} to the metrics of the tests. */
+    private boolean mReportTestDuration = false;
+
+    /** Time the current test was reported as started, in milliseconds. */
+    private long mTestStartTime = -1;
+
+    /** Last decoded test class and test names, reused while the same test is reported. */
+    private final DecodedValue mLastTestClass = new DecodedValue();
+    private final DecodedValue mLastTestName = new DecodedValue();
 
     /** True if start of test has already been reported to listener. */
     private boolean mTestStartReported = false;
@@ -237,16 +305,56 @@ public class InstrumentationResultParser extends MultiLineReceiver {
     }
 
     /**
-     * Processes the instrumentation test output from shell.
+     * Sets the maximum number of bytes of stack trace and metrics retained for a single test.
+     * The values going over the limit are truncated.
+     * <p/>By default, there is no limit.
+     * @param maxRetainedOutput the maximum number of bytes.
+     */
+    public void setMaxRetainedOutput(int maxRetainedOutput) {
+        mMaxRetainedOutput = maxRetainedOutput;
+    }
+
+    /**
+     * Sets whether the duration of each test, measured from the reception of its start and end
+     * status, is added to the test metrics as {@link #TEST_DURATION_METRIC}.
+     * <p/>By default, the duration is not reported.
+     */
+    public void setReportTestDuration(boolean reportTestDuration) {
+        mReportTestDuration = reportTestDuration;
+    }
+
+    /**
+     * Processes lines of instrumentation test output.
      *
-     * @see MultiLineReceiver#processNewLines
+     * @param lines the lines, without their line terminators.
      */
-    @Override
     public void processNewLines(String[] lines) {
         for (String line : lines) {
-            parse(line);
-            // in verbose mode, dump all adb output to log
-            Log.v(LOG_TAG, line);
+            byte[] data = line.getBytes(Charsets.UTF_8);
+            processLine(data, 0, data.length);
+        }
+    }
+
+    /**
+     * Processes a line of instrumentation test output from shell.
+     */
+    @Override
+    protected void processLine(byte[] data, int offset, int length) {
+        // ignore the whitespace around the line, like String.trim().
+        int start = offset;
+        int end = offset + length;
+        while (start < end && (data[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (data[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+
+        parse(data, start, end);
+
+        // in verbose mode, dump all adb output to log
+        if (DdmPreferences.getLogLevel() == LogLevel.VERBOSE) {
+            Log.v(LOG_TAG, new String(data, start, end - start, Charsets.UTF_8));
         }
     }
 
@@ -268,65 +376,115 @@ public class InstrumentationResultParser extends MultiLineReceiver {
      *
      * @param line  Text output line
      */
-    private void parse(String line) {
-        if (line.startsWith(Prefixes.STATUS_CODE)) {
+    private void parse(byte[] data, int start, int end) {
+        if (startsWith(data, start, end, Prefixes.STATUS_CODE)) {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = false;
-            parseStatusCode(line);
-        } else if (line.startsWith(Prefixes.STATUS)) {
+            parseStatusCode(data, start + Prefixes.STATUS_CODE.length, end);
+        } else if (startsWith(data, start, end, Prefixes.STATUS)) {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = false;
-            parseKey(line, Prefixes.STATUS.length());
-        } else if (line.startsWith(Prefixes.RESULT)) {
+            parseKey(data, start + Prefixes.STATUS.length, end);
+        } else if (startsWith(data, start, end, Prefixes.RESULT)) {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = true;
-            parseKey(line, Prefixes.RESULT.length());
-        } else if (line.startsWith(Prefixes.STATUS_FAILED) ||
-                   line.startsWith(Prefixes.CODE)) {
+            parseKey(data, start + Prefixes.RESULT.length, end);
+        } else if (startsWith(data, start, end, Prefixes.STATUS_FAILED) ||
+                   startsWith(data, start, end, Prefixes.CODE)) {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = false;
             // these codes signal the end of the instrumentation run
             mTestRunFinished = true;
             // just ignore the remaining data on this line
-        } else if (line.startsWith(Prefixes.TIME_REPORT)) {
-            parseTime(line);
+        } else if (startsWith(data, start, end, Prefixes.TIME_REPORT)) {
+            parseTime(data, start, end);
         } else {
-            if (mCurrentValue != null) {
+            if (mInValue) {
                 // this is a value that has wrapped to next line.
-                mCurrentValue.append("\r\n");
-                mCurrentValue.append(line);
-            } else if (!line.trim().isEmpty()) {
-                Log.d(LOG_TAG, "unrecognized line " + line);
+                if (!mSkipValue) {
+                    appendValue(CRLF, 0, CRLF.length);
+                    appendValue(data, start, end - start);
+                }
+            } else if (end > start) {
+                Log.d(LOG_TAG, "unrecognized line "
+                        + new String(data, start, end - start, Charsets.UTF_8));
             }
         }
     }
 
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private static boolean startsWith(byte[] data, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends data to the current value, up to {@link #mCurrentValueLimit}.
+     */
+    private void appendValue(byte[] data, int offset, int length) {
+        int available = mCurrentValueLimit - mCurrentValueLength;
+        if (length > available) {
+            length = Math.max(available, 0);
+            mCurrentValueTruncated = true;
+        }
+        if (mCurrentValueLength + length > mCurrentValue.length) {
+            mCurrentValue = Arrays.copyOf(mCurrentValue,
+                    Math.max(mCurrentValue.length * 2, mCurrentValueLength + length));
+        }
+        System.arraycopy(data, offset, mCurrentValue, mCurrentValueLength, length);
+        mCurrentValueLength += length;
+    }
+
+    /**
+     * Returns the current value as a String.
+     */
+    private String getCurrentValue() {
+        String value = new String(mCurrentValue, 0, mCurrentValueLength, Charsets.UTF_8);
+        if (mCurrentValueTruncated) {
+            value += TRUNCATED_OUTPUT_MARKER;
+        }
+        return value;
+    }
+
     /**
      * Stores the currently parsed key-value pair in the appropriate place.
      */
     private void submitCurrentKeyValue() {
-        if (mCurrentKey != null && mCurrentValue != null) {
-            String statusValue = mCurrentValue.toString();
-            if (mInInstrumentationResultKey) {
+        if (mCurrentKey != null && mInValue) {
+            if (mSkipValue) {
+                // nothing to store.
+            } else if (mInInstrumentationResultKey) {
                 if (!KNOWN_KEYS.contains(mCurrentKey)) {
-                    mInstrumentationResultBundle.put(mCurrentKey, statusValue);
+                    mInstrumentationResultBundle.put(mCurrentKey, getCurrentValue());
+                    mRetainedOutput += mCurrentValueLength;
                 } else if (mCurrentKey.equals(StatusKeys.SHORTMSG)) {
                     // test run must have failed
                     handleTestRunFailed(String.format("Instrumentation run failed due to '%1$s'",
-                            statusValue));
+                            getCurrentValue()));
                 }
             } else {
                 TestResult testInfo = getCurrentTestInfo();
 
                 if (mCurrentKey.equals(StatusKeys.CLASS)) {
-                    testInfo.mTestClass = statusValue.trim();
+                    testInfo.mTestClass = mLastTestClass.decode(mCurrentValue,
+                            mCurrentValueLength);
                 } else if (mCurrentKey.equals(StatusKeys.TEST)) {
-                    testInfo.mTestName = statusValue.trim();
+                    testInfo.mTestName = mLastTestName.decode(mCurrentValue,
+                            mCurrentValueLength);
                 } else if (mCurrentKey.equals(StatusKeys.NUMTESTS)) {
+                    String statusValue = getCurrentValue();
                     try {
                         testInfo.mNumTests = Integer.parseInt(statusValue);
                     } catch (NumberFormatException e) {
@@ -335,17 +493,19 @@ public class InstrumentationResultParser extends MultiLineReceiver {
                     }
                 } else if (mCurrentKey.equals(StatusKeys.ERROR)) {
                     // test run must have failed
-                    handleTestRunFailed(statusValue);
+                    handleTestRunFailed(getCurrentValue());
                 } else if (mCurrentKey.equals(StatusKeys.STACK)) {
-                    testInfo.mStackTrace = statusValue;
+                    testInfo.mStackTrace = getCurrentValue();
+                    mRetainedOutput += mCurrentValueLength;
                 } else if (!KNOWN_KEYS.contains(mCurrentKey)) {
                     // Not one of the recognized key/value pairs, so dump it in mTestMetrics
-                    mTestMetrics.put(mCurrentKey, statusValue);
+                    mTestMetrics.put(mCurrentKey, getCurrentValue());
+                    mRetainedOutput += mCurrentValueLength;
                 }
             }
 
             mCurrentKey = null;
-            mCurrentValue = null;
+            mInValue = false;
         }
     }
 
@@ -356,6 +516,11 @@ public class InstrumentationResultParser extends MultiLineReceiver {
     private Map<String, String> getAndResetTestMetrics() {
         Map<String, String> retVal = mTestMetrics;
         mTestMetrics = new HashMap<String, String>();
+        if (mReportTestDuration && mTestStartTime >= 0) {
+            retVal.put(TEST_DURATION_METRIC,
+                    Long.toString(System.currentTimeMillis() - mTestStartTime));
+        }
+        mTestStartTime = -1;
         return retVal;
     }
 
@@ -369,45 +534,75 @@ public class InstrumentationResultParser extends MultiLineReceiver {
     private void clearCurrentTestInfo() {
         mLastTestResult = mCurrentTestResult;
         mCurrentTestResult = null;
+        mRetainedOutput = 0;
     }
 
     /**
      * Parses the key from the current line.
      * Expects format of "key=value".
      *
-     * @param line full line of text to parse
-     * @param keyStartPos the starting position of the key in the given line
+     * @param data the line to parse
+     * @param keyStart the starting position of the key in the given line
+     * @param end the end of the line
      */
-    private void parseKey(String line, int keyStartPos) {
-        int endKeyPos = line.indexOf('=', keyStartPos);
-        if (endKeyPos != -1) {
-            mCurrentKey = line.substring(keyStartPos, endKeyPos).trim();
-            parseValue(line, endKeyPos + 1);
+    private void parseKey(byte[] data, int keyStart, int end) {
+        int endKey = keyStart;
+        while (endKey < end && data[endKey] != '=') {
+            endKey++;
+        }
+        if (endKey == end) {
+            return;
+        }
+
+        mCurrentKey = getKey(data, keyStart, endKey);
+
+        // start the value.
+        mInValue = true;
+        mSkipValue = SKIPPED_KEYS.contains(mCurrentKey);
+        mCurrentValueLength = 0;
+        mCurrentValueTruncated = false;
+        if (mCurrentKey.equals(StatusKeys.STACK) || !KNOWN_KEYS.contains(mCurrentKey)) {
+            mCurrentValueLimit = Math.max(mMaxRetainedOutput - mRetainedOutput, 0);
+        } else {
+            mCurrentValueLimit = Integer.MAX_VALUE;
+        }
+        if (!mSkipValue) {
+            appendValue(data, endKey + 1, end - endKey - 1);
         }
     }
 
     /**
-     * Parses the start of a key=value pair.
-     *
-     * @param line - full line of text to parse
-     * @param valueStartPos - the starting position of the value in the given line
+     * Returns the trimmed key found in the given range, using the constant string if the key
+     * is a known one.
      */
-    private void parseValue(String line, int valueStartPos) {
-        mCurrentValue = new StringBuilder();
-        mCurrentValue.append(line.substring(valueStartPos));
+    private static String getKey(byte[] data, int start, int end) {
+        while (start < end && (data[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (data[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+        for (int i = 0; i < KNOWN_KEY_BYTES.length; i++) {
+            byte[] key = KNOWN_KEY_BYTES[i];
+            if (key.length == end - start && startsWith(data, start, end, key)) {
+                return KNOWN_KEY_NAMES[i];
+            }
+        }
+        return new String(data, start, end - start, Charsets.UTF_8);
     }
 
     /**
      * Parses out a status code result.
      */
-    private void parseStatusCode(String line) {
-        String value = line.substring(Prefixes.STATUS_CODE.length()).trim();
+    private void parseStatusCode(byte[] data, int start, int end) {
         TestResult testInfo = getCurrentTestInfo();
         testInfo.mCode = StatusCodes.ERROR;
-        try {
-            testInfo.mCode = Integer.parseInt(value);
-        } catch (NumberFormatException e) {
-            Log.w(LOG_TAG, "Expected integer status code, received: " + value);
+        Integer code = parseInt(data, start, end);
+        if (code != null) {
+            testInfo.mCode = code;
+        } else {
+            Log.w(LOG_TAG, "Expected integer status code, received: "
+                    + new String(data, start, end - start, Charsets.UTF_8).trim());
             testInfo.mCode = StatusCodes.ERROR;
         }
         if (testInfo.mCode != StatusCodes.IN_PROGRESS) {
@@ -417,6 +612,39 @@ public class InstrumentationResultParser extends MultiLineReceiver {
         }
     }
 
+    /**
+     * Parses a trimmed, optionally signed, decimal integer.
+     * @return the value, or null if the range does not hold an integer.
+     */
+    private static Integer parseInt(byte[] data, int start, int end) {
+        while (start < end && (data[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        boolean negative = false;
+        if (start < end && (data[start] == '-' || data[start] == '+')) {
+            negative = data[start] == '-';
+            start++;
+        }
+        if (start == end || end - start > 9) {
+            // empty, or possibly too large for an int: let the slow path decide.
+            try {
+                String value = new String(data, start, end - start, Charsets.UTF_8);
+                return Integer.parseInt(negative ? "-" + value : value);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return null;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
     /**
      * Returns true if test run canceled.
      *
@@ -451,6 +679,7 @@ public class InstrumentationResultParser extends MultiLineReceiver {
 
         switch (testInfo.mCode) {
             case StatusCodes.START:
+                mTestStartTime = System.currentTimeMillis();
                 for (ITestRunListener listener : mTestListeners) {
                     listener.testStarted(testId);
                 }
@@ -540,20 +769,28 @@ public class InstrumentationResultParser extends MultiLineReceiver {
     /**
      * Parses out and store the elapsed time.
      */
-    private void parseTime(String line) {
-        final Pattern timePattern = Pattern.compile(String.format("%s\\s*([\\d\\.]+)",
-                Prefixes.TIME_REPORT));
-        Matcher timeMatcher = timePattern.matcher(line);
-        if (timeMatcher.find()) {
-            String timeString = timeMatcher.group(1);
+    private void parseTime(byte[] data, int start, int end) {
+        int timeStart = start + Prefixes.TIME_REPORT.length;
+        while (timeStart < end && (data[timeStart] & 0xFF) <= ' ') {
+            timeStart++;
+        }
+        int timeEnd = timeStart;
+        while (timeEnd < end && (data[timeEnd] == '.' || (data[timeEnd] >= '0'
+                && data[timeEnd] <= '9'))) {
+            timeEnd++;
+        }
+        if (timeEnd > timeStart) {
+            String timeString = new String(data, timeStart, timeEnd - timeStart, Charsets.UTF_8);
             try {
                 float timeSeconds = Float.parseFloat(timeString);
                 mTestTime = (long) (timeSeconds * 1000);
             } catch (NumberFormatException e) {
-                Log.w(LOG_TAG, String.format("Unexpected time format %1$s", line));
+                Log.w(LOG_TAG, String.format("Unexpected time format %1$s",
+                        new String(data, start, end - start, Charsets.UTF_8)));
             }
         } else {
-            Log.w(LOG_TAG, String.format("Unexpected time format %1$s", line));
+            Log.w(LOG_TAG, String.format("Unexpected time format %1$s",
+                    new String(data, start, end - start, Charsets.UTF_8)));
         }
     }
 
@@ -625,4 +862,25 @@ public class InstrumentationResultParser extends MultiLineReceiver {
             }
         }
     }
+
+    /**
+     * A decoded value, kept to avoid decoding the same bytes again. The start and end status of
+     * a test repeat its class and test names, and consecutive tests usually share their class.
+     */
+    private static final class DecodedValue {
+        private byte[] mBytes = new byte[0];
+        private String mValue = null;
+
+        /**
+         * Returns the trimmed string value of the given bytes.
+         */
+        String decode(byte[] data, int length) {
+            if (mValue == null || length != mBytes.length
+                    || !startsWith(data, 0, length, mBytes)) {
+                mBytes = Arrays.copyOf(data, length);
+                mValue = new String(data, 0, length, Charsets.UTF_8).trim();
+            }
+            return mValue;
+        }
+    }
 }
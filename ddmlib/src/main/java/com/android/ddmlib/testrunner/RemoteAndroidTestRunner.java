@@ -43,6 +43,8 @@ public class RemoteAndroidTestRunner implements IRemoteAndroidTestRunner  {
     private long mMaxTimeToOutputResponse = 0;
     private TimeUnit mMaxTimeUnits = TimeUnit.MILLISECONDS;
     private String mRunName = null;
+    private int mMaxRetainedOutput = Integer.MAX_VALUE;
+    private boolean mReportTestDuration = false;
 
     /** map of name-value instrumentation argument pairs */
     private Map<String, String> mArgMap;
@@ -215,6 +217,8 @@ public class RemoteAndroidTestRunner implements IRemoteAndroidTestRunner  {
                 mRemoteDevice.getName()));
         String runName = mRunName == null ? mPackageName : mRunName;
         mParser = new InstrumentationResultParser(runName, listeners);
+        mParser.setMaxRetainedOutput(mMaxRetainedOutput);
+        mParser.setReportTestDuration(mReportTestDuration);
 
         try {
             mRemoteDevice.executeShellCommand(runCaseCommandStr, mParser, mMaxTimeToOutputResponse,
@@ -261,6 +265,25 @@ public class RemoteAndroidTestRunner implements IRemoteAndroidTestRunner  {
         mRunOptions = options + " ";
     }
 
+    /**
+     * Sets the maximum number of bytes of stack trace and metrics retained for a single test.
+     * The values going over the limit are truncated.
+     * <p/>By default, there is no limit.
+     * @see InstrumentationResultParser#setMaxRetainedOutput(int)
+     */
+    public void setMaxRetainedOutput(int maxRetainedOutput) {
+        mMaxRetainedOutput = maxRetainedOutput;
+    }
+
+    /**
+     * Sets whether the duration of each test is added to the test metrics as
+     * {@link InstrumentationResultParser#TEST_DURATION_METRIC}.
+     * <p/>By default, the duration is not reported.
+     */
+    public void setReportTestDuration(boolean reportTestDuration) {
+        mReportTestDuration = reportTestDuration;
+    }
+
     @Override
     public void cancel() {
         if (mParser != null) {
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class AdbSelectorEngineTest extends TestCase {
+    private FakeAdbServer mServer;
+    private AdbSelectorEngine mEngine;
+    private Device mDevice;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeAdbServer();
+        mServer.start();
+        mEngine = AdbSelectorEngine.getInstance();
+        mDevice = new Device(null, "serial", IDevice.DeviceState.ONLINE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        AdbSelectorEngine.terminate();
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testShellCommand() throws Exception {
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        ListenableFuture<Void> future = mEngine.executeRemoteCommand(mServer.getAddress(),
+                "echo hello", mDevice, receiver, 0, null);
+        future.get(5, TimeUnit.SECONDS);
+
+        assertEquals("hello\n", receiver.getOutput());
+        assertEquals(2, mServer.getRequests().size());
+        assertEquals("host:transport:serial", mServer.getRequests().get(0));
+        assertEquals("shell:echo hello", mServer.getRequests().get(1));
+    }
+
+    public void testConcurrentShellCommands() throws Exception {
+        List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>();
+        List<CollectingOutputReceiver> receivers = new ArrayList<CollectingOutputReceiver>();
+        for (int i = 0; i < 20; i++) {
+            CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+            receivers.add(receiver);
+            futures.add(mEngine.executeRemoteCommand(mServer.getAddress(), "echo " + i, mDevice,
+                    receiver, 0, null));
+        }
+        for (int i = 0; i < 20; i++) {
+            futures.get(i).get(5, TimeUnit.SECONDS);
+            assertEquals(i + "\n", receivers.get(i).getOutput());
+        }
+    }
+
+    public void testRejectedDeviceSelection() throws Exception {
+        Device unknown = new Device(null, "unknown", IDevice.DeviceState.ONLINE);
+        ListenableFuture<Void> future = mEngine.executeRemoteCommand(mServer.getAddress(),
+                "echo hello", unknown, null, 0, null);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Expected AdbCommandRejectedException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AdbCommandRejectedException);
+            AdbCommandRejectedException rejected = (AdbCommandRejectedException) e.getCause();
+            assertEquals("device not found", rejected.getMessage());
+            assertTrue(rejected.wasErrorDuringDeviceSelection());
+        }
+    }
+
+    public void testUnresponsiveShellCommand() throws Exception {
+        ListenableFuture<Void> future = mEngine.executeRemoteCommand(mServer.getAddress(),
+                "sleep", mDevice, new CollectingOutputReceiver(), 100, TimeUnit.MILLISECONDS);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Expected ShellCommandUnresponsiveException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ShellCommandUnresponsiveException);
+        }
+    }
+
+    public void testHostRequest() throws Exception {
+        mEngine.executeHostRequest(mServer.getAddress(), "host-serial:serial:forward:tcp:1;tcp:2")
+                .get(5, TimeUnit.SECONDS);
+        assertEquals(Collections.singletonList("host-serial:serial:forward:tcp:1;tcp:2"),
+                mServer.getRequests());
+    }
+
+    public void testTrackDevices() throws Exception {
+        final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+        ListenableFuture<Void> future = mEngine.track(mServer.getAddress(), null,
+                "host:track-devices", new AdbSelectorEngine.ITrackingListener() {
+                    @Override
+                    public void messageReceived(String message) {
+                        messages.add(message);
+                    }
+                });
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Expected IOException");
+        } catch (ExecutionException e) {
+            // the fake server closes the connection after the messages.
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(2, messages.size());
+        assertEquals("serial\tdevice\n", messages.get(0));
+        assertEquals("", messages.get(1));
+    }
+
+    /**
+     * Minimal adb server: accepts a device selection for "serial", echoes the argument of
+     * "shell:echo" commands, never answers "shell:sleep", sends two device lists to
+     * "host:track-devices", and accepts any host request.
+     */
+    private static class FakeAdbServer extends Thread {
+        private final ServerSocket mSocket;
+        private final List<String> mRequests =
+                Collections.synchronizedList(new ArrayList<String>());
+
+        FakeAdbServer() throws IOException {
+            super("FakeAdbServer");
+            setDaemon(true);
+            mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        }
+
+        InetSocketAddress getAddress() {
+            return new InetSocketAddress(mSocket.getInetAddress(), mSocket.getLocalPort());
+        }
+
+        List<String> getRequests() {
+            return mRequests;
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Socket client;
+                try {
+                    client = mSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(client);
+                        } catch (IOException e) {
+                            // connection dropped by the engine.
+                        }
+                    }
+                }.start();
+            }
+        }
+
+        private void serve(Socket client) throws IOException {
+            try {
+                InputStream in = client.getInputStream();
+                OutputStream out = client.getOutputStream();
+                while (true) {
+                    String request = readRequest(in);
+                    mRequests.add(request);
+                    if (request.startsWith("host:transport:")) {
+                        if (!request.equals("host:transport:serial")) {
+                            out.write("FAIL0010device not found".getBytes("ISO-8859-1"));
+                            return;
+                        }
+                        out.write("OKAY".getBytes("ISO-8859-1"));
+                    } else if (request.startsWith("shell:echo ")) {
+                        out.write("OKAY".getBytes("ISO-8859-1"));
+                        out.write((request.substring("shell:echo ".length()) + "\n")
+                                .getBytes("ISO-8859-1"));
+                        return;
+                    } else if (request.equals("host:track-devices")) {
+                        out.write("OKAY".getBytes("ISO-8859-1"));
+                        // split a message across writes.
+                        out.write("00".getBytes("ISO-8859-1"));
+                        out.flush();
+                        out.write("0eserial\tdev".getBytes("ISO-8859-1"));
+                        out.flush();
+                        out.write("ice\n0000".getBytes("ISO-8859-1"));
+                        return;
+                    } else if (request.equals("shell:sleep")) {
+                        out.write("OKAY".getBytes("ISO-8859-1"));
+                        in.read(); // blocks until the engine gives up.
+                        return;
+                    } else {
+                        out.write("OKAY".getBytes("ISO-8859-1"));
+                        return;
+                    }
+                }
+            } finally {
+                client.close();
+            }
+        }
+
+        private static String readRequest(InputStream in) throws IOException {
+            byte[] length = readFully(in, 4);
+            return new String(readFully(in, Integer.parseInt(new String(length, "ISO-8859-1"), 16)),
+                    "ISO-8859-1");
+        }
+
+        private static byte[] readFully(InputStream in, int length) throws IOException {
+            byte[] data = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int count = in.read(data, offset, length - offset);
+                if (count < 0) {
+                    throw new IOException("EOF");
+                }
+                offset += count;
+            }
+            return data;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ByteLineReceiverTest extends TestCase {
+
+    private static class CollectingLineReceiver extends MultiLineReceiver {
+        final List<String> mLines = new ArrayList<String>();
+        int mBatches = 0;
+
+        CollectingLineReceiver() {
+            setTrimLine(false);
+        }
+
+        @Override
+        public void processNewLines(String[] lines) {
+            mBatches++;
+            mLines.addAll(Arrays.asList(lines));
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+
+    private static void send(IShellOutputReceiver receiver, String data) throws Exception {
+        byte[] bytes = ("garbage" + data).getBytes("UTF-8");
+        receiver.addOutput(bytes, 7, bytes.length - 7);
+    }
+
+    public void testSinglePacket() throws Exception {
+        CollectingLineReceiver receiver = new CollectingLineReceiver();
+        send(receiver, "one\r\ntwo\r\n");
+        assertEquals(Arrays.asList("one", "two"), receiver.mLines);
+        assertEquals(1, receiver.mBatches);
+    }
+
+    public void testLineSpanningPackets() throws Exception {
+        CollectingLineReceiver receiver = new CollectingLineReceiver();
+        send(receiver, "on");
+        send(receiver, "e\r");
+        send(receiver, "\ntw");
+        send(receiver, "o\r\nthree");
+        receiver.flush();
+        assertEquals(Arrays.asList("one", "two", "three"), receiver.mLines);
+    }
+
+    public void testLoneNewLine() throws Exception {
+        CollectingLineReceiver receiver = new CollectingLineReceiver();
+        send(receiver, "one\ntwo\r\n\n");
+        send(receiver, "\r\n");
+        assertEquals(Arrays.asList("one\ntwo", "\n"), receiver.mLines);
+    }
+
+    public void testLongLine() throws Exception {
+        CollectingLineReceiver receiver = new CollectingLineReceiver();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append(i % 10);
+            send(receiver, Integer.toString(i % 10));
+        }
+        send(receiver, "\r\n");
+        assertEquals(Arrays.asList(sb.toString()), receiver.mLines);
+    }
+
+    public void testMultiByteCharacterSpanningPackets() throws Exception {
+        CollectingLineReceiver receiver = new CollectingLineReceiver();
+        byte[] bytes = "caf\u00e9\r\n".getBytes("UTF-8");
+        receiver.addOutput(bytes, 0, 4);
+        receiver.addOutput(bytes, 4, bytes.length - 4);
+        assertEquals(Arrays.asList("caf\u00e9"), receiver.mLines);
+    }
+
+    public void testFlushEmitsLastLine() throws Exception {
+        CollectingLineReceiver receiver = new CollectingLineReceiver();
+        receiver.flush();
+        assertTrue(receiver.mLines.isEmpty());
+
+        send(receiver, "one\r\n");
+        receiver.flush();
+        // MultiLineReceiver always hands over the data following the last line terminator.
+        assertEquals(Arrays.asList("one", ""), receiver.mLines);
+    }
+
+    public void testByteLineReceiverFlush() throws Exception {
+        final List<String> lines = new ArrayList<String>();
+        ByteLineReceiver receiver = new ByteLineReceiver() {
+            @Override
+            protected void processLine(byte[] data, int offset, int length) {
+                lines.add(new String(data, offset, length));
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+        send(receiver, "one\r\n");
+        receiver.flush();
+        send(receiver, "two");
+        receiver.flush();
+        assertEquals(Arrays.asList("one", "two"), lines);
+    }
+}
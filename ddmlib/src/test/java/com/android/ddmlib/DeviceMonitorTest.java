@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.AndroidDebugBridge.IDeviceChangeListener;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class DeviceMonitorTest extends TestCase {
+    private final List<FakeAdbServer> mServers = new ArrayList<FakeAdbServer>();
+    private final List<String> mConnected = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> mDisconnected =
+            Collections.synchronizedList(new ArrayList<String>());
+
+    private final IDeviceChangeListener mListener = new IDeviceChangeListener() {
+        @Override
+        public void deviceConnected(IDevice device) {
+            mConnected.add(device.getSerialNumber());
+        }
+
+        @Override
+        public void deviceDisconnected(IDevice device) {
+            mDisconnected.add(device.getSerialNumber());
+        }
+
+        @Override
+        public void deviceChanged(IDevice device, int changeMask) {
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        AndroidDebugBridge.init(false);
+        AndroidDebugBridge.addDeviceChangeListener(mListener);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        AndroidDebugBridge.removeDeviceChangeListener(mListener);
+        AndroidDebugBridge.terminate();
+        for (FakeAdbServer server : mServers) {
+            server.close();
+        }
+        super.tearDown();
+    }
+
+    public void testDisconnectRemoteBridge() throws Exception {
+        AndroidDebugBridge first = createBridge("first", "offline");
+        AndroidDebugBridge second = createBridge("second", "offline");
+        waitForDevices(first, 1);
+        waitForDevices(second, 1);
+        assertEquals(2, AndroidDebugBridge.getRemoteBridges().size());
+
+        AndroidDebugBridge.disconnectRemoteBridge(first);
+
+        assertEquals(Collections.singletonList(second), AndroidDebugBridge.getRemoteBridges());
+        assertEquals(Collections.singletonList("first"), mDisconnected);
+        assertEquals(1, second.getDevices().length);
+        assertEquals("second", second.getDevices()[0].getSerialNumber());
+    }
+
+    public void testUnresponsiveDevices() throws Exception {
+        // the devices of these bridges never answer the queries made when they come online.
+        FakeAdbServer first = createServer("first", "device");
+        FakeAdbServer second = createServer("second", "device");
+        AndroidDebugBridge.createRemoteBridge(first.getAddress());
+        AndroidDebugBridge.createRemoteBridge(second.getAddress());
+        assertTrue(first.mQueried.await(5, TimeUnit.SECONDS));
+        assertTrue(second.mQueried.await(5, TimeUnit.SECONDS));
+
+        // the events of another bridge are still processed.
+        waitForDevices(createBridge("third", "offline"), 1);
+        assertTrue(mConnected.contains("third"));
+    }
+
+    private AndroidDebugBridge createBridge(String serial, String state) throws IOException {
+        return AndroidDebugBridge.createRemoteBridge(createServer(serial, state).getAddress());
+    }
+
+    private FakeAdbServer createServer(String serial, String state) throws IOException {
+        FakeAdbServer server = new FakeAdbServer(serial + "\t" + state + "\n");
+        server.start();
+        mServers.add(server);
+        return server;
+    }
+
+    private static void waitForDevices(AndroidDebugBridge bridge, int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bridge.getDevices().length < count) {
+            assertTrue("Timed out waiting for the devices",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Minimal adb server: sends a single device list to "host:track-devices" and keeps the
+     * connection open, and never answers the other requests.
+     */
+    private static class FakeAdbServer extends Thread {
+        private final ServerSocket mSocket;
+        private final String mDeviceList;
+        private final CountDownLatch mQueried = new CountDownLatch(1);
+
+        FakeAdbServer(String deviceList) throws IOException {
+            super("FakeAdbServer");
+            setDaemon(true);
+            mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            mDeviceList = deviceList;
+        }
+
+        InetSocketAddress getAddress() {
+            return new InetSocketAddress(mSocket.getInetAddress(), mSocket.getLocalPort());
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Socket client;
+                try {
+                    client = mSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(client);
+                        } catch (IOException e) {
+                            // connection dropped by the bridge.
+                        }
+                    }
+                }.start();
+            }
+        }
+
+        private void serve(Socket client) throws IOException {
+            try {
+                InputStream in = client.getInputStream();
+                OutputStream out = client.getOutputStream();
+                String request = readRequest(in);
+                if (request.equals("host:track-devices")) {
+                    out.write("OKAY".getBytes("ISO-8859-1"));
+                    out.write(String.format("%04x%s", mDeviceList.length(), mDeviceList)
+                            .getBytes("ISO-8859-1"));
+                    out.flush();
+                } else {
+                    mQueried.countDown();
+                }
+                in.read(); // blocks until the bridge closes the connection.
+            } finally {
+                client.close();
+            }
+        }
+
+        private static String readRequest(InputStream in) throws IOException {
+            byte[] length = readFully(in, 4);
+            return new String(readFully(in, Integer.parseInt(new String(length, "ISO-8859-1"), 16)),
+                    "ISO-8859-1");
+        }
+
+        private static byte[] readFully(InputStream in, int length) throws IOException {
+            byte[] data = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int count = in.read(data, offset, length - offset);
+                if (count < 0) {
+                    throw new IOException("EOF");
+                }
+                offset += count;
+            }
+            return data;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class FleetInstallerTest extends TestCase {
+
+    public void testSessionCreated() {
+        FleetInstaller.PmReceiver receiver = parse(
+                "Success: created install session [1234]\r\n");
+        assertNull(receiver.getErrorMessage());
+        assertEquals("1234", receiver.getSessionId());
+    }
+
+    public void testFailure() {
+        FleetInstaller.PmReceiver receiver = parse(
+                "Failure [INSTALL_FAILED_INSUFFICIENT_STORAGE]\r\n");
+        assertEquals("INSTALL_FAILED_INSUFFICIENT_STORAGE", receiver.getErrorMessage());
+        assertNull(receiver.getSessionId());
+    }
+
+    public void testNoOutput() {
+        FleetInstaller.PmReceiver receiver = parse("");
+        assertEquals("Unknown failure", receiver.getErrorMessage());
+        assertNull(receiver.getSessionId());
+    }
+
+    public void testEmptySplitPackage() {
+        try {
+            new FleetInstaller().addSplitPackage(Collections.<File>emptyList());
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected.
+        }
+    }
+
+    public void testNoDevices() throws Exception {
+        assertTrue(new FleetInstaller().addPackage(new File("app.apk"))
+                .install(Collections.<IDevice>emptyList()).isEmpty());
+    }
+
+    public void testSlowInstall() throws Exception {
+        // installing is slower than pushing, so the last package is still queued when the
+        // push task is done.
+        SyncService sync = createSyncService(null);
+        EasyMock.replay(sync);
+        final IDevice device = createDevice(200, sync);
+        EasyMock.replay(device);
+        final FleetInstaller installer = new FleetInstaller()
+                .addPackage(new File("a.apk"))
+                .addPackage(new File("b.apk"))
+                .addPackage(new File("c.apk"));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Map<IDevice, FleetInstaller.DeviceResult>> future =
+                    submitInstall(executor, installer, device);
+            FleetInstaller.DeviceResult result = future.get(10, TimeUnit.SECONDS).get(device);
+            assertTrue(result.getErrors().toString(), result.isSuccess());
+            assertEquals(3, result.getInstalledCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testPushFailure() throws Exception {
+        // the connection is closed after the failed push, and a new one pushes the next package.
+        SyncService failedSync = EasyMock.createMock(SyncService.class);
+        failedSync.pushFile(EasyMock.<String>anyObject(), EasyMock.<String>anyObject(),
+                EasyMock.<SyncService.ISyncProgressMonitor>anyObject());
+        EasyMock.expectLastCall().andThrow(new IOException("connection reset"));
+        failedSync.close();
+        SyncService sync = createSyncService(null);
+        EasyMock.replay(failedSync, sync);
+        IDevice device = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(device.getSyncService()).andReturn(failedSync).andReturn(sync);
+        stubDevice(device, 0, null);
+        EasyMock.replay(device);
+
+        FleetInstaller.DeviceResult result = new FleetInstaller()
+                .addPackage(new File("a.apk"))
+                .addPackage(new File("b.apk"))
+                .install(Collections.singletonList(device)).get(device);
+        assertEquals(1, result.getInstalledCount());
+        assertEquals(Collections.singletonList("a.apk: connection reset"), result.getErrors());
+        EasyMock.verify(failedSync, sync, device);
+    }
+
+    public void testCancel() throws Exception {
+        // the first package is being installed, the second one is queued and the third one
+        // waits for room in the queue when the installation is cancelled.
+        final CountDownLatch lastPushed = new CountDownLatch(3);
+        SyncService sync = createSyncService(lastPushed);
+        EasyMock.replay(sync);
+        List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+        final IDevice device = createDevice(10000, sync, commands);
+        EasyMock.replay(device);
+        final FleetInstaller installer = new FleetInstaller()
+                .addPackage(new File("a.apk"))
+                .addPackage(new File("b.apk"))
+                .addPackage(new File("c.apk"));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Map<IDevice, FleetInstaller.DeviceResult>> future =
+                    submitInstall(executor, installer, device);
+            assertTrue(lastPushed.await(5, TimeUnit.SECONDS));
+            future.cancel(true);
+
+            Set<String> expected = new HashSet<String>(Arrays.asList(
+                    "\"/data/local/tmp/0_a.apk\"", "\"/data/local/tmp/1_b.apk\"",
+                    "\"/data/local/tmp/2_c.apk\""));
+            Set<String> removed = new HashSet<String>();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!removed.equals(expected)) {
+                assertTrue("Removed " + removed, System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+                synchronized (commands) {
+                    removed.clear();
+                    for (String command : commands) {
+                        assertTrue(command, command.startsWith("rm -f "));
+                        removed.addAll(Arrays.asList(command.substring(6).split(" ")));
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Future<Map<IDevice, FleetInstaller.DeviceResult>> submitInstall(
+            ExecutorService executor, final FleetInstaller installer, final IDevice device) {
+        return executor.submit(new Callable<Map<IDevice, FleetInstaller.DeviceResult>>() {
+            @Override
+            public Map<IDevice, FleetInstaller.DeviceResult> call() throws Exception {
+                return installer.install(Collections.singletonList(device));
+            }
+        });
+    }
+
+    /**
+     * Creates a sync service on which pushes are immediate, counting down <var>pushed</var>
+     * after each push if it is not null.
+     */
+    private static SyncService createSyncService(final CountDownLatch pushed) throws Exception {
+        SyncService sync = EasyMock.createMock(SyncService.class);
+        sync.pushFile(EasyMock.<String>anyObject(), EasyMock.<String>anyObject(),
+                EasyMock.<SyncService.ISyncProgressMonitor>anyObject());
+        EasyMock.expectLastCall().andStubAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                if (pushed != null) {
+                    pushed.countDown();
+                }
+                return null;
+            }
+        });
+        sync.close();
+        EasyMock.expectLastCall().anyTimes();
+        return sync;
+    }
+
+    /**
+     * Creates a device using <var>sync</var> on which each install takes
+     * <var>installTimeMs</var>.
+     */
+    private static IDevice createDevice(long installTimeMs, SyncService sync) throws Exception {
+        return createDevice(installTimeMs, sync, null);
+    }
+
+    /**
+     * Creates a device using <var>sync</var> on which each install takes
+     * <var>installTimeMs</var>, recording the shell commands in <var>commands</var> if it is
+     * not null.
+     */
+    private static IDevice createDevice(long installTimeMs, SyncService sync,
+            List<String> commands) throws Exception {
+        IDevice device = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(device.getSyncService()).andStubReturn(sync);
+        stubDevice(device, installTimeMs, commands);
+        return device;
+    }
+
+    private static void stubDevice(IDevice device, final long installTimeMs,
+            final List<String> commands) throws Exception {
+        EasyMock.expect(device.getSerialNumber()).andStubReturn("device");
+        EasyMock.expect(device.installRemotePackage(EasyMock.<String>anyObject(),
+                EasyMock.anyBoolean())).andStubAnswer(new IAnswer<String>() {
+                    @Override
+                    public String answer() throws Throwable {
+                        try {
+                            Thread.sleep(installTimeMs);
+                        } catch (InterruptedException e) {
+                            // like the connections to a device, fail and stay interrupted.
+                            Thread.currentThread().interrupt();
+                            throw new InstallException(e);
+                        }
+                        return null;
+                    }
+                });
+        device.executeShellCommand(EasyMock.<String>anyObject(),
+                EasyMock.<IShellOutputReceiver>anyObject(),
+                EasyMock.anyLong(), EasyMock.<TimeUnit>anyObject());
+        EasyMock.expectLastCall().andStubAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                if (commands != null) {
+                    commands.add((String) EasyMock.getCurrentArguments()[0]);
+                }
+                return null;
+            }
+        });
+    }
+
+    private static FleetInstaller.PmReceiver parse(String output) {
+        FleetInstaller.PmReceiver receiver = new FleetInstaller.PmReceiver();
+        byte[] data = output.getBytes();
+        receiver.addOutput(data, 0, data.length);
+        receiver.flush();
+        return receiver;
+    }
+}
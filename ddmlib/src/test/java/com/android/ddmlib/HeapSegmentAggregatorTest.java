@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.HeapSegment.HeapSegmentElement;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+public class HeapSegmentAggregatorTest extends TestCase {
+    private static final int PARTIAL = 0x80;
+
+    @Override
+    protected void tearDown() throws Exception {
+        DdmPreferences.setRetainHeapSegments(DdmPreferences.DEFAULT_RETAIN_HEAP_SEGMENTS);
+        super.tearDown();
+    }
+
+    public void testAggregation() {
+        ClientData.HeapData heapData = new ClientData.HeapData();
+        heapData.addHeapData(createSegment(0,
+                state(HeapSegmentElement.SOLIDITY_HARD, HeapSegmentElement.KIND_OBJECT), 2,
+                state(HeapSegmentElement.SOLIDITY_HARD, HeapSegmentElement.KIND_OBJECT), 2,
+                state(HeapSegmentElement.SOLIDITY_FREE, 0), 4,
+                state(HeapSegmentElement.SOLIDITY_SOFT, HeapSegmentElement.KIND_ARRAY_4), 64));
+        heapData.addHeapData(createSegment(1000,
+                state(HeapSegmentElement.SOLIDITY_FREE, 0), 1,
+                state(HeapSegmentElement.SOLIDITY_HARD, HeapSegmentElement.KIND_CLASS_OBJECT), 8));
+        assertNull(heapData.getHeapStatistics());
+        heapData.sealHeapData();
+
+        HeapSegmentAggregator.Snapshot snapshot = heapData.getHeapStatistics();
+        assertNotNull(snapshot);
+        assertEquals(1, snapshot.getSequence());
+        // lengths are in 8 byte units.
+        assertEquals(2, snapshot.getCount(HeapSegmentElement.KIND_OBJECT));
+        assertEquals(48, snapshot.getBytes(HeapSegmentElement.KIND_OBJECT));
+        assertEquals(2, snapshot.getCount(HeapSegmentElement.KIND_OBJECT, 4));
+        assertEquals(1, snapshot.getCount(HeapSegmentElement.KIND_ARRAY_4));
+        assertEquals(520, snapshot.getBytes(HeapSegmentElement.KIND_ARRAY_4, 9));
+        assertEquals(72, snapshot.getBytes(HeapSegmentElement.KIND_CLASS_OBJECT));
+        assertEquals(640, snapshot.getAllocatedBytes());
+
+        assertEquals(2, snapshot.getFreeBlockCount());
+        assertEquals(56, snapshot.getFreeBytes());
+        assertEquals(40, snapshot.getLargestFreeBlock());
+        assertEquals(1 - 40.0 / 56, snapshot.getFragmentation(), 1e-9);
+
+        // the segments are still available.
+        assertEquals(2, heapData.getHeapSegments().size());
+    }
+
+    public void testElementSpanningSegments() {
+        ClientData.HeapData heapData = new ClientData.HeapData();
+        int state = state(HeapSegmentElement.SOLIDITY_HARD, HeapSegmentElement.KIND_ARRAY_1);
+        heapData.addHeapData(createSegment(0, state | PARTIAL, 255, state | PARTIAL, 255));
+        heapData.addHeapData(createSegment(4096, state, 0));
+        heapData.sealHeapData();
+
+        HeapSegmentAggregator.Snapshot snapshot = heapData.getHeapStatistics();
+        assertEquals(1, snapshot.getCount(HeapSegmentElement.KIND_ARRAY_1));
+        assertEquals((256 + 256 + 1) * 8, snapshot.getBytes(HeapSegmentElement.KIND_ARRAY_1));
+    }
+
+    public void testNewHeapReplacesSnapshot() {
+        DdmPreferences.setRetainHeapSegments(false);
+        ClientData.HeapData heapData = new ClientData.HeapData();
+        int object = state(HeapSegmentElement.SOLIDITY_HARD, HeapSegmentElement.KIND_OBJECT);
+
+        heapData.addHeapData(createSegment(0, object, 0, object, 0));
+        heapData.sealHeapData();
+        HeapSegmentAggregator.Snapshot first = heapData.getHeapStatistics();
+
+        // the next heap starts with its first segment.
+        heapData.addHeapData(createSegment(0, object, 0));
+        assertSame(first, heapData.getHeapStatistics());
+        heapData.sealHeapData();
+
+        HeapSegmentAggregator.Snapshot second = heapData.getHeapStatistics();
+        assertEquals(2, first.getCount(HeapSegmentElement.KIND_OBJECT));
+        assertEquals(1, second.getCount(HeapSegmentElement.KIND_OBJECT));
+        assertEquals(2, second.getSequence());
+        assertTrue(heapData.getHeapSegments().isEmpty());
+    }
+
+    private static int state(int solidity, int kind) {
+        return solidity | kind << 3;
+    }
+
+    /**
+     * Creates an HPSG chunk, with 8 byte allocation units.
+     * @param elements pairs of element state and length, in units minus one.
+     */
+    private static ByteBuffer createSegment(int offset, int... elements) {
+        ByteBuffer data = ByteBuffer.allocate(17 + elements.length);
+        data.putInt(1); // heap id
+        data.put((byte) 8); // allocation unit size
+        data.putInt(0x10000000); // start address
+        data.putInt(offset);
+        int units = 0;
+        for (int i = 1; i < elements.length; i += 2) {
+            units += elements[i] + 1;
+        }
+        data.putInt(units);
+        for (int element : elements) {
+            data.put((byte) element);
+        }
+        data.rewind();
+        return data;
+    }
+}
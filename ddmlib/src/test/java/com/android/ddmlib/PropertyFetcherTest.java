@@ -76,6 +76,41 @@ public class PropertyFetcherTest extends TestCase {
         assertEquals("1", fetcher.getProperty("dev.bootcomplete").get());
     }
 
+    /**
+     * Test that volatile props are served from the cache within the cache TTL
+     */
+    public void testGetProperty_volatileCached() throws Exception {
+        IDevice mockDevice = DeviceTest.createMockDevice();
+        DeviceTest.injectShellResponse(mockDevice, "[dev.bootcomplete]: [0]\r\n");
+        EasyMock.replay(mockDevice);
+
+        DdmPreferences.setPropertyCacheTtl(60 * 1000);
+        try {
+            PropertyFetcher fetcher = new PropertyFetcher(mockDevice);
+            assertEquals("0", fetcher.getProperty("dev.bootcomplete").get());
+            assertEquals("0", fetcher.getProperty("dev.bootcomplete").get(1,
+                    TimeUnit.MILLISECONDS));
+        } finally {
+            DdmPreferences.setPropertyCacheTtl(DdmPreferences.DEFAULT_PROPERTY_CACHE_TTL);
+        }
+    }
+
+    /**
+     * Test that ro props are fetched again after the cache is invalidated
+     */
+    public void testGetProperty_invalidate() throws Exception {
+        IDevice mockDevice = DeviceTest.createMockDevice();
+        DeviceTest.injectShellResponse(mockDevice, GETPROP_RESPONSE);
+        DeviceTest.injectShellResponse(mockDevice, "[ro.sf.lcd_density]: [320]\r\n");
+        EasyMock.replay(mockDevice);
+
+        PropertyFetcher fetcher = new PropertyFetcher(mockDevice);
+        assertEquals("480", fetcher.getProperty("ro.sf.lcd_density").get());
+        fetcher.invalidate();
+        assertTrue(fetcher.getProperties().isEmpty());
+        assertEquals("320", fetcher.getProperty("ro.sf.lcd_density").get());
+    }
+
     /**
      * Test that getProperty returns when the 'shell getprop' command response is invalid
      */
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.ScreenshotStream.Rect;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+public class ScreenshotStreamTest extends TestCase {
+
+    public void testDiffWithoutPreviousFrame() {
+        RawImage image = createImage(10, 7);
+        assertEquals(Arrays.asList(new Rect(0, 0, 10, 7)),
+                ScreenshotStream.diff(null, image, 4));
+    }
+
+    public void testDiffIdenticalFrames() {
+        RawImage image1 = createImage(10, 7);
+        RawImage image2 = createImage(10, 7);
+        assertTrue(ScreenshotStream.diff(image1, image2, 4).isEmpty());
+    }
+
+    public void testDiffSinglePixel() {
+        RawImage image1 = createImage(10, 7);
+        RawImage image2 = createImage(10, 7);
+        setPixel(image2, 9, 6, 0xFF00FF00);
+        // the last tile is clipped to the image.
+        assertEquals(Arrays.asList(new Rect(8, 4, 2, 3)),
+                ScreenshotStream.diff(image1, image2, 4));
+    }
+
+    public void testDiffMergesTiles() {
+        RawImage image1 = createImage(16, 16);
+        RawImage image2 = createImage(16, 16);
+        // adjacent tiles on a row, then the same tiles on the next row.
+        setPixel(image2, 1, 1, 0xFF00FF00);
+        setPixel(image2, 6, 2, 0xFF00FF00);
+        setPixel(image2, 2, 5, 0xFF00FF00);
+        setPixel(image2, 5, 7, 0xFF00FF00);
+        // a separate tile.
+        setPixel(image2, 13, 13, 0xFF00FF00);
+
+        List<Rect> regions = ScreenshotStream.diff(image1, image2, 4);
+        assertEquals(Arrays.asList(new Rect(0, 0, 8, 8), new Rect(12, 12, 4, 4)), regions);
+    }
+
+    public void testARGBConversion() {
+        RawImage image = createImage(5, 3);
+        setPixel(image, 1, 1, 0x80123456);
+        setPixel(image, 4, 2, 0xFFFFFFFF);
+
+        int[] argb = image.toARGB(null);
+        assertEquals(15, argb.length);
+        for (int i = 0; i < argb.length; i++) {
+            assertEquals(image.getARGB(i * 4), argb[i]);
+        }
+        assertEquals(0x80123456, argb[6]);
+
+        // copy a region into a larger buffer.
+        int[] dest = new int[100];
+        image.copyARGB(1, 1, 4, 2, dest, 11, 10);
+        assertEquals(0x80123456, dest[11]);
+        assertEquals(0xFFFFFFFF, dest[24]);
+        assertSame(argb, image.toARGB(argb));
+    }
+
+    public void testARGBConversion565() {
+        RawImage image = new RawImage();
+        image.readHeader(16, ByteBuffer.wrap(new byte[12]));
+        image.width = 2;
+        image.height = 1;
+        image.data = new byte[] { (byte) 0x1F, (byte) 0xF8, (byte) 0xE0, (byte) 0x07 };
+
+        int[] argb = image.toARGB(null);
+        assertEquals(0xFFFF00FF, argb[0]);
+        assertEquals(0xFF00FF00, argb[1]);
+        assertEquals(image.getARGB(0), argb[0]);
+        assertEquals(image.getARGB(2), argb[1]);
+    }
+
+    /**
+     * Creates a black RGBA_8888 image.
+     */
+    private static RawImage createImage(int width, int height) {
+        RawImage image = new RawImage();
+        image.version = 1;
+        image.bpp = 32;
+        image.width = width;
+        image.height = height;
+        image.size = width * height * 4;
+        image.red_offset = 0;
+        image.red_length = 8;
+        image.green_offset = 8;
+        image.green_length = 8;
+        image.blue_offset = 16;
+        image.blue_length = 8;
+        image.alpha_offset = 24;
+        image.alpha_length = 8;
+        image.data = new byte[image.size];
+        return image;
+    }
+
+    private static void setPixel(RawImage image, int x, int y, int argb) {
+        int index = (y * image.width + x) * 4;
+        image.data[index] = (byte) (argb >> 16);
+        image.data[index + 1] = (byte) (argb >> 8);
+        image.data[index + 2] = (byte) argb;
+        image.data[index + 3] = (byte) (argb >>> 24);
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.SyncService.ISyncProgressMonitor;
+
+import junit.framework.TestCase;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SyncServiceTest extends TestCase {
+    private FakeSyncServer mServer;
+    private Device mDevice;
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeSyncServer();
+        mServer.start();
+        mDevice = new Device(null, "serial", IDevice.DeviceState.ONLINE);
+        mDir = File.createTempFile("sync", "test");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DdmPreferences.setPipelinedSync(DdmPreferences.DEFAULT_PIPELINED_SYNC);
+        DdmPreferences.setSyncSessionCount(DdmPreferences.DEFAULT_SYNC_SESSION_COUNT);
+        mServer.close();
+        deleteAll(mDir);
+        super.tearDown();
+    }
+
+    public void testPushAndPullPipelined() throws Exception {
+        checkPushAndPull(true);
+    }
+
+    public void testPushAndPullSequential() throws Exception {
+        checkPushAndPull(false);
+    }
+
+    public void testPushDirectoryOverSeveralSessions() throws Exception {
+        DdmPreferences.setSyncSessionCount(3);
+        File tree = new File(mDir, "tree");
+        File sub = new File(tree, "sub");
+        sub.mkdirs();
+        byte[][] contents = new byte[6][];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = createContent(i * 50000 + 10, i);
+            writeFile(new File(i % 2 == 0 ? tree : sub, "f" + i), contents[i]);
+        }
+
+        SyncService sync = openSync();
+        CountingMonitor monitor = new CountingMonitor();
+        try {
+            sync.push(new String[] { tree.getPath() },
+                    new FileListingService(mDevice).getRoot(), monitor);
+        } finally {
+            sync.close();
+        }
+
+        for (int i = 0; i < contents.length; i++) {
+            String path = "//tree/" + (i % 2 == 0 ? "" : "sub/") + "f" + i;
+            assertTrue(path, Arrays.equals(contents[i], mServer.getFiles().get(path)));
+        }
+        assertEquals(3, mServer.getSessionCount());
+        // the 2 directories count for 1 each.
+        int total = 2;
+        for (byte[] content : contents) {
+            total += content.length;
+        }
+        assertEquals(total, monitor.mWork.get());
+    }
+
+    public void testPushCanceled() throws Exception {
+        File local = new File(mDir, "big");
+        writeFile(local, createContent(500000, 0));
+
+        SyncService sync = openSync();
+        CountingMonitor monitor = new CountingMonitor();
+        monitor.mCanceled = true;
+        try {
+            sync.pushFile(local.getPath(), "/data/big", monitor);
+            fail("Expected SyncException");
+        } catch (SyncException e) {
+            assertEquals(SyncException.SyncError.CANCELED, e.getErrorCode());
+        } finally {
+            sync.close();
+        }
+    }
+
+    private void checkPushAndPull(boolean pipelined) throws Exception {
+        DdmPreferences.setPipelinedSync(pipelined);
+        byte[] content = createContent(300000, 7);
+        File local = new File(mDir, "local");
+        writeFile(local, content);
+
+        SyncService sync = openSync();
+        CountingMonitor monitor = new CountingMonitor();
+        try {
+            sync.pushFile(local.getPath(), "/data/file", monitor);
+            assertTrue(Arrays.equals(content, mServer.getFiles().get("/data/file")));
+            assertEquals(content.length, monitor.mWork.get());
+
+            File pulled = new File(mDir, "pulled");
+            sync.pullFile("/data/file", pulled.getPath(), SyncService.getNullProgressMonitor());
+            assertTrue(Arrays.equals(content, readFile(pulled)));
+        } finally {
+            sync.close();
+        }
+    }
+
+    private SyncService openSync() throws Exception {
+        SyncService sync = new SyncService(mServer.getAddress(), mDevice);
+        assertTrue(sync.openSync());
+        return sync;
+    }
+
+    private static byte[] createContent(int length, int seed) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i * 31 + seed);
+        }
+        return content;
+    }
+
+    private static void writeFile(File file, byte[] content) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(content);
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(content);
+        } finally {
+            in.close();
+        }
+        return content;
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static class CountingMonitor implements ISyncProgressMonitor {
+        final AtomicInteger mWork = new AtomicInteger();
+        volatile boolean mCanceled;
+
+        @Override
+        public void start(int totalWork) {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return mCanceled;
+        }
+
+        @Override
+        public void startSubTask(String name) {
+        }
+
+        @Override
+        public void advance(int work) {
+            mWork.addAndGet(work);
+        }
+    }
+
+    /**
+     * Minimal adb server implementing the SEND, RECV and STAT sync requests over an in-memory
+     * file system.
+     */
+    private static class FakeSyncServer extends Thread {
+        private final ServerSocket mSocket;
+        private final Map<String, byte[]> mFiles = new ConcurrentHashMap<String, byte[]>();
+        private final AtomicInteger mSessionCount = new AtomicInteger();
+
+        FakeSyncServer() throws IOException {
+            super("FakeSyncServer");
+            setDaemon(true);
+            mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        }
+
+        InetSocketAddress getAddress() {
+            return new InetSocketAddress(mSocket.getInetAddress(), mSocket.getLocalPort());
+        }
+
+        Map<String, byte[]> getFiles() {
+            return mFiles;
+        }
+
+        int getSessionCount() {
+            return mSessionCount.get();
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Socket client;
+                try {
+                    client = mSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(client);
+                        } catch (IOException e) {
+                            // connection closed by the client.
+                        }
+                    }
+                }.start();
+            }
+        }
+
+        private void serve(Socket client) throws IOException {
+            try {
+                DataInputStream in = new DataInputStream(client.getInputStream());
+                OutputStream out = client.getOutputStream();
+                readRequest(in); // host:transport:serial
+                out.write("OKAY".getBytes("ISO-8859-1"));
+                readRequest(in); // sync:
+                out.write("OKAY".getBytes("ISO-8859-1"));
+                mSessionCount.incrementAndGet();
+
+                byte[] header = new byte[8];
+                while (true) {
+                    in.readFully(header);
+                    String id = new String(header, 0, 4, "ISO-8859-1");
+                    byte[] arg = new byte[readInt(header, 4)];
+                    in.readFully(arg);
+                    String path = new String(arg, "ISO-8859-1");
+                    if (id.equals("SEND")) {
+                        receive(in, path.substring(0, path.lastIndexOf(',')));
+                        out.write(createPacket("OKAY", 0));
+                    } else if (id.equals("STAT")) {
+                        out.write(createPacket("STAT", 0x8000 | 0644));
+                        out.write(new byte[8]);
+                    } else if (id.equals("RECV")) {
+                        send(out, mFiles.get(path));
+                    } else {
+                        return;
+                    }
+                }
+            } finally {
+                client.close();
+            }
+        }
+
+        private void receive(DataInputStream in, String path) throws IOException {
+            byte[] content = new byte[0];
+            byte[] header = new byte[8];
+            while (true) {
+                in.readFully(header);
+                int length = readInt(header, 4);
+                if (new String(header, 0, 4, "ISO-8859-1").equals("DONE")) {
+                    break;
+                }
+                byte[] data = new byte[content.length + length];
+                System.arraycopy(content, 0, data, 0, content.length);
+                in.readFully(data, content.length, length);
+                content = data;
+            }
+            mFiles.put(path, content);
+        }
+
+        private static void send(OutputStream out, byte[] content) throws IOException {
+            for (int offset = 0; offset < content.length; offset += 65536) {
+                int length = Math.min(65536, content.length - offset);
+                out.write(createPacket("DATA", length));
+                out.write(content, offset, length);
+            }
+            out.write(createPacket("DONE", 0));
+        }
+
+        private static byte[] createPacket(String id, int value) throws IOException {
+            byte[] packet = new byte[8];
+            System.arraycopy(id.getBytes("ISO-8859-1"), 0, packet, 0, 4);
+            for (int i = 0; i < 4; i++) {
+                packet[4 + i] = (byte) (value >> (8 * i));
+            }
+            return packet;
+        }
+
+        private static int readInt(byte[] data, int offset) {
+            return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8
+                    | (data[offset + 2] & 0xFF) << 16 | (data[offset + 3] & 0xFF) << 24;
+        }
+
+        private static String readRequest(InputStream in) throws IOException {
+            byte[] length = new byte[4];
+            new DataInputStream(in).readFully(length);
+            byte[] request = new byte[Integer.parseInt(new String(length, "ISO-8859-1"), 16)];
+            new DataInputStream(in).readFully(request);
+            return new String(request, "ISO-8859-1");
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package com.android.ddmlib.allocations;
 
 import com.android.ddmlib.AllocationInfo;
+import com.android.ddmlib.AllocationSnapshot;
 import com.android.ddmlib.AllocationsParser;
 import com.google.common.base.Charsets;
 import junit.framework.TestCase;
@@ -23,6 +24,7 @@ import junit.framework.TestCase;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.util.List;
 
 public class AllocationsParserTest extends TestCase {
 
@@ -102,6 +104,65 @@ public class AllocationsParserTest extends TestCase {
     checkStackFrame("path.Blue", "watchCatVideos", "SomewhatBlue.java", 16, elems3[2]);
   }
 
+  public void testSnapshotSharesStacks() throws IOException {
+    ByteBuffer data = putAllocationInfo(new String[]{"path.Foo", "path.Bar", "path.Baz"}, new String[]{"foo", "bar", "baz"},
+            new String[]{"Foo.java", "Bar.java"},
+            new int[][]{{64, 3, 1, 2}, {16, 3, 0, 2}, {8, 5, 1, 3}, {32, 5, 2, 0}},
+            new short[][][]{{{0, 0, 0, 10}, {1, 1, 1, 20}}, {{0, 0, 0, 10}, {1, 1, 1, 20}},
+                    {{2, 2, 1, 30}, {0, 0, 0, 10}, {1, 1, 1, 20}}, {}});
+    AllocationSnapshot snapshot = AllocationsParser.parseSnapshot(data);
+    assertEquals(4, snapshot.getCount());
+    assertEquals(3, snapshot.getFrameCount());
+    // the third stack only adds its top frame to the first one.
+    assertEquals(3, snapshot.getStackNodeCount());
+
+    assertEquals(snapshot.getStackId(0), snapshot.getStackId(1));
+    assertSame(snapshot.getStackTrace(0), snapshot.getStackTrace(1));
+    assertEquals(AllocationSnapshot.NO_STACK, snapshot.getStackId(3));
+    assertNull(snapshot.getAllocationSite(3));
+
+    StackTraceElement[] elems = snapshot.getStackTrace(2);
+    assertEquals(3, elems.length);
+    checkStackFrame("path.Baz", "baz", "Bar.java", 30, elems[0]);
+    checkStackFrame("path.Foo", "foo", "Foo.java", 10, elems[1]);
+    checkStackFrame("path.Bar", "bar", "Bar.java", 20, elems[2]);
+
+    AllocationInfo[] info = snapshot.toAllocationInfos();
+    assertEquals(4, info.length);
+    checkEntry(4, "path.Bar", 64, 3, info[0]);
+    checkEntry(1, "path.Baz", 32, 5, info[3]);
+    checkFirstTrace("path.Baz", "baz", info[2]);
+  }
+
+  public void testSnapshotGroups() throws IOException {
+    ByteBuffer data = putAllocationInfo(new String[]{"path.Foo", "path.Bar"}, new String[]{"foo", "bar"},
+            new String[]{"Foo.java"},
+            new int[][]{{64, 3, 1, 1}, {16, 3, 0, 1}, {8, 5, 1, 1}, {32, 5, 1, 0}},
+            new short[][][]{{{0, 0, 0, 10}}, {{0, 0, 0, 10}}, {{1, 1, 0, 20}}, {}});
+    AllocationSnapshot snapshot = AllocationsParser.parseSnapshot(data);
+
+    List<AllocationSnapshot.Group> byClass = snapshot.groupByClass();
+    assertEquals(2, byClass.size());
+    checkGroup("path.Bar", 3, 104, byClass.get(0));
+    checkGroup("path.Foo", 1, 16, byClass.get(1));
+
+    List<AllocationSnapshot.Group> bySite = snapshot.groupByAllocationSite();
+    assertEquals(2, bySite.size());
+    checkGroup("path.Foo.foo(Foo.java:10)", 2, 80, bySite.get(0));
+    checkGroup("path.Bar.bar(Foo.java:20)", 1, 8, bySite.get(1));
+
+    List<AllocationSnapshot.Group> byThread = snapshot.groupByThread();
+    assertEquals(2, byThread.size());
+    checkGroup("3", 2, 80, byThread.get(0));
+    checkGroup("5", 2, 40, byThread.get(1));
+  }
+
+  private static void checkGroup(String name, int count, long size, AllocationSnapshot.Group group) {
+    assertEquals(name, group.getName());
+    assertEquals(count, group.getCount());
+    assertEquals(size, group.getTotalSize());
+  }
+
   private static void checkEntry(int order, String className, int size, int thread, AllocationInfo alloc) {
     assertEquals(order, alloc.getAllocNumber());
     assertEquals(className, alloc.getAllocatedClass());
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.log.LogReceiver;
+import com.android.ddmlib.log.LogReceiver.ILogListener;
+import com.android.ddmlib.log.LogReceiver.LogEntry;
+import com.android.ddmlib.utils.ArrayHelper;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Unit tests for {@link LogCatBinaryParser}.
+ */
+public class LogCatBinaryParserTest extends TestCase {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private static byte[] payload(int priority, String tag, String message) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(priority);
+        out.write(tag.getBytes("UTF-8"));
+        out.write(0);
+        out.write(message.getBytes("UTF-8"));
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    private static LogEntry entry(int pid, int tid, int sec, int nsec, byte[] payload) {
+        LogEntry entry = new LogEntry();
+        entry.len = payload.length;
+        entry.pid = pid;
+        entry.tid = tid;
+        entry.sec = sec;
+        entry.nsec = nsec;
+        entry.data = payload;
+        return entry;
+    }
+
+    public void testSingleLine() throws Exception {
+        LogCatBinaryParser parser = new LogCatBinaryParser(UTC);
+        List<LogCatMessage> messages = parser.processLogEntry(
+                entry(495, 234, 1407784267, 132456789, payload(3, "dtag", "debug message\n")),
+                null);
+
+        assertEquals(1, messages.size());
+        LogCatMessage message = messages.get(0);
+        assertEquals(LogLevel.DEBUG, message.getLogLevel());
+        assertEquals("495", message.getPid());
+        assertEquals("234", message.getTid());
+        assertEquals("dtag", message.getTag());
+        assertEquals("debug message", message.getMessage());
+        assertEquals(1407784267132456789L, message.getTimestampNanos());
+        assertEquals("08-11 19:11:07.132", message.getTime());
+    }
+
+    public void testMultiLine() throws Exception {
+        LogCatBinaryParser parser = new LogCatBinaryParser(UTC);
+        List<LogCatMessage> messages = parser.processLogEntry(
+                entry(1, 1, 0, 7000000, payload(7, "wtftag", "first\nsecond")), null);
+
+        assertEquals(2, messages.size());
+        assertEquals("first", messages.get(0).getMessage());
+        assertEquals("second", messages.get(1).getMessage());
+        assertEquals(LogLevel.ASSERT, messages.get(1).getLogLevel());
+        assertEquals("01-01 00:00:00.007", messages.get(0).getTime());
+        assertEquals("01-01 00:00:00.007", messages.get(1).getTime());
+    }
+
+    public void testDeviceTimeZone() throws Exception {
+        IDevice device = (IDevice) Proxy.newProxyInstance(IDevice.class.getClassLoader(),
+                new Class<?>[] { IDevice.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getProperty")
+                                && "persist.sys.timezone".equals(args[0])) {
+                            return "America/Los_Angeles";
+                        }
+                        return null;
+                    }
+                });
+
+        LogCatBinaryParser parser = new LogCatBinaryParser();
+        List<LogCatMessage> messages = parser.processLogEntry(
+                entry(495, 234, 1407784267, 132456789, payload(3, "dtag", "message")), device);
+        assertEquals("08-11 12:11:07.132", messages.get(0).getTime());
+
+        // a fixed time zone takes precedence.
+        parser = new LogCatBinaryParser(UTC);
+        messages = parser.processLogEntry(
+                entry(495, 234, 1407784267, 132456789, payload(3, "dtag", "message")), device);
+        assertEquals("08-11 19:11:07.132", messages.get(0).getTime());
+    }
+
+    public void testTruncatedPayload() throws Exception {
+        LogCatBinaryParser parser = new LogCatBinaryParser();
+        byte[] data = "\u0004tag".getBytes("UTF-8");
+        List<LogCatMessage> messages = parser.processLogEntry(entry(1, 1, 0, 0, data), null);
+
+        assertEquals(1, messages.size());
+        assertEquals(LogLevel.INFO, messages.get(0).getLogLevel());
+        assertEquals("tag", messages.get(0).getTag());
+        assertEquals("", messages.get(0).getMessage());
+    }
+
+    /** Checks entries framed by {@link LogReceiver}, split across packets. */
+    public void testFramedEntries() throws Exception {
+        byte[] payload = payload(6, "etag", "error message");
+        byte[] frame = new byte[20 + payload.length];
+        frame[0] = (byte) payload.length;
+        ArrayHelper.swap32bitsToArray(42, frame, 4);
+        ArrayHelper.swap32bitsToArray(43, frame, 8);
+        ArrayHelper.swap32bitsToArray(1000, frame, 12);
+        ArrayHelper.swap32bitsToArray(5, frame, 16);
+        System.arraycopy(payload, 0, frame, 20, payload.length);
+
+        final LogCatBinaryParser parser = new LogCatBinaryParser();
+        final List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+        LogReceiver receiver = new LogReceiver(new ILogListener() {
+            @Override
+            public void newEntry(LogEntry entry) {
+                messages.addAll(parser.processLogEntry(entry, null));
+            }
+
+            @Override
+            public void newData(byte[] data, int offset, int length) {
+            }
+        });
+        receiver.parseNewData(frame, 0, 7);
+        receiver.parseNewData(frame, 7, frame.length - 7);
+
+        assertEquals(1, messages.size());
+        assertEquals("42", messages.get(0).getPid());
+        assertEquals("43", messages.get(0).getTid());
+        assertEquals(LogLevel.ERROR, messages.get(0).getLogLevel());
+        assertEquals("error message", messages.get(0).getMessage());
+        assertEquals(1000000000005L, messages.get(0).getTimestampNanos());
+    }
+}
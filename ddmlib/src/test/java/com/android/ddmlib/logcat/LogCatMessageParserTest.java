@@ -19,6 +19,7 @@ import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.logcat.LogCatMessage;
 import com.android.ddmlib.logcat.LogCatMessageParser;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import junit.framework.TestCase;
@@ -98,4 +99,41 @@ public final class LogCatMessageParserTest extends TestCase {
         assertEquals(mParsedMessages.get(0).getTid(), Integer.toString(0x1ef));
         assertEquals(mParsedMessages.get(1).getTid(), "234");
     }
+
+    /** Check that the byte based parsing produces the same messages. */
+    public void testProcessLogLine() throws Exception {
+        LogCatMessageParser parser = new LogCatMessageParser();
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+        for (String line : MESSAGES) {
+            byte[] data = ("xx" + line).getBytes("UTF-8");
+            LogCatMessage message = parser.processLogLine(data, 2, data.length - 2, null);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+
+        assertEquals(mParsedMessages.size(), messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertEquals(mParsedMessages.get(i).toString(), messages.get(i).toString());
+            assertEquals(mParsedMessages.get(i).getTid(), messages.get(i).getTid());
+        }
+    }
+
+    /** Check that lines that look almost like a header are treated as messages. */
+    public void testMalformedHeader() {
+        LogCatMessageParser parser = new LogCatMessageParser();
+        List<LogCatMessage> messages = parser.processLogLines(new String[] {
+                "[ 08-11 19:11:07.132   495:0x1ef D/dtag     ]",
+                "[ 08-11 19:11:07   495:0x1ef D/dtag ]",
+                "[ 08-11 19:11:07.132   495:0x1ef X/dtag ]",
+                "[ 08-11 19:11:07.132 495 D/dtag ]",
+                "[]",
+                "[",
+        }, null);
+
+        assertEquals(5, messages.size());
+        for (LogCatMessage message : messages) {
+            assertEquals("dtag", message.getTag());
+        }
+    }
 }
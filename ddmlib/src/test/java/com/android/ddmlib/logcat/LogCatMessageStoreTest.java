@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.ddmlib.Log.LogLevel;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class LogCatMessageStoreTest extends TestCase {
+
+    private static LogCatMessage message(int i) {
+        return new LogCatMessage(i % 2 == 0 ? LogLevel.DEBUG : LogLevel.ERROR,
+                Integer.toString(100 + i % 3), "0x10", "app" + i % 2, "tag" + i % 5,
+                "08-11 19:11:07.132", "message " + i);
+    }
+
+    private static LogCatMessageStore createStore(int capacity, int messageCount) {
+        LogCatMessageStore store = new LogCatMessageStore(capacity);
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+        for (int i = 0; i < messageCount; i++) {
+            messages.add(message(i));
+        }
+        store.log(messages);
+        return store;
+    }
+
+    /** Checks the store against a linear scan of the messages still in the store. */
+    private static void assertFilter(LogCatMessageStore store, int first, int last,
+            List<LogCatFilter> filters) {
+        List<String> expected = new ArrayList<String>();
+        for (int i = first; i <= last; i++) {
+            LogCatMessage m = message(i);
+            boolean matches = true;
+            for (LogCatFilter filter : filters) {
+                matches &= filter.matches(m);
+            }
+            if (matches) {
+                expected.add(m.toString());
+            }
+        }
+
+        List<String> actual = new ArrayList<String>();
+        for (LogCatMessage m : store.getMessages(filters)) {
+            actual.add(m.toString());
+        }
+        assertEquals(expected, actual);
+    }
+
+    public void testRoundTrip() {
+        LogCatMessageStore store = createStore(10, 3);
+        List<LogCatMessage> messages = store.getMessages();
+        assertEquals(3, messages.size());
+        LogCatMessage expected = message(1);
+        LogCatMessage actual = messages.get(1);
+        assertEquals(expected.getLogLevel(), actual.getLogLevel());
+        assertEquals(expected.getPid(), actual.getPid());
+        assertEquals("16", actual.getTid());
+        assertEquals(expected.getAppName(), actual.getAppName());
+        assertEquals(expected.getTag(), actual.getTag());
+        assertEquals(expected.getTime(), actual.getTime());
+        assertEquals(expected.getMessage(), actual.getMessage());
+    }
+
+    public void testEviction() {
+        LogCatMessageStore store = createStore(10, 25);
+        assertEquals(10, store.size());
+        List<LogCatMessage> messages = store.getMessages();
+        assertEquals("message 15", messages.get(0).getMessage());
+        assertEquals("message 24", messages.get(9).getMessage());
+    }
+
+    public void testFilters() {
+        LogCatMessageStore store = createStore(100, 1234);
+        assertFilter(store, 1134, 1233, LogCatFilter.fromString("pid:101", LogLevel.VERBOSE));
+        assertFilter(store, 1134, 1233, LogCatFilter.fromString("tag:tag3", LogLevel.VERBOSE));
+        assertFilter(store, 1134, 1233, LogCatFilter.fromString("tag:tag[12]", LogLevel.ERROR));
+        assertFilter(store, 1134, 1233, LogCatFilter.fromString("tag:tag", LogLevel.VERBOSE));
+        assertFilter(store, 1134, 1233,
+                LogCatFilter.fromString("app:app1 tag:tag4 12", LogLevel.VERBOSE));
+        assertFilter(store, 1134, 1233, LogCatFilter.fromString("pid:999", LogLevel.VERBOSE));
+    }
+
+    public void testDistinctValues() {
+        LogCatMessageStore store = new LogCatMessageStore(10);
+        for (int i = 0; i < 10000; i++) {
+            store.log(Collections.singletonList(new LogCatMessage(LogLevel.INFO,
+                    Integer.toString(i), "1", "app" + i, "tag" + i, "08-11 19:11:07.132",
+                    "message " + i)));
+        }
+
+        // the values of the evicted messages were released, and their ids reused.
+        assertTrue(store.getInternedIdCount() <= 3 * 11);
+        assertEquals("message 9990", store.getMessages().get(0).getMessage());
+        List<LogCatMessage> messages = store.getMessages(
+                LogCatFilter.fromString("tag:^tag9995$", LogLevel.VERBOSE));
+        assertEquals(1, messages.size());
+        assertEquals("app9995", messages.get(0).getAppName());
+        assertEquals(1, store.getMessages(
+                LogCatFilter.fromString("pid:9999", LogLevel.VERBOSE)).size());
+        assertTrue(store.getMessages(
+                LogCatFilter.fromString("tag:^tag5$", LogLevel.VERBOSE)).isEmpty());
+        assertTrue(store.getMessages(
+                LogCatFilter.fromString("pid:5", LogLevel.VERBOSE)).isEmpty());
+    }
+
+    public void testClear() {
+        LogCatMessageStore store = createStore(10, 25);
+        store.clear();
+        assertEquals(0, store.size());
+        assertTrue(store.getMessages(LogCatFilter.fromString("tag:tag1", LogLevel.VERBOSE))
+                .isEmpty());
+
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+        messages.add(message(1));
+        store.log(messages);
+        assertEquals(1, store.getMessages(LogCatFilter.fromString("tag:tag1", LogLevel.VERBOSE))
+                .size());
+    }
+}
@@ -314,6 +314,52 @@ public class InstrumentationResultParserTest extends TestCase {
         assertEquals(3, captureMetrics.getValue().size());
     }
 
+    /**
+     * Test parsing output for a test with more output than the parser retains.
+     */
+    public void testParse_maxRetainedOutput() {
+        mParser.setMaxRetainedOutput(STACK_TRACE.length() + 4);
+        StringBuilder output = buildCommonResult();
+        addStatusKey(output, "stack", STACK_TRACE);
+        addLine(output, "at com.test.FooTest.testFoo(FooTest.java:42)");
+        addStatusKey(output, "randomKey", "randomValue");
+        addFailureCode(output);
+
+        final Capture<Map<String, String>> captureMetrics = new Capture<Map<String, String>>();
+        mMockListener.testRunStarted(RUN_NAME, 1);
+        mMockListener.testStarted(TEST_ID);
+        mMockListener.testFailed(TEST_ID, STACK_TRACE + "\r\nat"
+                + InstrumentationResultParser.TRUNCATED_OUTPUT_MARKER);
+        mMockListener.testEnded(EasyMock.eq(TEST_ID), EasyMock.capture(captureMetrics));
+        mMockListener.testRunEnded(0, Collections.EMPTY_MAP);
+
+        injectAndVerifyTestString(output.toString());
+
+        assertEquals(InstrumentationResultParser.TRUNCATED_OUTPUT_MARKER,
+                captureMetrics.getValue().get("randomKey"));
+    }
+
+    /**
+     * Test parsing output for a successful test execution, reporting the test duration.
+     */
+    public void testParse_testDuration() {
+        mParser.setReportTestDuration(true);
+        StringBuilder output = createSuccessTest();
+
+        final Capture<Map<String, String>> captureMetrics = new Capture<Map<String, String>>();
+        mMockListener.testRunStarted(RUN_NAME, 1);
+        mMockListener.testStarted(TEST_ID);
+        mMockListener.testEnded(EasyMock.eq(TEST_ID), EasyMock.capture(captureMetrics));
+        mMockListener.testRunEnded(0, Collections.EMPTY_MAP);
+
+        injectAndVerifyTestString(output.toString());
+
+        String duration = captureMetrics.getValue().get(
+                InstrumentationResultParser.TEST_DURATION_METRIC);
+        assertNotNull(duration);
+        assertTrue(Long.parseLong(duration) >= 0);
+    }
+
     /**
      * Builds a common test result using TEST_NAME and TEST_CLASS.
      */
@@ -21,10 +21,13 @@ import com.android.ddmlib.IShellOutputReceiver;
 
 import junit.framework.TestCase;
 
+import org.easymock.Capture;
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -125,6 +128,54 @@ public class RemoteAndroidTestRunnerTest extends TestCase {
         EasyMock.verify(mMockDevice, mMockListener);
     }
 
+    /**
+     * Test that the parser options set on the runner apply to the output of the run.
+     */
+    @SuppressWarnings("unchecked")
+    public void testRun_parserOptions() throws Exception {
+        mRunner.setMaxRetainedOutput(10);
+        mRunner.setReportTestDuration(true);
+
+        String status = "INSTRUMENTATION_STATUS: class=com.test.FooTest\r\n"
+                + "INSTRUMENTATION_STATUS: test=testFoo\r\n"
+                + "INSTRUMENTATION_STATUS: current=1\r\n"
+                + "INSTRUMENTATION_STATUS: numtests=1\r\n"
+                + "INSTRUMENTATION_STATUS: id=InstrumentationTestRunner\r\n";
+        final byte[] output = (status
+                + "INSTRUMENTATION_STATUS_CODE: 1\r\n"
+                + status
+                + "INSTRUMENTATION_STATUS: stack=java.lang.AssertionFailedException\r\n"
+                + "INSTRUMENTATION_STATUS_CODE: -2\r\n").getBytes();
+        mMockDevice.executeShellCommand((String) EasyMock.anyObject(),
+                (IShellOutputReceiver) EasyMock.anyObject(), EasyMock.eq(0L),
+                EasyMock.eq(TimeUnit.MILLISECONDS));
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                IShellOutputReceiver receiver =
+                        (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+                receiver.addOutput(output, 0, output.length);
+                receiver.flush();
+                return null;
+            }
+        });
+
+        TestIdentifier testId = new TestIdentifier("com.test.FooTest", "testFoo");
+        Capture<String> captureTrace = new Capture<String>();
+        Capture<Map<String, String>> captureMetrics = new Capture<Map<String, String>>();
+        mMockListener.testFailed(EasyMock.eq(testId), EasyMock.capture(captureTrace));
+        mMockListener.testEnded(EasyMock.eq(testId), EasyMock.capture(captureMetrics));
+
+        EasyMock.replay(mMockDevice, mMockListener);
+        mRunner.run(mMockListener);
+        EasyMock.verify(mMockDevice, mMockListener);
+
+        assertEquals("java.lang." + InstrumentationResultParser.TRUNCATED_OUTPUT_MARKER,
+                captureTrace.getValue());
+        assertNotNull(captureMetrics.getValue().get(
+                InstrumentationResultParser.TEST_DURATION_METRIC));
+    }
+
     /**
      * Calls {@link RemoteAndroidTestRunner#run(ITestRunListener...)} and verifies the given
      * <var>expectedCmd</var> pattern was received by the mock device.
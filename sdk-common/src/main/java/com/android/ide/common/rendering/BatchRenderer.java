@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.common.rendering;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.common.rendering.api.RenderSession;
+import com.android.ide.common.rendering.api.ResourceValue;
+import com.android.ide.common.rendering.api.Result;
+import com.android.ide.common.rendering.api.SessionParams;
+import com.android.ide.common.res2.AbstractResourceRepository;
+import com.android.ide.common.res2.ResourceItem;
+import com.android.ide.common.resources.ResourceFolder;
+import com.android.ide.common.resources.ResourceRepository;
+import com.android.ide.common.resources.ResourceResolver;
+import com.android.ide.common.resources.configuration.FolderConfiguration;
+import com.android.resources.ResourceFolderType;
+import com.android.resources.ResourceType;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders a layout in many configurations at once, for instance to compare the images with
+ * the ones of a previous build.
+ * <p/>
+ * Most configurations of a sweep differ in qualifiers that none of the resource folders use,
+ * and so resolve to the same resources: rendering a layout for every density of a locale
+ * typically resolves the same strings, styles and layouts each time. The renderer only
+ * resolves the resources once for each set of configurations that agree on the qualifiers the
+ * folders do use, and shares the resulting maps between the resolvers of their renders.
+ * <p/>
+ * The renders themselves run on a {@link RenderSessionPool}.
+ */
+public class BatchRenderer {
+
+    /**
+     * Creates the parameters of the render of a configuration.
+     */
+    public interface ParamsFactory {
+        /**
+         * Creates the parameters to render a configuration with. This is called on the thread
+         * calling {@link BatchRenderer#render}, and must return new parameters each time.
+         *
+         * @param config the configuration to render
+         * @param resources the resources resolved for the configuration, with the theme of the
+         *     batch. They are only used by this render.
+         * @return the parameters of the render
+         */
+        @NonNull
+        SessionParams createParams(
+                @NonNull FolderConfiguration config,
+                @NonNull ResourceResolver resources);
+    }
+
+    /**
+     * Receives the results of a batch.
+     */
+    public interface RenderListener {
+        /**
+         * Called on the thread calling {@link BatchRenderer#render} with the result of each
+         * render, in the order of the configurations.
+         *
+         * @param result the result of the render
+         */
+        void rendered(@NonNull RenderResult result);
+    }
+
+    /**
+     * The result of rendering one configuration of a batch.
+     */
+    public static final class RenderResult {
+        @NonNull
+        private final FolderConfiguration mConfiguration;
+        @NonNull
+        private final Result mResult;
+        @Nullable
+        private final BufferedImage mImage;
+        private final long mResolveTime;
+        private final long mRenderTime;
+        private final boolean mSharedResources;
+
+        RenderResult(
+                @NonNull FolderConfiguration configuration,
+                @NonNull Result result,
+                @Nullable BufferedImage image,
+                long resolveTime,
+                long renderTime,
+                boolean sharedResources) {
+            mConfiguration = configuration;
+            mResult = result;
+            mImage = image;
+            mResolveTime = resolveTime;
+            mRenderTime = renderTime;
+            mSharedResources = sharedResources;
+        }
+
+        /**
+         * Returns the rendered configuration.
+         */
+        @NonNull
+        public FolderConfiguration getConfiguration() {
+            return mConfiguration;
+        }
+
+        /**
+         * Returns the result of the render, which is an error if the layout could not be
+         * rendered.
+         */
+        @NonNull
+        public Result getResult() {
+            return mResult;
+        }
+
+        /**
+         * Returns the rendered image, or null if the render failed.
+         */
+        @Nullable
+        public BufferedImage getImage() {
+            return mImage;
+        }
+
+        /**
+         * Returns the time spent resolving the resources of the configuration, in milliseconds.
+         * This is 0 when the resources were shared with a previous configuration.
+         */
+        public long getResolveTime() {
+            return mResolveTime;
+        }
+
+        /**
+         * Returns the time spent rendering the layout, in milliseconds.
+         */
+        public long getRenderTime() {
+            return mRenderTime;
+        }
+
+        /**
+         * Returns true if the resources of the configuration were resolved for a previous
+         * configuration of the batch.
+         */
+        public boolean isSharedResources() {
+            return mSharedResources;
+        }
+
+        @Override
+        public String toString() {
+            return mConfiguration + ": " + mResult.getStatus();
+        }
+    }
+
+    @NonNull
+    private final RenderSessionPool mPool;
+    @Nullable
+    private final ResourceRepository mFrameworkResources;
+    @Nullable
+    private final AbstractResourceRepository mProjectResources;
+    @NonNull
+    private final boolean[] mUsedQualifiers;
+
+    /**
+     * Creates a renderer. The repositories are expected not to change while it is used.
+     *
+     * @param pool the pool to render with
+     * @param frameworkResources the framework resources, or null to render without them
+     * @param projectResources the project resources, or null to render without them
+     */
+    public BatchRenderer(
+            @NonNull RenderSessionPool pool,
+            @Nullable ResourceRepository frameworkResources,
+            @Nullable AbstractResourceRepository projectResources) {
+        mPool = pool;
+        mFrameworkResources = frameworkResources;
+        mProjectResources = projectResources;
+        mUsedQualifiers = new boolean[FolderConfiguration.getQualifierCount()];
+
+        if (frameworkResources != null) {
+            for (ResourceFolderType type : ResourceFolderType.values()) {
+                List<ResourceFolder> folders = frameworkResources.getFolders(type);
+                if (folders != null) {
+                    for (ResourceFolder folder : folders) {
+                        addUsedQualifiers(folder.getConfiguration());
+                    }
+                }
+            }
+        }
+
+        if (projectResources != null) {
+            Map<String, FolderConfiguration> configs = Maps.newHashMap();
+            for (ResourceType type : projectResources.getAvailableResourceTypes()) {
+                for (String name : projectResources.getItemsOfType(type)) {
+                    List<ResourceItem> items = projectResources.getResourceItem(type, name);
+                    if (items == null) {
+                        continue;
+                    }
+                    for (ResourceItem item : items) {
+                        // many items share their qualifiers, so only parse each string once.
+                        String qualifiers = item.getQualifiers();
+                        if (!configs.containsKey(qualifiers)) {
+                            FolderConfiguration config = item.getConfiguration();
+                            configs.put(qualifiers, config);
+                            addUsedQualifiers(config);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void addUsedQualifiers(@Nullable FolderConfiguration config) {
+        if (config == null) {
+            return;
+        }
+        for (int i = 0; i < mUsedQualifiers.length; i++) {
+            if (config.getQualifier(i) != null) {
+                mUsedQualifiers[i] = true;
+            }
+        }
+    }
+
+    /**
+     * Returns the configuration the resources of a given configuration are resolved with: the
+     * qualifiers that no resource folder uses are removed. Configurations with the same key
+     * resolve to the same resources.
+     *
+     * @param config the configuration to render
+     * @return the configuration to resolve the resources with
+     */
+    @NonNull
+    public FolderConfiguration getResourceKey(@NonNull FolderConfiguration config) {
+        FolderConfiguration key = new FolderConfiguration();
+        for (int i = 0; i < mUsedQualifiers.length; i++) {
+            if (mUsedQualifiers[i]) {
+                key.addQualifier(config.getQualifier(i));
+            }
+        }
+
+        return key;
+    }
+
+    /**
+     * Renders a layout in each of the given configurations, and waits for the renders to
+     * finish. The renders run in parallel on the pool, while the results are passed to the
+     * listener on the calling thread as soon as they, and the ones of the configurations before
+     * them, are available.
+     *
+     * @param configs the configurations to render
+     * @param themeName the name of the theme to render with
+     * @param isProjectTheme whether the theme is defined by the project
+     * @param factory the factory of the parameters of each render
+     * @param listener the listener receiving the results
+     * @throws InterruptedException if interrupted while waiting for the renders. The renders
+     *     already requested still run.
+     */
+    public void render(
+            @NonNull List<FolderConfiguration> configs,
+            @NonNull String themeName,
+            boolean isProjectTheme,
+            @NonNull ParamsFactory factory,
+            @NonNull RenderListener listener) throws InterruptedException {
+        Map<FolderConfiguration, ResolvedResources> resolved = Maps.newHashMap();
+        List<Future<RenderResult>> futures = Lists.newArrayListWithCapacity(configs.size());
+
+        for (final FolderConfiguration config : configs) {
+            FolderConfiguration key = getResourceKey(config);
+            ResolvedResources resources = resolved.get(key);
+            final boolean shared = resources != null;
+            if (resources == null) {
+                resources = new ResolvedResources(key);
+                resolved.put(key, resources);
+            }
+
+            // the resolver keeps the applied styles, so each render gets its own, over shared
+            // resource maps.
+            ResourceResolver resolver = ResourceResolver.create(resources.mProject,
+                    resources.mFramework, themeName, isProjectTheme);
+            final long resolveTime = shared ? 0 : resources.mResolveTime;
+            SessionParams params = factory.createParams(config, resolver);
+
+            futures.add(mPool.render(params,
+                    new RenderSessionPool.SessionHandler<RenderResult>() {
+                        @Override
+                        public RenderResult handle(@NonNull RenderSession session,
+                                long renderTime) {
+                            Result result = session.getResult();
+                            BufferedImage image = result != null && result.isSuccess()
+                                    ? session.getImage() : null;
+                            if (result == null) {
+                                result = Result.Status.ERROR_UNKNOWN.createResult();
+                            }
+                            return new RenderResult(config, result, image, resolveTime,
+                                    renderTime, shared);
+                        }
+                    }));
+        }
+
+        for (int i = 0, n = futures.size(); i < n; i++) {
+            RenderResult result;
+            try {
+                result = futures.get(i).get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                result = new RenderResult(configs.get(i),
+                        Result.Status.ERROR_UNKNOWN.createResult(cause.getMessage(), cause),
+                        null, 0, 0, false);
+            }
+            listener.rendered(result);
+        }
+    }
+
+    /**
+     * The resources of the configurations with the same resource key.
+     */
+    private final class ResolvedResources {
+        @NonNull
+        private final Map<ResourceType, Map<String, ResourceValue>> mProject;
+        @NonNull
+        private final Map<ResourceType, Map<String, ResourceValue>> mFramework;
+        private final long mResolveTime;
+
+        ResolvedResources(@NonNull FolderConfiguration key) {
+            long start = System.nanoTime();
+            mProject = mProjectResources != null
+                    ? mProjectResources.getConfiguredResources(key) : createEmptyMap();
+            mFramework = mFrameworkResources != null
+                    ? mFrameworkResources.getConfiguredResources(key) : createEmptyMap();
+            mResolveTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+    }
+
+    @NonNull
+    private static Map<ResourceType, Map<String, ResourceValue>> createEmptyMap() {
+        Map<ResourceType, Map<String, ResourceValue>> map =
+                new EnumMap<ResourceType, Map<String, ResourceValue>>(ResourceType.class);
+        for (ResourceType type : ResourceType.values()) {
+            map.put(type, Collections.<String, ResourceValue>emptyMap());
+        }
+
+        return map;
+    }
+}
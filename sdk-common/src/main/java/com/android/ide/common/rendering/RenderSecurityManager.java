@@ -207,6 +207,23 @@ public class RenderSecurityManager extends SecurityManager {
         }
     }
 
+    /**
+     * Sets whether the calling thread is rendering, while the security manager stays
+     * installed. This only updates a thread local, so it is much cheaper than activating
+     * and deactivating the security manager around each render, which replaces the global
+     * security manager. It lets several threads render at the same time in the sandbox.
+     *
+     * @param rendering  whether the security manager applies to the calling thread
+     * @param credential when leaving the sandbox, the exact same credential passed in to
+     *                   the earlier activation call
+     */
+    public void setRenderThread(boolean rendering, @Nullable Object credential) {
+        if (!rendering && sIsRenderThread.get() && credential != sCredential) {
+            throw RenderSecurityException.create("Invalid credential");
+        }
+        sIsRenderThread.set(rendering);
+    }
+
     private boolean isRelevant() {
         return sEnabled && !mDisabled && sIsRenderThread.get();
     }
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.common.rendering;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.common.rendering.api.RenderSession;
+import com.android.ide.common.rendering.api.SessionParams;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders layouts on a fixed set of worker threads, each owning a {@link LayoutLibrary}.
+ * <p/>
+ * Layoutlib keeps most of its state in static fields, and renders one session at a time per
+ * class loader. Libraries loaded with separate calls to
+ * {@link LayoutLibrary#load(String, com.android.utils.ILogger, String)} don't share that state,
+ * so a pool with several of them renders in parallel. A pool with a single library still
+ * overlaps the work done by the callers before and after each render.
+ * <p/>
+ * The libraries are kept warm between renders: the bitmaps and nine patches they have loaded
+ * are reused until {@link #clearCaches(Object)} is called, and {@link #warmUp(Supplier)} lets
+ * the fonts, the framework resources and the theme of a configuration be loaded by every
+ * worker before the first real render.
+ * <p/>
+ * When a {@link RenderSecurityManager} is given, it stays installed for the life of the pool
+ * and each worker only enters the sandbox for the duration of a render.
+ */
+public class RenderSessionPool {
+
+    /**
+     * Extracts the result of a render from its session. The session is disposed once this
+     * returns.
+     */
+    public interface SessionHandler<T> {
+        /**
+         * Handles a session. This runs on the worker thread, in the sandbox if the pool has a
+         * security manager, so it should not write files.
+         *
+         * @param session the rendered session. Its result may be an error.
+         * @param renderTime the time spent creating the session, which inflates and draws the
+         *     layout, in milliseconds
+         * @return the value of the future returned by
+         *     {@link RenderSessionPool#render(SessionParams, SessionHandler)}
+         * @throws Exception if the session could not be handled
+         */
+        T handle(@NonNull RenderSession session, long renderTime) throws Exception;
+    }
+
+    private final List<Worker> mWorkers;
+    @Nullable
+    private final RenderSecurityManager mSecurityManager;
+    @Nullable
+    private final Object mCredential;
+
+    /**
+     * Creates a pool with one worker thread per library. The libraries must be initialized,
+     * and must not be used outside the pool until it is disposed.
+     *
+     * @param libraries the libraries to render with
+     * @param securityManager an optional security manager to render in. It is activated by the
+     *     pool, and deactivated when the pool is disposed.
+     * @param credential the credential for the security manager
+     */
+    public RenderSessionPool(
+            @NonNull List<LayoutLibrary> libraries,
+            @Nullable RenderSecurityManager securityManager,
+            @Nullable Object credential) {
+        if (libraries.isEmpty()) {
+            throw new IllegalArgumentException("No layout library to render with");
+        }
+
+        mSecurityManager = securityManager;
+        mCredential = credential;
+        if (securityManager != null) {
+            // activating the security manager puts the calling thread in the sandbox.
+            securityManager.setActive(true, credential);
+            securityManager.setRenderThread(false, credential);
+        }
+
+        mWorkers = Lists.newArrayListWithCapacity(libraries.size());
+        for (LayoutLibrary library : libraries) {
+            mWorkers.add(new Worker(library, mWorkers.size()));
+        }
+    }
+
+    /**
+     * Returns the number of layouts that can be rendered at the same time.
+     */
+    public int getParallelism() {
+        return mWorkers.size();
+    }
+
+    /**
+     * Renders a layout on the least busy worker.
+     *
+     * @param params the parameters of the session. They must not be shared with another render,
+     *     as the layout parser they contain is consumed.
+     * @param handler the handler extracting the result from the session
+     * @return the future result of the handler
+     */
+    @NonNull
+    public <T> Future<T> render(
+            @NonNull final SessionParams params,
+            @NonNull final SessionHandler<T> handler) {
+        Worker worker = mWorkers.get(0);
+        for (Worker w : mWorkers) {
+            if (w.mPending.get() < worker.mPending.get()) {
+                worker = w;
+            }
+        }
+
+        return worker.render(params, handler);
+    }
+
+    /**
+     * Renders a layout once on every worker, and waits for the renders to finish. This loads
+     * the resources used by the configuration of the layout before the first real render.
+     *
+     * @param params a supplier of parameters, called once per worker
+     * @throws InterruptedException if interrupted while waiting for the renders
+     */
+    public void warmUp(@NonNull Supplier<SessionParams> params) throws InterruptedException {
+        SessionHandler<Void> handler = new SessionHandler<Void>() {
+            @Override
+            public Void handle(@NonNull RenderSession session, long renderTime) {
+                return null;
+            }
+        };
+
+        List<Future<Void>> futures = Lists.newArrayListWithCapacity(mWorkers.size());
+        for (Worker worker : mWorkers) {
+            futures.add(worker.render(params.get(), handler));
+        }
+
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // a failed warm-up only costs time; the error will show in the real renders.
+            }
+        }
+    }
+
+    /**
+     * Clears the caches of a project in every library. Each worker clears them after the
+     * renders already requested from it, and before the ones requested after this call.
+     *
+     * @param projectKey the key for the project.
+     *
+     * @see LayoutLibrary#clearCaches(Object)
+     */
+    public void clearCaches(@NonNull final Object projectKey) {
+        for (final Worker worker : mWorkers) {
+            worker.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    worker.mLibrary.clearCaches(projectKey);
+                }
+            });
+        }
+    }
+
+    /**
+     * Disposes the pool. The renders already requested are completed first. This deactivates
+     * the security manager, but doesn't dispose the libraries.
+     *
+     * @throws InterruptedException if interrupted while waiting for the renders
+     */
+    public void dispose() throws InterruptedException {
+        for (Worker worker : mWorkers) {
+            worker.mExecutor.shutdown();
+        }
+        for (Worker worker : mWorkers) {
+            while (!worker.mExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // keep waiting: a render can't be interrupted safely.
+            }
+        }
+
+        if (mSecurityManager != null) {
+            // deactivating must be done from a thread in the sandbox.
+            mSecurityManager.setRenderThread(true, mCredential);
+            mSecurityManager.setActive(false, mCredential);
+        }
+    }
+
+    private final class Worker implements ThreadFactory {
+        private final LayoutLibrary mLibrary;
+        private final ExecutorService mExecutor;
+        private final AtomicInteger mPending = new AtomicInteger();
+        private final String mName;
+
+        Worker(@NonNull LayoutLibrary library, int index) {
+            mLibrary = library;
+            mName = "Render Worker " + index; //$NON-NLS-1$
+            mExecutor = Executors.newSingleThreadExecutor(this);
+        }
+
+        @NonNull
+        <T> Future<T> render(
+                @NonNull final SessionParams params,
+                @NonNull final SessionHandler<T> handler) {
+            mPending.incrementAndGet();
+            return mExecutor.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    try {
+                        return renderInSandbox(params, handler);
+                    } finally {
+                        mPending.decrementAndGet();
+                    }
+                }
+            });
+        }
+
+        private <T> T renderInSandbox(
+                @NonNull SessionParams params,
+                @NonNull SessionHandler<T> handler) throws Exception {
+            if (mSecurityManager != null) {
+                mSecurityManager.setRenderThread(true, mCredential);
+            }
+            try {
+                long start = System.nanoTime();
+                RenderSession session = mLibrary.createSession(params);
+                long renderTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                if (session == null) {
+                    throw new IllegalStateException("The layout library is not loaded");
+                }
+                try {
+                    return handler.handle(session, renderTime);
+                } finally {
+                    session.dispose();
+                }
+            } finally {
+                if (mSecurityManager != null) {
+                    mSecurityManager.setRenderThread(false, mCredential);
+                }
+            }
+        }
+
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, mName);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
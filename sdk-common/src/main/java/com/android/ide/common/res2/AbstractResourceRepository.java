@@ -27,9 +27,11 @@ import com.android.annotations.Nullable;
 import com.android.ide.common.rendering.api.ResourceValue;
 import com.android.ide.common.resources.ResourceUrl;
 import com.android.ide.common.resources.configuration.Configurable;
+import com.android.ide.common.resources.configuration.ConfigurationMatcher;
 import com.android.ide.common.resources.configuration.FolderConfiguration;
 import com.android.resources.ResourceType;
 import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -39,7 +41,9 @@ import com.google.common.collect.Sets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -50,17 +54,43 @@ import javax.xml.parsers.DocumentBuilderFactory;
 
 public abstract class AbstractResourceRepository {
 
+    /** Number of configurations for which matchers and configured resources are cached. */
+    private static final int MAX_CACHED_CONFIGURATIONS = 8;
+
     private final boolean mFramework;
 
+    /**
+     * The matchers of the last used configurations, least recently used first. The matchers
+     * identify configurations by their qualifiers, so they stay valid when items change.
+     * Guarded by itself.
+     */
+    private final Map<FolderConfiguration, ConfigurationMatcher> mMatchers =
+            createCache(MAX_CACHED_CONFIGURATIONS);
+
+    /**
+     * The published version of the items, read without locking. This is null when it must be
+     * created again from {@link #getMap()}.
+     */
+    @Nullable
+    private volatile ItemSnapshot mSnapshot;
+
+    /** The types changed since the snapshot was created. Guarded by {@link #ITEM_MAP_LOCK}. */
+    private final Set<ResourceType> mChangedTypes = EnumSet.noneOf(ResourceType.class);
+
+    /** Whether a merge is being consumed. Guarded by {@link #ITEM_MAP_LOCK}. */
+    private boolean mMerging;
+
     private class RepositoryMerger implements MergeConsumer<ResourceItem> {
 
         @Override
         public void start(@NonNull DocumentBuilderFactory factory)
                 throws ConsumerException {
+            beginMerge();
         }
 
         @Override
         public void end() throws ConsumerException {
+            endMerge();
         }
 
         @Override
@@ -108,24 +138,77 @@ public abstract class AbstractResourceRepository {
         return getMap(type, true); // Won't return null if create is false
     }
 
+    /**
+     * Returns the maps holding the items of the repository. Since the caller may modify them,
+     * the next query creates a new snapshot of the items.
+     */
     @NonNull
     public Map<ResourceType, ListMultimap<String, ResourceItem>> getItems() {
-        return getMap();
+        synchronized (ITEM_MAP_LOCK) {
+            mSnapshot = null;
+            return getMap();
+        }
     }
 
-    /** Lock used to protect map access */
+    /**
+     * Lock used to protect map access. Queries read immutable snapshots of the maps instead,
+     * and don't need to hold it.
+     */
     protected static final Object ITEM_MAP_LOCK = new Object();
 
+    /**
+     * Returns the current snapshot of the items, creating it if needed.
+     */
+    @NonNull
+    private ItemSnapshot getSnapshot() {
+        ItemSnapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            synchronized (ITEM_MAP_LOCK) {
+                snapshot = mSnapshot;
+                if (snapshot == null) {
+                    snapshot = new ItemSnapshot(getMap(), null, mChangedTypes);
+                    mSnapshot = snapshot;
+                    mChangedTypes.clear();
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Publishes a new snapshot with the changed types. This must be called with
+     * {@link #ITEM_MAP_LOCK} held.
+     */
+    private void publishChanges() {
+        ItemSnapshot snapshot = mSnapshot;
+        if (snapshot != null && !mChangedTypes.isEmpty()) {
+            mSnapshot = new ItemSnapshot(getMap(), snapshot, mChangedTypes);
+            mChangedTypes.clear();
+        }
+    }
+
+    private void beginMerge() {
+        synchronized (ITEM_MAP_LOCK) {
+            // queries made during the merge see the items from before it.
+            getSnapshot();
+            mMerging = true;
+        }
+    }
+
+    private void endMerge() {
+        synchronized (ITEM_MAP_LOCK) {
+            mMerging = false;
+            publishChanges();
+        }
+    }
+
     // TODO: Rename to getResourceItemList?
     @Nullable
     public List<ResourceItem> getResourceItem(@NonNull ResourceType resourceType,
             @NonNull String resourceName) {
-        synchronized (ITEM_MAP_LOCK) {
-            ListMultimap<String, ResourceItem> map = getMap(resourceType, false);
-
-            if (map != null) {
-                return map.get(resourceName);
-            }
+        ListMultimap<String, ResourceItem> map = getSnapshot().get(resourceType);
+        if (map != null) {
+            return map.get(resourceName);
         }
 
         return null;
@@ -133,13 +216,11 @@ public abstract class AbstractResourceRepository {
 
     @NonNull
     public Collection<String> getItemsOfType(@NonNull ResourceType type) {
-        synchronized (ITEM_MAP_LOCK) {
-            Multimap<String, ResourceItem> map = getMap(type, false);
-            if (map == null) {
-                return Collections.emptyList();
-            }
-            return Collections.unmodifiableCollection(map.keySet());
+        Multimap<String, ResourceItem> map = getSnapshot().get(type);
+        if (map == null) {
+            return Collections.emptyList();
         }
+        return Collections.unmodifiableCollection(map.keySet());
     }
 
     /**
@@ -213,13 +294,10 @@ public abstract class AbstractResourceRepository {
      */
     public boolean hasResourceItem(@NonNull ResourceType resourceType,
             @NonNull String resourceName) {
-        synchronized (ITEM_MAP_LOCK) {
-            ListMultimap<String, ResourceItem> map = getMap(resourceType, false);
-
-            if (map != null) {
-                List<ResourceItem> itemList = map.get(resourceName);
-                return itemList != null && !itemList.isEmpty();
-            }
+        ListMultimap<String, ResourceItem> map = getSnapshot().get(resourceType);
+        if (map != null) {
+            List<ResourceItem> itemList = map.get(resourceName);
+            return itemList != null && !itemList.isEmpty();
         }
 
         return false;
@@ -231,17 +309,13 @@ public abstract class AbstractResourceRepository {
      * @return true if the repository contains resources of the given type, false otherwise.
      */
     public boolean hasResourcesOfType(@NonNull ResourceType resourceType) {
-        synchronized (ITEM_MAP_LOCK) {
-            ListMultimap<String, ResourceItem> map = getMap(resourceType, false);
-            return map != null && !map.isEmpty();
-        }
+        ListMultimap<String, ResourceItem> map = getSnapshot().get(resourceType);
+        return map != null && !map.isEmpty();
     }
 
     @NonNull
     public List<ResourceType> getAvailableResourceTypes() {
-        synchronized (ITEM_MAP_LOCK) {
-            return Lists.newArrayList(getMap().keySet());
-        }
+        return Lists.newArrayList(getSnapshot().mItems.keySet());
     }
 
     /**
@@ -297,37 +371,33 @@ public abstract class AbstractResourceRepository {
         if (depth >= MAX_RESOURCE_INDIRECTION) {
             return Collections.emptyList();
         }
-        List<ResourceFile> output;
-        synchronized (ITEM_MAP_LOCK) {
-            ListMultimap<String, ResourceItem> typeItems = getMap(type, false);
-            if (typeItems == null) {
-                return Collections.emptyList();
-            }
-            seenNames.add(name);
-            output = new ArrayList<ResourceFile>();
-            List<ResourceItem> matchingItems = typeItems.get(name);
-            List<Configurable> matches = config.findMatchingConfigurables(matchingItems);
-            for (Configurable conf : matches) {
-                ResourceItem match = (ResourceItem) conf;
-                // if match is an alias, check if the name is in seen names.
-                ResourceValue resourceValue = match.getResourceValue(isFramework());
-                if (resourceValue != null) {
-                    String value = resourceValue.getValue();
-                    if (value != null && value.startsWith(PREFIX_RESOURCE_REF)) {
-                        ResourceUrl url = ResourceUrl.parse(value);
-                        if (url != null && url.type == type && url.framework == isFramework()) {
-                            if (!seenNames.contains(url.name)) {
-                                // This resource alias needs to be resolved again.
-                                output.addAll(getMatchingFiles(
-                                        url.name, type, config, seenNames, depth + 1));
-                            }
-                            continue;
+        ListMultimap<String, ResourceItem> typeItems = getSnapshot().get(type);
+        if (typeItems == null) {
+            return Collections.emptyList();
+        }
+        seenNames.add(name);
+        List<ResourceFile> output = new ArrayList<ResourceFile>();
+        List<ResourceItem> matchingItems = typeItems.get(name);
+        List<ResourceItem> matches = getMatcher(config).findMatchingConfigurables(matchingItems);
+        for (ResourceItem match : matches) {
+            // if match is an alias, check if the name is in seen names.
+            ResourceValue resourceValue = match.getResourceValue(isFramework());
+            if (resourceValue != null) {
+                String value = resourceValue.getValue();
+                if (value != null && value.startsWith(PREFIX_RESOURCE_REF)) {
+                    ResourceUrl url = ResourceUrl.parse(value);
+                    if (url != null && url.type == type && url.framework == isFramework()) {
+                        if (!seenNames.contains(url.name)) {
+                            // This resource alias needs to be resolved again.
+                            output.addAll(getMatchingFiles(
+                                    url.name, type, config, seenNames, depth + 1));
                         }
+                        continue;
                     }
                 }
-                output.add(match.getSource());
-
             }
+            output.add(match.getSource());
+
         }
 
         return output;
@@ -342,14 +412,27 @@ public abstract class AbstractResourceRepository {
     @NonNull
     public Map<ResourceType, Map<String, ResourceValue>> getConfiguredResources(
             @NonNull FolderConfiguration referenceConfig) {
-        Map<ResourceType, Map<String, ResourceValue>> map = Maps.newEnumMap(ResourceType.class);
-
-        synchronized (ITEM_MAP_LOCK) {
-            Map<ResourceType, ListMultimap<String, ResourceItem>> itemMap = getMap();
+        ItemSnapshot snapshot = getSnapshot();
+        Map<ResourceType, Map<String, ResourceValue>> cached;
+        synchronized (snapshot.mConfiguredResources) {
+            cached = snapshot.mConfiguredResources.get(referenceConfig);
+        }
+        if (cached == null) {
+            cached = Maps.newEnumMap(ResourceType.class);
             for (ResourceType key : ResourceType.values()) {
                 // get the local results and put them in the map
-                map.put(key, getConfiguredResources(itemMap, key, referenceConfig));
+                cached.put(key, getConfiguredResources(snapshot.mItems, key, referenceConfig));
             }
+            synchronized (snapshot.mConfiguredResources) {
+                snapshot.mConfiguredResources.put(getMatcher(referenceConfig).getReference(),
+                        cached);
+            }
+        }
+
+        // the callers own the returned maps.
+        Map<ResourceType, Map<String, ResourceValue>> map = Maps.newEnumMap(ResourceType.class);
+        for (Map.Entry<ResourceType, Map<String, ResourceValue>> entry : cached.entrySet()) {
+            map.put(entry.getKey(), Maps.newHashMap(entry.getValue()));
         }
 
         return map;
@@ -366,7 +449,7 @@ public abstract class AbstractResourceRepository {
     public Map<String, ResourceValue> getConfiguredResources(
             @NonNull ResourceType type,
             @NonNull FolderConfiguration referenceConfig) {
-        return getConfiguredResources(getMap(), type, referenceConfig);
+        return getConfiguredResources(getSnapshot().mItems, type, referenceConfig);
     }
 
     @NonNull
@@ -385,12 +468,12 @@ public abstract class AbstractResourceRepository {
         // create the map
         Map<String, ResourceValue> map = Maps.newHashMapWithExpectedSize(keys.size());
 
+        ConfigurationMatcher matcher = getMatcher(referenceConfig);
         for (String key : keys) {
             List<ResourceItem> keyItems = items.get(key);
 
             // look for the best match for the given configuration
-            // the match has to be of type ResourceFile since that's what the input list contains
-            ResourceItem match = (ResourceItem) referenceConfig.findMatchingConfigurable(keyItems);
+            ResourceItem match = matcher.findMatchingConfigurable(keyItems);
             if (match != null) {
                 ResourceValue value = match.getResourceValue(mFramework);
                 if (value != null) {
@@ -408,7 +491,7 @@ public abstract class AbstractResourceRepository {
             @NonNull String name,
             @NonNull FolderConfiguration referenceConfig) {
         // get the resource item for the given type
-        ListMultimap<String, ResourceItem> items = getMap(type, false);
+        ListMultimap<String, ResourceItem> items = getSnapshot().get(type);
         if (items == null) {
             return null;
         }
@@ -419,17 +502,46 @@ public abstract class AbstractResourceRepository {
         }
 
         // look for the best match for the given configuration
-        // the match has to be of type ResourceFile since that's what the input list contains
-        ResourceItem match = (ResourceItem) referenceConfig.findMatchingConfigurable(keyItems);
+        ResourceItem match = getMatcher(referenceConfig).findMatchingConfigurable(keyItems);
         return match != null ? match.getResourceValue(mFramework) : null;
     }
 
+    /**
+     * Returns the matcher for a configuration, creating it if needed.
+     */
+    @NonNull
+    private ConfigurationMatcher getMatcher(@NonNull FolderConfiguration referenceConfig) {
+        synchronized (mMatchers) {
+            ConfigurationMatcher matcher = mMatchers.get(referenceConfig);
+            if (matcher == null) {
+                matcher = new ItemMatcher(referenceConfig);
+                mMatchers.put(matcher.getReference(), matcher);
+            }
+            return matcher;
+        }
+    }
+
+    /**
+     * Discards the snapshot of the items, and the configured resources cached with it.
+     * Subclasses which modify the maps returned by {@link #getMap()} directly must call this.
+     */
+    protected void invalidateConfiguredResources() {
+        synchronized (ITEM_MAP_LOCK) {
+            mSnapshot = null;
+        }
+    }
+
     private void addItem(@NonNull ResourceItem item) {
         synchronized (ITEM_MAP_LOCK) {
             ListMultimap<String, ResourceItem> map = getMap(item.getType());
             if (!map.containsValue(item)) {
                 map.put(item.getName(), item);
             }
+            // the value of an item already in the map may have changed too.
+            mChangedTypes.add(item.getType());
+            if (!mMerging) {
+                publishChanges();
+            }
         }
     }
 
@@ -439,6 +551,10 @@ public abstract class AbstractResourceRepository {
             if (map != null) {
                 map.remove(removedItem.getName(), removedItem);
             }
+            mChangedTypes.add(removedItem.getType());
+            if (!mMerging) {
+                publishChanges();
+            }
         }
     }
 
@@ -454,11 +570,9 @@ public abstract class AbstractResourceRepository {
         // are no translations for it
         Set<String> qualifiers = Sets.newHashSet();
 
-        synchronized (ITEM_MAP_LOCK) {
-            for (ListMultimap<String, ResourceItem> map : getMap().values()) {
-                for (ResourceItem item : map.values()) {
-                    qualifiers.add(item.getQualifiers());
-                }
+        for (ListMultimap<String, ResourceItem> map : getSnapshot().mItems.values()) {
+            for (ResourceItem item : map.values()) {
+                qualifiers.add(item.getQualifiers());
             }
         }
 
@@ -487,11 +601,9 @@ public abstract class AbstractResourceRepository {
         // the languages are defined -- not on layouts, menus, etc -- especially if there
         // are no translations for it
         Set<String> qualifiers = Sets.newHashSet();
-        synchronized (ITEM_MAP_LOCK) {
-            for (ListMultimap<String, ResourceItem> map : getMap().values()) {
-                for (ResourceItem item : map.values()) {
-                    qualifiers.add(item.getQualifiers());
-                }
+        for (ListMultimap<String, ResourceItem> map : getSnapshot().mItems.values()) {
+            for (ResourceItem item : map.values()) {
+                qualifiers.add(item.getQualifiers());
             }
         }
 
@@ -515,6 +627,75 @@ public abstract class AbstractResourceRepository {
     }
 
     public void clear() {
-        getMap().clear();
+        synchronized (ITEM_MAP_LOCK) {
+            getMap().clear();
+            mSnapshot = null;
+        }
+    }
+
+    @NonNull
+    private static <K, V> Map<K, V> createCache(final int maxSize) {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * An immutable version of the items of the repository. A new snapshot is published when a
+     * merge ends; it shares the item lists of the types the merge didn't change with the
+     * previous one.
+     */
+    private static final class ItemSnapshot {
+        final Map<ResourceType, ListMultimap<String, ResourceItem>> mItems;
+
+        /**
+         * The configured resources of the last used configurations, least recently used first.
+         * Guarded by itself.
+         */
+        final Map<FolderConfiguration, Map<ResourceType, Map<String, ResourceValue>>>
+                mConfiguredResources = createCache(MAX_CACHED_CONFIGURATIONS);
+
+        ItemSnapshot(@NonNull Map<ResourceType, ListMultimap<String, ResourceItem>> items,
+                @Nullable ItemSnapshot previous, @NonNull Set<ResourceType> changedTypes) {
+            Map<ResourceType, ListMultimap<String, ResourceItem>> copy =
+                    Maps.newEnumMap(ResourceType.class);
+            for (Map.Entry<ResourceType, ListMultimap<String, ResourceItem>> entry
+                    : items.entrySet()) {
+                ResourceType type = entry.getKey();
+                ListMultimap<String, ResourceItem> typeItems = null;
+                if (previous != null && !changedTypes.contains(type)) {
+                    typeItems = previous.mItems.get(type);
+                }
+                if (typeItems == null) {
+                    typeItems = ImmutableListMultimap.copyOf(entry.getValue());
+                }
+                copy.put(type, typeItems);
+            }
+            mItems = Collections.unmodifiableMap(copy);
+        }
+
+        @Nullable
+        ListMultimap<String, ResourceItem> get(@NonNull ResourceType type) {
+            return mItems.get(type);
+        }
+    }
+
+    /**
+     * A matcher identifying the configurations of the items by their qualifiers, which avoids
+     * parsing a configuration for each item.
+     */
+    private static final class ItemMatcher extends ConfigurationMatcher {
+        ItemMatcher(@NonNull FolderConfiguration reference) {
+            super(reference);
+        }
+
+        @Nullable
+        @Override
+        protected Object getKey(@NonNull Configurable configurable) {
+            return ((ResourceItem) configurable).getQualifiers();
+        }
     }
 }
@@ -0,0 +1,490 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.common.resources;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.common.rendering.api.AttrResourceValue;
+import com.android.ide.common.rendering.api.DeclareStyleableResourceValue;
+import com.android.ide.common.rendering.api.ItemResourceValue;
+import com.android.ide.common.rendering.api.ResourceValue;
+import com.android.ide.common.rendering.api.StyleResourceValue;
+import com.android.resources.ResourceType;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled snapshot of the value resources of a {@link FrameworkResources} repository.
+ * <p/>
+ * Parsing the XML files of the res/values* folders of a platform takes seconds, every time the
+ * platform is opened. The snapshot stores the parsed values once, in a binary file: a pool of
+ * the strings they use, followed by the values of each file, grouped by {@link ResourceType}
+ * and keyed by the name of their folder (which holds the qualifiers of its
+ * {@link com.android.ide.common.resources.configuration.FolderConfiguration}) and the name of
+ * the file. It also stores the public resources declared in public.xml.
+ * <p/>
+ * The snapshot file is read in a single pass, and each string of the pool is only decoded once,
+ * the first time it is used, so the values of all the files share the same string instances.
+ * The file is not memory mapped: a mapped file cannot be replaced on Windows until the mapping
+ * is garbage collected, and the snapshot is rewritten while it is in use.
+ * The values of a file are only used if the file has the same modification stamp as when the
+ * snapshot was written.
+ */
+final class FrameworkResourceSnapshot {
+
+    /** Name of the snapshot file, in the parent folder of the res folder. */
+    static final String FN_SNAPSHOT = "res.snapshot"; //$NON-NLS-1$
+
+    private static final int MAGIC = 0x52455353; // "RESS"
+    private static final int VERSION = 1;
+
+    private static final int NO_STRING = -1;
+
+    private static final byte KIND_VALUE = 0;
+    private static final byte KIND_STYLE = 1;
+    private static final byte KIND_DECLARE_STYLEABLE = 2;
+    private static final byte KIND_ATTR = 3;
+    private static final byte FLAG_FRAMEWORK = 0x10;
+
+    private static final class Entry {
+        final long mStamp;
+        final int mOffset;
+        boolean mUsed;
+
+        Entry(long stamp, int offset) {
+            mStamp = stamp;
+            mOffset = offset;
+        }
+    }
+
+    private final ByteBuffer mBuffer;
+    private final int[] mStringOffsets;
+    private final String[] mStrings;
+    private final Map<String, Entry> mEntries;
+    private final long mPublicStamp;
+    private final Map<ResourceType, List<String>> mPublicResources;
+    private final int mDataOffset;
+    private int mUsedCount = 0;
+
+    /**
+     * Opens a snapshot file.
+     *
+     * @param file the snapshot file
+     * @return the snapshot, or null if the file does not exist or is not a valid snapshot.
+     */
+    @Nullable
+    static FrameworkResourceSnapshot open(@NonNull File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            return new FrameworkResourceSnapshot(ByteBuffer.wrap(Files.toByteArray(file)));
+        } catch (IOException e) {
+            return null;
+        } catch (BufferUnderflowException e) {
+            return null;
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private FrameworkResourceSnapshot(@NonNull ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        ByteBuffer in = buffer.duplicate();
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IOException("Not a resource snapshot");
+        }
+
+        // the strings are decoded lazily, only their offsets are read here.
+        int stringCount = in.getInt();
+        mStringOffsets = new int[stringCount];
+        mStrings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            int offset = in.position();
+            mStringOffsets[i] = offset;
+            in.position(offset + 4 + in.getInt(offset));
+        }
+
+        int entryCount = in.getInt();
+        mEntries = new HashMap<String, Entry>(entryCount);
+        for (int i = 0; i < entryCount; i++) {
+            String key = getKey(getString(in.getInt()), getString(in.getInt()));
+            long stamp = in.getLong();
+            mEntries.put(key, new Entry(stamp, in.getInt()));
+        }
+
+        mPublicStamp = in.getLong();
+        mPublicResources = new EnumMap<ResourceType, List<String>>(ResourceType.class);
+        int typeCount = in.getInt();
+        for (int i = 0; i < typeCount; i++) {
+            ResourceType type = ResourceType.getEnum(getString(in.getInt()));
+            int count = in.getInt();
+            List<String> names = new ArrayList<String>(count);
+            for (int j = 0; j < count; j++) {
+                names.add(getString(in.getInt()));
+            }
+            if (type != null) {
+                mPublicResources.put(type, names);
+            }
+        }
+
+        mDataOffset = in.position();
+    }
+
+    /**
+     * Adds the values of a file to the file, if the snapshot holds them for the current
+     * modification stamp of the file.
+     *
+     * @param file the file to fill
+     * @return true if the values were added, false if the file must be parsed.
+     */
+    boolean read(@NonNull MultiResourceFile file) {
+        Entry entry = mEntries.get(getKey(file));
+        if (entry == null || entry.mStamp != file.getFile().getModificationStamp()) {
+            return false;
+        }
+
+        ByteBuffer in = mBuffer.duplicate();
+        in.position(mDataOffset + entry.mOffset);
+        int typeCount = in.getInt();
+        for (int i = 0; i < typeCount; i++) {
+            ResourceType type = ResourceType.getEnum(getString(in.getInt()));
+            int count = in.getInt();
+            for (int j = 0; j < count; j++) {
+                ResourceValue value = readValue(in, type);
+                if (value != null) {
+                    file.addResourceValue(value);
+                }
+            }
+        }
+
+        if (!entry.mUsed) {
+            entry.mUsed = true;
+            mUsedCount++;
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether all the files of the snapshot have been read since it was opened.
+     * A snapshot which was not fully used holds files that have been removed.
+     */
+    boolean isFullyUsed() {
+        return mUsedCount == mEntries.size();
+    }
+
+    /**
+     * Returns the modification stamp of the public.xml file the public resources were read
+     * from, or -1 if there are none.
+     */
+    long getPublicStamp() {
+        return mPublicStamp;
+    }
+
+    /**
+     * Returns the names of the public resources, by type.
+     */
+    @NonNull
+    Map<ResourceType, List<String>> getPublicResources() {
+        return mPublicResources;
+    }
+
+    @Nullable
+    private ResourceValue readValue(@NonNull ByteBuffer in, @Nullable ResourceType type) {
+        byte kind = in.get();
+        boolean isFramework = (kind & FLAG_FRAMEWORK) != 0;
+        String name = getString(in.getInt());
+        String text = getString(in.getInt());
+
+        ResourceValue value;
+        switch (kind & ~FLAG_FRAMEWORK) {
+            case KIND_STYLE: {
+                StyleResourceValue style = new StyleResourceValue(type, name,
+                        getString(in.getInt()), isFramework);
+                int count = in.getInt();
+                for (int i = 0; i < count; i++) {
+                    String itemName = getString(in.getInt());
+                    boolean isFrameworkAttr = in.get() != 0;
+                    style.addItem(new ItemResourceValue(itemName, isFrameworkAttr,
+                            getString(in.getInt()), isFramework));
+                }
+                value = style;
+                break;
+            }
+            case KIND_DECLARE_STYLEABLE: {
+                DeclareStyleableResourceValue styleable = new DeclareStyleableResourceValue(
+                        type, name, isFramework);
+                int count = in.getInt();
+                for (int i = 0; i < count; i++) {
+                    byte attrKind = in.get();
+                    String attrName = getString(in.getInt());
+                    AttrResourceValue attr = new AttrResourceValue(ResourceType.ATTR, attrName,
+                            (attrKind & FLAG_FRAMEWORK) != 0);
+                    readAttrValues(in, attr);
+                    styleable.addValue(attr);
+                }
+                value = styleable;
+                break;
+            }
+            case KIND_ATTR: {
+                AttrResourceValue attr = new AttrResourceValue(type, name, isFramework);
+                readAttrValues(in, attr);
+                value = attr;
+                break;
+            }
+            default:
+                value = new ResourceValue(type, name, isFramework);
+                break;
+        }
+        if (text != null) {
+            value.setValue(text);
+        }
+
+        // values of a type unknown to this version are read and dropped.
+        return type != null ? value : null;
+    }
+
+    private void readAttrValues(@NonNull ByteBuffer in, @NonNull AttrResourceValue attr) {
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            String name = getString(in.getInt());
+            attr.addValue(name, in.getInt());
+        }
+    }
+
+    @Nullable
+    private String getString(int index) {
+        if (index == NO_STRING) {
+            return null;
+        }
+
+        String s = mStrings[index];
+        if (s == null) {
+            int offset = mStringOffsets[index];
+            byte[] bytes = new byte[mBuffer.getInt(offset)];
+            ByteBuffer in = mBuffer.duplicate();
+            in.position(offset + 4);
+            in.get(bytes);
+            s = new String(bytes, Charsets.UTF_8);
+            mStrings[index] = s;
+        }
+        return s;
+    }
+
+    @NonNull
+    private static String getKey(@NonNull MultiResourceFile file) {
+        return getKey(file.getFolder().getFolder().getName(), file.getFile().getName());
+    }
+
+    @NonNull
+    private static String getKey(@Nullable String folderName, @Nullable String fileName) {
+        return folderName + '/' + fileName;
+    }
+
+    /**
+     * Writes a snapshot file. The file is written to a temporary file first and then renamed,
+     * so a snapshot file is always complete.
+     *
+     * @param file the snapshot file
+     * @param files the value files to store
+     * @param publicStamp the modification stamp of the public.xml file, or -1
+     * @param publicResources the names of the public resources, by type
+     * @throws IOException if the snapshot cannot be written
+     */
+    static void write(
+            @NonNull File file,
+            @NonNull Collection<MultiResourceFile> files,
+            long publicStamp,
+            @NonNull Map<ResourceType, List<String>> publicResources) throws IOException {
+        StringPool pool = new StringPool();
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream(1 << 20);
+        DataOutputStream dataOut = new DataOutputStream(data);
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        DataOutputStream tableOut = new DataOutputStream(table);
+
+        tableOut.writeInt(files.size());
+        for (MultiResourceFile resourceFile : files) {
+            tableOut.writeInt(pool.add(resourceFile.getFolder().getFolder().getName()));
+            tableOut.writeInt(pool.add(resourceFile.getFile().getName()));
+            tableOut.writeLong(resourceFile.getFile().getModificationStamp());
+            tableOut.writeInt(dataOut.size());
+
+            Collection<ResourceType> types = resourceFile.getResourceTypes();
+            dataOut.writeInt(types.size());
+            for (ResourceType type : types) {
+                Collection<ResourceValue> values = resourceFile.getValues(type);
+                dataOut.writeInt(pool.add(type.getName()));
+                dataOut.writeInt(values.size());
+                for (ResourceValue value : values) {
+                    writeValue(dataOut, pool, value);
+                }
+            }
+        }
+
+        tableOut.writeLong(publicStamp);
+        tableOut.writeInt(publicResources.size());
+        for (Map.Entry<ResourceType, List<String>> entry : publicResources.entrySet()) {
+            List<String> names = entry.getValue();
+            tableOut.writeInt(pool.add(entry.getKey().getName()));
+            tableOut.writeInt(names.size());
+            for (String name : names) {
+                tableOut.writeInt(pool.add(name));
+            }
+        }
+
+        File tmpFile = File.createTempFile(FN_SNAPSHOT, null, file.getParentFile());
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                pool.write(out);
+                table.writeTo(out);
+                data.writeTo(out);
+            } finally {
+                out.close();
+            }
+
+            if (!tmpFile.renameTo(file)) {
+                // some platforms do not rename over an existing file.
+                if (!file.delete() || !tmpFile.renameTo(file)) {
+                    throw new IOException("Failed to replace " + file);
+                }
+            }
+        } finally {
+            if (tmpFile.exists()) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    private static void writeValue(@NonNull DataOutputStream out, @NonNull StringPool pool,
+            @NonNull ResourceValue value) throws IOException {
+        byte kind;
+        if (value instanceof StyleResourceValue) {
+            kind = KIND_STYLE;
+        } else if (value instanceof DeclareStyleableResourceValue) {
+            kind = KIND_DECLARE_STYLEABLE;
+        } else if (value instanceof AttrResourceValue) {
+            kind = KIND_ATTR;
+        } else if (value.getClass() == ResourceValue.class) {
+            kind = KIND_VALUE;
+        } else {
+            throw new IOException("Unsupported resource value: " + value.getClass());
+        }
+
+        out.writeByte(kind | (value.isFramework() ? FLAG_FRAMEWORK : 0));
+        out.writeInt(pool.add(value.getName()));
+        out.writeInt(pool.add(value.getValue()));
+
+        switch (kind) {
+            case KIND_STYLE: {
+                StyleResourceValue style = (StyleResourceValue) value;
+                Collection<ItemResourceValue> items = style.getValues();
+                out.writeInt(pool.add(style.getParentStyle()));
+                out.writeInt(items.size());
+                for (ItemResourceValue item : items) {
+                    out.writeInt(pool.add(item.getName()));
+                    out.writeByte(item.isFrameworkAttr() ? 1 : 0);
+                    out.writeInt(pool.add(item.getValue()));
+                }
+                break;
+            }
+            case KIND_DECLARE_STYLEABLE: {
+                Map<String, AttrResourceValue> attrs =
+                        ((DeclareStyleableResourceValue) value).getAllAttributes();
+                if (attrs == null) {
+                    out.writeInt(0);
+                    break;
+                }
+                out.writeInt(attrs.size());
+                for (AttrResourceValue attr : attrs.values()) {
+                    out.writeByte(attr.isFramework() ? FLAG_FRAMEWORK : 0);
+                    out.writeInt(pool.add(attr.getName()));
+                    writeAttrValues(out, pool, attr);
+                }
+                break;
+            }
+            case KIND_ATTR:
+                writeAttrValues(out, pool, (AttrResourceValue) value);
+                break;
+        }
+    }
+
+    private static void writeAttrValues(@NonNull DataOutputStream out, @NonNull StringPool pool,
+            @NonNull AttrResourceValue attr) throws IOException {
+        Map<String, Integer> values = attr.getAttributeValues();
+        if (values == null) {
+            out.writeInt(0);
+            return;
+        }
+        out.writeInt(values.size());
+        for (Map.Entry<String, Integer> entry : values.entrySet()) {
+            out.writeInt(pool.add(entry.getKey()));
+            out.writeInt(entry.getValue());
+        }
+    }
+
+    /**
+     * The strings of a snapshot being written, each stored once.
+     */
+    private static final class StringPool {
+        private final Map<String, Integer> mIndices = new LinkedHashMap<String, Integer>();
+
+        int add(@Nullable String s) {
+            if (s == null) {
+                return NO_STRING;
+            }
+            Integer index = mIndices.get(s);
+            if (index == null) {
+                index = mIndices.size();
+                mIndices.put(s, index);
+            }
+            return index;
+        }
+
+        void write(@NonNull DataOutputStream out) throws IOException {
+            out.writeInt(mIndices.size());
+            for (String s : mIndices.keySet()) {
+                byte[] bytes = s.getBytes(Charsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+}
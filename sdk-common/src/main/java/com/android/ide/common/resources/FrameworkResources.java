@@ -22,6 +22,7 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.io.IAbstractFile;
 import com.android.io.IAbstractFolder;
+import com.android.resources.ResourceFolderType;
 import com.android.resources.ResourceType;
 import com.android.utils.ILogger;
 import com.google.common.base.Charsets;
@@ -30,6 +31,7 @@ import org.kxml2.io.KXmlParser;
 import org.xmlpull.v1.XmlPullParser;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
@@ -50,6 +52,9 @@ import java.util.Map;
  *
  * {@link #getConfiguredResources(com.android.ide.common.resources.configuration.FolderConfiguration)}
  * returns all resources, even the non public ones so that this can be used for rendering.
+ *
+ * The values and public resources are cached in a snapshot file next to the res folder, so
+ * that the XML files of the platform are only parsed again when they change.
  */
 public class FrameworkResources extends ResourceRepository {
 
@@ -60,6 +65,13 @@ public class FrameworkResources extends ResourceRepository {
     protected final Map<ResourceType, List<ResourceItem>> mPublicResourceMap =
         new EnumMap<ResourceType, List<ResourceItem>>(ResourceType.class);
 
+    /**
+     * The compiled snapshot of the values of the repository, or null if there is none. The
+     * snapshot is rewritten when a value file changed since it was written.
+     */
+    private FrameworkResourceSnapshot mSnapshot;
+    private boolean mSnapshotStale;
+
     public FrameworkResources(@NonNull IAbstractFolder resFolder) {
         super(resFolder, true /*isFrameworkRepository*/);
     }
@@ -110,111 +122,24 @@ public class FrameworkResources extends ResourceRepository {
 
         IAbstractFile publicXmlFile = valueFolder.getFile("public.xml"); //$NON-NLS-1$
         if (publicXmlFile.exists()) {
-            Reader reader = null;
-            try {
-                reader = new BufferedReader(new InputStreamReader(publicXmlFile.getContents(),
-                        Charsets.UTF_8));
-                KXmlParser parser = new KXmlParser();
-                parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
-                parser.setInput(reader);
-
-                ResourceType lastType = null;
-                String lastTypeName = "";
-                while (true) {
-                    int event = parser.next();
-                    if (event == XmlPullParser.START_TAG) {
-                        // As of API 15 there are a number of "java-symbol" entries here
-                        if (!parser.getName().equals("public")) { //$NON-NLS-1$
-                            continue;
-                        }
+            ensureInitialized();
 
-                        String name = null;
-                        String typeName = null;
-                        for (int i = 0, n = parser.getAttributeCount(); i < n; i++) {
-                            String attribute = parser.getAttributeName(i);
-
-                            if (attribute.equals("name")) { //$NON-NLS-1$
-                                name = parser.getAttributeValue(i);
-                                if (typeName != null) {
-                                    // Skip id attribute processing
-                                    break;
-                                }
-                            } else if (attribute.equals("type")) { //$NON-NLS-1$
-                                typeName = parser.getAttributeValue(i);
-                            }
-                        }
-
-                        if (name != null && typeName != null) {
-                            ResourceType type = null;
-                            if (typeName.equals(lastTypeName)) {
-                                type = lastType;
-                            } else {
-                                type = ResourceType.getEnum(typeName);
-                                lastType = type;
-                                lastTypeName = typeName;
-                            }
-                            if (type != null) {
-                                ResourceItem match = null;
-                                Map<String, ResourceItem> map = mResourceMap.get(type);
-                                if (map != null) {
-                                    match = map.get(name);
-                                }
-
-                                if (match != null) {
-                                    List<ResourceItem> publicList = mPublicResourceMap.get(type);
-                                    if (publicList == null) {
-                                        // Pick initial size for the list to hold the public
-                                        // resources. We could just use map.size() here,
-                                        // but they're usually much bigger; for example,
-                                        // in one platform version, there are 1500 drawables
-                                        // and 1200 strings but only 175 and 25 public ones
-                                        // respectively.
-                                        int size;
-                                        switch (type) {
-                                            case STYLE: size = 500; break;
-                                            case ATTR: size = 1050; break;
-                                            case DRAWABLE: size = 200; break;
-                                            case ID: size = 50; break;
-                                            case LAYOUT:
-                                            case COLOR:
-                                            case STRING:
-                                            case ANIM:
-                                            case INTERPOLATOR:
-                                                size = 30;
-                                                break;
-                                            default:
-                                                size = 10;
-                                                break;
-                                        }
-                                        publicList = new ArrayList<ResourceItem>(size);
-                                        mPublicResourceMap.put(type, publicList);
-                                    }
-
-                                    publicList.add(match);
-                                } else {
-                                    // log that there's a public resource that doesn't actually
-                                    // exist?
-                                }
-                            } else {
-                                // log that there was a reference to a typo that doesn't actually
-                                // exist?
-                            }
-                        }
-                    } else if (event == XmlPullParser.END_DOCUMENT) {
-                        break;
+            Map<ResourceType, List<String>> publicResources;
+            long stamp = publicXmlFile.getModificationStamp();
+            synchronized (this) {
+                if (mSnapshot != null && mSnapshot.getPublicStamp() == stamp) {
+                    publicResources = mSnapshot.getPublicResources();
+                } else {
+                    publicResources = parsePublicResources(publicXmlFile, logger);
+                    if (publicResources != null) {
+                        writeSnapshot(stamp, publicResources);
                     }
                 }
-            } catch (Exception e) {
-                if (logger != null) {
-                    logger.error(e, "Can't read and parse public attribute list");
-                }
-            } finally {
-                if (reader != null) {
-                    try {
-                        reader.close();
-                    } catch (IOException e) {
-                        // Nothing to be done here - we don't care if it closed or not.
-                    }
+            }
+
+            if (publicResources != null) {
+                for (Map.Entry<ResourceType, List<String>> entry : publicResources.entrySet()) {
+                    addPublicResources(entry.getKey(), entry.getValue());
                 }
             }
         }
@@ -233,5 +158,219 @@ public class FrameworkResources extends ResourceRepository {
             mPublicResourceMap.put(type, list);
         }
     }
-}
 
+    /**
+     * Parses a public.xml file.
+     *
+     * @param publicXmlFile the file to parse
+     * @param logger a logger to report issues to
+     * @return the names of the public resources, by type, or null if the file cannot be read.
+     */
+    @Nullable
+    private static Map<ResourceType, List<String>> parsePublicResources(
+            @NonNull IAbstractFile publicXmlFile, @Nullable ILogger logger) {
+        Map<ResourceType, List<String>> publicResources =
+                new EnumMap<ResourceType, List<String>>(ResourceType.class);
+        Reader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(publicXmlFile.getContents(),
+                    Charsets.UTF_8));
+            KXmlParser parser = new KXmlParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+            parser.setInput(reader);
+
+            ResourceType lastType = null;
+            String lastTypeName = "";
+            while (true) {
+                int event = parser.next();
+                if (event == XmlPullParser.START_TAG) {
+                    // As of API 15 there are a number of "java-symbol" entries here
+                    if (!parser.getName().equals("public")) { //$NON-NLS-1$
+                        continue;
+                    }
+
+                    String name = null;
+                    String typeName = null;
+                    for (int i = 0, n = parser.getAttributeCount(); i < n; i++) {
+                        String attribute = parser.getAttributeName(i);
+
+                        if (attribute.equals("name")) { //$NON-NLS-1$
+                            name = parser.getAttributeValue(i);
+                            if (typeName != null) {
+                                // Skip id attribute processing
+                                break;
+                            }
+                        } else if (attribute.equals("type")) { //$NON-NLS-1$
+                            typeName = parser.getAttributeValue(i);
+                        }
+                    }
+
+                    if (name != null && typeName != null) {
+                        ResourceType type = null;
+                        if (typeName.equals(lastTypeName)) {
+                            type = lastType;
+                        } else {
+                            type = ResourceType.getEnum(typeName);
+                            lastType = type;
+                            lastTypeName = typeName;
+                        }
+                        if (type != null) {
+                            List<String> names = publicResources.get(type);
+                            if (names == null) {
+                                names = new ArrayList<String>();
+                                publicResources.put(type, names);
+                            }
+                            names.add(name);
+                        } else {
+                            // log that there was a reference to a typo that doesn't actually
+                            // exist?
+                        }
+                    }
+                } else if (event == XmlPullParser.END_DOCUMENT) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            if (logger != null) {
+                logger.error(e, "Can't read and parse public attribute list");
+            }
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Nothing to be done here - we don't care if it closed or not.
+                }
+            }
+        }
+
+        return publicResources;
+    }
+
+    private void addPublicResources(@NonNull ResourceType type, @NonNull List<String> names) {
+        Map<String, ResourceItem> map = mResourceMap.get(type);
+        if (map == null) {
+            return;
+        }
+
+        for (String name : names) {
+            ResourceItem match = map.get(name);
+            if (match != null) {
+                List<ResourceItem> publicList = mPublicResourceMap.get(type);
+                if (publicList == null) {
+                    // Pick initial size for the list to hold the public
+                    // resources. We could just use map.size() here,
+                    // but they're usually much bigger; for example,
+                    // in one platform version, there are 1500 drawables
+                    // and 1200 strings but only 175 and 25 public ones
+                    // respectively.
+                    int size;
+                    switch (type) {
+                        case STYLE: size = 500; break;
+                        case ATTR: size = 1050; break;
+                        case DRAWABLE: size = 200; break;
+                        case ID: size = 50; break;
+                        case LAYOUT:
+                        case COLOR:
+                        case STRING:
+                        case ANIM:
+                        case INTERPOLATOR:
+                            size = 30;
+                            break;
+                        default:
+                            size = 10;
+                            break;
+                    }
+                    publicList = new ArrayList<ResourceItem>(size);
+                    mPublicResourceMap.put(type, publicList);
+                }
+
+                publicList.add(match);
+            } else {
+                // log that there's a public resource that doesn't actually
+                // exist?
+            }
+        }
+    }
+
+    @Override
+    protected void beginInitialization() {
+        File snapshotFile = getSnapshotFile();
+        mSnapshot = snapshotFile != null ? FrameworkResourceSnapshot.open(snapshotFile) : null;
+        mSnapshotStale = false;
+    }
+
+    /**
+     * Adds the values of a file from the snapshot of the repository, if it is up to date.
+     *
+     * @param file the file to fill
+     * @return true if the values were added, false if the file must be parsed.
+     */
+    boolean readSnapshot(@NonNull MultiResourceFile file) {
+        if (mSnapshot != null && mSnapshot.read(file)) {
+            return true;
+        }
+
+        mSnapshotStale = true;
+        return false;
+    }
+
+    @Override
+    protected void endInitialization() {
+        if (mSnapshotStale || (mSnapshot != null && !mSnapshot.isFullyUsed())) {
+            // keep the public resources of the previous snapshot, they have their own stamp.
+            if (mSnapshot != null) {
+                writeSnapshot(mSnapshot.getPublicStamp(), mSnapshot.getPublicResources());
+            } else {
+                Map<ResourceType, List<String>> empty = Collections.emptyMap();
+                writeSnapshot(-1, empty);
+            }
+        }
+    }
+
+    private void writeSnapshot(long publicStamp,
+            @NonNull Map<ResourceType, List<String>> publicResources) {
+        File snapshotFile = getSnapshotFile();
+        if (snapshotFile == null) {
+            return;
+        }
+
+        List<MultiResourceFile> files = new ArrayList<MultiResourceFile>();
+        List<ResourceFolder> folders = mFolderMap.get(ResourceFolderType.VALUES);
+        if (folders != null) {
+            for (ResourceFolder folder : folders) {
+                if (folder.mFiles != null) {
+                    for (ResourceFile file : folder.mFiles) {
+                        if (file instanceof MultiResourceFile) {
+                            files.add((MultiResourceFile) file);
+                        }
+                    }
+                }
+            }
+        }
+
+        try {
+            FrameworkResourceSnapshot.write(snapshotFile, files, publicStamp, publicResources);
+            mSnapshot = FrameworkResourceSnapshot.open(snapshotFile);
+        } catch (IOException e) {
+            // The SDK may be read-only: the resources are parsed each time instead.
+            mSnapshot = null;
+        }
+    }
+
+    /**
+     * Returns the snapshot file of the repository, next to its res folder, or null if the
+     * res folder is not a folder of the file system.
+     */
+    @Nullable
+    private File getSnapshotFile() {
+        File resFolder = new File(getResFolder().getOsLocation());
+        File parent = resFolder.getParentFile();
+        if (parent == null || !resFolder.isDirectory()) {
+            return null;
+        }
+
+        return new File(parent, FrameworkResourceSnapshot.FN_SNAPSHOT);
+    }
+}
@@ -60,8 +60,12 @@ public final class MultiResourceFile extends ResourceFile implements IValueResou
 
     @Override
     protected void load(ScanningContext context) {
-        // need to parse the file and find the content.
-        parseFile();
+        // need to parse the file and find the content, unless the framework snapshot has it.
+        ResourceRepository repository = getRepository();
+        if (!(repository instanceof FrameworkResources)
+                || !((FrameworkResources) repository).readSnapshot(this)) {
+            parseFile();
+        }
 
         // create new ResourceItems for the new content.
         mResourceTypeList = Collections.unmodifiableCollection(mResourceItems.keySet());
@@ -203,6 +207,19 @@ public final class MultiResourceFile extends ResourceFile implements IValueResou
         list.put(value.getName(), value);
     }
 
+    /**
+     * Returns the values of a given type declared in the file.
+     * @param type the type of the values
+     */
+    Collection<ResourceValue> getValues(ResourceType type) {
+        Map<String, ResourceValue> list = mResourceItems.get(type);
+        if (list != null) {
+            return list.values();
+        }
+
+        return Collections.emptyList();
+    }
+
     @Override
     public boolean hasResourceValue(ResourceType type, String name) {
         Map<String, ResourceValue> map = mResourceItems.get(type);
@@ -70,8 +70,11 @@ public final class ResourceFolder implements Configurable {
      */
     public ResourceFile processFile(IAbstractFile file, ResourceDeltaKind kind,
             ScanningContext context) {
+        // the content of the file may change the configured resources.
+        mRepository.invalidateConfiguredResources();
+
         // look for this file if it's already been created
-        ResourceFile resFile = getFile(file, context);
+        ResourceFile resFile = getFile(file);
 
         if (resFile == null) {
             if (kind != ResourceDeltaKind.REMOVED) {
@@ -265,27 +268,15 @@ public final class ResourceFolder implements Configurable {
      * Returns the {@link ResourceFile} matching a {@link IAbstractFile} object.
      *
      * @param file The {@link IAbstractFile} object.
-     * @param context a context object with state for the current update, such
-     *            as a place to stash errors encountered
      * @return the {@link ResourceFile} or null if no match was found.
      */
-    private ResourceFile getFile(IAbstractFile file, ScanningContext context) {
+    private ResourceFile getFile(IAbstractFile file) {
         assert mFolder.equals(file.getParentFolder());
 
+        // Files which were not processed yet are not created lazily here: processFile()
+        // loads them, which would otherwise parse them twice.
         if (mNames != null) {
-            ResourceFile resFile = mNames.get(file.getName());
-            if (resFile != null) {
-                return resFile;
-            }
-        }
-
-        // If the file actually exists, the resource folder  may not have been
-        // scanned yet; add it lazily
-        if (file.exists()) {
-            ResourceFile resFile = createResourceFile(file);
-            resFile.load(context);
-            addFile(resFile);
-            return resFile;
+            return mNames.get(file.getName());
         }
 
         return null;
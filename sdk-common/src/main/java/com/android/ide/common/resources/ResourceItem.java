@@ -17,6 +17,7 @@
 package com.android.ide.common.resources;
 
 import com.android.ide.common.rendering.api.ResourceValue;
+import com.android.ide.common.resources.configuration.ConfigurationMatcher;
 import com.android.ide.common.resources.configuration.FolderConfiguration;
 import com.android.resources.ResourceType;
 
@@ -117,6 +118,27 @@ public class ResourceItem implements Comparable<ResourceItem> {
         return null;
     }
 
+    /**
+     * Returns a {@link ResourceValue} for this item based on the reference configuration of a
+     * {@link ConfigurationMatcher}. This is the same as
+     * {@link #getResourceValue(ResourceType, FolderConfiguration, boolean)}, but reuses the
+     * matches the matcher found for other items.
+     * @param type the type of the resource.
+     * @param matcher the matcher of the config of the resource item.
+     * @param isFramework whether the resource is a framework value. Same as the type.
+     * @return a ResourceValue or null if none match the config.
+     */
+    public ResourceValue getResourceValue(ResourceType type, ConfigurationMatcher matcher,
+            boolean isFramework) {
+        ResourceFile match = matcher.findMatchingConfigurable(mFiles);
+
+        if (match != null) {
+            return match.getValue(type, mName);
+        }
+
+        return null;
+    }
+
     /**
      * Adds a new source file.
      * @param file the source file.
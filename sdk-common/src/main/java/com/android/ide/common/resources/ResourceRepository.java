@@ -26,6 +26,7 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.ide.common.rendering.api.ResourceValue;
 import com.android.ide.common.resources.configuration.Configurable;
+import com.android.ide.common.resources.configuration.ConfigurationMatcher;
 import com.android.ide.common.resources.configuration.FolderConfiguration;
 import com.android.ide.common.resources.configuration.LanguageQualifier;
 import com.android.ide.common.resources.configuration.RegionQualifier;
@@ -44,6 +45,7 @@ import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -64,6 +66,9 @@ import java.util.TreeSet;
  */
 public abstract class ResourceRepository {
 
+    /** Number of configurations for which matchers and configured resources are cached. */
+    private static final int MAX_CACHED_CONFIGURATIONS = 8;
+
     private final IAbstractFolder mResourceFolder;
 
     protected Map<ResourceFolderType, List<ResourceFolder>> mFolderMap =
@@ -76,6 +81,22 @@ public abstract class ResourceRepository {
     private Map<Map<String, ResourceItem>, Collection<ResourceItem>> mReadOnlyListMap =
             new IdentityHashMap<Map<String, ResourceItem>, Collection<ResourceItem>>();
 
+    /**
+     * The matchers of the last used configurations, least recently used first. The matchers
+     * identify configurations by their {@link ResourceFolder}s. Access is synchronized on the
+     * repository.
+     */
+    private Map<FolderConfiguration, ConfigurationMatcher> mMatchers =
+            createCache(MAX_CACHED_CONFIGURATIONS);
+
+    /**
+     * The configured resources of the last used configurations, least recently used first.
+     * This is cleared whenever a resource file is added, changed or removed. Access is
+     * synchronized on the repository.
+     */
+    private final Map<FolderConfiguration, Map<ResourceType, Map<String, ResourceValue>>>
+            mConfiguredResources = createCache(MAX_CACHED_CONFIGURATIONS);
+
     private final boolean mFrameworkRepository;
     private boolean mCleared = true;
     private boolean mInitializing = false;
@@ -108,6 +129,10 @@ public abstract class ResourceRepository {
 
         mReadOnlyListMap =
             new IdentityHashMap<Map<String, ResourceItem>, Collection<ResourceItem>>();
+
+        // the folders are recreated, so are their matchers.
+        mMatchers = createCache(MAX_CACHED_CONFIGURATIONS);
+        mConfiguredResources.clear();
     }
 
     /**
@@ -120,6 +145,7 @@ public abstract class ResourceRepository {
         if (mCleared && !mInitializing) {
             ScanningContext context = new ScanningContext(this);
             mInitializing = true;
+            beginInitialization();
 
             IAbstractResource[] resources = mResourceFolder.listMembers();
 
@@ -145,12 +171,25 @@ public abstract class ResourceRepository {
 
             mInitializing = false;
             mCleared = false;
+            endInitialization();
             return true;
         }
 
         return false;
     }
 
+    /**
+     * Called by {@link #ensureInitialized()} before the resource folder is scanned.
+     */
+    protected void beginInitialization() {
+    }
+
+    /**
+     * Called by {@link #ensureInitialized()} once the resource folder has been scanned.
+     */
+    protected void endInitialization() {
+    }
+
     /**
      * Adds a Folder Configuration to the project.
      * @param type The resource type.
@@ -605,8 +644,11 @@ public abstract class ResourceRepository {
                 List<ResourceFile> files = item.getSourceFileList();
                 if (files != null) {
                     if (files.size() > 1) {
-                        ResourceValue value = item.getResourceValue(type, config,
-                                isFrameworkRepository());
+                        ResourceValue value;
+                        synchronized (this) {
+                            value = item.getResourceValue(type, getMatcher(config),
+                                    isFrameworkRepository());
+                        }
                         if (value != null) {
                             String v = value.getValue();
                             if (v != null) {
@@ -704,11 +746,14 @@ public abstract class ResourceRepository {
         for (ResourceItem item : items) {
             if (name.equals(item.getName())) {
                 if (referenceConfig != null) {
-                    Configurable match = referenceConfig.findMatchingConfigurable(
-                            item.getSourceFileList());
+                    ResourceFile match;
+                    synchronized (this) {
+                        match = getMatcher(referenceConfig).findMatchingConfigurable(
+                                item.getSourceFileList());
+                    }
 
-                    if (match instanceof ResourceFile) {
-                        return Collections.singletonList((ResourceFile) match);
+                    if (match != null) {
+                        return Collections.singletonList(match);
                     }
 
                     return null;
@@ -749,9 +794,24 @@ public abstract class ResourceRepository {
         Map<ResourceType, Map<String, ResourceValue>> map =
             new EnumMap<ResourceType, Map<String, ResourceValue>>(ResourceType.class);
 
-        for (ResourceType key : ResourceType.values()) {
-            // get the local results and put them in the map
-            map.put(key, getConfiguredResource(key, referenceConfig));
+        synchronized (this) {
+            Map<ResourceType, Map<String, ResourceValue>> cached =
+                    mConfiguredResources.get(referenceConfig);
+            if (cached == null) {
+                ConfigurationMatcher matcher = getMatcher(referenceConfig);
+                cached = new EnumMap<ResourceType, Map<String, ResourceValue>>(
+                        ResourceType.class);
+                for (ResourceType key : ResourceType.values()) {
+                    // get the local results and put them in the map
+                    cached.put(key, getConfiguredResource(key, matcher));
+                }
+                mConfiguredResources.put(matcher.getReference(), cached);
+            }
+
+            // the callers own the returned maps.
+            for (Map.Entry<ResourceType, Map<String, ResourceValue>> entry : cached.entrySet()) {
+                map.put(entry.getKey(), new HashMap<String, ResourceValue>(entry.getValue()));
+            }
         }
 
         return map;
@@ -827,6 +887,8 @@ public abstract class ResourceRepository {
     }
 
     protected void removeFile(@NonNull ResourceType type, @NonNull ResourceFile file) {
+        invalidateConfiguredResources();
+
         Map<String, ResourceItem> map = mResourceMap.get(type);
         if (map != null) {
             Collection<ResourceItem> values = map.values();
@@ -853,11 +915,11 @@ public abstract class ResourceRepository {
      * <p/>The values returned are taken from the resource files best matching a given
      * {@link FolderConfiguration}.
      * @param type the type of the resources.
-     * @param referenceConfig the configuration to best match.
+     * @param matcher the matcher of the configuration to best match.
      */
     @NonNull
     private Map<String, ResourceValue> getConfiguredResource(@NonNull ResourceType type,
-            @NonNull FolderConfiguration referenceConfig) {
+            @NonNull ConfigurationMatcher matcher) {
 
         // get the resource item for the given type
         Map<String, ResourceItem> items = mResourceMap.get(type);
@@ -869,7 +931,7 @@ public abstract class ResourceRepository {
         HashMap<String, ResourceValue> map = new HashMap<String, ResourceValue>(items.size());
 
         for (ResourceItem item : items.values()) {
-            ResourceValue value = item.getResourceValue(type, referenceConfig,
+            ResourceValue value = item.getResourceValue(type, matcher,
                     isFrameworkRepository());
             if (value != null) {
                 map.put(item.getName(), value);
@@ -883,6 +945,8 @@ public abstract class ResourceRepository {
      * Cleans up the repository of resource items that have no source file anymore.
      */
     public void postUpdateCleanUp() {
+        invalidateConfiguredResources();
+
         // Since removed files/folders remove source files from existing ResourceItem, loop through
         // all resource items and remove the ones that have no source files.
 
@@ -900,6 +964,58 @@ public abstract class ResourceRepository {
         }
     }
 
+    /**
+     * Discards the configured resources cached by {@link #getConfiguredResources}.
+     */
+    protected synchronized void invalidateConfiguredResources() {
+        if (!mConfiguredResources.isEmpty()) {
+            mConfiguredResources.clear();
+        }
+    }
+
+    /**
+     * Returns the matcher for a configuration, creating it if needed. This must be called
+     * while synchronized on the repository.
+     */
+    @NonNull
+    private ConfigurationMatcher getMatcher(@NonNull FolderConfiguration referenceConfig) {
+        ConfigurationMatcher matcher = mMatchers.get(referenceConfig);
+        if (matcher == null) {
+            matcher = new FileMatcher(referenceConfig);
+            mMatchers.put(matcher.getReference(), matcher);
+        }
+        return matcher;
+    }
+
+    /**
+     * Creates a map keeping the most recently used of at most <var>size</var> entries.
+     */
+    @NonNull
+    private static <K, V> Map<K, V> createCache(final int size) {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    /**
+     * A matcher identifying the configurations of the files by their folder, which share
+     * the same configuration.
+     */
+    private static final class FileMatcher extends ConfigurationMatcher {
+        FileMatcher(@NonNull FolderConfiguration reference) {
+            super(reference);
+        }
+
+        @Nullable
+        @Override
+        protected Object getKey(@NonNull Configurable configurable) {
+            return ((ResourceFile) configurable).getFolder();
+        }
+    }
+
     /**
      * Looks up an existing {@link ResourceItem} by {@link ResourceType} and name. This
      * ignores inline resources.
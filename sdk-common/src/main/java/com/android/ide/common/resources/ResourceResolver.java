@@ -23,6 +23,7 @@ import static com.android.SdkConstants.REFERENCE_STYLE;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.ide.common.rendering.api.ItemResourceValue;
 import com.android.ide.common.rendering.api.LayoutLog;
 import com.android.ide.common.rendering.api.RenderResources;
 import com.android.ide.common.rendering.api.ResourceValue;
@@ -33,6 +34,7 @@ import com.google.common.collect.Maps;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -70,15 +72,38 @@ public class ResourceResolver extends RenderResources {
     @Nullable
     private Map<String, String> mReverseProjectStyles;
 
+    // Lookups are memoized, as rendering a layout resolves the same theme attributes and
+    // references many times. A recorder must see every step of a lookup, so it doesn't
+    // cache them.
+    private final boolean mCacheLookups;
+    // The items of each style, including the ones inherited from its parents. A style
+    // with a parent chain too deep to be flattened maps to null.
+    private final Map<StyleResourceValue, StyleItems> mStyleItems =
+            new IdentityHashMap<StyleResourceValue, StyleItems>();
+    // The result of findItemInTheme for the current list of themes, by attribute name.
+    private final Map<String, ResourceValue> mThemeProjectItems =
+            new HashMap<String, ResourceValue>();
+    private final Map<String, ResourceValue> mThemeFrameworkItems =
+            new HashMap<String, ResourceValue>();
+    // The result of resolveResValue, by the reference it resolved.
+    private final Map<String, ResourceValue> mResolvedProjectReferences =
+            new HashMap<String, ResourceValue>();
+    private final Map<String, ResourceValue> mResolvedFrameworkReferences =
+            new HashMap<String, ResourceValue>();
+    // Set when a resolution stops at MAX_RESOURCE_INDIRECTION. Its result depends on the depth
+    // it started at, so neither it nor the references leading to it are cached.
+    private boolean mResolutionCutShort;
+
     private ResourceResolver(
             Map<ResourceType, Map<String, ResourceValue>> projectResources,
             Map<ResourceType, Map<String, ResourceValue>> frameworkResources,
-            String themeName, boolean isProjectTheme) {
+            String themeName, boolean isProjectTheme, boolean cacheLookups) {
         mProjectResources = projectResources;
         mFrameworkResources = frameworkResources;
         mThemeName = themeName;
         mIsProjectTheme = isProjectTheme;
         mThemes = new LinkedList<StyleResourceValue>();
+        mCacheLookups = cacheLookups;
     }
 
     /**
@@ -96,12 +121,33 @@ public class ResourceResolver extends RenderResources {
             String themeName, boolean isProjectTheme) {
 
         ResourceResolver resolver = new ResourceResolver(projectResources, frameworkResources,
-                themeName, isProjectTheme);
+                themeName, isProjectTheme, true);
         resolver.computeStyleMaps();
 
         return resolver;
     }
 
+    /**
+     * Discards the lookups cached by this resolver. This must be called when the resource maps
+     * the resolver was created with, or the styles they contain, are modified.
+     */
+    public void invalidateCaches() {
+        mStyleItems.clear();
+        mReverseFrameworkStyles = null;
+        mReverseProjectStyles = null;
+        clearThemeCaches();
+    }
+
+    /**
+     * Discards the cached lookups that depend on the list of themes.
+     */
+    private void clearThemeCaches() {
+        mThemeProjectItems.clear();
+        mThemeFrameworkItems.clear();
+        mResolvedProjectReferences.clear();
+        mResolvedFrameworkReferences.clear();
+    }
+
     /**
      * Sets up the light and dark default styles with the given concrete styles. This is used if we
      * want to override the defaults configured in the framework for this particular platform.
@@ -113,6 +159,7 @@ public class ResourceResolver extends RenderResources {
         if (lightStyle != null && replace("Theme.DeviceDefault.Light", lightStyle)) {
             replace("Theme.DeviceDefault.Light.DarkActionBar", lightStyle + ".DarkActionBar");
         }
+        invalidateCaches();
     }
 
     private boolean replace(String fromStyleName, String toStyleName) {
@@ -175,12 +222,14 @@ public class ResourceResolver extends RenderResources {
         } else {
             mThemes.add(theme);
         }
+        clearThemeCaches();
     }
 
     @Override
     public void clearStyles() {
         mThemes.clear();
         mThemes.add(mDefaultTheme);
+        clearThemeCaches();
     }
 
     @Override
@@ -248,9 +297,59 @@ public class ResourceResolver extends RenderResources {
     @Override
     public ResourceValue findItemInStyle(StyleResourceValue style, String itemName,
             boolean isFrameworkAttr) {
+        if (mCacheLookups) {
+            StyleItems items = getStyleItems(style);
+            if (items != null) {
+                return items.get(itemName, isFrameworkAttr);
+            }
+        }
+
         return findItemInStyle(style, itemName, isFrameworkAttr, 0);
     }
 
+    @Override
+    public ResourceValue findItemInTheme(String attrName, boolean isFrameworkAttr) {
+        if (!mCacheLookups) {
+            return super.findItemInTheme(attrName, isFrameworkAttr);
+        }
+
+        Map<String, ResourceValue> cache = isFrameworkAttr ? mThemeFrameworkItems
+                : mThemeProjectItems;
+        ResourceValue item = cache.get(attrName);
+        if (item == null && !cache.containsKey(attrName)) {
+            item = super.findItemInTheme(attrName, isFrameworkAttr);
+            cache.put(attrName, item);
+        }
+
+        return item;
+    }
+
+    /**
+     * Returns the items of a style, including the ones inherited from its parents, or null if
+     * the chain of parents is too deep. In that case the style must be searched with
+     * {@link #findItemInStyle(StyleResourceValue, String, boolean, int)}, which reports the
+     * cyclic definition when an item is not found.
+     */
+    @Nullable
+    private StyleItems getStyleItems(@NonNull StyleResourceValue style) {
+        StyleItems items = mStyleItems.get(style);
+        if (items == null && !mStyleItems.containsKey(style)) {
+            items = new StyleItems();
+            StyleResourceValue current = style;
+            for (int depth = 0; current != null; depth++) {
+                if (depth > MAX_RESOURCE_INDIRECTION) {
+                    items = null;
+                    break;
+                }
+                items.addInherited(current);
+                current = mStyleInheritanceMap.get(current);
+            }
+            mStyleItems.put(style, items);
+        }
+
+        return items;
+    }
+
     private ResourceValue findItemInStyle(StyleResourceValue style, String itemName,
                                           boolean isFrameworkAttr, int depth) {
         ResourceValue item = style.getItem(itemName, isFrameworkAttr);
@@ -393,7 +492,30 @@ public class ResourceResolver extends RenderResources {
             return resValue;
         }
 
-        // else attempt to find another ResourceValue referenced by this one.
+        if (mCacheLookups) {
+            Map<String, ResourceValue> cache = resValue.isFramework()
+                    ? mResolvedFrameworkReferences : mResolvedProjectReferences;
+            ResourceValue resolved = cache.get(value);
+            if (resolved == null) {
+                boolean outerCutShort = mResolutionCutShort;
+                mResolutionCutShort = false;
+                resolved = doResolveResValue(resValue, value, depth);
+                if (resolved != resValue && !mResolutionCutShort) {
+                    // the value is a reference; values that are not, or that can't be
+                    // resolved, are not worth keeping.
+                    cache.put(value, resolved);
+                }
+                mResolutionCutShort |= outerCutShort;
+            }
+            return resolved;
+        }
+
+        return doResolveResValue(resValue, value, depth);
+    }
+
+    private ResourceValue doResolveResValue(@NonNull ResourceValue resValue,
+            @NonNull String value, int depth) {
+        // attempt to find another ResourceValue referenced by this one.
         ResourceValue resolvedResValue = findResValue(value, resValue.isFramework());
 
         // if the value did not reference anything, then we simply return the input value
@@ -403,6 +525,9 @@ public class ResourceResolver extends RenderResources {
 
         // detect potential loop due to mishandled namespace in attributes
         if (resValue == resolvedResValue || depth >= MAX_RESOURCE_INDIRECTION) {
+            if (depth >= MAX_RESOURCE_INDIRECTION) {
+                mResolutionCutShort = true;
+            }
             if (mLogger != null) {
                 mLogger.error(LayoutLog.TAG_BROKEN,
                         String.format("Potential stack overflow trying to resolve '%s': cyclic resource definitions? Render may not be accurate.", value),
@@ -838,6 +963,34 @@ public class ResourceResolver extends RenderResources {
         return resolver;
     }
 
+    /**
+     * The items of a style and of its parents, by attribute name.
+     */
+    private static final class StyleItems {
+        private final Map<String, ItemResourceValue> mProjectItems =
+                new HashMap<String, ItemResourceValue>();
+        private final Map<String, ItemResourceValue> mFrameworkItems =
+                new HashMap<String, ItemResourceValue>();
+
+        /**
+         * Adds the items of a style which are not already defined by one of its descendants.
+         */
+        void addInherited(@NonNull StyleResourceValue style) {
+            for (ItemResourceValue item : style.getValues()) {
+                Map<String, ItemResourceValue> items = item.isFrameworkAttr() ? mFrameworkItems
+                        : mProjectItems;
+                if (!items.containsKey(item.getName())) {
+                    items.put(item.getName(), item);
+                }
+            }
+        }
+
+        @Nullable
+        ItemResourceValue get(@NonNull String name, boolean isFrameworkAttr) {
+            return (isFrameworkAttr ? mFrameworkItems : mProjectItems).get(name);
+        }
+    }
+
     private static class RecordingResourceResolver extends ResourceResolver {
         @NonNull private List<ResourceValue> mLookupChain;
 
@@ -846,7 +999,7 @@ public class ResourceResolver extends RenderResources {
                 @NonNull Map<ResourceType, Map<String, ResourceValue>> projectResources,
                 @NonNull Map<ResourceType, Map<String, ResourceValue>> frameworkResources,
                 @NonNull String themeName, boolean isProjectTheme) {
-            super(projectResources, frameworkResources, themeName, isProjectTheme);
+            super(projectResources, frameworkResources, themeName, isProjectTheme, false);
             mLookupChain = lookupChain;
         }
 
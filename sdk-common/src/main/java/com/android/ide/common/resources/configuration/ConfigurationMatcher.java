@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.common.resources.configuration;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.common.resources.IntArrayWrapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the {@link Configurable}s best matching a reference {@link FolderConfiguration}, with
+ * the same result as {@link FolderConfiguration#findMatchingConfigurables(List)}.
+ * <p/>
+ * The resources of a repository use few distinct configurations, and these mostly come in the
+ * same few combinations: strings are defined in values and values-fr, drawables in
+ * drawable-hdpi and drawable-xhdpi, and so on. The matcher numbers each distinct configuration
+ * it sees, and remembers the result of the elimination for each sequence of configuration
+ * numbers. The qualifiers of a combination are then only compared once for the reference
+ * configuration, and finding the best match for any other resource using the same combination
+ * takes a few hash lookups.
+ * <p/>
+ * The distinct configurations are identified by the keys returned by
+ * {@link #getKey(Configurable)}, which should be cheap to hash.
+ * <p/>
+ * The matcher is thread safe. Once the configurations of a combination have been seen, finding
+ * its best match does not lock.
+ */
+public class ConfigurationMatcher {
+
+    private static final int[] NO_MATCH = new int[0];
+
+    private final FolderConfiguration mReference;
+    private final Map<Object, Integer> mIds = new ConcurrentHashMap<Object, Integer>();
+    /** The configurations, by id. Guarded by this. */
+    private final List<FolderConfiguration> mConfigurations = new ArrayList<FolderConfiguration>();
+    private final Map<IntArrayWrapper, int[]> mMatches =
+            new ConcurrentHashMap<IntArrayWrapper, int[]>();
+
+    /**
+     * Creates a matcher for a reference configuration. The configuration is copied, so later
+     * changes to it do not affect the matcher.
+     *
+     * @param reference the reference configuration
+     */
+    public ConfigurationMatcher(@NonNull FolderConfiguration reference) {
+        mReference = new FolderConfiguration();
+        mReference.set(reference);
+    }
+
+    /**
+     * Returns a copy of the reference configuration of the matcher. It must not be modified.
+     */
+    @NonNull
+    public FolderConfiguration getReference() {
+        return mReference;
+    }
+
+    /**
+     * Returns the key identifying the configuration of a {@link Configurable}. Configurables
+     * with equal keys must have equal configurations. The default implementation returns the
+     * configuration itself.
+     *
+     * @param configurable the configurable
+     * @return the key of its configuration, or null if it has no configuration.
+     */
+    @Nullable
+    protected Object getKey(@NonNull Configurable configurable) {
+        return configurable.getConfiguration();
+    }
+
+    /**
+     * Returns the {@link Configurable} best matching the reference configuration.
+     *
+     * @param configurables the list of {@code Configurable} to choose from.
+     * @return the best match, or null if none matches.
+     * @see FolderConfiguration#findMatchingConfigurable(List)
+     */
+    @Nullable
+    public <T extends Configurable> T findMatchingConfigurable(@Nullable List<T> configurables) {
+        if (configurables == null) {
+            return null;
+        }
+
+        int[] matches = getMatches(configurables);
+        return matches.length > 0 ? configurables.get(matches[0]) : null;
+    }
+
+    /**
+     * Returns the {@link Configurable}s matching the reference configuration.
+     *
+     * @param configurables the list of {@code Configurable} to choose from.
+     * @return a list of items from the above list. This may be empty.
+     * @see FolderConfiguration#findMatchingConfigurables(List)
+     */
+    @NonNull
+    public <T extends Configurable> List<T> findMatchingConfigurables(
+            @Nullable List<T> configurables) {
+        if (configurables == null) {
+            return Collections.emptyList();
+        }
+
+        int[] matches = getMatches(configurables);
+        List<T> result = new ArrayList<T>(matches.length);
+        for (int match : matches) {
+            result.add(configurables.get(match));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the positions of the configurables matching the reference configuration.
+     */
+    @NonNull
+    private int[] getMatches(@NonNull List<? extends Configurable> configurables) {
+        int size = configurables.size();
+        if (size == 0) {
+            return NO_MATCH;
+        }
+
+        int[] ids = new int[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = getId(configurables.get(i));
+        }
+
+        IntArrayWrapper key = new IntArrayWrapper(ids);
+        int[] matches = mMatches.get(key);
+        if (matches == null) {
+            matches = computeMatches(key, ids);
+        }
+
+        return matches;
+    }
+
+    @NonNull
+    private synchronized int[] computeMatches(@NonNull IntArrayWrapper key, @NonNull int[] ids) {
+        int[] matches = mMatches.get(key);
+        if (matches == null) {
+            int size = ids.length;
+            List<Slot> slots = new ArrayList<Slot>(size);
+            for (int i = 0; i < size; i++) {
+                slots.add(new Slot(i, ids[i] != -1 ? mConfigurations.get(ids[i]) : null));
+            }
+
+            List<Configurable> found = mReference.findMatchingConfigurables(slots);
+            matches = new int[found.size()];
+            for (int i = 0; i < matches.length; i++) {
+                matches[i] = ((Slot) found.get(i)).mPosition;
+            }
+            mMatches.put(key, matches);
+        }
+
+        return matches;
+    }
+
+    private int getId(@NonNull Configurable configurable) {
+        Object key = getKey(configurable);
+        if (key == null) {
+            return -1;
+        }
+
+        Integer id = mIds.get(key);
+        return id != null ? id : addId(key, configurable);
+    }
+
+    private synchronized int addId(@NonNull Object key, @NonNull Configurable configurable) {
+        Integer id = mIds.get(key);
+        if (id == null) {
+            FolderConfiguration configuration = configurable.getConfiguration();
+            if (configuration != null) {
+                id = mConfigurations.size();
+                mConfigurations.add(configuration);
+            } else {
+                id = -1;
+            }
+            mIds.put(key, id);
+        }
+
+        return id;
+    }
+
+    /**
+     * A position in a list of configurables, with the configuration of its item.
+     */
+    private static final class Slot implements Configurable {
+        private final int mPosition;
+        private final FolderConfiguration mConfiguration;
+
+        Slot(int position, @Nullable FolderConfiguration configuration) {
+            mPosition = position;
+            mConfiguration = configuration;
+        }
+
+        @Override
+        public FolderConfiguration getConfiguration() {
+            return mConfiguration;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.common.rendering;
+
+import com.android.annotations.NonNull;
+import com.android.ide.common.rendering.api.RenderResources;
+import com.android.ide.common.rendering.api.RenderSession;
+import com.android.ide.common.rendering.api.Result;
+import com.android.ide.common.rendering.api.SessionParams;
+import com.android.ide.common.rendering.api.ViewInfo;
+import com.android.ide.common.res2.ResourceMerger;
+import com.android.ide.common.res2.ResourceRepository;
+import com.android.ide.common.res2.ResourceSet;
+import com.android.ide.common.resources.ResourceResolver;
+import com.android.ide.common.resources.configuration.FolderConfiguration;
+import com.android.resources.ResourceType;
+import com.android.testutils.TestUtils;
+import com.android.utils.StdLogger;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+
+public class BatchRendererTest extends TestCase {
+
+    public void testResourceKey() throws Exception {
+        BatchRenderer renderer = new BatchRenderer(createPool(), null, createRepository());
+
+        // the base set only has sw600dp folders, so the language and density don't matter.
+        FolderConfiguration key = renderer.getResourceKey(getConfig("en-sw320dp-hdpi"));
+        assertEquals(key, renderer.getResourceKey(getConfig("fr-sw320dp-xhdpi")));
+        assertFalse(key.equals(renderer.getResourceKey(getConfig("en-sw720dp-hdpi"))));
+        assertNull(key.getLanguageQualifier());
+        assertNull(key.getDensityQualifier());
+        assertNotNull(key.getSmallestScreenWidthQualifier());
+    }
+
+    public void testRender() throws Exception {
+        RenderSessionPool pool = createPool();
+        BatchRenderer renderer = new BatchRenderer(pool, null, createRepository());
+
+        final List<FolderConfiguration> configs = Arrays.asList(
+                getConfig("en-sw320dp-hdpi"),
+                getConfig("fr-sw320dp-xhdpi"),
+                getConfig("en-sw720dp-hdpi"),
+                getConfig("fr-sw720dp-xhdpi"));
+        final List<ResourceResolver> resolvers = Lists.newArrayList();
+        final List<BatchRenderer.RenderResult> results = Lists.newArrayList();
+        final Thread thread = Thread.currentThread();
+
+        renderer.render(configs, "Theme", false, new BatchRenderer.ParamsFactory() {
+            @NonNull
+            @Override
+            public SessionParams createParams(@NonNull FolderConfiguration config,
+                    @NonNull ResourceResolver resources) {
+                resolvers.add(resources);
+                return new SessionParams(null, SessionParams.RenderingMode.NORMAL,
+                        config.toString(), null, resources, null, 1, 1, null);
+            }
+        }, new BatchRenderer.RenderListener() {
+            @Override
+            public void rendered(@NonNull BatchRenderer.RenderResult result) {
+                assertSame(thread, Thread.currentThread());
+                results.add(result);
+            }
+        });
+        pool.dispose();
+
+        assertEquals(4, results.size());
+        for (int i = 0; i < 4; i++) {
+            BatchRenderer.RenderResult result = results.get(i);
+            assertSame(configs.get(i), result.getConfiguration());
+            assertTrue(result.getResult().isSuccess());
+            assertNotNull(result.getImage());
+            assertEquals(i % 2 == 1, result.isSharedResources());
+            if (result.isSharedResources()) {
+                assertEquals(0, result.getResolveTime());
+            }
+        }
+
+        // each render gets its own resolver, sharing the resources of its key.
+        assertNotSame(resolvers.get(0), resolvers.get(1));
+        assertSame(resolvers.get(0).getProjectResources(), resolvers.get(1).getProjectResources());
+        assertSame(resolvers.get(2).getProjectResources(), resolvers.get(3).getProjectResources());
+        assertNotSame(resolvers.get(0).getProjectResources(),
+                resolvers.get(2).getProjectResources());
+        assertNotNull(resolvers.get(2).getProjectResource(ResourceType.STRING, "basic_string"));
+    }
+
+    public void testRenderError() throws Exception {
+        RenderSessionPool pool = createPool();
+        BatchRenderer renderer = new BatchRenderer(pool, null, null);
+
+        final List<BatchRenderer.RenderResult> results = Lists.newArrayList();
+        renderer.render(Arrays.asList(getConfig("en"), getConfig("fail"), getConfig("fr")),
+                "Theme", false, new BatchRenderer.ParamsFactory() {
+                    @NonNull
+                    @Override
+                    public SessionParams createParams(@NonNull FolderConfiguration config,
+                            @NonNull ResourceResolver resources) {
+                        String name = config.getLanguageQualifier() != null ? "ok" : "fail";
+                        return new SessionParams(null, SessionParams.RenderingMode.NORMAL,
+                                name, null, resources, null, 1, 1, null);
+                    }
+                }, new BatchRenderer.RenderListener() {
+                    @Override
+                    public void rendered(@NonNull BatchRenderer.RenderResult result) {
+                        results.add(result);
+                    }
+                });
+        pool.dispose();
+
+        assertEquals(3, results.size());
+        assertTrue(results.get(0).getResult().isSuccess());
+        assertFalse(results.get(1).getResult().isSuccess());
+        assertNull(results.get(1).getImage());
+        assertEquals("bad layout", results.get(1).getResult().getErrorMessage());
+        assertTrue(results.get(2).getResult().isSuccess());
+    }
+
+    @NonNull
+    private static RenderSessionPool createPool() {
+        return new RenderSessionPool(
+                Arrays.<LayoutLibrary>asList(new MockLayoutLibrary(), new MockLayoutLibrary()),
+                null, null);
+    }
+
+    @NonNull
+    private static ResourceRepository createRepository() throws Exception {
+        ResourceSet resourceSet = new ResourceSet("main");
+        resourceSet.addSource(TestUtils.getRoot("resources", "baseSet"));
+        resourceSet.loadFromFiles(new StdLogger(StdLogger.Level.ERROR));
+
+        ResourceMerger merger = new ResourceMerger();
+        merger.addDataSet(resourceSet);
+        ResourceRepository repository = new ResourceRepository(false);
+        merger.mergeData(repository.createMergeConsumer(), true /*doCleanUp*/);
+
+        return repository;
+    }
+
+    @NonNull
+    private static FolderConfiguration getConfig(@NonNull String qualifiers) {
+        FolderConfiguration config = FolderConfiguration.getConfig(
+                ("foo-" + qualifiers).split("-"));
+        if (config == null) {
+            // not a valid configuration: use the default one.
+            config = new FolderConfiguration();
+        }
+        return config;
+    }
+
+    private static class MockLayoutLibrary extends LayoutLibrary {
+        @Override
+        public RenderSession createSession(SessionParams params) {
+            if ("fail".equals(params.getProjectKey())) {
+                throw new IllegalArgumentException("bad layout");
+            }
+            RenderResources resources = params.getResources();
+            assertNotNull(resources);
+            return new StaticRenderSession(Result.Status.SUCCESS.createResult(),
+                    new ViewInfo("LinearLayout", null, 0, 0, 1, 1),
+                    new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB));
+        }
+    }
+}
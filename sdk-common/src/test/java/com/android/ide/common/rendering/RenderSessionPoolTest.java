@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.common.rendering;
+
+import com.android.annotations.NonNull;
+import com.android.ide.common.rendering.api.RenderSession;
+import com.android.ide.common.rendering.api.Result;
+import com.android.ide.common.rendering.api.SessionParams;
+import com.android.ide.common.rendering.api.ViewInfo;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import junit.framework.TestCase;
+
+import java.io.FilePermission;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+public class RenderSessionPoolTest extends TestCase {
+
+    public void testRender() throws Exception {
+        MockLayoutLibrary library1 = new MockLayoutLibrary();
+        MockLayoutLibrary library2 = new MockLayoutLibrary();
+        RenderSessionPool pool = new RenderSessionPool(
+                Arrays.<LayoutLibrary>asList(library1, library2), null, null);
+        assertEquals(2, pool.getParallelism());
+
+        pool.warmUp(new Supplier<SessionParams>() {
+            @Override
+            public SessionParams get() {
+                return createParams("warm-up");
+            }
+        });
+        assertEquals(Collections.singletonList("warm-up"), library1.mRendered);
+        assertEquals(Collections.singletonList("warm-up"), library2.mRendered);
+
+        List<Future<String>> futures = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+            futures.add(pool.render(createParams("layout" + i),
+                    new RenderSessionPool.SessionHandler<String>() {
+                        @Override
+                        public String handle(@NonNull RenderSession session, long renderTime) {
+                            return Thread.currentThread().getName() + ":"
+                                    + session.getRootViews().get(0).getClassName();
+                        }
+                    }));
+        }
+
+        Set<String> threads = Sets.newHashSet();
+        for (int i = 0; i < 20; i++) {
+            String result = futures.get(i).get();
+            assertTrue(result, result.endsWith(":layout" + i));
+            threads.add(result.substring(0, result.indexOf(':')));
+        }
+        assertEquals(22, library1.mRendered.size() + library2.mRendered.size());
+
+        pool.clearCaches("project");
+        pool.dispose();
+        assertEquals(Collections.singletonList("project"), library1.mCleared);
+        assertEquals(Collections.singletonList("project"), library2.mCleared);
+        assertEquals(22, library1.mDisposed + library2.mDisposed);
+        assertTrue(threads.size() <= 2);
+    }
+
+    public void testHandlerError() throws Exception {
+        RenderSessionPool pool = new RenderSessionPool(
+                Collections.<LayoutLibrary>singletonList(new MockLayoutLibrary()), null, null);
+        Future<Object> future = pool.render(createParams("layout"),
+                new RenderSessionPool.SessionHandler<Object>() {
+                    @Override
+                    public Object handle(@NonNull RenderSession session, long renderTime) {
+                        throw new IllegalArgumentException("bad session");
+                    }
+                });
+        try {
+            future.get();
+            fail("Expected an ExecutionException");
+        } catch (ExecutionException e) {
+            assertEquals("bad session", e.getCause().getMessage());
+        }
+        pool.dispose();
+    }
+
+    public void testSandbox() throws Exception {
+        Object credential = new Object();
+        RenderSecurityManager manager = new RenderSecurityManager(null, null);
+        RenderSessionPool pool = new RenderSessionPool(
+                Collections.<LayoutLibrary>singletonList(new MockLayoutLibrary()), manager,
+                credential);
+        try {
+            // the calling thread is not sandboxed.
+            assertNull(RenderSecurityManager.getCurrent());
+            manager.checkPermission(new FilePermission("/foo", "write"));
+
+            Future<Boolean> future = pool.render(createParams("layout"),
+                    new RenderSessionPool.SessionHandler<Boolean>() {
+                        @Override
+                        public Boolean handle(@NonNull RenderSession session, long renderTime) {
+                            try {
+                                RenderSecurityManager.getCurrent().checkPermission(
+                                        new FilePermission("/foo", "write"));
+                                return false;
+                            } catch (SecurityException e) {
+                                return true;
+                            }
+                        }
+                    });
+            assertTrue(future.get());
+
+            // leaving the sandbox requires the credential.
+            manager.setRenderThread(true, credential);
+            try {
+                manager.setRenderThread(false, new Object());
+                fail("Expected a SecurityException");
+            } catch (SecurityException e) {
+                // pass
+            }
+            manager.setRenderThread(false, credential);
+        } finally {
+            pool.dispose();
+        }
+        assertNull(System.getSecurityManager());
+        assertNull(RenderSecurityManager.getCurrent());
+    }
+
+    @NonNull
+    private static SessionParams createParams(@NonNull String name) {
+        return new SessionParams(null, SessionParams.RenderingMode.NORMAL, name, null, null,
+                null, 1, 1, null);
+    }
+
+    private static class MockLayoutLibrary extends LayoutLibrary {
+        private final List<String> mRendered = Collections.synchronizedList(
+                Lists.<String>newArrayList());
+        private final List<Object> mCleared = Lists.newArrayList();
+        private volatile int mDisposed;
+
+        @Override
+        public RenderSession createSession(SessionParams params) {
+            final String name = (String) params.getProjectKey();
+            mRendered.add(name);
+            return new StaticRenderSession(Result.Status.SUCCESS.createResult(),
+                    new ViewInfo(name, null, 0, 0, 0, 0), null) {
+                @Override
+                public void dispose() {
+                    mDisposed++;
+                }
+            };
+        }
+
+        @Override
+        public void clearCaches(Object projectKey) {
+            mCleared.add(projectKey);
+        }
+    }
+}
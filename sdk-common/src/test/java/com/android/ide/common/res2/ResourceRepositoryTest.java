@@ -35,6 +35,8 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 
+import javax.xml.parsers.DocumentBuilderFactory;
+
 public class ResourceRepositoryTest extends BaseTestCase {
 
     public void testMergeByCount() throws Exception {
@@ -505,6 +507,36 @@ public class ResourceRepositoryTest extends BaseTestCase {
         assertFalse(resourceMerger.loadFromBlob(fakeRoot, false /*incrementalState*/));
     }
 
+    public void testMergePublishedAtEnd() throws Exception {
+        ResourceRepository repo = getResourceRepository();
+        List<ResourceItem> strings = repo.getResourceItem(ResourceType.STRING, "basic_string");
+        assertNotNull(strings);
+        int count = strings.size();
+        assertTrue(count > 0);
+        List<ResourceItem> layouts = repo.getResourceItem(ResourceType.LAYOUT, "main");
+
+        MergeConsumer<ResourceItem> consumer = repo.createMergeConsumer();
+        consumer.start(DocumentBuilderFactory.newInstance());
+        ResourceItem item = new ResourceItem("new_string", ResourceType.STRING, null);
+        item.setTouched();
+        consumer.addItem(item);
+        for (ResourceItem string : strings) {
+            consumer.removeItem(string, null);
+        }
+
+        // queries made during the merge see the items from before it.
+        assertFalse(repo.hasResourceItem(ResourceType.STRING, "new_string"));
+        assertTrue(repo.hasResourceItem(ResourceType.STRING, "basic_string"));
+        consumer.end();
+
+        assertTrue(repo.hasResourceItem(ResourceType.STRING, "new_string"));
+        assertFalse(repo.hasResourceItem(ResourceType.STRING, "basic_string"));
+
+        // the lists returned before are not modified, and unchanged types are shared.
+        assertEquals(count, strings.size());
+        assertSame(layouts, repo.getResourceItem(ResourceType.LAYOUT, "main"));
+    }
+
     private static void checkRemovedItems(DataMap<? extends DataItem> dataMap) {
         for (DataItem item : dataMap.getDataMap().values()) {
             if (item.isRemoved()) {
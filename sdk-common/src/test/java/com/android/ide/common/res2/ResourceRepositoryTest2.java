@@ -285,6 +285,29 @@ public class ResourceRepositoryTest2 extends TestCase {
         assertEquals("land", file.getQualifiers());
     }
 
+    public void testConfiguredResourcesUpdates() throws Exception {
+        FolderConfiguration folderConfig = new FolderConfiguration();
+        folderConfig.setLanguageQualifier(new LanguageQualifier("es"));
+
+        Map<ResourceType, Map<String, ResourceValue>> configuredItems =
+                mRepository.getConfiguredResources(folderConfig);
+        assertEquals("Todo", configuredItems.get(ResourceType.STRING)
+                .get("show_all_apps").getValue());
+
+        // change the value of the string
+        File stringFile = new File(new File(mRes, FD_RES_VALUES + "-es-rUS"), "strings.xml");
+        String strings = Files.toString(stringFile, Charsets.UTF_8);
+        Files.write(strings.replace("Todo", "Todos"), stringFile, Charsets.UTF_8);
+
+        ResourceSet resourceSet = mResourceMerger.getDataSets().get(0);
+        resourceSet.updateWith(mRes, stringFile, FileStatus.CHANGED, mLogger);
+        mResourceMerger.mergeData(mRepository.createMergeConsumer(), true /*doCleanUp*/);
+
+        configuredItems = mRepository.getConfiguredResources(folderConfig);
+        assertEquals("Todos", configuredItems.get(ResourceType.STRING)
+                .get("show_all_apps").getValue());
+    }
+
     public void testUpdates() throws Exception {
         assertFalse(mRepository.hasResourcesOfType(ResourceType.ANIM));
         assertFalse(mRepository.hasResourcesOfType(ResourceType.MENU));
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.common.resources;
+
+import static com.android.SdkConstants.FD_RES;
+
+import com.android.ide.common.rendering.api.AttrResourceValue;
+import com.android.ide.common.rendering.api.DeclareStyleableResourceValue;
+import com.android.ide.common.rendering.api.ResourceValue;
+import com.android.ide.common.rendering.api.StyleResourceValue;
+import com.android.ide.common.resources.configuration.FolderConfiguration;
+import com.android.ide.common.resources.configuration.LanguageQualifier;
+import com.android.io.FolderWrapper;
+import com.android.resources.ResourceType;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+@SuppressWarnings("javadoc")
+public class FrameworkResourcesTest extends TestCase {
+    private static final String STRINGS = ""
+            + "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+            + "<resources>\n"
+            + "    <string name=\"ok\">OK</string>\n"
+            + "    <string name=\"cancel\">Cancel</string>\n"
+            + "    <string name=\"private_string\">Private</string>\n"
+            + "</resources>\n";
+
+    private static final String STYLES = ""
+            + "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+            + "<resources>\n"
+            + "    <style name=\"Theme\">\n"
+            + "        <item name=\"colorForeground\">@android:color/bright_foreground_dark</item>\n"
+            + "        <item name=\"android:textSize\">12sp</item>\n"
+            + "    </style>\n"
+            + "    <style name=\"Theme.Light\" parent=\"Theme\" />\n"
+            + "</resources>\n";
+
+    private static final String ATTRS = ""
+            + "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+            + "<resources>\n"
+            + "    <attr name=\"orientation\">\n"
+            + "        <enum name=\"horizontal\" value=\"0\" />\n"
+            + "        <enum name=\"vertical\" value=\"1\" />\n"
+            + "    </attr>\n"
+            + "    <declare-styleable name=\"LinearLayout\">\n"
+            + "        <attr name=\"orientation\" />\n"
+            + "        <attr name=\"gravity\">\n"
+            + "            <flag name=\"top\" value=\"0x30\" />\n"
+            + "        </attr>\n"
+            + "    </declare-styleable>\n"
+            + "</resources>\n";
+
+    private static final String PUBLIC = ""
+            + "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+            + "<resources>\n"
+            + "    <public type=\"string\" name=\"ok\" id=\"0x01040000\" />\n"
+            + "    <public type=\"string\" name=\"cancel\" id=\"0x01040001\" />\n"
+            + "    <public type=\"style\" name=\"Theme\" id=\"0x01030000\" />\n"
+            + "</resources>\n";
+
+    private File mDir;
+    private File mRes;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = Files.createTempDir();
+        mRes = new File(mDir, FD_RES);
+        write("values/strings.xml", STRINGS);
+        write("values/styles.xml", STYLES);
+        write("values/attrs.xml", ATTRS);
+        write("values/public.xml", PUBLIC);
+        write("values-fr/strings.xml", STRINGS.replace(">Cancel<", ">Annuler<"));
+        write("layout/simple.xml", "<!--contents doesn't matter-->");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteFile(mDir);
+        super.tearDown();
+    }
+
+    public void testSnapshot() throws Exception {
+        File snapshot = new File(mDir, FrameworkResourceSnapshot.FN_SNAPSHOT);
+        assertFalse(snapshot.exists());
+
+        FrameworkResources parsed = load();
+        assertTrue(snapshot.isFile());
+        assertResources(parsed);
+
+        // the values are read back from the snapshot, not parsed: change the content of
+        // the files but not their stamps.
+        File strings = new File(mRes, "values/strings.xml");
+        long stamp = strings.lastModified();
+        Files.write(STRINGS.replace(">OK<", ">Changed<"), strings, Charsets.UTF_8);
+        assertTrue(strings.setLastModified(stamp));
+
+        FrameworkResources cached = load();
+        assertResources(cached);
+        assertEquals("OK", getValue(cached, ResourceType.STRING, "ok", "en"));
+
+        // a file with a new stamp is parsed again, and the snapshot is updated.
+        assertTrue(strings.setLastModified(stamp - 10000));
+        FrameworkResources updated = load();
+        assertEquals("Changed", getValue(updated, ResourceType.STRING, "ok", "en"));
+        assertEquals("Changed", getValue(load(), ResourceType.STRING, "ok", "en"));
+
+        // files removed since the snapshot was written are not resurrected.
+        assertTrue(new File(mRes, "values-fr/strings.xml").delete());
+        assertTrue(new File(mRes, "values-fr").delete());
+        assertEquals("Cancel", getValue(load(), ResourceType.STRING, "cancel", "fr"));
+        assertEquals("Cancel", getValue(load(), ResourceType.STRING, "cancel", "fr"));
+    }
+
+    public void testInvalidSnapshot() throws Exception {
+        File snapshot = new File(mDir, FrameworkResourceSnapshot.FN_SNAPSHOT);
+        Files.write(new byte[] { 1, 2, 3 }, snapshot);
+
+        assertResources(load());
+        assertNotNull(FrameworkResourceSnapshot.open(snapshot));
+    }
+
+    private FrameworkResources load() {
+        FrameworkResources resources = new FrameworkResources(new FolderWrapper(mRes));
+        resources.loadResources();
+        resources.loadPublicResources(null);
+        return resources;
+    }
+
+    private static void assertResources(FrameworkResources resources) {
+        assertEquals("Annuler", getValue(resources, ResourceType.STRING, "cancel", "fr"));
+        assertEquals("Cancel", getValue(resources, ResourceType.STRING, "cancel", "en"));
+        assertTrue(resources.hasResourceItem(ResourceType.LAYOUT, "simple"));
+
+        // only the public resources are listed.
+        List<ResourceItem> strings = resources.getResourceItemsOfType(ResourceType.STRING);
+        assertEquals(2, strings.size());
+        assertEquals("ok", strings.get(0).getName());
+        assertEquals("cancel", strings.get(1).getName());
+        assertEquals(1, resources.getResourceItemsOfType(ResourceType.STYLE).size());
+        assertTrue(resources.getResourceItemsOfType(ResourceType.ATTR).isEmpty());
+
+        Map<ResourceType, Map<String, ResourceValue>> values =
+                resources.getConfiguredResources(new FolderConfiguration());
+        StyleResourceValue theme =
+                (StyleResourceValue) values.get(ResourceType.STYLE).get("Theme");
+        assertTrue(theme.isFramework());
+        assertEquals("@android:color/bright_foreground_dark",
+                theme.findValue("colorForeground", true).getValue());
+        assertEquals("12sp", theme.findValue("textSize", true).getValue());
+        StyleResourceValue light =
+                (StyleResourceValue) values.get(ResourceType.STYLE).get("Theme.Light");
+        assertEquals("Theme", light.getParentStyle());
+        assertTrue(light.getValues().isEmpty());
+
+        AttrResourceValue orientation =
+                (AttrResourceValue) values.get(ResourceType.ATTR).get("orientation");
+        assertEquals(Integer.valueOf(1), orientation.getAttributeValues().get("vertical"));
+        DeclareStyleableResourceValue linearLayout = (DeclareStyleableResourceValue)
+                values.get(ResourceType.DECLARE_STYLEABLE).get("LinearLayout");
+        assertEquals(Arrays.asList("orientation", "gravity"),
+                Arrays.asList(linearLayout.getAllAttributes().keySet().toArray()));
+        assertEquals(Integer.valueOf(0x30),
+                linearLayout.getAttributeValues("gravity").get("top"));
+    }
+
+    private static String getValue(FrameworkResources resources, ResourceType type, String name,
+            String language) {
+        FolderConfiguration config = new FolderConfiguration();
+        config.setLanguageQualifier(new LanguageQualifier(language));
+        ResourceValue value = resources.getConfiguredResources(config).get(type).get(name);
+        return value != null ? value.getValue() : null;
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void write(String relativePath, String contents) throws Exception {
+        File file = new File(mRes, relativePath.replace('/', File.separatorChar));
+        file.getParentFile().mkdirs();
+        Files.write(contents, file, Charsets.UTF_8);
+    }
+
+    private static void deleteFile(File dir) {
+        if (dir.isDirectory()) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    deleteFile(f);
+                }
+            }
+        }
+        assertTrue(dir.getPath(), dir.delete());
+    }
+}
@@ -199,6 +199,35 @@ public class ResourceRepositoryTest extends TestCase {
         assertNotNull(file);
     }
 
+    public void testConfiguredResourcesUpdates() throws Exception {
+        FolderConfiguration folderConfig = new FolderConfiguration();
+        folderConfig.setLanguageQualifier(new LanguageQualifier("es"));
+
+        Map<ResourceType, Map<String, ResourceValue>> configuredResources =
+                mRepository.getConfiguredResources(folderConfig);
+        assertEquals("Todo", configuredResources.get(ResourceType.STRING)
+                .get("show_all_apps").getValue());
+
+        // change the value of the string
+        ResourceItem item = mRepository.getResourceItem(ResourceType.STRING, "show_all_apps");
+        ResourceFile stringResFile = null;
+        for (ResourceFile file : item.getSourceFileList()) {
+            if (file.getFolder().getConfiguration().getLanguageQualifier() != null) {
+                stringResFile = file;
+            }
+        }
+        assertNotNull(stringResFile);
+        File stringFile = (File) stringResFile.getFile();
+        String strings = Files.toString(stringFile, Charsets.UTF_8);
+        Files.write(strings.replace("Todo", "Todos"), stringFile, Charsets.UTF_8);
+        stringResFile.getFolder().processFile(stringResFile.getFile(),
+                ResourceDeltaKind.CHANGED, new ScanningContext(mRepository));
+
+        configuredResources = mRepository.getConfiguredResources(folderConfig);
+        assertEquals("Todos", configuredResources.get(ResourceType.STRING)
+                .get("show_all_apps").getValue());
+    }
+
     public void testUpdates() throws Exception {
         assertFalse(mRepository.hasResourcesOfType(ResourceType.ANIM));
         assertFalse(mRepository.hasResourcesOfType(ResourceType.MENU));
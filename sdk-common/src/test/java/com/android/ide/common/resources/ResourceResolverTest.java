@@ -1,5 +1,6 @@
 package com.android.ide.common.resources;
 
+import com.android.ide.common.rendering.api.ItemResourceValue;
 import com.android.ide.common.rendering.api.LayoutLog;
 import com.android.ide.common.rendering.api.ResourceValue;
 import com.android.ide.common.rendering.api.StyleResourceValue;
@@ -503,6 +504,102 @@ public class ResourceResolverTest extends TestCase {
         assertEquals("#000000", textColor.getValue());
     }
 
+    public void testCachedLookups() throws Exception {
+        TestResourceRepository projectRepository = TestResourceRepository.create(false,
+                new Object[]{
+                        "values/styles.xml", ""
+                        + "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                        + "<resources>\n"
+                        + "    <style name=\"AppTheme\">\n"
+                        + "        <item name=\"android:textColor\">?accent</item>\n"
+                        + "        <item name=\"accent\">@color/red</item>\n"
+                        + "    </style>\n"
+                        + "    <style name=\"AppTheme.Blue\">\n"
+                        + "        <item name=\"accent\">@color/blue</item>\n"
+                        + "    </style>\n"
+                        + "</resources>\n",
+
+                        "values/colors.xml", ""
+                        + "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                        + "<resources>\n"
+                        + "    <color name=\"red\">#ff0000</color>\n"
+                        + "    <color name=\"blue\">#0000ff</color>\n"
+                        + "    <color name=\"green\">#00ff00</color>\n"
+                        + "</resources>\n",
+                });
+        FolderConfiguration config = FolderConfiguration.getConfigForFolder("values");
+        assertNotNull(config);
+        Map<ResourceType, Map<String, ResourceValue>> projectResources =
+                projectRepository.getConfiguredResources(config);
+        ResourceResolver resolver = ResourceResolver.create(projectResources, projectResources,
+                "AppTheme", true);
+
+        StyleResourceValue blue = resolver.getStyle("AppTheme.Blue", false);
+        assertNotNull(blue);
+        assertEquals("?accent", resolver.findItemInStyle(blue, "textColor", true).getValue());
+        ResourceValue textColor = resolver.findItemInTheme("textColor", true);
+        assertEquals("#ff0000", resolver.resolveResValue(textColor).getValue());
+        assertEquals("#ff0000", resolver.resolveResValue(textColor).getValue());
+
+        // applying a style changes the result of the theme lookups.
+        resolver.applyStyle(blue, true);
+        assertEquals("#0000ff", resolver.resolveResValue(textColor).getValue());
+        resolver.clearStyles();
+        assertEquals("#ff0000", resolver.resolveResValue(textColor).getValue());
+
+        // changes to the styles are only seen once the caches are invalidated.
+        blue.addItem(new ItemResourceValue("textColor", true, "@color/green", false));
+        resolver.applyStyle(blue, true);
+        assertEquals("?accent", resolver.findItemInStyle(blue, "textColor", true).getValue());
+        resolver.invalidateCaches();
+        assertEquals("@color/green", resolver.findItemInStyle(blue, "textColor", true).getValue());
+        assertEquals("#00ff00", resolver.resolveResValue(
+                resolver.findItemInTheme("textColor", true)).getValue());
+
+        projectRepository.dispose();
+    }
+
+    public void testDeepReferences() throws Exception {
+        // a chain of references longer than MAX_RESOURCE_INDIRECTION.
+        StringBuilder colors = new StringBuilder();
+        colors.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<resources>\n");
+        int length = ResourceResolver.MAX_RESOURCE_INDIRECTION + 10;
+        for (int i = 0; i < length; i++) {
+            colors.append("    <color name=\"c").append(i).append("\">@color/c").append(i + 1)
+                    .append("</color>\n");
+        }
+        colors.append("    <color name=\"c").append(length).append("\">#ff0000</color>\n");
+        colors.append("</resources>\n");
+        TestResourceRepository projectRepository = TestResourceRepository.create(false,
+                new Object[] { "values/colors.xml", colors.toString() });
+        FolderConfiguration config = FolderConfiguration.getConfigForFolder("values");
+        assertNotNull(config);
+        Map<ResourceType, Map<String, ResourceValue>> projectResources =
+                projectRepository.getConfiguredResources(config);
+        ResourceResolver resolver = ResourceResolver.create(projectResources, projectResources,
+                "AppTheme", true);
+        final AtomicBoolean wasWarned = new AtomicBoolean(false);
+        resolver.setLogger(new LayoutLog() {
+            @Override
+            public void error(String tag, String message, Object data) {
+                wasWarned.set(true);
+            }
+        });
+
+        // the resolution from the start of the chain stops at the limit...
+        ResourceValue first = resolver.resolveResValue(
+                resolver.findResValue("@color/c0", false));
+        assertTrue(wasWarned.get());
+        assertFalse("#ff0000".equals(first.getValue()));
+
+        // ...but the references it went through are not cached with its result.
+        ResourceValue last = resolver.resolveResValue(
+                resolver.findResValue("@color/c20", false));
+        assertEquals("#ff0000", last.getValue());
+
+        projectRepository.dispose();
+    }
+
     public void testCycle() throws Exception {
         TestResourceRepository frameworkRepository = TestResourceRepository.create(true,
                 new Object[] {
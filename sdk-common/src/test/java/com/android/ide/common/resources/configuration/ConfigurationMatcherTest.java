@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.common.resources.configuration;
+
+import com.android.resources.ScreenOrientation;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class ConfigurationMatcherTest extends TestCase {
+
+    private static final String[] CONFIGS = {
+            "",
+            "en",
+            "fr",
+            "fr-rCA",
+            "en-port",
+            "land",
+            "port-ldpi",
+            "hdpi",
+            "xhdpi",
+            "xhdpi-v14",
+            "v14",
+            "sw600dp",
+            "notouch-12key",
+    };
+
+    public void testSameResultsAsFolderConfiguration() {
+        String[] references = {
+                "en-rGB-port-hdpi-notouch-12key",
+                "fr-rCA-land-xhdpi-v17",
+                "sw720dp-xhdpi",
+                "",
+        };
+
+        Random random = new Random(42);
+        for (String referenceName : references) {
+            FolderConfiguration reference =
+                    FolderConfiguration.getConfig(getFolderSegments(referenceName));
+            assertNotNull(reference);
+            ConfigurationMatcher matcher = new ConfigurationMatcher(reference);
+
+            for (int i = 0; i < 500; i++) {
+                List<Configurable> list = new ArrayList<Configurable>();
+                int size = random.nextInt(6);
+                for (int j = 0; j < size; j++) {
+                    list.add(new MockConfigurable(CONFIGS[random.nextInt(CONFIGS.length)]));
+                }
+
+                assertEquals(referenceName + " " + list,
+                        reference.findMatchingConfigurables(list),
+                        matcher.findMatchingConfigurables(list));
+                assertSame(reference.findMatchingConfigurable(list),
+                        matcher.findMatchingConfigurable(list));
+            }
+        }
+    }
+
+    public void testReferenceIsCopied() {
+        FolderConfiguration reference = new FolderConfiguration();
+        reference.createDefault();
+        reference.addQualifier(new ScreenOrientationQualifier(ScreenOrientation.PORTRAIT));
+        ConfigurationMatcher matcher = new ConfigurationMatcher(reference);
+
+        List<Configurable> list = new ArrayList<Configurable>();
+        list.add(new MockConfigurable("land"));
+        list.add(new MockConfigurable("port"));
+        assertSame(list.get(1), matcher.findMatchingConfigurable(list));
+
+        reference.addQualifier(new ScreenOrientationQualifier(ScreenOrientation.LANDSCAPE));
+        assertSame(list.get(1), matcher.findMatchingConfigurable(list));
+        assertEquals(ScreenOrientation.PORTRAIT,
+                matcher.getReference().getScreenOrientationQualifier().getValue());
+
+        assertNull(matcher.findMatchingConfigurable(null));
+        assertEquals(Collections.<Configurable>emptyList(),
+                matcher.findMatchingConfigurables(new ArrayList<Configurable>()));
+    }
+
+    private static final class MockConfigurable implements Configurable {
+
+        private final FolderConfiguration mConfig;
+
+        MockConfigurable(String config) {
+            mConfig = FolderConfiguration.getConfig(getFolderSegments(config));
+        }
+
+        @Override
+        public FolderConfiguration getConfiguration() {
+            return mConfig;
+        }
+
+        @Override
+        public String toString() {
+            return mConfig.toString();
+        }
+    }
+
+    private static String[] getFolderSegments(String config) {
+        return (!config.isEmpty() ? "foo-" + config : "foo").split("-");
+    }
+}
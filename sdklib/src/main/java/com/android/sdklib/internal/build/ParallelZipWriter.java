@@ -0,0 +1,998 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.sdklib.internal.build;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A zip archive writer that compresses new entries in parallel and copies the entries of other
+ * archives without recompressing them.
+ * <p/>
+ * New entries are deflated, checksummed and optionally digested on a pool of worker threads.
+ * Entries copied from another archive keep their compressed data, which is transferred as is
+ * from the source file; when digests are requested, the data is only inflated, on a worker
+ * thread, to compute the digest of the content. The entries are written in the order they were
+ * added. When the output is a {@link FileOutputStream}, the archive is written through its
+ * channel with positional writes.
+ * <p/>
+ * The local headers always contain the sizes and CRC of the entries, so no data descriptors are
+ * written. Zip64 archives are not supported, neither as input nor as output.
+ * <p/>
+ * A writer created on an existing archive with {@link #ParallelZipWriter(File, int, String)}
+ * updates it in place: an entry that is added again with the same size and CRC is kept where it
+ * is, without being written or digested again, while the changed entries are appended after the
+ * existing ones and a new central directory is written. The space of the entries that were
+ * replaced or not added again is reclaimed by compacting the archive once it gets too large;
+ * until then, the archive can only be read through its central directory.
+ * <p/>
+ * This class is not thread-safe: entries must be added from a single thread.
+ */
+public class ParallelZipWriter implements Closeable {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final int UTF8_FLAG = 0x800;
+    private static final int DATA_DESCRIPTOR_FLAG = 0x8;
+    private static final long MAX_SIZE = 0xFFFFFFFFL;
+    private static final int MAX_ENTRIES = 0xFFFF;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The archive is compacted when more than 1/COMPACT_RATIO of it is unused. */
+    private static final int COMPACT_RATIO = 4;
+
+    /**
+     * An entry of an existing zip archive, as read from its central directory by
+     * {@link ParallelZipWriter#readEntries(FileChannel)}.
+     */
+    public static final class SourceEntry {
+        private final String mName;
+        private final int mFlags;
+        private final int mMethod;
+        private final int mDosTime;
+        private final long mCrc;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mLocalHeaderOffset;
+
+        SourceEntry(String name, int flags, int method, int dosTime, long crc,
+                long compressedSize, long size, long localHeaderOffset) {
+            mName = name;
+            mFlags = flags;
+            mMethod = method;
+            mDosTime = dosTime;
+            mCrc = crc;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        @NonNull
+        public String getName() {
+            return mName;
+        }
+
+        public boolean isDirectory() {
+            return mName.endsWith("/");
+        }
+
+        /**
+         * Returns the compression method, {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}.
+         */
+        public int getMethod() {
+            return mMethod;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getCrc() {
+            return mCrc;
+        }
+
+        public long getLocalHeaderOffset() {
+            return mLocalHeaderOffset;
+        }
+    }
+
+    /** The entries and the offset of the central directory of an archive. */
+    private static final class Directory {
+        final List<SourceEntry> entries;
+        final long offset;
+
+        Directory(List<SourceEntry> entries, long offset) {
+            this.entries = entries;
+            this.offset = offset;
+        }
+    }
+
+    /** An entry of the output archive. */
+    private static final class Entry {
+        final String name;
+        final byte[] nameBytes;
+        int flags;
+        int method;
+        int dosTime;
+        long crc;
+        long compressedSize;
+        long size;
+        long localHeaderOffset;
+        /** The number of bytes of the archive used by the entry. */
+        long length;
+        byte[] digest;
+        /** Whether the entry is kept in place from the archive being updated. */
+        boolean kept;
+
+        /** The compressed data of a new entry. */
+        byte[] data;
+        /** The source of a copied entry, and the offset of its data in the source. */
+        FileChannel source;
+        long sourceOffset;
+
+        Entry(String name) {
+            this.name = name;
+            nameBytes = name.getBytes(Charsets.UTF_8);
+        }
+    }
+
+    private final OutputStream mOut;
+    private final FileChannel mChannel;
+    private final Closeable mOutput;
+    /** The archive being written, if the writer was created on a file. */
+    private final File mFile;
+    private final long mStart;
+    /** The entries of the archive being updated, by name. */
+    private final Map<String, SourceEntry> mExisting = new HashMap<String, SourceEntry>();
+    private Map<String, byte[]> mKnownDigests = Collections.emptyMap();
+    private final int mLevel;
+    private final String mDigestAlgorithm;
+    private final ExecutorService mExecutor;
+    private final int mMaxPending;
+
+    private final ArrayDeque<Future<Entry>> mPending = new ArrayDeque<Future<Entry>>();
+    private final List<Entry> mWritten = new ArrayList<Entry>();
+    private final Set<String> mNames = new HashSet<String>();
+    private final Map<String, byte[]> mDigests = new LinkedHashMap<String, byte[]>();
+    private final byte[] mCopyBuffer = new byte[BUFFER_SIZE];
+    private long mPosition;
+    private boolean mClosed = false;
+
+    /**
+     * Creates a writer using one worker thread per available processor.
+     * @param out the stream to write the archive to. It is closed with the writer.
+     * @param level the compression level of the new entries.
+     * @param digestAlgorithm the algorithm of the digests of the content of the entries, or
+     *                        null to not compute digests.
+     * @throws NoSuchAlgorithmException if the digest algorithm is not available.
+     */
+    public ParallelZipWriter(@NonNull OutputStream out, int level,
+            @Nullable String digestAlgorithm) throws IOException, NoSuchAlgorithmException {
+        this(out, level, digestAlgorithm, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a writer.
+     * @param out the stream to write the archive to. It is closed with the writer.
+     * @param level the compression level of the new entries.
+     * @param digestAlgorithm the algorithm of the digests of the content of the entries, or
+     *                        null to not compute digests.
+     * @param threadCount the number of worker threads.
+     * @throws NoSuchAlgorithmException if the digest algorithm is not available.
+     */
+    public ParallelZipWriter(@NonNull OutputStream out, int level,
+            @Nullable String digestAlgorithm, int threadCount)
+            throws IOException, NoSuchAlgorithmException {
+        this(out, null, level, digestAlgorithm, threadCount);
+    }
+
+    /**
+     * Creates a writer on a file, using one worker thread per available processor.
+     * <p/>
+     * If the file is a zip archive, it is updated in place: its entries that are added again
+     * unchanged are kept, and the others are removed. Otherwise the file is overwritten.
+     * @param file the archive to write or update.
+     * @param level the compression level of the new entries.
+     * @param digestAlgorithm the algorithm of the digests of the content of the entries, or
+     *                        null to not compute digests.
+     * @throws NoSuchAlgorithmException if the digest algorithm is not available.
+     */
+    public ParallelZipWriter(@NonNull File file, int level, @Nullable String digestAlgorithm)
+            throws IOException, NoSuchAlgorithmException {
+        this(null, file, level, digestAlgorithm, Runtime.getRuntime().availableProcessors());
+    }
+
+    private ParallelZipWriter(@Nullable OutputStream out, @Nullable File file, int level,
+            @Nullable String digestAlgorithm, int threadCount)
+            throws IOException, NoSuchAlgorithmException {
+        if (digestAlgorithm != null) {
+            // fail now rather than on a worker thread.
+            MessageDigest.getInstance(digestAlgorithm);
+        }
+        mLevel = level;
+        mDigestAlgorithm = digestAlgorithm;
+        mFile = file;
+
+        if (file != null) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+            mOut = null;
+            mOutput = raf;
+            mChannel = raf.getChannel();
+            mStart = 0;
+            mPosition = 0;
+            Directory directory = null;
+            try {
+                if (mChannel.size() > 0) {
+                    directory = readDirectory(mChannel);
+                }
+            } catch (ZipException e) {
+                // not an archive we can update, overwrite it.
+            }
+            if (directory != null) {
+                for (SourceEntry entry : directory.entries) {
+                    mExisting.put(entry.getName(), entry);
+                }
+                // the new entries replace the central directory.
+                mPosition = directory.offset;
+            }
+        } else if (out instanceof FileOutputStream) {
+            mOut = out;
+            mOutput = out;
+            mChannel = ((FileOutputStream) out).getChannel();
+            mStart = mChannel.position();
+            mPosition = mStart;
+        } else {
+            mOut = out;
+            mOutput = out;
+            mChannel = null;
+            mStart = 0;
+            mPosition = 0;
+        }
+
+        threadCount = Math.max(1, threadCount);
+        mMaxPending = threadCount * 2;
+        mExecutor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Zip Writer"); //$NON-NLS-1$
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Sets the digests of the content of the entries of the archive being updated, as recorded
+     * when it was written. The entries that are kept use these digests instead of being read
+     * again.
+     * @param digests the digests, by entry name.
+     */
+    public void setKnownDigests(@NonNull Map<String, byte[]> digests) {
+        mKnownDigests = digests;
+    }
+
+    /**
+     * Adds a new entry with the content of a file. The file is read and compressed on a worker
+     * thread.
+     * @param file the file to add.
+     * @param path the path of the entry in the archive.
+     */
+    public void addFile(@NonNull final File file, @NonNull String path) throws IOException {
+        final Entry entry = createEntry(path, file.lastModified());
+        submit(new Callable<Entry>() {
+            @Override
+            public Entry call() throws Exception {
+                byte[] content = Files.toByteArray(file);
+                compress(entry, content, ZipEntry.DEFLATED);
+                return entry;
+            }
+        });
+    }
+
+    /**
+     * Adds a new entry with the given content. The content is compressed on a worker thread,
+     * and must not be modified afterwards.
+     * @param content the content of the entry.
+     * @param path the path of the entry in the archive.
+     * @param time the modification time of the entry, or -1 to use the current time.
+     * @param method the compression method of the entry, {@link ZipEntry#STORED} or
+     *               {@link ZipEntry#DEFLATED}.
+     */
+    public void addBytes(@NonNull final byte[] content, @NonNull String path, long time,
+            final int method) throws IOException {
+        final Entry entry = createEntry(path, time != -1 ? time : System.currentTimeMillis());
+        submit(new Callable<Entry>() {
+            @Override
+            public Entry call() throws Exception {
+                compress(entry, content, method);
+                return entry;
+            }
+        });
+    }
+
+    /**
+     * Copies an entry of another archive, without recompressing it.
+     * <p/>
+     * The source channel is read until the entry is written, which is guaranteed after a call
+     * to {@link #flush()}; the channel must stay open until then.
+     * @param source the channel of the source archive.
+     * @param sourceEntry an entry of the source archive, as returned by
+     *                    {@link #readEntries(FileChannel)}.
+     */
+    public void copyEntry(@NonNull FileChannel source, @NonNull SourceEntry sourceEntry)
+            throws IOException {
+        final Entry entry = createEntry(sourceEntry.getName(), -1);
+
+        final SourceEntry existing = mExisting.get(sourceEntry.getName());
+        if (existing != null && existing.mCrc == sourceEntry.mCrc
+                && existing.mSize == sourceEntry.mSize) {
+            Callable<Entry> task = new Callable<Entry>() {
+                @Override
+                public Entry call() throws Exception {
+                    keep(entry, existing);
+                    return entry;
+                }
+            };
+            if (mDigestAlgorithm != null && !mKnownDigests.containsKey(entry.name)) {
+                submit(task);
+            } else {
+                runNow(task);
+            }
+            return;
+        }
+
+        entry.flags = sourceEntry.mFlags & ~DATA_DESCRIPTOR_FLAG;
+        entry.method = sourceEntry.mMethod;
+        entry.dosTime = sourceEntry.mDosTime;
+        entry.crc = sourceEntry.mCrc;
+        entry.compressedSize = sourceEntry.mCompressedSize;
+        entry.size = sourceEntry.mSize;
+        entry.source = source;
+
+        // the data follows the local header, whose variable fields can differ from the central
+        // directory.
+        ByteBuffer header = readFully(source, sourceEntry.mLocalHeaderOffset,
+                LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("invalid local header: " + sourceEntry.getName());
+        }
+        entry.sourceOffset = sourceEntry.mLocalHeaderOffset + LOCAL_HEADER_SIZE
+                + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+
+        Callable<Entry> task = new Callable<Entry>() {
+            @Override
+            public Entry call() throws Exception {
+                if (mDigestAlgorithm != null) {
+                    entry.digest = digestSource(entry);
+                }
+                return entry;
+            }
+        };
+
+        if (mDigestAlgorithm != null) {
+            submit(task);
+        } else {
+            runNow(task);
+        }
+    }
+
+    /**
+     * Waits for all the entries added so far to be written.
+     */
+    public void flush() throws IOException {
+        writeCompleted(true);
+    }
+
+    /**
+     * Returns the digests of the content of the entries written so far, in the order they were
+     * added. Only available if a digest algorithm was given. Call {@link #flush()} first to get
+     * the digests of all the entries.
+     */
+    @NonNull
+    public Map<String, byte[]> getDigests() {
+        return Collections.unmodifiableMap(mDigests);
+    }
+
+    /**
+     * Writes the remaining entries and the central directory, and closes the output stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        long unused;
+        try {
+            flush();
+            unused = writeCentralDirectory();
+            if (mFile != null) {
+                mChannel.truncate(mPosition);
+            } else if (mChannel == null) {
+                mOut.flush();
+            }
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+
+        mClosed = true;
+        mExecutor.shutdownNow();
+        mOutput.close();
+
+        if (mFile != null && unused * COMPACT_RATIO > mPosition) {
+            compact(mFile);
+        }
+    }
+
+    /**
+     * Stops the workers and closes the output stream, without completing the archive.
+     * An archive being updated is emptied, so that it is written again in full next time.
+     * This does nothing if the writer was already closed.
+     */
+    public void abort() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        for (Future<Entry> future : mPending) {
+            future.cancel(true);
+        }
+        mPending.clear();
+        mExecutor.shutdownNow();
+        try {
+            if (mFile != null) {
+                mChannel.truncate(0);
+            }
+        } catch (IOException e) {
+            // pass
+        } finally {
+            try {
+                mOutput.close();
+            } catch (IOException e) {
+                // pass
+            }
+        }
+    }
+
+    /**
+     * Reads the list of entries of a zip archive from its central directory.
+     * @param channel the channel of the archive.
+     * @throws ZipException if the file is not a zip archive, or is a Zip64 archive.
+     */
+    @NonNull
+    public static List<SourceEntry> readEntries(@NonNull FileChannel channel)
+            throws IOException {
+        return readDirectory(channel).entries;
+    }
+
+    @NonNull
+    private static Directory readDirectory(@NonNull FileChannel channel) throws IOException {
+        long size = channel.size();
+        int searchSize = (int) Math.min(size, END_SIZE + MAX_COMMENT_SIZE);
+        if (searchSize < END_SIZE) {
+            throw new ZipException("not a zip archive");
+        }
+        ByteBuffer tail = readFully(channel, size - searchSize, searchSize);
+
+        // the end of central directory record is followed by a comment of unknown size.
+        int end = -1;
+        for (int i = searchSize - END_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            throw new ZipException("not a zip archive");
+        }
+
+        int count = tail.getShort(end + 10) & 0xFFFF;
+        long directorySize = tail.getInt(end + 12) & MAX_SIZE;
+        long directoryOffset = tail.getInt(end + 16) & MAX_SIZE;
+        if (count == MAX_ENTRIES || directoryOffset == MAX_SIZE) {
+            throw new ZipException("Zip64 archives are not supported");
+        }
+        if (directoryOffset + directorySize > size) {
+            throw new ZipException("invalid central directory");
+        }
+
+        ByteBuffer directory = readFully(channel, directoryOffset, (int) directorySize);
+        List<SourceEntry> entries = new ArrayList<SourceEntry>(count);
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            if (directory.getInt(offset) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("invalid central directory");
+            }
+            int flags = directory.getShort(offset + 8) & 0xFFFF;
+            int method = directory.getShort(offset + 10) & 0xFFFF;
+            int dosTime = directory.getInt(offset + 12);
+            long crc = directory.getInt(offset + 16) & MAX_SIZE;
+            long compressedSize = directory.getInt(offset + 20) & MAX_SIZE;
+            long entrySize = directory.getInt(offset + 24) & MAX_SIZE;
+            int nameLength = directory.getShort(offset + 28) & 0xFFFF;
+            int extraLength = directory.getShort(offset + 30) & 0xFFFF;
+            int commentLength = directory.getShort(offset + 32) & 0xFFFF;
+            long localHeaderOffset = directory.getInt(offset + 42) & MAX_SIZE;
+            if (compressedSize == MAX_SIZE || entrySize == MAX_SIZE
+                    || localHeaderOffset == MAX_SIZE) {
+                throw new ZipException("Zip64 archives are not supported");
+            }
+
+            byte[] name = new byte[nameLength];
+            directory.position(offset + CENTRAL_HEADER_SIZE);
+            directory.get(name);
+
+            entries.add(new SourceEntry(new String(name, Charsets.UTF_8), flags, method,
+                    dosTime, crc, compressedSize, entrySize, localHeaderOffset));
+            offset += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        return new Directory(entries, directoryOffset);
+    }
+
+    /**
+     * Rewrites an archive without the unused space between its entries.
+     */
+    private void compact(@NonNull File file) throws IOException {
+        File tmp = File.createTempFile(file.getName(), ".tmp",
+                file.getAbsoluteFile().getParentFile());
+        RandomAccessFile input = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+        try {
+            ParallelZipWriter writer;
+            try {
+                writer = new ParallelZipWriter(new FileOutputStream(tmp), mLevel, null, 1);
+            } catch (NoSuchAlgorithmException e) {
+                // no digest is requested.
+                throw new IOException(e);
+            }
+            try {
+                FileChannel channel = input.getChannel();
+                for (SourceEntry entry : readEntries(channel)) {
+                    writer.copyEntry(channel, entry);
+                }
+                writer.close();
+            } finally {
+                writer.abort();
+            }
+        } finally {
+            input.close();
+        }
+
+        if (!file.delete() || !tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    @NonNull
+    private Entry createEntry(@NonNull String path, long time) throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream closed");
+        }
+        if (!mNames.add(path)) {
+            throw new ZipException("duplicate entry: " + path);
+        }
+        if (mNames.size() >= MAX_ENTRIES) {
+            throw new ZipException("too many entries");
+        }
+        Entry entry = new Entry(path);
+        entry.flags = UTF8_FLAG;
+        if (time != -1) {
+            entry.dosTime = toDosTime(time);
+        }
+        return entry;
+    }
+
+    private void submit(@NonNull Callable<Entry> task) throws IOException {
+        mPending.add(mExecutor.submit(task));
+        writeCompleted(false);
+    }
+
+    /** Runs a task that has nothing to compute on the current thread. */
+    private void runNow(@NonNull Callable<Entry> task) throws IOException {
+        FutureTask<Entry> done = new FutureTask<Entry>(task);
+        done.run();
+        mPending.add(done);
+        writeCompleted(false);
+    }
+
+    /**
+     * Turns an entry into the unchanged entry of the archive being updated, and gets its digest.
+     */
+    private void keep(@NonNull Entry entry, @NonNull SourceEntry existing)
+            throws IOException, NoSuchAlgorithmException {
+        entry.kept = true;
+        entry.flags = existing.mFlags;
+        entry.method = existing.mMethod;
+        entry.dosTime = existing.mDosTime;
+        entry.crc = existing.mCrc;
+        entry.compressedSize = existing.mCompressedSize;
+        entry.size = existing.mSize;
+        entry.localHeaderOffset = existing.mLocalHeaderOffset;
+        entry.data = null;
+
+        ByteBuffer header = readFully(mChannel, existing.mLocalHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("invalid local header: " + entry.name);
+        }
+        entry.source = mChannel;
+        entry.sourceOffset = existing.mLocalHeaderOffset + LOCAL_HEADER_SIZE
+                + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+        entry.length = entry.sourceOffset - entry.localHeaderOffset + entry.compressedSize;
+
+        if (mDigestAlgorithm != null) {
+            entry.digest = mKnownDigests.get(entry.name);
+            if (entry.digest == null) {
+                entry.digest = digestSource(entry);
+            }
+        }
+    }
+
+    /**
+     * Writes the pending entries whose processing is done, in order. The first entry is waited
+     * for if <var>all</var> is true or if too many entries are pending.
+     */
+    private void writeCompleted(boolean all) throws IOException {
+        while (!mPending.isEmpty()) {
+            Future<Entry> next = mPending.peek();
+            if (!all && !next.isDone() && mPending.size() <= mMaxPending) {
+                return;
+            }
+
+            Entry entry;
+            try {
+                entry = next.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause);
+            }
+            mPending.poll();
+            writeEntry(entry);
+        }
+    }
+
+    private void writeEntry(@NonNull Entry entry) throws IOException {
+        if (entry.kept) {
+            // already in the archive.
+            entry.source = null;
+            mWritten.add(entry);
+            if (entry.digest != null) {
+                mDigests.put(entry.name, entry.digest);
+            }
+            return;
+        }
+
+        entry.localHeaderOffset = mPosition;
+        if (mPosition + LOCAL_HEADER_SIZE + entry.nameBytes.length + entry.compressedSize
+                > MAX_SIZE) {
+            throw new ZipException("archive too large");
+        }
+
+        ByteBuffer header = newBuffer(LOCAL_HEADER_SIZE + entry.nameBytes.length);
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) getVersionNeeded(entry));
+        header.putShort((short) entry.flags);
+        header.putShort((short) entry.method);
+        header.putInt(entry.dosTime);
+        header.putInt((int) entry.crc);
+        header.putInt((int) entry.compressedSize);
+        header.putInt((int) entry.size);
+        header.putShort((short) entry.nameBytes.length);
+        header.putShort((short) 0);
+        header.put(entry.nameBytes);
+        header.flip();
+        write(header);
+        entry.length = LOCAL_HEADER_SIZE + entry.nameBytes.length + entry.compressedSize;
+
+        if (entry.data != null) {
+            write(ByteBuffer.wrap(entry.data));
+            entry.data = null;
+        } else {
+            transfer(entry.source, entry.sourceOffset, entry.compressedSize);
+            entry.source = null;
+        }
+
+        mWritten.add(entry);
+        if (entry.digest != null) {
+            mDigests.put(entry.name, entry.digest);
+        }
+    }
+
+    /**
+     * Writes the central directory, and returns the number of bytes before it that are not used
+     * by any entry.
+     */
+    private long writeCentralDirectory() throws IOException {
+        long directoryOffset = mPosition;
+        long used = 0;
+
+        for (Entry entry : mWritten) {
+            ByteBuffer header = newBuffer(CENTRAL_HEADER_SIZE + entry.nameBytes.length);
+            header.putInt(CENTRAL_HEADER_SIGNATURE);
+            header.putShort((short) 20); // version made by
+            header.putShort((short) getVersionNeeded(entry));
+            header.putShort((short) entry.flags);
+            header.putShort((short) entry.method);
+            header.putInt(entry.dosTime);
+            header.putInt((int) entry.crc);
+            header.putInt((int) entry.compressedSize);
+            header.putInt((int) entry.size);
+            header.putShort((short) entry.nameBytes.length);
+            header.putShort((short) 0); // extra length
+            header.putShort((short) 0); // comment length
+            header.putShort((short) 0); // disk number
+            header.putShort((short) 0); // internal attributes
+            header.putInt(0);           // external attributes
+            header.putInt((int) entry.localHeaderOffset);
+            header.put(entry.nameBytes);
+            header.flip();
+            write(header);
+            used += entry.length;
+        }
+
+        long directorySize = mPosition - directoryOffset;
+        if (mPosition > MAX_SIZE) {
+            throw new ZipException("archive too large");
+        }
+
+        ByteBuffer end = newBuffer(END_SIZE);
+        end.putInt(END_SIGNATURE);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) mWritten.size());
+        end.putShort((short) mWritten.size());
+        end.putInt((int) directorySize);
+        end.putInt((int) directoryOffset);
+        end.putShort((short) 0);
+        end.flip();
+        write(end);
+
+        return directoryOffset - mStart - used;
+    }
+
+    private void write(@NonNull ByteBuffer buffer) throws IOException {
+        if (mChannel != null) {
+            while (buffer.hasRemaining()) {
+                mPosition += mChannel.write(buffer, mPosition);
+            }
+        } else {
+            int length = buffer.remaining();
+            mOut.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            buffer.position(buffer.limit());
+            mPosition += length;
+        }
+    }
+
+    private void transfer(@NonNull FileChannel source, long offset, long count)
+            throws IOException {
+        long done = 0;
+        if (mChannel != null) {
+            while (done < count) {
+                source.position(offset + done);
+                long n = mChannel.transferFrom(source, mPosition, count - done);
+                if (n <= 0) {
+                    throw new ZipException("unexpected end of source archive");
+                }
+                done += n;
+                mPosition += n;
+            }
+        } else {
+            ByteBuffer buffer = ByteBuffer.wrap(mCopyBuffer);
+            while (done < count) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count - done));
+                int n = source.read(buffer, offset + done);
+                if (n <= 0) {
+                    throw new ZipException("unexpected end of source archive");
+                }
+                mOut.write(mCopyBuffer, 0, n);
+                done += n;
+                mPosition += n;
+            }
+        }
+    }
+
+    /** Fills the checksum, sizes and data of a new entry. Runs on a worker thread. */
+    private void compress(@NonNull Entry entry, @NonNull byte[] content, int method)
+            throws IOException, NoSuchAlgorithmException {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        entry.crc = crc.getValue();
+        entry.size = content.length;
+
+        SourceEntry existing = mExisting.get(entry.name);
+        if (existing != null && existing.mCrc == entry.crc && existing.mSize == entry.size) {
+            keep(entry, existing);
+            return;
+        }
+
+        if (mDigestAlgorithm != null) {
+            entry.digest = MessageDigest.getInstance(mDigestAlgorithm).digest(content);
+        }
+
+        if (method == ZipEntry.STORED) {
+            entry.method = ZipEntry.STORED;
+            entry.data = content;
+        } else {
+            entry.method = ZipEntry.DEFLATED;
+            Deflater deflater = new Deflater(mLevel, true /*nowrap*/);
+            try {
+                deflater.setInput(content);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(
+                        Math.max(64, content.length / 2));
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    out.write(buffer, 0, n);
+                }
+                entry.data = out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+        entry.compressedSize = entry.data.length;
+    }
+
+    /**
+     * Computes the digest of the content of a copied entry, inflating it if needed. Runs on a
+     * worker thread, with positional reads that do not disturb the copies.
+     */
+    @NonNull
+    private byte[] digestSource(@NonNull Entry entry)
+            throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(mDigestAlgorithm);
+        ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] output = new byte[BUFFER_SIZE];
+        Inflater inflater = entry.method == ZipEntry.DEFLATED ? new Inflater(true) : null;
+        try {
+            long done = 0;
+            while (done < entry.compressedSize) {
+                input.clear();
+                input.limit((int) Math.min(input.capacity(), entry.compressedSize - done));
+                int n = entry.source.read(input, entry.sourceOffset + done);
+                if (n <= 0) {
+                    throw new ZipException("unexpected end of source archive");
+                }
+                done += n;
+
+                if (inflater == null) {
+                    digest.update(input.array(), 0, n);
+                    continue;
+                }
+                inflater.setInput(input.array(), 0, n);
+                int count;
+                while ((count = inflater.inflate(output)) > 0) {
+                    digest.update(output, 0, count);
+                }
+            }
+            if (inflater != null) {
+                // the inflater may need an extra byte to finish the last block.
+                if (!inflater.finished()) {
+                    inflater.setInput(new byte[1]);
+                    int count;
+                    while ((count = inflater.inflate(output)) > 0) {
+                        digest.update(output, 0, count);
+                    }
+                }
+                if (inflater.getBytesWritten() != entry.size) {
+                    throw new ZipException("invalid entry size: " + entry.name);
+                }
+            } else if (entry.method != ZipEntry.STORED) {
+                throw new ZipException("unsupported compression method: " + entry.name);
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("invalid compressed data: " + entry.name);
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+        return digest.digest();
+    }
+
+    private static int getVersionNeeded(@NonNull Entry entry) {
+        return entry.method == ZipEntry.DEFLATED ? 20 : 10;
+    }
+
+    @NonNull
+    private static ByteBuffer newBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @NonNull
+    private static ByteBuffer readFully(@NonNull FileChannel channel, long offset, int size)
+            throws IOException {
+        ByteBuffer buffer = newBuffer(size);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, offset + buffer.position());
+            if (n <= 0) {
+                throw new ZipException("unexpected end of archive");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /** Converts a Java time to the MS-DOS date and time of zip headers. */
+    private static int toDosTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21
+                | c.get(Calendar.DAY_OF_MONTH) << 16 | c.get(Calendar.HOUR_OF_DAY) << 11
+                | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+    }
+}
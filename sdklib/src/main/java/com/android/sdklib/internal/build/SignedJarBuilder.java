@@ -17,7 +17,9 @@
 package com.android.sdklib.internal.build;
 
 import com.android.SdkConstants;
+import com.android.sdklib.internal.build.ParallelZipWriter.SourceEntry;
 import com.android.sdklib.internal.build.SignedJarBuilder.IZipEntryFilter.ZipAbortException;
+import com.google.common.io.ByteStreams;
 
 import sun.misc.BASE64Encoder;
 import sun.security.pkcs.ContentInfo;
@@ -26,7 +28,6 @@ import sun.security.pkcs.SignerInfo;
 import sun.security.x509.AlgorithmId;
 import sun.security.x509.X500Name;
 
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -35,6 +36,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.channels.FileChannel;
 import java.security.DigestOutputStream;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
@@ -45,15 +47,17 @@ import java.security.SignatureException;
 import java.security.cert.X509Certificate;
 import java.util.Map;
 import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 /**
  * A Jar file builder with signature support.
+ * <p/>
+ * The archive is written by a {@link ParallelZipWriter}: new files are compressed in parallel,
+ * and the entries of zip files given as {@link FileInputStream}s are copied without being
+ * recompressed.
  * 
  * @deprecated Use Android-Builder instead
  */
@@ -100,14 +104,11 @@ public class SignedJarBuilder {
         }
     }
 
-    private JarOutputStream mOutputJar;
+    private ParallelZipWriter mOutputJar;
     private PrivateKey mKey;
     private X509Certificate mCertificate;
     private Manifest mManifest;
     private BASE64Encoder mBase64Encoder;
-    private MessageDigest mMessageDigest;
-
-    private byte[] mBuffer = new byte[4096];
 
     /**
      * Classes which implement this interface provides a method to check whether a file should
@@ -163,19 +164,18 @@ public class SignedJarBuilder {
      */
     public SignedJarBuilder(OutputStream out, PrivateKey key, X509Certificate certificate)
             throws IOException, NoSuchAlgorithmException {
-        mOutputJar = new JarOutputStream(new BufferedOutputStream(out));
-        mOutputJar.setLevel(9);
         mKey = key;
         mCertificate = certificate;
+        boolean signed = mKey != null && mCertificate != null;
+        mOutputJar = new ParallelZipWriter(out, 9, signed ? DIGEST_ALGORITHM : null);
 
-        if (mKey != null && mCertificate != null) {
+        if (signed) {
             mManifest = new Manifest();
             Attributes main = mManifest.getMainAttributes();
             main.putValue("Manifest-Version", "1.0");
             main.putValue("Created-By", "1.0 (Android)");
 
             mBase64Encoder = new BASE64Encoder();
-            mMessageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
         }
     }
 
@@ -186,25 +186,16 @@ public class SignedJarBuilder {
      * @throws IOException
      */
     public void writeFile(File inputFile, String jarPath) throws IOException {
-        // Get an input stream on the file.
-        FileInputStream fis = new FileInputStream(inputFile);
-        try {
-
-            // create the zip entry
-            JarEntry entry = new JarEntry(jarPath);
-            entry.setTime(inputFile.lastModified());
-
-            writeEntry(fis, entry);
-        } finally {
-            // close the file stream used to read the file
-            fis.close();
-        }
+        // the file is read and compressed on a worker thread.
+        mOutputJar.addFile(inputFile, jarPath);
     }
 
     /**
      * Copies the content of a Jar/Zip archive into the receiver archive.
      * <p/>An optional {@link IZipEntryFilter} allows to selectively choose which files
      * to copy over.
+     * <p/>If <code>input</code> is a {@link FileInputStream}, the entries are copied without
+     * being recompressed.
      * @param input the {@link InputStream} for the Jar/Zip to copy.
      * @param filter the filter or <code>null</code>
      * @throws IOException
@@ -213,6 +204,33 @@ public class SignedJarBuilder {
      */
     public void writeZip(InputStream input, IZipEntryFilter filter)
             throws IOException, ZipAbortException {
+        if (input instanceof FileInputStream) {
+            try {
+                FileChannel channel = ((FileInputStream) input).getChannel();
+                for (SourceEntry entry : ParallelZipWriter.readEntries(channel)) {
+                    String name = entry.getName();
+
+                    // do not take directories or anything inside a potential META-INF folder.
+                    if (entry.isDirectory() || name.startsWith("META-INF/")) {
+                        continue;
+                    }
+
+                    // if we have a filter, we check the entry against it
+                    if (filter != null && filter.checkEntry(name) == false) {
+                        continue;
+                    }
+
+                    mOutputJar.copyEntry(channel, entry);
+                }
+
+                // the copies read the channel until they are written.
+                mOutputJar.flush();
+            } finally {
+                input.close();
+            }
+            return;
+        }
+
         ZipInputStream zis = new ZipInputStream(input);
 
         try {
@@ -231,17 +249,10 @@ public class SignedJarBuilder {
                     continue;
                 }
 
-                JarEntry newEntry;
-
                 // Preserve the STORED method of the input entry.
-                if (entry.getMethod() == JarEntry.STORED) {
-                    newEntry = new JarEntry(entry);
-                } else {
-                    // Create a new entry so that the compressed len is recomputed.
-                    newEntry = new JarEntry(name);
-                }
-
-                writeEntry(zis, newEntry);
+                mOutputJar.addBytes(ByteStreams.toByteArray(zis), name, entry.getTime(),
+                        entry.getMethod() == ZipEntry.STORED
+                                ? ZipEntry.STORED : ZipEntry.DEFLATED);
 
                 zis.closeEntry();
             }
@@ -257,25 +268,35 @@ public class SignedJarBuilder {
      */
     public void close() throws IOException, GeneralSecurityException {
         if (mManifest != null) {
+            // wait for the digests of all the entries.
+            mOutputJar.flush();
+            for (Map.Entry<String, byte[]> digest : mOutputJar.getDigests().entrySet()) {
+                Attributes attr = new Attributes();
+                attr.putValue(DIGEST_ATTR, mBase64Encoder.encode(digest.getValue()));
+                mManifest.getEntries().put(digest.getKey(), attr);
+            }
+
             // write the manifest to the jar file
-            mOutputJar.putNextEntry(new JarEntry(JarFile.MANIFEST_NAME));
-            mManifest.write(mOutputJar);
+            ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+            mManifest.write(manifest);
+            mOutputJar.addBytes(manifest.toByteArray(), JarFile.MANIFEST_NAME, -1,
+                    ZipEntry.DEFLATED);
 
             // CERT.SF
             Signature signature = Signature.getInstance("SHA1with" + mKey.getAlgorithm());
             signature.initSign(mKey);
-            mOutputJar.putNextEntry(new JarEntry("META-INF/CERT.SF"));
-            SignatureOutputStream out = new SignatureOutputStream(mOutputJar, signature);
+            ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+            SignatureOutputStream out = new SignatureOutputStream(signatureFile, signature);
             writeSignatureFile(out);
+            out.close();
+            mOutputJar.addBytes(signatureFile.toByteArray(), "META-INF/CERT.SF", -1,
+                    ZipEntry.DEFLATED);
 
             // CERT.*
-            mOutputJar.putNextEntry(new JarEntry("META-INF/CERT." + mKey.getAlgorithm()));
-            writeSignatureBlock(signature, mCertificate, mKey);
-
-            // close out at the end because it can also close mOutputJar.
-            // (there's some timing issue here I think, because it's worked before with out
-            // being closed after writing CERT.SF).
-            out.close();
+            ByteArrayOutputStream signatureBlock = new ByteArrayOutputStream();
+            writeSignatureBlock(signatureBlock, signature, mCertificate, mKey);
+            mOutputJar.addBytes(signatureBlock.toByteArray(),
+                    "META-INF/CERT." + mKey.getAlgorithm(), -1, ZipEntry.DEFLATED);
         }
 
         mOutputJar.close();
@@ -288,46 +309,7 @@ public class SignedJarBuilder {
      */
     public void cleanUp() {
         if (mOutputJar != null) {
-            try {
-                mOutputJar.close();
-            } catch (IOException e) {
-                // pass
-            }
-        }
-    }
-
-    /**
-     * Adds an entry to the output jar, and write its content from the {@link InputStream}
-     * @param input The input stream from where to write the entry content.
-     * @param entry the entry to write in the jar.
-     * @throws IOException
-     */
-    private void writeEntry(InputStream input, JarEntry entry) throws IOException {
-        // add the entry to the jar archive
-        mOutputJar.putNextEntry(entry);
-
-        // read the content of the entry from the input stream, and write it into the archive.
-        int count;
-        while ((count = input.read(mBuffer)) != -1) {
-            mOutputJar.write(mBuffer, 0, count);
-
-            // update the digest
-            if (mMessageDigest != null) {
-                mMessageDigest.update(mBuffer, 0, count);
-            }
-        }
-
-        // close the entry for this file
-        mOutputJar.closeEntry();
-
-        if (mManifest != null) {
-            // update the manifest for this entry.
-            Attributes attr = mManifest.getAttributes(entry.getName());
-            if (attr == null) {
-                attr = new Attributes();
-                mManifest.getEntries().put(entry.getName(), attr);
-            }
-            attr.putValue(DIGEST_ATTR, mBase64Encoder.encode(mMessageDigest.digest()));
+            mOutputJar.abort();
         }
     }
 
@@ -377,9 +359,9 @@ public class SignedJarBuilder {
         }
     }
 
-    /** Write the certificate file with a digital signature. */
-    private void writeSignatureBlock(Signature signature, X509Certificate publicKey,
-            PrivateKey privateKey)
+    /** Write the certificate file with a digital signature to the given stream. */
+    private void writeSignatureBlock(OutputStream out, Signature signature,
+            X509Certificate publicKey, PrivateKey privateKey)
             throws IOException, GeneralSecurityException {
         SignerInfo signerInfo = new SignerInfo(
                 new X500Name(publicKey.getIssuerX500Principal().getName()),
@@ -394,6 +376,6 @@ public class SignedJarBuilder {
                 new X509Certificate[] { publicKey },
                 new SignerInfo[] { signerInfo });
 
-        pkcs7.encodeSignedData(mOutputJar);
+        pkcs7.encodeSignedData(out);
     }
 }
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.sdklib.internal.build;
+
+import com.android.sdklib.internal.build.ParallelZipWriter.SourceEntry;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+public class ParallelZipWriterTest extends TestCase {
+
+    private File mTmpDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mTmpDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mTmpDir.delete();
+        super.tearDown();
+    }
+
+    public void testWriteAndCopy() throws Exception {
+        byte[] text = createContent(100000, 7);
+        byte[] random = createContent(5000, 251);
+        byte[] stored = "stored content".getBytes("UTF-8");
+
+        File source = new File(mTmpDir, "source.zip");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(source));
+        zos.putNextEntry(new ZipEntry("res/"));
+        zos.putNextEntry(new ZipEntry("res/text.txt"));
+        zos.write(text);
+        ZipEntry storedEntry = new ZipEntry("res/stored.bin");
+        storedEntry.setMethod(ZipEntry.STORED);
+        storedEntry.setSize(stored.length);
+        CRC32 crc = new CRC32();
+        crc.update(stored);
+        storedEntry.setCrc(crc.getValue());
+        zos.putNextEntry(storedEntry);
+        zos.write(stored);
+        zos.close();
+
+        File file = new File(mTmpDir, "random.bin");
+        Files.write(random, file);
+
+        File output = new File(mTmpDir, "output.zip");
+        ParallelZipWriter writer = new ParallelZipWriter(new FileOutputStream(output), 9, "SHA1",
+                3);
+        writer.addFile(file, "assets/random.bin");
+        FileInputStream fis = new FileInputStream(source);
+        try {
+            FileChannel channel = fis.getChannel();
+            List<SourceEntry> entries = ParallelZipWriter.readEntries(channel);
+            assertEquals(3, entries.size());
+            assertTrue(entries.get(0).isDirectory());
+            assertEquals(ZipEntry.STORED, entries.get(2).getMethod());
+            writer.copyEntry(channel, entries.get(1));
+            writer.copyEntry(channel, entries.get(2));
+            writer.flush();
+        } finally {
+            fis.close();
+        }
+        writer.addBytes(stored, "META-INF/MANIFEST.MF", -1, ZipEntry.DEFLATED);
+        writer.close();
+
+        Map<String, byte[]> digests = writer.getDigests();
+        assertEquals(Arrays.asList("assets/random.bin", "res/text.txt", "res/stored.bin",
+                "META-INF/MANIFEST.MF"), Arrays.asList(digests.keySet().toArray()));
+        assertTrue(Arrays.equals(sha1(text), digests.get("res/text.txt")));
+        assertTrue(Arrays.equals(sha1(random), digests.get("assets/random.bin")));
+
+        ZipFile zipFile = new ZipFile(output);
+        try {
+            assertEquals(4, zipFile.size());
+            assertContent(random, zipFile, "assets/random.bin");
+            assertContent(text, zipFile, "res/text.txt");
+            assertContent(stored, zipFile, "res/stored.bin");
+            assertContent(stored, zipFile, "META-INF/MANIFEST.MF");
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("res/stored.bin").getMethod());
+            assertEquals(file.lastModified() / 2000,
+                    zipFile.getEntry("assets/random.bin").getTime() / 2000);
+        } finally {
+            zipFile.close();
+        }
+
+        // the archive must also be readable sequentially, without the central directory.
+        ZipInputStream zis = new ZipInputStream(new FileInputStream(output));
+        try {
+            assertEquals("assets/random.bin", zis.getNextEntry().getName());
+            assertTrue(Arrays.equals(random, ByteStreams.toByteArray(zis)));
+            assertEquals("res/text.txt", zis.getNextEntry().getName());
+            assertTrue(Arrays.equals(text, ByteStreams.toByteArray(zis)));
+        } finally {
+            zis.close();
+        }
+    }
+
+    public void testWriteToStream() throws Exception {
+        byte[] content = createContent(20000, 13);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParallelZipWriter writer = new ParallelZipWriter(out, 9, null);
+        for (int i = 0; i < 20; i++) {
+            writer.addBytes(content, "entry" + i, -1, ZipEntry.DEFLATED);
+        }
+        writer.close();
+        assertTrue(writer.getDigests().isEmpty());
+
+        File output = new File(mTmpDir, "output.zip");
+        Files.write(out.toByteArray(), output);
+        ZipFile zipFile = new ZipFile(output);
+        try {
+            assertEquals(20, zipFile.size());
+            for (int i = 0; i < 20; i++) {
+                assertContent(content, zipFile, "entry" + i);
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testUpdate() throws Exception {
+        // random content does not compress, so the sizes of the entries are known.
+        byte[] content1 = createRandomContent(100000, 1);
+        byte[] content2 = createRandomContent(1000, 2);
+        byte[] content3 = createRandomContent(1000, 3);
+        File file = new File(mTmpDir, "content1.bin");
+        Files.write(content1, file);
+
+        File output = new File(mTmpDir, "output.zip");
+        ParallelZipWriter writer = new ParallelZipWriter(output, 9, "SHA1");
+        writer.addFile(file, "a");
+        writer.addBytes(content2, "b", -1, ZipEntry.DEFLATED);
+        writer.addBytes(content3, "c", -1, ZipEntry.DEFLATED);
+        writer.close();
+        long length = output.length();
+        List<SourceEntry> before = readEntries(output);
+
+        // "a" is unchanged, "b" changes, "c" is removed and "d" is new.
+        byte[] knownDigest = new byte[] { 1, 2, 3 };
+        writer = new ParallelZipWriter(output, 9, "SHA1");
+        writer.setKnownDigests(Collections.singletonMap("a", knownDigest));
+        writer.addFile(file, "a");
+        writer.addBytes(content3, "b", -1, ZipEntry.DEFLATED);
+        writer.addBytes(content2, "d", -1, ZipEntry.DEFLATED);
+        writer.close();
+
+        // the unchanged entry is not digested again.
+        Map<String, byte[]> digests = writer.getDigests();
+        assertEquals(Arrays.asList("a", "b", "d"), Arrays.asList(digests.keySet().toArray()));
+        assertTrue(Arrays.equals(knownDigest, digests.get("a")));
+        assertTrue(Arrays.equals(sha1(content3), digests.get("b")));
+
+        // the unchanged entry stays in place, the others are appended.
+        List<SourceEntry> after = readEntries(output);
+        assertEquals(3, after.size());
+        assertEquals(before.get(0).getLocalHeaderOffset(), after.get(0).getLocalHeaderOffset());
+        assertTrue(after.get(1).getLocalHeaderOffset() > before.get(2).getLocalHeaderOffset());
+        assertTrue(output.length() > length);
+
+        ZipFile zipFile = new ZipFile(output);
+        try {
+            assertEquals(3, zipFile.size());
+            assertContent(content1, zipFile, "a");
+            assertContent(content3, zipFile, "b");
+            assertContent(content2, zipFile, "d");
+            assertNull(zipFile.getEntry("c"));
+        } finally {
+            zipFile.close();
+        }
+
+        // removing most of the content compacts the archive.
+        writer = new ParallelZipWriter(output, 9, "SHA1");
+        writer.addBytes(content3, "b", -1, ZipEntry.DEFLATED);
+        writer.close();
+        assertTrue(Arrays.equals(sha1(content3), writer.getDigests().get("b")));
+        after = readEntries(output);
+        assertEquals(1, after.size());
+        assertEquals(0, after.get(0).getLocalHeaderOffset());
+        assertTrue(output.length() < 2000);
+        zipFile = new ZipFile(output);
+        try {
+            assertContent(content3, zipFile, "b");
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testUpdateInvalidArchive() throws Exception {
+        File output = new File(mTmpDir, "output.zip");
+        Files.write(createContent(1000, 3), output);
+
+        ParallelZipWriter writer = new ParallelZipWriter(output, 9, null);
+        writer.addBytes(new byte[10], "a", -1, ZipEntry.STORED);
+        writer.close();
+
+        ZipFile zipFile = new ZipFile(output);
+        try {
+            assertEquals(1, zipFile.size());
+            assertContent(new byte[10], zipFile, "a");
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testCopyWithoutDigest() throws Exception {
+        byte[] content = createContent(20000, 13);
+        File source = new File(mTmpDir, "source.zip");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(source));
+        zos.putNextEntry(new ZipEntry("classes.dex"));
+        zos.write(content);
+        zos.close();
+
+        File output = new File(mTmpDir, "output.zip");
+        ParallelZipWriter writer = new ParallelZipWriter(new FileOutputStream(output), 9, null);
+        FileInputStream fis = new FileInputStream(source);
+        try {
+            FileChannel channel = fis.getChannel();
+            List<SourceEntry> entries = ParallelZipWriter.readEntries(channel);
+            writer.copyEntry(channel, entries.get(0));
+            writer.flush();
+        } finally {
+            fis.close();
+        }
+        writer.close();
+        assertTrue(writer.getDigests().isEmpty());
+
+        ZipFile zipFile = new ZipFile(output);
+        try {
+            assertEquals(1, zipFile.size());
+            assertContent(content, zipFile, "classes.dex");
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testDuplicateEntry() throws Exception {
+        ParallelZipWriter writer = new ParallelZipWriter(new ByteArrayOutputStream(), 9, null);
+        try {
+            writer.addBytes(new byte[1], "a", -1, ZipEntry.DEFLATED);
+            writer.addBytes(new byte[1], "a", -1, ZipEntry.DEFLATED);
+            fail("duplicate entry accepted");
+        } catch (ZipException e) {
+            assertEquals("duplicate entry: a", e.getMessage());
+        } finally {
+            writer.abort();
+        }
+    }
+
+    private static byte[] createContent(int size, int modulo) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) ((i * 31 + i / 100) % modulo);
+        }
+        return content;
+    }
+
+    private static byte[] createRandomContent(int size, long seed) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private static List<SourceEntry> readEntries(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            return ParallelZipWriter.readEntries(fis.getChannel());
+        } finally {
+            fis.close();
+        }
+    }
+
+    private static byte[] sha1(byte[] content) throws Exception {
+        return MessageDigest.getInstance("SHA1").digest(content);
+    }
+
+    private static void assertContent(byte[] expected, ZipFile zipFile, String name)
+            throws IOException {
+        ZipEntry entry = zipFile.getEntry(name);
+        assertNotNull(name, entry);
+        InputStream in = zipFile.getInputStream(entry);
+        try {
+            assertTrue(name, Arrays.equals(expected, ByteStreams.toByteArray(in)));
+        } finally {
+            in.close();
+        }
+    }
+}